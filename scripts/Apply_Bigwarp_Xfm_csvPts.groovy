@@ -5,6 +5,7 @@
 #@ String (label="Transformation type", choices={"Thin Plate Spline", "Affine", "Similarity", "Rotation", "Translation" }) transformType
 #@ Double (label="Inverse tolerance", value=0.1 ) invTolerance
 #@ Integer (label="Inverse maximum iterations", value=200) invMaxIters
+#@ Boolean (label="Approximate inverse (thin plate spline)", value=false) approximateInverse
 #@ Boolean (label="Csv has header row?", value=false) csvHasHeader
 #@ Double (label="x coordinate scale", value=1.0 ) sx
 #@ Double (label="y coordinate scale", value=1.0 ) sy
@@ -19,7 +20,7 @@ import net.imglib2.realtransform.*;
 import net.imglib2.realtransform.inverse.*;
 
 
-def buildTransform( File landmarksPath, String transformType, int nd, boolean needInverse, double invTolerance, int maxIters )
+def buildTransform( File landmarksPath, String transformType, int nd, boolean needInverse, double invTolerance, int maxIters, boolean approxInverse )
 {
 
 	// load the transform
@@ -35,6 +36,7 @@ def buildTransform( File landmarksPath, String transformType, int nd, boolean ne
 	}
 
 	bwTransform = new BigWarpTransform( ltm, transformType );
+	bwTransform.setApproximateInverse( approxInverse );
 	xfm = bwTransform.getTransformation();
 
     if( xfm instanceof Wrapped2DTransformAs3D )
@@ -47,6 +49,7 @@ def buildTransform( File landmarksPath, String transformType, int nd, boolean ne
             xfm.getOptimzer().setMaxIters( maxIters );
             xfm.getOptimzer().setTolerance( invTolerance );
         }
+		// the inverse of an approximate inverse is a thin plate spline too
 		xfm = xfm.inverse();
     }
 
@@ -69,35 +72,30 @@ catch ( IOException e )
 
 // get the transformation to apply
 int nd = lines.get( 0 ).split(",").length;
-transform = buildTransform( landmarksPath, transformType, nd, needInverseTransform, invTolerance, invMaxIters );
-
-// transform all points
-outputLines = [];
-result = new double[ nd ];
-boolean firstLine = true;
-for( l in lines )
+transform = buildTransform( landmarksPath, transformType, nd, needInverseTransform, invTolerance, invMaxIters, approximateInverse );
+
+// read and scale all points
+scale = [ sx, sy, sz ] as double[];
+start = csvHasHeader ? 1 : 0;
+numPoints = lines.size() - start;
+pts = new double[ nd ][ numPoints ];
+for( int i = 0; i < numPoints; i++ )
 {
-	// add the first line to the output if it's a header
-	if( firstLine && csvHasHeader )
-	{
-		outputLines.add( l );
-		firstLine = false;
-		continue;
-	}
-	
-	// parse line
-	pt = l.split(",").collect { s -> Double.parseDouble(s) };
-	scale = [ sx, sy, sz ] as double[];
-
+	pt = lines.get( start + i ).split(",").collect { s -> Double.parseDouble(s) };
+	for( int d = 0; d < nd; d++ )
+		pts[ d ][ i ] = pt[ d ] * scale[ d ];
+}
 
-	// elementwise multiplication of pt and scale
-	scaledpt = [pt, scale].transpose().collect{ it[0] * it[1]};
+// transform all points at once
+BatchTransforms.apply( transform, pts, pts, Runtime.getRuntime().availableProcessors() );
 
-	// transform point
-	transform.apply( scaledpt as double[], result );
+// add the first line to the output if it's a header
+outputLines = [];
+if( csvHasHeader )
+	outputLines.add( lines.get( 0 ) );
 
-	outputLines.add( result.collect{ x -> Double.toString(x)}.join(","));
-}
+for( int i = 0; i < numPoints; i++ )
+	outputLines.add( (0..<nd).collect{ d -> Double.toString( pts[ d ][ i ] ) }.join(","));
 
 // write output
 try
@@ -44,6 +44,7 @@ public class TransformTypeSelectDialog extends JDialog
 	public static final String SIMILARITY = "Similarity";
 	public static final String ROTATION = "Rotation";
 	public static final String TRANSLATION = "Translation";
+	public static final String COMPACT_RBF = "Compact RBF";
 	
 	private final BigWarp< ? > bw;
 	private String transformType;
@@ -53,6 +54,7 @@ public class TransformTypeSelectDialog extends JDialog
 	private final JRadioButton similarityButton;
 	private final JRadioButton rotationButton;
 	private final JRadioButton translationButton;
+	private final JRadioButton compactRbfButton;
 
 	/**
 	 * Instantiates and displays a JFrame that enables
@@ -74,6 +76,7 @@ public class TransformTypeSelectDialog extends JDialog
 		similarityButton = new JRadioButton( SIMILARITY );
 		rotationButton = new JRadioButton( ROTATION );
 		translationButton = new JRadioButton( TRANSLATION );
+		compactRbfButton = new JRadioButton( COMPACT_RBF );
 		
 		ButtonGroup group = new ButtonGroup();
 		group.add( tpsButton );
@@ -81,6 +84,7 @@ public class TransformTypeSelectDialog extends JDialog
 		group.add( similarityButton );
 		group.add( rotationButton );
 		group.add( translationButton );
+		group.add( compactRbfButton );
 
 		updateButtonGroup();
 
@@ -89,6 +93,7 @@ public class TransformTypeSelectDialog extends JDialog
 		addActionListender( similarityButton );
 		addActionListender( rotationButton );
 		addActionListender( translationButton );
+		addActionListender( compactRbfButton );
 		
 		JPanel radioPanel = new JPanel( new GridLayout(0, 1));
 		radioPanel.add( tpsButton );
@@ -96,6 +101,7 @@ public class TransformTypeSelectDialog extends JDialog
 		radioPanel.add( similarityButton );
 		radioPanel.add( rotationButton );
 		radioPanel.add( translationButton );
+		radioPanel.add( compactRbfButton );
 		
 		radioPanel.setBorder( BorderFactory.createCompoundBorder(
 				BorderFactory.createEmptyBorder( 4, 2, 4, 2 ),
@@ -128,6 +134,9 @@ public class TransformTypeSelectDialog extends JDialog
 		case TRANSLATION:
 			translationButton.setSelected( true );
 			break;
+		case COMPACT_RBF:
+			compactRbfButton.setSelected( true );
+			break;
 		}
 	}
 
@@ -1071,7 +1071,8 @@ public class ApplyBigwarpPlugin implements PlugIn
 					TransformTypeSelectDialog.AFFINE,
 					TransformTypeSelectDialog.SIMILARITY,
 					TransformTypeSelectDialog.ROTATION,
-					TransformTypeSelectDialog.TRANSLATION },
+					TransformTypeSelectDialog.TRANSLATION,
+					TransformTypeSelectDialog.COMPACT_RBF },
 				TransformTypeSelectDialog.TPS);
 
 		gd.addMessage( "Field of view and resolution:" );
@@ -1087,7 +1088,8 @@ public class ApplyBigwarpPlugin implements PlugIn
 				new String[]{
 						BoundingBoxEstimation.Method.CORNERS.toString(),
 						BoundingBoxEstimation.Method.FACES.toString(),
-						BoundingBoxEstimation.Method.VOLUME.toString()},
+						BoundingBoxEstimation.Method.VOLUME.toString(),
+						BoundingBoxEstimation.Method.ADAPTIVE.toString()},
 			BoundingBoxEstimation.Method.FACES.toString());
 
 		gd.addNumericField( "samples per dimension", 5, 0 );
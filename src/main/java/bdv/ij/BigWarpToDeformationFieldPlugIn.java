@@ -46,6 +46,9 @@ import org.janelia.saalfeldlab.n5.imglib2.N5DisplacementField;
 import bdv.viewer.SourceAndConverter;
 import bigwarp.BigWarpExporter;
 import bigwarp.landmarks.LandmarkTableModel;
+import bigwarp.transforms.ApproximateTpsTransform;
+import bigwarp.transforms.BatchRealTransform;
+import bigwarp.transforms.BatchTransforms;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImageJ;
@@ -57,6 +60,7 @@ import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.img.imageplus.FloatImagePlus;
@@ -149,13 +153,13 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 
 		if( params.n5Base.isEmpty() )
 		{
-			toImagePlus( landmarkModel, params.ignoreAffine, dims, spacing, params.nThreads );
+			toImagePlus( landmarkModel, params.ignoreAffine, dims, spacing, params.nThreads, params.approximationTolerance );
 		}
 		else
 		{
 			try
 			{
-				writeN5( params.n5Base, landmarkModel, dims, spacing, params.blockSize, params.compression, params.nThreads );
+				writeN5( params.n5Base, "dfield", landmarkModel, dims, spacing, params.blockSize, params.compression, params.nThreads, params.approximationTolerance );
 			}
 			catch ( IOException e )
 			{
@@ -187,13 +191,13 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 
 		if( params.n5Base.isEmpty() )
 		{
-			toImagePlus( ltm, params.ignoreAffine, params.size, params.spacing, params.nThreads );
+			toImagePlus( ltm, params.ignoreAffine, params.size, params.spacing, params.nThreads, params.approximationTolerance );
 		}
 		else
 		{
 			try
 			{
-				writeN5( params.n5Base, params.n5Dataset, ltm, params.size, params.spacing, params.blockSize, params.compression, params.nThreads );
+				writeN5( params.n5Base, params.n5Dataset, ltm, params.size, params.spacing, params.blockSize, params.compression, params.nThreads, params.approximationTolerance );
 			}
 			catch ( IOException e )
 			{
@@ -208,13 +212,38 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 			final long[] dims,
 			final double[] spacing,
 			final int nThreads )
+	{
+		return toImagePlus( ltm, ignoreAffine, dims, spacing, nThreads, 0 );
+	}
+
+	/**
+	 * Computes the deformation field of the thin plate spline the landmarks
+	 * define.
+	 *
+	 * @param ltm the landmarks
+	 * @param ignoreAffine whether to leave out the affine part
+	 * @param dims the dimensions of the field
+	 * @param spacing the spacing of the field
+	 * @param nThreads the number of threads
+	 * @param approximationTolerance if positive, the thin plate spline is
+	 *  evaluated approximately with this maximum error, see {@link ApproximateTpsTransform}
+	 * @return the deformation field
+	 */
+	public static ImagePlus toImagePlus(
+			final LandmarkTableModel ltm,
+			final boolean ignoreAffine,
+			final long[] dims,
+			final double[] spacing,
+			final int nThreads,
+			final double approximationTolerance )
 	{
 		ThinPlateR2LogRSplineKernelTransform tpsRaw = ltm.getTransform();
 		ThinPlateR2LogRSplineKernelTransform tpsUseMe = tpsRaw;
 		if ( ignoreAffine )
 			tpsUseMe = new ThinPlateR2LogRSplineKernelTransform( tpsRaw.getSourceLandmarks(), null, null, tpsRaw.getKnotWeights() );
 
-		ThinplateSplineTransform tps = new ThinplateSplineTransform( tpsUseMe );
+		RealTransform tps = ApproximateTpsTransform.approximate(
+				new ThinplateSplineTransform( tpsUseMe ), approximationTolerance );
 
 		AffineGet pixelToPhysical = null;
 		if( spacing.length == 2)
@@ -268,6 +297,18 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 			final int[] spatialBlockSize,
 			final Compression compression,
 			final int nThreads ) throws IOException 
+	{
+		writeN5( n5BasePath, n5Dataset, ltm, dims, spacing, spatialBlockSize, compression, nThreads, 0 );
+	}
+
+	public static void writeN5( final String n5BasePath, final String n5Dataset,
+			final LandmarkTableModel ltm,
+			final long[] dims,
+			final double[] spacing,
+			final int[] spatialBlockSize,
+			final Compression compression,
+			final int nThreads,
+			final double approximationTolerance ) throws IOException 
 	{
 		final ThinPlateR2LogRSplineKernelTransform tpsRaw = ltm.getTransform();
 		final AffineGet affine = toAffine( tpsRaw );
@@ -276,7 +317,8 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 		 * "remove the affine" from the total transform
 		 * by concatenating the inverse of the affine to be removed
 		 */
-		final ThinplateSplineTransform tpsTotal = new ThinplateSplineTransform( tpsRaw );
+		final RealTransform tpsTotal = ApproximateTpsTransform.approximate(
+				new ThinplateSplineTransform( tpsRaw ), approximationTolerance );
 		final RealTransformSequence seq = new RealTransformSequence();
 		seq.add( tpsTotal );
 		seq.add( affine.inverse() );
@@ -462,23 +504,56 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 		assert deformationField.numDimensions() == ( transform.numSourceDimensions() + 1 );
 		assert deformationField.dimension( deformationField.numDimensions() - 1 ) >= transform.numSourceDimensions();
 
-		int N = transform.numSourceDimensions();
-		RealPoint p = new RealPoint( transform.numTargetDimensions() );
-		RealPoint q = new RealPoint( transform.numTargetDimensions() );
-
 		CompositeIntervalView< T, ? extends GenericComposite< T > > col = Views.collapse( deformationField );
-		Cursor< ? extends GenericComposite< T > > c = Views.flatIterable( col ).cursor();
-		while ( c.hasNext() )
+		fromRealTransform( BatchTransforms.wrap( transform ), pixelToPhysical, Views.flatIterable( col ), transform.numSourceDimensions() );
+	}
+
+	/**
+	 * Writes the displacements of a batched transformation at every location
+	 * of an {@link IterableInterval}, transforming {@link BatchTransforms#BLOCK_SIZE}
+	 * points at a time.
+	 *
+	 * @param <T> the type of the deformation field
+	 * @param transform the batched transformation
+	 * @param pixelToPhysical the transform from pixel to physical coordinates
+	 * @param displacements the displacement vectors
+	 * @param ndims the number of dimensions of the transformation
+	 */
+	private static < T extends RealType< T > > void fromRealTransform(
+			final BatchRealTransform transform,
+			final RealTransform pixelToPhysical,
+			final IterableInterval< ? extends GenericComposite< T > > displacements,
+			final int ndims )
+	{
+		final int blockSize = BatchTransforms.BLOCK_SIZE;
+		final double[][] p = new double[ ndims ][ blockSize ];
+		final double[][] q = new double[ ndims ][ blockSize ];
+		final RealPoint x = new RealPoint( ndims );
+
+		// both cursors visit the locations in the same order
+		final Cursor< ? extends GenericComposite< T > > read = displacements.cursor();
+		final Cursor< ? extends GenericComposite< T > > write = displacements.cursor();
+		while ( read.hasNext() )
 		{
-			GenericComposite< T > displacementVector = c.next();
+			int m = 0;
+			while ( m < blockSize && read.hasNext() )
+			{
+				read.fwd();
+				pixelToPhysical.apply( read, x );
+				for ( int d = 0; d < ndims; d++ )
+					p[ d ][ m ] = x.getDoublePosition( d );
+
+				m++;
+			}
 
-			// transform the location of the cursor
-			// and store the displacement
-			pixelToPhysical.apply( c, p );
-			transform.apply( p, q );
+			transform.apply( p, q, 0, m );
 
-			for ( int i = 0; i < N; i++ )
-				displacementVector.get( i ).setReal( q.getDoublePosition( i ) - p.getDoublePosition( i ) ); 
+			for ( int i = 0; i < m; i++ )
+			{
+				final GenericComposite< T > displacementVector = write.next();
+				for ( int d = 0; d < ndims; d++ )
+					displacementVector.get( d ).setReal( q[ d ][ i ] - p[ d ][ i ] );
+			}
 		}
 	}
 	
@@ -557,26 +632,11 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 				{
 					try
 					{
-						RealPoint p = new RealPoint( transform.numTargetDimensions() );
-						RealPoint q = new RealPoint( transform.numTargetDimensions() );
-
 						final FinalInterval subItvl = BigWarpExporter.getSubInterval( deformationField, dim2split, start, end );
 						CompositeIntervalView< T, ? extends GenericComposite< T > > col = Views.collapse( deformationField );
 						final IntervalView< ? extends GenericComposite< T > > subTgt = Views.interval( col, subItvl );
 
-						Cursor< ? extends GenericComposite< T > > c = Views.flatIterable( subTgt ).cursor();
-						while ( c.hasNext() )
-						{
-							GenericComposite< T > displacementVector = c.next();
-
-							// transform the location of the cursor
-							// and store the displacement
-							toPhysicalCopy.apply( c, p );
-							transformCopy.apply( p, q );
-
-							for ( int i = 0; i < ndims; i++ )
-								displacementVector.get( i ).setReal( q.getDoublePosition( i ) - p.getDoublePosition( i ) ); 
-						}
+						fromRealTransform( BatchTransforms.wrap( transformCopy ), toPhysicalCopy, Views.flatIterable( subTgt ), ndims );
 						return true;
 					}
 					catch( Exception e )
@@ -633,6 +693,7 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 		public final String landmarkPath;
 		public final boolean ignoreAffine;
 		public final int nThreads;
+		public final double approximationTolerance;
 
 		public final long[] size;
 		public final double[] spacing;
@@ -646,6 +707,7 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 				final String landmarkPath,
 				final boolean ignoreAffine,
 				final int nThreads,
+				final double approximationTolerance,
 				final long[] size,
 				final double[] spacing,
 				final String n5Base,
@@ -656,6 +718,7 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 			this.landmarkPath = landmarkPath;
 			this.ignoreAffine = ignoreAffine;
 			this.nThreads = nThreads;
+			this.approximationTolerance = approximationTolerance;
 
 			this.size = size;
 			this.spacing = spacing;
@@ -679,6 +742,7 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 
 			gd.addCheckbox( "Ignore affine part", false );
 			gd.addNumericField( "threads", 1, 0 );
+			gd.addNumericField( "approximation tolerance (0 for exact)", 0, 4 );
 			gd.addMessage( "Size and spacing" );
 
 			final int[] ids = WindowManager.getIDList();
@@ -713,6 +777,7 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 
 			final boolean ignoreAffine = gd.getNextBoolean();
 			final int nThreads = ( int ) gd.getNextNumber();
+			final double approximationTolerance = gd.getNextNumber();
 
 			ImagePlus ref_imp = null;
 			if( promptReference )
@@ -769,6 +834,7 @@ public class BigWarpToDeformationFieldPlugIn implements PlugIn
 					landmarkPath,
 					ignoreAffine,
 					nThreads,
+					approximationTolerance,
 					size,
 					spacing,
 					n5Base,
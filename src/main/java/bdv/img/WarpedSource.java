@@ -29,9 +29,12 @@ import bdv.viewer.SourceAndConverter;
 import bdv.viewer.render.DefaultMipmapOrdering;
 import bdv.viewer.render.MipmapOrdering;
 import bigwarp.BigWarpExporter;
+import bigwarp.transforms.ApproximateTpsTransform;
+import bigwarp.transforms.DisplacementGridTransform;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.BoundingBoxEstimation;
@@ -66,12 +69,32 @@ public class WarpedSource < T > implements Source< T >, MipmapOrdering
 
 	private RealTransform xfm;
 
+	/**
+	 * The transformation used for rendering, either {@link #xfm} or an
+	 * approximation of it.
+	 */
+	private RealTransform renderXfm;
+
+	private double approximationTolerance;
+
+	private double gridSpacing;
+
+	private double gridTolerance;
+
 	private boolean isTransformed;
 	
 	private final Supplier< Boolean > boundingBoxCullingSupplier;
 
 	private BoundingBoxEstimation bboxEst;
 
+	/**
+	 * Bounding intervals per mipmap level for {@link #boundingIntervalsTimepoint}
+	 * and the current transformation, entries are null until estimated.
+	 */
+	private Interval[] boundingIntervals;
+
+	private int boundingIntervalsTimepoint;
+
 	public WarpedSource( final Source< T > source, final String name )
 	{
 		this( source, name, null );
@@ -86,6 +109,10 @@ public class WarpedSource < T > implements Source< T >, MipmapOrdering
 		this.boundingBoxCullingSupplier = doBoundingBoxCulling;
 
 		this.xfm = null;
+		this.renderXfm = null;
+		this.approximationTolerance = 0;
+		this.gridSpacing = 0;
+		this.gridTolerance = 0;
 
 		sourceMipmapOrdering = MipmapOrdering.class.isInstance( source ) ?
 				( MipmapOrdering ) source : new DefaultMipmapOrdering( source );
@@ -107,8 +134,78 @@ public class WarpedSource < T > implements Source< T >, MipmapOrdering
 	}
 
 	public void updateTransform( RealTransform xfm )
+	{
+		updateTransform( xfm, null );
+	}
+
+	/**
+	 * Sets the transformation, with a hint where it changed most compared to
+	 * the previous one, such that a displacement grid (see
+	 * {@link #setDisplacementGrid(double, double)}) can keep the blocks
+	 * outside of that region.
+	 *
+	 * @param xfm the transformation
+	 * @param affected the region in target space that changed, or null if unknown
+	 */
+	public void updateTransform( RealTransform xfm, final RealInterval affected )
 	{
 		this.xfm = xfm;
+		invalidateBoundingIntervals();
+
+		final RealTransform approx = ApproximateTpsTransform.approximate( xfm, approximationTolerance );
+		if ( gridSpacing <= 0 || approx == null )
+			renderXfm = approx;
+		else if ( renderXfm instanceof DisplacementGridTransform )
+			renderXfm = ( ( DisplacementGridTransform ) renderXfm ).update( approx, affected );
+		else
+			renderXfm = DisplacementGridTransform.create( approx, gridSpacing, gridTolerance );
+	}
+
+	/**
+	 * Render with a displacement grid that is sampled lazily from the
+	 * transformation and interpolated, see {@link DisplacementGridTransform}.
+	 * Only affects rendering, {@link #getTransform()} remains exact. A spacing
+	 * of zero or less renders with the transformation itself.
+	 *
+	 * @param spacing the grid spacing (in physical units)
+	 * @param tolerance the largest interpolation error, where it is exceeded the transformation is evaluated exactly
+	 */
+	public void setDisplacementGrid( final double spacing, final double tolerance )
+	{
+		this.gridSpacing = spacing;
+		this.gridTolerance = tolerance;
+		this.renderXfm = null;
+		updateTransform( xfm );
+	}
+
+	public double getDisplacementGridSpacing()
+	{
+		return gridSpacing;
+	}
+
+	public double getDisplacementGridTolerance()
+	{
+		return gridTolerance;
+	}
+
+	/**
+	 * Render with an approximation of thin plate spline transformations whose
+	 * error is bounded by the given tolerance (in physical units), see
+	 * {@link ApproximateTpsTransform}. Zero or less renders with the exact
+	 * transformation.
+	 *
+	 * @param approximationTolerance the tolerance
+	 */
+	public void setApproximationTolerance( final double approximationTolerance )
+	{
+		this.approximationTolerance = approximationTolerance;
+		this.renderXfm = null;
+		updateTransform( xfm );
+	}
+
+	public double getApproximationTolerance()
+	{
+		return approximationTolerance;
 	}
 	
 	public void setIsTransformed( boolean isTransformed )
@@ -119,6 +216,7 @@ public class WarpedSource < T > implements Source< T >, MipmapOrdering
 	public void setBoundingBoxEstimator( final BoundingBoxEstimation bboxEst )
 	{
 		this.bboxEst = bboxEst;
+		invalidateBoundingIntervals();
 	}
 
 	public boolean isTransformed( )
@@ -143,9 +241,27 @@ public class WarpedSource < T > implements Source< T >, MipmapOrdering
 		return source.getSource( t, level );
 	}
 
-	private Interval estimateBoundingInterval( final int t, final int level )
+	/**
+	 * Returns the bounding interval of the transformed source, estimated once
+	 * per transformation, timepoint and mipmap level.
+	 */
+	private synchronized Interval estimateBoundingInterval( final int t, final int level )
+	{
+		if ( boundingIntervals == null || boundingIntervalsTimepoint != t )
+		{
+			boundingIntervals = new Interval[ source.getNumMipmapLevels() ];
+			boundingIntervalsTimepoint = t;
+		}
+
+		if ( boundingIntervals[ level ] == null )
+			boundingIntervals[ level ] = bboxEst.estimatePixelInterval( xfm, source.getSource( t, level ) );
+
+		return boundingIntervals[ level ];
+	}
+
+	private synchronized void invalidateBoundingIntervals()
 	{
-		return bboxEst.estimatePixelInterval( xfm, source.getSource( t, level ) );
+		boundingIntervals = null;
 	}
 
 	@Override
@@ -181,10 +297,10 @@ public class WarpedSource < T > implements Source< T >, MipmapOrdering
 			source.getSourceTransform( t, level, transform );
 			final RealRandomAccessible< T > srcRaTransformed = RealViews.affineReal( source.getInterpolatedSource( t, level, method ), transform );
 
-			if( xfm == null )
+			if( renderXfm == null )
 				return srcRaTransformed;
 			else
-				return new RealTransformRealRandomAccessible< T, RealTransform >( srcRaTransformed, xfm );
+				return new RealTransformRealRandomAccessible< T, RealTransform >( srcRaTransformed, renderXfm );
 		}
 		else
 		{
@@ -30,7 +30,7 @@ import java.awt.event.MouseMotionListener;
 import net.imglib2.RealPoint;
 import net.imglib2.realtransform.AffineTransform3D;
 import bigwarp.BigWarp;
-import bigwarp.BigWarp.SolveThread;
+import bigwarp.BigWarp.SolveScheduler;
 
 public class BigWarpDragOverlay
 {
@@ -55,7 +55,7 @@ public class BigWarpDragOverlay
 	
 	private Color baseColor;
 	
-	public BigWarpDragOverlay( final BigWarp<?> bw, final BigWarpViewerPanel viewer, final SolveThread solveThread )
+	public BigWarpDragOverlay( final BigWarp<?> bw, final BigWarpViewerPanel viewer, final SolveScheduler solveScheduler )
 	{
 		this.bw = bw;
 		this.viewer = viewer;
@@ -68,7 +68,7 @@ public class BigWarpDragOverlay
 		arad = viewer.getSettings().getSpotSize();
 		baseColor = viewer.getSettings().getSpotColor();
 
-		mouseListener = new WarpDragMouseListener( bw, viewer, solveThread );
+		mouseListener = new WarpDragMouseListener( bw, viewer, solveScheduler );
 	}
 	
 	public void reset()
@@ -119,15 +119,15 @@ public class BigWarpDragOverlay
 		private int index;
 		double[] targetPtArray = new double[ ndim ];
 
-		final private SolveThread solverThread;
+		final private SolveScheduler solveScheduler;
 
-		public WarpDragMouseListener( final BigWarp bw, final BigWarpViewerPanel thisViewer, SolveThread solverThread )
+		public WarpDragMouseListener( final BigWarp bw, final BigWarpViewerPanel thisViewer, SolveScheduler solveScheduler )
 		{
 			this.bw = bw;
 			setViewer( thisViewer );
 			thisViewer.getDisplay().addHandler( this );
 
-			this.solverThread = solverThread;
+			this.solveScheduler = solveScheduler;
 		}
 		
 		protected void setViewer( BigWarpViewerPanel thisViewer )
@@ -213,7 +213,7 @@ public class BigWarpDragOverlay
 				if( bw.isMovingDisplayTransformed() &&
 						bw.getLandmarkPanel().getTableModel().isActive( index ) )
 				{
-					solverThread.requestResolve( false, index, targetPtArray );
+					solveScheduler.requestResolve( false, index, targetPtArray );
 				}
 
 				thisViewer.requestRepaint();
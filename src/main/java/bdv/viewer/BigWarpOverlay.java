@@ -29,12 +29,15 @@ import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.Stroke;
 import java.util.Arrays;
+import java.util.function.IntConsumer;
 
 import javax.swing.JTable;
 
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
 import bdv.gui.BigWarpLandmarkPanel;
+import bigwarp.landmarks.LandmarkIndex;
+import bigwarp.landmarks.LandmarkSnapshot;
 import bigwarp.landmarks.LandmarkTableModel;
 
 public class BigWarpOverlay {
@@ -54,11 +57,35 @@ public class BigWarpOverlay {
 	protected final boolean isMoving;
 	protected final boolean is3d;
 	
+	// extra margin in viewer pixels so that names of landmarks just outside
+	// the left edge are drawn
+	private static final double NAME_MARGIN = 200;
+
 	protected final double[] spot;
 	protected final double[] viewerCoords;
 
 	/** The transform for the viewer current viewpoint. */
 	private final AffineTransform3D transform = new AffineTransform3D();
+
+	/*
+	 * The inverse of the viewer transform for culling in 3d, updated when
+	 * the viewpoint changes rather than on every repaint.
+	 */
+	private final AffineTransform3D viewerToWorld = new AffineTransform3D();
+	private final AffineTransform3D currentTransform = new AffineTransform3D();
+
+	/*
+	 * Buffers reused across repaints: the bounding box of the visible part of
+	 * the viewer in landmark space, and the rows inside of it.
+	 */
+	private final double[] visibleMin;
+	private final double[] visibleMax;
+	private final double[] corner = new double[ 3 ];
+	private final double[] cornerWorld = new double[ 3 ];
+
+	private int[] visibleRows = new int[ 64 ];
+	private int numVisibleRows;
+	private final IntConsumer addVisibleRow = this::addVisibleRow;
 	
 	public BigWarpOverlay( final BigWarpViewerPanel viewer, BigWarpLandmarkPanel landmarkpanel )
 	{
@@ -75,6 +102,9 @@ public class BigWarpOverlay {
 
 		spot = new double[ 3 ];
 		viewerCoords = new double[ 3 ];
+
+		visibleMin = new double[ landmarkModel.getNumdims() ];
+		visibleMax = new double[ landmarkModel.getNumdims() ];
 	}
 
 
@@ -100,10 +130,6 @@ public class BigWarpOverlay {
 		// get selected points
 		int[] selectedRows = table.getSelectedRows();
 		Arrays.sort( selectedRows );
-		boolean[] isSelected = new boolean[ landmarkModel.getRowCount() ];
-		for( int i : selectedRows )
-			isSelected[ i ] = true;
-
 
 		/*
 		 * Draw spots.
@@ -145,45 +171,46 @@ public class BigWarpOverlay {
 
 			}		final Color desaturatedColor = null;
 
-			final int nRows = landmarkModel.getRowCount();
-			for( int index = 0; index < nRows; index++ )
+			// if the viewer is moving but transformed, render the points
+			// at the location of the warped point ( if it exists ),
+			// otherwise, take the fixed point
+			final int space;
+			if ( isMoving )
+				space = viewer.isInFixedImageSpace() ? LandmarkSnapshot.WARPED : LandmarkSnapshot.MOVING;
+			else
+				space = LandmarkSnapshot.TARGET;
+
+			// only visit the landmarks near the visible part of the current
+			// slice, all read from one snapshot without locking the table
+			final LandmarkIndex landmarkIndex = landmarkModel.getIndex( space );
+			final LandmarkSnapshot landmarks = landmarkIndex.getSnapshot();
+
+			final double rad = radius * radiusRatio;
+			double margin = rad + strokeW + 4;
+			if ( viewer.getSettings().areNamesVisible() )
+				margin += NAME_MARGIN;
+
+			numVisibleRows = 0;
+			if ( setVisibleBox( margin, rad ) )
+				landmarkIndex.forEachInBox( visibleMin, visibleMax, addVisibleRow );
+
+			// keep the drawing order of the table
+			Arrays.sort( visibleRows, 0, numVisibleRows );
+
+			for( int i = 0; i < numVisibleRows; i++ )
 			{
+				final int index = visibleRows[ i ];
 
-				if ( landmarkModel.isActive( index ) )
+				if ( landmarks.isActive( index ) )
 					g.setColor( color );
 				else
 					g.setColor( inactiveColor );
 
 				g.setStroke( stroke );
 
-				landmarkModel.copyPointSafe(spot, index, isMoving);
-
-				// if the viewer is moving but transformed, render the points
-				// at the location of the warped point ( if it exists ),
-				// otherwise, take the fixed point
-				boolean copySuccess = false;
-				if( isMoving ) {
-					if( viewer.isInFixedImageSpace() ) {
-						if( landmarkModel.isWarped(index))
-							copySuccess = landmarkModel.copyWarpedPointSafe(spot, index);
-						else
-							copySuccess = landmarkModel.copyTargetPointSafe(spot, index);
-					}
-					else
-						copySuccess = landmarkModel.copyMovingPointSafe(spot, index);
-				}
-				else {
-					// fixed space
-					copySuccess = landmarkModel.copyTargetPointSafe(spot, index);
-				}
-
-				// if this point is not set, don't render it.
-				if ( !copySuccess || Double.isInfinite( spot[ 0 ] ) )
-					continue;
-
+				landmarks.copyPoint( index, space, spot );
 				transform.apply( spot, viewerCoords );
 
-				final double rad = radius * radiusRatio;
 				final double zv = viewerCoords[ 2 ];
 				final double dz2 = zv * zv;
 
@@ -202,7 +229,7 @@ public class BigWarpOverlay {
 								( int ) ( viewerCoords[ 1 ] - arad ), 
 								( int ) ( 2 * arad + 1 ), ( int ) ( 2 * arad + 1) );
 					
-					if( isSelected[ index ] )
+					if( Arrays.binarySearch( selectedRows, index ) >= 0 )
 					{
 						g.setStroke( hlStroke );
 						g.setColor( Color.WHITE );
@@ -229,7 +256,7 @@ public class BigWarpOverlay {
 						final int tx = ( int ) ( viewerCoords[ 0 ] + arad + 5 );
 						final int ty = ( int ) viewerCoords[ 1 ];
 						
-						String name = landmarkModel.getNames().get(index);
+						String name = landmarks.getName(index);
 						int strwidth = fm.stringWidth( name );
 						
 						if( hoveredIndex == index )
@@ -256,6 +283,80 @@ public class BigWarpOverlay {
 	}
 
 
+	private void addVisibleRow( final int row )
+	{
+		if ( numVisibleRows == visibleRows.length )
+			visibleRows = Arrays.copyOf( visibleRows, 2 * visibleRows.length );
+
+		visibleRows[ numVisibleRows++ ] = row;
+	}
+
+	/**
+	 * Sets the bounding box in landmark space of the part of the current slice
+	 * that is visible in the viewer, grown by a margin in viewer pixels. For 3d
+	 * landmarks, the slice spans viewer z from -rad to rad.
+	 *
+	 * @param margin the margin in viewer pixels
+	 * @param rad the half thickness of the slice
+	 * @return false if nothing is visible
+	 */
+	private boolean setVisibleBox( final double margin, final double rad )
+	{
+		final int nd = visibleMin.length;
+		Arrays.fill( visibleMin, Double.POSITIVE_INFINITY );
+		Arrays.fill( visibleMax, Double.NEGATIVE_INFINITY );
+
+		final double x0 = -margin;
+		final double y0 = -margin;
+		final double x1 = viewer.getDisplay().getWidth() + margin;
+		final double y1 = viewer.getDisplay().getHeight() + margin;
+
+		if ( is3d )
+		{
+			for ( int c = 0; c < 8; c++ )
+			{
+				corner[ 0 ] = ( c & 1 ) == 0 ? x0 : x1;
+				corner[ 1 ] = ( c & 2 ) == 0 ? y0 : y1;
+				corner[ 2 ] = ( c & 4 ) == 0 ? -rad : rad;
+				viewerToWorld.apply( corner, cornerWorld );
+				growVisibleBox( cornerWorld );
+			}
+		}
+		else
+		{
+			// 2d landmarks lie in the z = 0 plane, invert the transform restricted to it
+			final double a = transform.get( 0, 0 ), b = transform.get( 0, 1 );
+			final double c = transform.get( 1, 0 ), d = transform.get( 1, 1 );
+			final double det = a * d - b * c;
+			if ( det == 0 )
+				return false;
+
+			for ( int k = 0; k < 4; k++ )
+			{
+				final double x = ( ( k & 1 ) == 0 ? x0 : x1 ) - transform.get( 0, 3 );
+				final double y = ( ( k & 2 ) == 0 ? y0 : y1 ) - transform.get( 1, 3 );
+				cornerWorld[ 0 ] = ( d * x - b * y ) / det;
+				cornerWorld[ 1 ] = ( a * y - c * x ) / det;
+				growVisibleBox( cornerWorld );
+			}
+		}
+
+		for ( int i = 0; i < nd; i++ )
+			if ( !( visibleMin[ i ] <= visibleMax[ i ] ) )
+				return false;
+
+		return true;
+	}
+
+	private void growVisibleBox( final double[] pt )
+	{
+		for ( int i = 0; i < visibleMin.length; i++ )
+		{
+			visibleMin[ i ] = Math.min( visibleMin[ i ], pt[ i ] );
+			visibleMax[ i ] = Math.max( visibleMax[ i ], pt[ i ] );
+		}
+	}
+
 	/**
 	 * Update data to show in the overlay.
 	 * @param state the viewer state
@@ -265,7 +366,23 @@ public class BigWarpOverlay {
 		/*
 		 * Collect current view.
 		 */
-		state.getViewerTransform( transform );
+		state.getViewerTransform( currentTransform );
+		if ( !isSame( currentTransform, transform ) )
+		{
+			transform.set( currentTransform );
+			if ( is3d )
+				viewerToWorld.set( transform.inverse() );
+		}
+	}
+
+	private static boolean isSame( final AffineTransform3D a, final AffineTransform3D b )
+	{
+		for ( int r = 0; r < 3; r++ )
+			for ( int c = 0; c < 4; c++ )
+				if ( a.get( r, c ) != b.get( r, c ) )
+					return false;
+
+		return true;
 	}
 	
 	public void setEstimatedTransform( final RealTransform estimatedXfm )
@@ -40,10 +40,8 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -51,6 +49,7 @@ import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.ActionMap;
 import javax.swing.InputMap;
@@ -128,6 +127,7 @@ import bdv.viewer.animate.SimilarityModel3D;
 import bdv.viewer.animate.TranslationAnimator;
 import bdv.viewer.overlay.BigWarpSourceOverlayRenderer;
 import bdv.viewer.overlay.MultiBoxOverlayRenderer;
+import bigwarp.landmarks.LandmarkSnapshot;
 import bigwarp.landmarks.LandmarkTableModel;
 import bigwarp.loader.ImagePlusLoader.ColorSettings;
 import bigwarp.source.GridSource;
@@ -155,18 +155,22 @@ import mpicbg.models.SimilarityModel2D;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
 import mpicbg.spim.data.SpimDataException;
+import net.imglib2.FinalRealInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.display.RealARGBColorConverter;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.BoundingBoxEstimation;
 import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.ThinplateSplineTransform;
 import net.imglib2.realtransform.Wrapped2DTransformAs3D;
 import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.volatiles.VolatileFloatType;
 
 public class BigWarp< T >
 {
@@ -250,7 +254,8 @@ public class BigWarp< T >
 
 	protected LandmarkTableModel landmarkModel;
 
-	protected InvertibleRealTransform currentTransform;
+	// written by the solve scheduler
+	protected volatile InvertibleRealTransform currentTransform;
 
 	protected JTable landmarkTable;
 
@@ -278,7 +283,7 @@ public class BigWarp< T >
 
 	private final double[] ptBack;
 
-	private SolveThread solverThread;
+	private SolveScheduler solveScheduler;
 
 	private BigWarpTransform bwTransform;
 
@@ -490,14 +495,14 @@ public class BigWarp< T >
 		bwTransform = new BigWarpTransform( landmarkModel );
 		bwTransform.initializeInverseParameters(data);
 
-		solverThread = new SolveThread( this );
-		solverThread.start();
+		solveScheduler = new SolveScheduler( this );
+		solveScheduler.start();
 
 		bboxOptions = new BoundingBoxEstimation( BoundingBoxEstimation.Method.FACES, 5 );
 		updateSourceBoundingBoxEstimators();
 
-		dragOverlayP = new BigWarpDragOverlay( this, viewerP, solverThread );
-		dragOverlayQ = new BigWarpDragOverlay( this, viewerQ, solverThread );
+		dragOverlayP = new BigWarpDragOverlay( this, viewerP, solveScheduler );
+		dragOverlayQ = new BigWarpDragOverlay( this, viewerQ, solveScheduler );
 		viewerP.addDragOverlay( dragOverlayP );
 		viewerQ.addDragOverlay( dragOverlayQ );
 
@@ -650,6 +655,8 @@ public class BigWarp< T >
 		viewerFrameP.getViewerPanel().stop();
 		viewerFrameQ.getViewerPanel().stop();
 
+		solveScheduler.stop();
+
 		viewerFrameP.dispose();
 		viewerFrameQ.dispose();
 		landmarkFrame.dispose();
@@ -1395,8 +1402,6 @@ public class BigWarp< T >
 		logger.trace( "clicked: " + XfmUtils.printArray( pt ) );
 
 		// TODO selectedLandmark
-		final int N = landmarkModel.getRowCount();
-
 		// a point will be selected if you click inside the spot ( with a 5 pixel buffer )
 		double radsq = ( viewerSettings.getSpotSize() * viewerSettings.getSpotSize() ) + 5 ;
 		final AffineTransform3D viewerXfm = new AffineTransform3D();
@@ -1413,43 +1418,20 @@ public class BigWarp< T >
 		radsq = ( radsq * radsq );
 		final double scale = computeScaleAssumeRigid( viewerXfm );
 
-		double dist = 0.0;
-		int bestIdx = -1;
-		double smallestDist = Double.MAX_VALUE;
-
 		logger.trace( "  selectedLandmarkHelper dist scale: " + scale );
 		logger.trace( "  selectedLandmarkHelper      radsq: " + radsq );
 
-		for ( int n = 0; n < N; n++ )
-		{
-			final Double[] lmpt;
-			if( isMoving && landmarkModel.isWarped( n ) && isMovingDisplayTransformed() )
-			{
-				lmpt = landmarkModel.getWarpedPoints().get( n );
-			}
-			else if( isMoving && isMovingDisplayTransformed() )
-			{
-				lmpt = landmarkModel.getPoints( false ).get( n );
-			}
-			else
-			{
-				lmpt = landmarkModel.getPoints( isMoving ).get( n );
-			}
-
-			dist = 0.0;
-			for ( int i = 0; i < landmarkModel.getNumdims(); i++ )
-			{
-				dist += ( pt[ i ] - lmpt[ i ] ) * ( pt[ i ] - lmpt[ i ] );
-			}
+		// the nearest landmark in the space the viewer displays
+		final int space;
+		if( isMoving && isMovingDisplayTransformed() )
+			space = LandmarkSnapshot.WARPED;
+		else if( isMoving )
+			space = LandmarkSnapshot.MOVING;
+		else
+			space = LandmarkSnapshot.TARGET;
 
-			dist *= ( scale * scale );
-			logger.trace( "    dist squared of lm index : " + n + " is " + dist );
-			if ( dist < radsq && dist < smallestDist )
-			{
-				smallestDist = dist;
-				bestIdx = n;
-			}
-		}
+		final double maxSqrDist = scale == 0 ? Double.MAX_VALUE : radsq / ( scale * scale );
+		final int bestIdx = landmarkModel.getIndexNearestTo( pt, space, maxSqrDist );
 
 		if ( selectInTable && landmarkFrame.isVisible() )
 		{
@@ -1592,7 +1574,19 @@ public class BigWarp< T >
 
 		RealPoint mousePt = new RealPoint( 3 ); // need 3d point even for 2d images
 		viewer.getGlobalMouseCoordinates( mousePt );
-		warpToLandmark( landmarkModel.getIndexNearestTo( mousePt, viewer.getIsMoving() ),  viewer );
+
+		// the nearest landmark where warpToLandmark looks for it
+		final int space;
+		if( viewer.getIsMoving() && viewer.getOverlay().getIsTransformed() )
+			space = LandmarkSnapshot.WARPED;
+		else if( viewer.getIsMoving() )
+			space = LandmarkSnapshot.MOVING;
+		else
+			space = LandmarkSnapshot.TARGET;
+
+		final double[] pt = new double[ 3 ];
+		mousePt.localize( pt );
+		warpToLandmark( landmarkModel.getIndexNearestTo( pt, space, Double.MAX_VALUE ),  viewer );
 	}
 
 	public void warpToLandmark( int row, BigWarpViewerPanel viewer )
@@ -1773,6 +1767,19 @@ public class BigWarp< T >
 		return wrappedSource;
 	}
 
+	/*
+	 * Shows a warp visualization source in white, and its volatile version
+	 * while its values are computed.
+	 */
+	private static SourceAndConverter< FloatType > warpVisSourceAndConverter( final Source< FloatType > source, final Source< VolatileFloatType > volatileSource )
+	{
+		final RealARGBColorConverter< FloatType > converter = RealARGBColorConverter.create( new FloatType(), 0, 512 );
+		converter.setColor( new ARGBType( 0xffffffff ) );
+		final RealARGBColorConverter< VolatileFloatType > volatileConverter = RealARGBColorConverter.create( new VolatileFloatType(), 0, 512 );
+		volatileConverter.setColor( new ARGBType( 0xffffffff ) );
+		return new SourceAndConverter<>( source, converter, new SourceAndConverter<>( volatileSource, volatileConverter ) );
+	}
+
 	@SuppressWarnings( { "rawtypes", "unchecked" } )
 	private static < T > SourceAndConverter< FloatType > addJacobianDeterminantSource( final BigWarpData< T > data, final String name )
 	{
@@ -1780,9 +1787,7 @@ public class BigWarp< T >
 		// or should we just stick with Doubles?
 
 		final JacobianDeterminantSource< FloatType > jdSource = new JacobianDeterminantSource<>( name, data, new FloatType() );
-		final RealARGBColorConverter< FloatType > converter = RealARGBColorConverter.create( new FloatType(), 0, 512 );
-		converter.setColor( new ARGBType( 0xffffffff ) );
-		final SourceAndConverter< FloatType > soc = new SourceAndConverter<>( jdSource, converter, null );
+		final SourceAndConverter< FloatType > soc = warpVisSourceAndConverter( jdSource, jdSource.asVolatile( new VolatileFloatType() ) );
 		data.converterSetups.add( BigDataViewer.createConverterSetup( soc, JACDET_SOURCE_ID ) );
 		data.sources.add( ( SourceAndConverter ) soc );
 		return soc;
@@ -1795,9 +1800,7 @@ public class BigWarp< T >
 		// or should we just stick with Doubles?
 
 		final WarpMagnitudeSource< FloatType > magSource = new WarpMagnitudeSource<>( name, data, new FloatType() );
-		final RealARGBColorConverter< FloatType > converter = RealARGBColorConverter.create( new FloatType(), 0, 512 );
-		converter.setColor( new ARGBType( 0xffffffff ) );
-		final SourceAndConverter< FloatType > soc = new SourceAndConverter<>( magSource, converter, null );
+		final SourceAndConverter< FloatType > soc = warpVisSourceAndConverter( magSource, magSource.asVolatile( new VolatileFloatType() ) );
 		data.converterSetups.add( BigDataViewer.createConverterSetup( soc, WARPMAG_SOURCE_ID ) );
 		data.sources.add( ( SourceAndConverter ) soc );
 		return soc;
@@ -1810,9 +1813,7 @@ public class BigWarp< T >
 		// or should we just stick with Floats?
 
 		final GridSource< FloatType > gridSource = new GridSource<>( name, data, new FloatType(), null );
-		final RealARGBColorConverter< FloatType > converter = RealARGBColorConverter.create( new FloatType(), 0, 512 );
-		converter.setColor( new ARGBType( 0xffffffff ) );
-		final SourceAndConverter< FloatType > soc = new SourceAndConverter<>( gridSource, converter, null );
+		final SourceAndConverter< FloatType > soc = warpVisSourceAndConverter( gridSource, gridSource.asVolatile( new VolatileFloatType() ) );
 		data.converterSetups.add( BigDataViewer.createConverterSetup( soc, GRID_SOURCE_ID ) );
 		data.sources.add( ( SourceAndConverter ) soc );
 		return soc;
@@ -2101,9 +2102,30 @@ public class BigWarp< T >
 	}
 
 	private void setTransformationMovingSourceOnly( final InvertibleRealTransform transform )
+	{
+		setTransformationMovingSourceOnly( transform, null );
+	}
+
+	private void setTransformationMovingSourceOnly( final InvertibleRealTransform transform, final RealInterval affected )
 	{
 		this.currentTransform = transform;
+		updateMovingSourceTransforms( transform, affected );
+	}
+
+	/**
+	 * Shows the moving sources warped by the given transformation without
+	 * making it the current transformation. Used to display a cheap
+	 * approximation while the actual transformation is being estimated.
+	 *
+	 * @param transform the preview transformation
+	 */
+	private void setTransformationPreview( final InvertibleRealTransform transform )
+	{
+		updateMovingSourceTransforms( transform, null );
+	}
 
+	private void updateMovingSourceTransforms( final InvertibleRealTransform transform, final RealInterval affected )
+	{
 		for ( int i = 0; i < movingSourceIndexList.length; i++ )
 		{
 			int idx = movingSourceIndexList [ i ];
@@ -2113,12 +2135,72 @@ public class BigWarp< T >
 			//InverseRealTransform xfm = new InverseRealTransform( new TpsTransformWrapper( 3, transform ));
 
 			// the updateTransform method creates a copy of the transform
-			( ( WarpedSource< ? > ) ( sources.get( idx ).getSpimSource() ) ).updateTransform( transform );
+			( ( WarpedSource< ? > ) ( sources.get( idx ).getSpimSource() ) ).updateTransform( transform, affected );
 			if ( sources.get( 0 ).asVolatile() != null )
-				( ( WarpedSource< ? > ) ( sources.get( idx ).asVolatile().getSpimSource() ) ).updateTransform( transform );
+				( ( WarpedSource< ? > ) ( sources.get( idx ).asVolatile().getSpimSource() ) ).updateTransform( transform, affected );
 		}
 	}
 
+	/**
+	 * Renders the moving sources with a displacement grid that is sampled
+	 * from the current transformation and interpolated, which is much faster
+	 * for thin plate splines with many landmarks. Exports still use the exact
+	 * transformation.
+	 *
+	 * @param spacing the grid spacing in physical units, zero or less to render exactly
+	 * @param tolerance the largest interpolation error, the transformation is evaluated exactly where it is exceeded
+	 */
+	public void setDisplacementGridRendering( final double spacing, final double tolerance )
+	{
+		for ( int i = 0; i < movingSourceIndexList.length; i++ )
+		{
+			int idx = movingSourceIndexList [ i ];
+			( ( WarpedSource< ? > ) ( sources.get( idx ).getSpimSource() ) ).setDisplacementGrid( spacing, tolerance );
+			if ( sources.get( 0 ).asVolatile() != null )
+				( ( WarpedSource< ? > ) ( sources.get( idx ).asVolatile().getSpimSource() ) ).setDisplacementGrid( spacing, tolerance );
+		}
+		viewerP.requestRepaint();
+		viewerQ.requestRepaint();
+	}
+
+	/**
+	 * The region of target space around the old and new target position of
+	 * the landmark in the given row, where a new transformation differs most
+	 * from the previous one.
+	 *
+	 * @param index the row
+	 * @param newpt the new target point, or null
+	 * @return the region, or null
+	 */
+	protected RealInterval affectedRegion( final int index, final double[] newpt )
+	{
+		final int nd = landmarkModel.getNumdims();
+		final double[] min = new double[ nd ];
+		final double[] max = new double[ nd ];
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+
+		final double[] pt = new double[ nd ];
+		if ( landmarkModel.copyTargetPointSafe( pt, index ) )
+			for ( int d = 0; d < nd; d++ )
+			{
+				min[ d ] = Math.min( min[ d ], pt[ d ] );
+				max[ d ] = Math.max( max[ d ], pt[ d ] );
+			}
+
+		if ( newpt != null )
+			for ( int d = 0; d < nd; d++ )
+			{
+				min[ d ] = Math.min( min[ d ], newpt[ d ] );
+				max[ d ] = Math.max( max[ d ], newpt[ d ] );
+			}
+
+		if ( min[ 0 ] > max[ 0 ] )
+			return null;
+
+		return new FinalRealInterval( min, max );
+	}
+
 	public void updateSourceBoundingBoxEstimators()
 	{
 		for ( int i = 0; i < movingSourceIndexList.length; i++ )
@@ -2153,18 +2235,29 @@ public class BigWarp< T >
 		wmSrc.setWarp( transform );
 		fitBaselineWarpMagModel();
 	
+		jdSrc.setTransform( getThinPlateSpline( transform ) );
+
+		gSrc.setWarp( transform );
+	}
+
+	/**
+	 * Returns the thin plate spline that the given transformation evaluates,
+	 * or null if it is of another type, e.g. a compactly supported RBF.
+	 *
+	 * @param transform the transformation
+	 * @return the thin plate spline or null
+	 */
+	public static ThinplateSplineTransform getThinPlateSpline( final InvertibleRealTransform transform )
+	{
 		if( transform instanceof ThinplateSplineTransform )
-		{
-			jdSrc.setTransform( (ThinplateSplineTransform)transform );
-		}
+			return ( ThinplateSplineTransform ) transform;
 		else if ( transform instanceof WrappedIterativeInvertibleRealTransform )
 		{
-			jdSrc.setTransform( (ThinplateSplineTransform)((WrappedIterativeInvertibleRealTransform)transform).getTransform() );
+			final RealTransform inner = ( ( WrappedIterativeInvertibleRealTransform< ? > ) transform ).getTransform();
+			if ( inner instanceof ThinplateSplineTransform )
+				return ( ThinplateSplineTransform ) inner;
 		}
-		else
-			jdSrc.setTransform( null );
-
-		gSrc.setWarp( transform );
+		return null;
 	}
 
 	public boolean restimateTransformation()
@@ -2182,7 +2275,7 @@ public class BigWarp< T >
 //		else
 //			landmarkModel.transferUpdatesToModel();
 
-		solverThread.requestResolve( true, -1, null );
+		solveScheduler.requestResolve( true, -1, null );
 
 		// display the warped version automatically if this is the first
 		// time the transform was computed
@@ -2686,7 +2779,7 @@ public class BigWarp< T >
 						BigWarp.this.landmarkModel.isActive( selectedPointIndex ) )
 				{
 					logger.trace("Drag resolve");
-					solverThread.requestResolve( isMoving, selectedPointIndex, ptarrayLoc );
+					solveScheduler.requestResolve( isMoving, selectedPointIndex, ptarrayLoc );
 				}
 				else
 				{
@@ -2913,6 +3006,22 @@ public class BigWarp< T >
 		return bwTransform.getTransformType();
 	}
 
+	/**
+	 * Sets whether an affine fit of the landmarks is displayed while a thin
+	 * plate spline is being estimated.
+	 *
+	 * @param progressive progressive solving
+	 */
+	public void setProgressiveSolve( final boolean progressive )
+	{
+		solveScheduler.setProgressive( progressive );
+	}
+
+	public boolean isProgressiveSolve()
+	{
+		return solveScheduler.isProgressive();
+	}
+
 	public BigWarpTransform getBwTransform()
 	{
 		return bwTransform;
@@ -2987,117 +3096,445 @@ public class BigWarp< T >
 //		return invXfm;
 //	}
 
-	public static class SolveThread extends Thread
+	/**
+	 * Estimates transformations off the event dispatch thread and publishes
+	 * them to the sources of a {@link BigWarp} instance.
+	 * <p>
+	 * Requests are coalesced: each lane keeps at most one pending request and a
+	 * new request replaces it (latest wins), so a drag never queues up more
+	 * than one solve. A pending request for the whole table is only replaced
+	 * by another one, so its work on warped points and the other sources is
+	 * never skipped. Linear transformations are cheap to estimate and run on
+	 * their own lane so they never wait for a running thin plate spline solve.
+	 * <p>
+	 * Every request is numbered by a generation counter. A result is only
+	 * published if it is newer than the last published result and if no newer
+	 * request that covers it is waiting on its lane, and a solve whose result
+	 * would not be published is abandoned at the next checkpoint: before the
+	 * solve, between the solver stages, and before publishing. So that a
+	 * continuous drag still updates the display, a lane that has not published
+	 * anything for {@link #MAX_WITHHELD_MILLIS} publishes its result even if a
+	 * newer request is waiting.
+	 * <p>
+	 * A request that fails is logged, and does not stop its lane.
+	 * <p>
+	 * In progressive mode, every thin plate spline request is preceded by an
+	 * affine preview request on the linear lane. The affine fit is shown in
+	 * the moving sources right away and replaced by the thin plate spline
+	 * once its solve completes. Being older, the preview can never replace
+	 * the thin plate spline.
+	 */
+	public static class SolveScheduler
 	{
-		private boolean pleaseResolve;
+		/**
+		 * The longest time, in milliseconds, that a lane withholds results
+		 * because newer requests are waiting.
+		 */
+		public static final long MAX_WITHHELD_MILLIS = 250;
 
-		private BigWarp<?> bw;
+		private final BigWarp<?> bw;
 
-		private boolean isMoving;
+		private final AtomicLong generation;
 
-		private int index;
+		// guarded by this
+		private long publishedGeneration;
 
-		private double[] pt;
+		private final SolveLane nonlinearLane;
 
-		public SolveThread( final BigWarp<?> bw )
+		private final SolveLane linearLane;
+
+		private boolean progressive;
+
+		// held while publishing a result, so that results are published one
+		// at a time and in order, without holding the lock on this scheduler
+		private final Object publishLock = new Object();
+
+		public SolveScheduler( final BigWarp<?> bw )
 		{
 			this.bw = bw;
-			pleaseResolve = false;
+			generation = new AtomicLong();
+			publishedGeneration = 0;
+
+			nonlinearLane = new SolveLane( "BigWarp solver" );
+			linearLane = new SolveLane( "BigWarp linear solver" );
+			linearLane.setPriority( Math.min( Thread.MAX_PRIORITY, Thread.NORM_PRIORITY + 1 ) );
 		}
 
-		@Override
-		public void run()
+		public void start()
+		{
+			nonlinearLane.start();
+			linearLane.start();
+		}
+
+		public void stop()
+		{
+			nonlinearLane.interrupt();
+			linearLane.interrupt();
+		}
+
+		/**
+		 * Sets whether thin plate spline solves are preceded by an affine
+		 * preview.
+		 *
+		 * @param progressive progressive mode
+		 */
+		public void setProgressive( final boolean progressive )
+		{
+			this.progressive = progressive;
+		}
+
+		public boolean isProgressive()
+		{
+			return progressive;
+		}
+
+		/**
+		 * Requests a new transformation estimate.
+		 *
+		 * @param isMoving whether the point that changed is a moving point
+		 * @param index the row that changed, or -1 if the whole table should be used
+		 * @param newpt the new position of a target point during a drag, or null
+		 * @return the generation of this request
+		 */
+		public long requestResolve( final boolean isMoving, final int index, final double[] newpt )
+		{
+			return requestResolve( bw.bwTransform.getTransformType(), isMoving, index, newpt );
+		}
+
+		/**
+		 * Requests a new estimate of a transformation of the given type.
+		 *
+		 * @param transformType the transform type
+		 * @param isMoving whether the point that changed is a moving point
+		 * @param index the row that changed, or -1 if the whole table should be used
+		 * @param newpt the new position of a target point during a drag, or null
+		 * @return the generation of this request
+		 */
+		public long requestResolve( final String transformType, final boolean isMoving, final int index, final double[] newpt )
+		{
+			if ( progressive && !BigWarpTransform.isLinear( transformType ) &&
+					bw.landmarkModel.numActive() > bw.landmarkModel.getNumdims() )
+			{
+				linearLane.submit( new SolveRequest(
+						generation.incrementAndGet(), TransformTypeSelectDialog.AFFINE, isMoving, index, null, true ) );
+			}
+
+			final SolveRequest request = new SolveRequest(
+					generation.incrementAndGet(), transformType, isMoving, index,
+					newpt == null ? null : Arrays.copyOf( newpt, newpt.length ), false );
+
+			if ( BigWarpTransform.isLinear( transformType ) )
+				linearLane.submit( request );
+			else
+				nonlinearLane.submit( request );
+
+			return request.generation;
+		}
+
+		/**
+		 * @return the generation of the most recent request
+		 */
+		public long getGeneration()
+		{
+			return generation.get();
+		}
+
+		/**
+		 * @return the generation of the most recently published transformation
+		 */
+		public synchronized long getPublishedGeneration()
+		{
+			return publishedGeneration;
+		}
+
+		/**
+		 * A request is stale if its result could never be published because
+		 * a newer result was published already.
+		 *
+		 * @param request the request
+		 * @return true if stale
+		 */
+		protected synchronized boolean isStale( final SolveRequest request )
 		{
-			while ( !isInterrupted() )
+			return request.generation <= publishedGeneration;
+		}
+
+		/**
+		 * A request is cancelled if it is stale, or if a newer request that
+		 * covers it is waiting on its lane and the lane published recently.
+		 *
+		 * @param request the request
+		 * @param lane the lane of the request
+		 * @return true if cancelled
+		 */
+		protected boolean isCancelled( final SolveRequest request, final SolveLane lane )
+		{
+			return isStale( request ) ||
+					( lane.hasNewer( request ) && System.currentTimeMillis() - lane.lastPublished < MAX_WITHHELD_MILLIS );
+		}
+
+		protected void process( final SolveRequest request, final SolveLane lane )
+		{
+			if ( isCancelled( request, lane ) )
+				return;
+
+			if ( request.preview )
+			{
+				processPreview( request, lane );
+				return;
+			}
+
+			final InvertibleRealTransform invXfm = bw.bwTransform.getTransformation(
+					request.transformType, request.index, () -> isCancelled( request, lane ) );
+			if ( invXfm == null )
+				return;
+
+			synchronized ( publishLock )
 			{
-				final boolean b;
-				synchronized ( this )
+				// checkpoint: never replace a newer result
+				if ( !markPublished( request, lane ) )
+					return;
+
+				if ( request.index < 0 )
 				{
-					b = pleaseResolve;
-					pleaseResolve = false;
+					// reset active warped points
+					bw.landmarkModel.resetWarpedPoints();
+
+					// update sources with the new transformation
+					bw.setTransformationAll( invXfm );
+					bw.fitBaselineWarpMagModel();
+
+					// re-compute all warped points for non-active points in the background
+					// with the new transformation, unless a pending request will do so anyway
+					if ( !lane.hasPendingFullSolve() )
+						bw.landmarkModel.updateAllWarpedPoints( invXfm ).thenRun( () -> {
+							bw.viewerP.requestRepaint();
+							bw.viewerQ.requestRepaint();
+						} );
 				}
-				if ( b )
+				else
 				{
-					try
-					{
-						InvertibleRealTransform invXfm = bw.bwTransform.getTransformation( index );
+					// update the transform and warped point
+					bw.setTransformationMovingSourceOnly( invXfm, bw.affectedRegion( request.index, request.pt ) );
+				}
+
+				// update fixed point - but don't allow undo/redo
+				// and update warped point
+				// both for rendering purposes
+				if ( !request.isMoving && request.index >= 0 && request.pt != null )
+				{
+					bw.getLandmarkPanel().getTableModel().setPoint( request.index, request.isMoving, request.pt, false, invXfm );
+				}
+			}
 
-						if ( invXfm == null )
-							return;
+			/*
+			 * repaint both panels so that:
+			 * 1) new transform is displayed
+			 * 2) points are rendered
+			 */
+			bw.getViewerFrameP().getViewerPanel().requestRepaint();
+			bw.getViewerFrameQ().getViewerPanel().requestRepaint();
+		}
 
-						if ( index < 0 )
-						{
-							// reset active warped points
-							bw.landmarkModel.resetWarpedPoints();
+		protected void processPreview( final SolveRequest request, final SolveLane lane )
+		{
+			final InvertibleRealTransform preview = bw.bwTransform.estimateTransformation( request.transformType, request.index );
+			if ( preview == null )
+				return;
 
-							// re-compute all warped points for non-active points
-							bw.landmarkModel.updateAllWarpedPoints( bw.currentTransform );
+			synchronized ( publishLock )
+			{
+				if ( !markPublished( request, lane ) )
+					return;
 
-							// update sources with the new transformation
-							bw.setTransformationAll( invXfm );
-							bw.fitBaselineWarpMagModel();
-						}
-						else
+				bw.setTransformationPreview( preview );
+			}
+
+			bw.getViewerFrameP().getViewerPanel().requestRepaint();
+			bw.getViewerFrameQ().getViewerPanel().requestRepaint();
+		}
+
+		/**
+		 * Records that the result of a request is about to be published,
+		 * unless it was cancelled in the meantime. Call while holding
+		 * {@link #publishLock}, so that results are published in the order
+		 * in which they are recorded.
+		 *
+		 * @param request the request
+		 * @param lane the lane of the request
+		 * @return false if the result must not be published
+		 */
+		protected boolean markPublished( final SolveRequest request, final SolveLane lane )
+		{
+			synchronized ( this )
+			{
+				if ( isCancelled( request, lane ) )
+					return false;
+
+				publishedGeneration = request.generation;
+			}
+			lane.lastPublished = System.currentTimeMillis();
+			return true;
+		}
+
+		protected static class SolveRequest
+		{
+			final long generation;
+
+			final String transformType;
+
+			final boolean isMoving;
+
+			final int index;
+
+			final double[] pt;
+
+			final boolean preview;
+
+			SolveRequest( final long generation, final String transformType, final boolean isMoving, final int index, final double[] pt, final boolean preview )
+			{
+				this.generation = generation;
+				this.transformType = transformType;
+				this.isMoving = isMoving;
+				this.index = index;
+				this.pt = pt;
+				this.preview = preview;
+			}
+		}
+
+		protected class SolveLane extends Thread
+		{
+			// guarded by this
+			private SolveRequest pending;
+
+			// the generations of the latest request, and latest request for
+			// the whole table, submitted to this lane
+			private volatile long latestGeneration;
+
+			private volatile long latestFullGeneration;
+
+			// the time this lane last published a result
+			private volatile long lastPublished;
+
+			public SolveLane( final String name )
+			{
+				super( name );
+			}
+
+			/**
+			 * Makes the given request the pending one. A pending request for
+			 * the whole table is not replaced by a request for a single row,
+			 * that request is promoted to the whole table instead, and
+			 * previews submitted meanwhile are dropped.
+			 *
+			 * @param request the request
+			 */
+			public synchronized void submit( final SolveRequest request )
+			{
+				if ( pending != null && pending.index < 0 && !pending.preview )
+				{
+					if ( request.preview )
+						return;
+					else if ( request.index >= 0 )
+						pending = new SolveRequest( request.generation, request.transformType, request.isMoving, -1, null, false );
+					else
+						pending = request;
+				}
+				else
+					pending = request;
+
+				latestGeneration = request.generation;
+				if ( pending.index < 0 && !pending.preview )
+					latestFullGeneration = pending.generation;
+
+				notify();
+			}
+
+			/**
+			 * A newer request covers the given one if it is for the whole
+			 * table and not a preview, or if the given one is for a single row.
+			 *
+			 * @param request the request
+			 * @return true if a newer request covering the given one was submitted
+			 */
+			public boolean hasNewer( final SolveRequest request )
+			{
+				if ( request.index < 0 )
+					return latestFullGeneration > request.generation;
+				else
+					return latestGeneration > request.generation;
+			}
+
+			public synchronized boolean hasPendingFullSolve()
+			{
+				return pending != null && pending.index < 0;
+			}
+
+			@Override
+			public void run()
+			{
+				while ( !isInterrupted() )
+				{
+					final SolveRequest request;
+					synchronized ( this )
+					{
+						try
 						{
-							// update the transform and warped point
-							bw.setTransformationMovingSourceOnly( invXfm );
+							while ( pending == null )
+								wait();
 						}
-
-						// update fixed point - but don't allow undo/redo
-						// and update warped point
-						// both for rendering purposes
-						if ( !isMoving )
+						catch ( final InterruptedException e )
 						{
-							bw.getLandmarkPanel().getTableModel().setPoint( index, isMoving, pt, false, bw.currentTransform );
+							break;
 						}
-
-						/*
-						 * repaint both panels so that: 
-						 * 1) new transform is displayed
-						 * 2) points are rendered
-						 */
-						bw.getViewerFrameP().getViewerPanel().requestRepaint();
-						bw.getViewerFrameQ().getViewerPanel().requestRepaint();
-
-//						bw.notifyTransformListeners();
+						request = pending;
+						pending = null;
 					}
 
+					try
+					{
+						process( request, this );
+					}
 					catch ( final RejectedExecutionException e )
 					{
 						// this happens when the rendering threadpool
 						// is killed before the painter thread.
 					}
-				}
-
-				synchronized ( this )
-				{
-					try
-					{
-						if ( !pleaseResolve )
-							wait();
-					}
-					catch ( final InterruptedException e )
+					catch ( final RuntimeException e )
 					{
-						break;
+						logger.error( "Failed to estimate the " + request.transformType + " transformation", e );
 					}
 				}
 			}
 		}
+	}
 
-		public void requestResolve( final boolean isMoving, final int index, final double[] newpt )
+	/**
+	 * Forwards requests to the {@link SolveScheduler} of a {@link BigWarp}
+	 * instance.
+	 *
+	 * @deprecated use {@link SolveScheduler}, this thread does nothing when started
+	 */
+	@Deprecated
+	public static class SolveThread extends Thread
+	{
+		private final BigWarp<?> bw;
+
+		public SolveThread( final BigWarp<?> bw )
 		{
-			synchronized ( this )
-			{
-				pleaseResolve = true;
-				this.isMoving = isMoving;
-				this.index = index;
-				if ( newpt != null )
-					this.pt = Arrays.copyOf( newpt, newpt.length );
+			this.bw = bw;
+		}
 
-				notify();
-			}
+		@Override
+		public void run()
+		{
+			// requests are processed by the scheduler
+		}
+
+		public void requestResolve( final boolean isMoving, final int index, final double[] newpt )
+		{
+			bw.solveScheduler.requestResolve( isMoving, index, newpt );
 		}
-		
 	}
 
 	/**
@@ -3120,7 +3557,8 @@ public class BigWarp< T >
 	}
 
 	/**
-	 * Saves landmarks to a new File in the user's bigwarp folder.
+	 * Saves landmarks to a new File in the user's bigwarp folder, see
+	 * {@link BigWarpAutoSaver#save(LandmarkSnapshot, File, int)}.
 	 */
 	public void autoSaveLandmarks()
 	{
@@ -3130,14 +3568,12 @@ public class BigWarp< T >
 		else
 			baseFolder = getBigwarpSettingsFolder();
 
-		File proposedLandmarksFile = new File( baseFolder.getAbsolutePath() +
-				File.separator + "bigwarp_landmarks_" +
-				new SimpleDateFormat( "yyyyMMdd-HHmmss" ).format( Calendar.getInstance().getTime() ) +
-				".csv" );
-
+		final int maxVersions = autoSaver != null ? autoSaver.getMaxVersions() : BigWarpAutoSaver.DEFAULT_MAX_VERSIONS;
+		final LandmarkSnapshot landmarks = landmarkModel.getSnapshot();
 		try
 		{
-			saveLandmarks( proposedLandmarksFile.getCanonicalPath() );
+			BigWarpAutoSaver.save( landmarks, baseFolder, maxVersions );
+			landmarkModel.markSaved( landmarks );
 		}
 		catch ( IOException e ) { e.printStackTrace(); }
 	}
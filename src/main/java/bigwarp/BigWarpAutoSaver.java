@@ -23,21 +23,39 @@ package bigwarp;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
+import bigwarp.landmarks.LandmarkSnapshot;
 import bigwarp.landmarks.LandmarkTableModel;
 
 /**
  * Saves bigwarp landmarks to a file periodically, 
  * but only if modification has occured since the last save.
+ * <p>
+ * Landmarks are written from a {@link LandmarkSnapshot} on the timer thread,
+ * so editing is never blocked by the write. Each save goes to a new
+ * timestamped file that appears atomically, and only the newest
+ * {@link #getMaxVersions()} of these are kept.
  * 
  * @author John Bogovic
  *
  */
 public class BigWarpAutoSaver 
 {
+	public static final int DEFAULT_MAX_VERSIONS = 10;
+
+	private static final String PREFIX = "bigwarp_landmarks_";
+
+	private static final Pattern VERSION_NAME = Pattern.compile( PREFIX + "\\d{8}-\\d{6}\\.csv" );
+
 	private final BigWarp<?> bw;
 
 	final Timer timer;
@@ -46,10 +64,18 @@ public class BigWarpAutoSaver
 
 	final long period;
 
+	final int maxVersions;
+
 	public BigWarpAutoSaver( final BigWarp<?> bw, final long period )
+	{
+		this( bw, period, DEFAULT_MAX_VERSIONS );
+	}
+
+	public BigWarpAutoSaver( final BigWarp<?> bw, final long period, final int maxVersions )
 	{
 		this.bw = bw;
 		this.period = period;
+		this.maxVersions = maxVersions;
 		bw.autoSaver = this;
 		timer = new Timer();
 		saveTask = new AutoSave();
@@ -61,6 +87,11 @@ public class BigWarpAutoSaver
 		return period;
 	}
 
+	public int getMaxVersions()
+	{
+		return maxVersions;
+	}
+
 	public void stop()
 	{
 		saveTask.cancel();
@@ -74,15 +105,61 @@ public class BigWarpAutoSaver
 		{
 			LandmarkTableModel ltm = bw.getLandmarkPanel().getTableModel();
 			if( ltm.isModifiedSinceSave() )
+				bw.autoSaveLandmarks();
+		}
+	}
+
+	/**
+	 * Saves landmarks to a new timestamped file in a folder, and removes the
+	 * oldest such files so that at most maxVersions remain.
+	 * <p>
+	 * The landmarks are written to a temporary file that is then renamed, so
+	 * the file is either complete or absent, even if writing fails.
+	 *
+	 * @param landmarks the landmarks
+	 * @param folder the folder
+	 * @param maxVersions the number of files to keep
+	 * @return the file
+	 * @throws IOException if the landmarks could not be saved
+	 */
+	public static File save( final LandmarkSnapshot landmarks, final File folder, final int maxVersions ) throws IOException
+	{
+		final File file = new File( folder, PREFIX +
+				new SimpleDateFormat( "yyyyMMdd-HHmmss" ).format( Calendar.getInstance().getTime() ) +
+				".csv" );
+
+		final File tmp = File.createTempFile( PREFIX, ".tmp", folder );
+		try
+		{
+			LandmarkTableModel.save( landmarks, tmp );
+			try
 			{
-//				try
-//				{
-					bw.autoSaveLandmarks();
-//					ltm.save( fileSupplier.get() );
-//				}
-//				catch ( IOException e ) { e.printStackTrace(); }
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
 			}
+			catch ( final AtomicMoveNotSupportedException e )
+			{
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp.toPath() );
 		}
+
+		removeOldVersions( folder, maxVersions );
+		return file;
+	}
+
+	private static void removeOldVersions( final File folder, final int maxVersions )
+	{
+		final File[] versions = folder.listFiles( f -> VERSION_NAME.matcher( f.getName() ).matches() );
+		if ( versions == null || versions.length <= maxVersions )
+			return;
+
+		// the timestamps in the names sort by time
+		Arrays.sort( versions );
+		for ( int i = 0; i < versions.length - maxVersions; i++ )
+			versions[ i ].delete();
 	}
 	
 	public static void setAutosaveOptions( final BigWarp<?> bw, final long period, final String autoSavePath )
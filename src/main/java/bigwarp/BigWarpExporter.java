@@ -217,6 +217,22 @@ public abstract class BigWarpExporter <T>
 		this.nThreads = nThreads;
 	}
 
+	/**
+	 * Export with an approximation of thin plate spline transformations whose
+	 * error is bounded by the given tolerance (in physical units). Much faster
+	 * for many landmarks. Zero or less exports with the exact transformation.
+	 *
+	 * @param approximationTolerance the tolerance
+	 */
+	public void setApproximationTolerance( final double approximationTolerance )
+	{
+		for ( SourceAndConverter< T > sac : sources )
+		{
+			if ( sac.getSpimSource() instanceof WarpedSource )
+				( ( WarpedSource< T > ) sac.getSpimSource() ).setApproximationTolerance( approximationTolerance );
+		}
+	}
+
 	public void setNameSuffix( final String suffix )
 	{
 		this.nameSuffix = suffix;
@@ -424,7 +424,8 @@ public class WarpVisFrame extends JDialog
 		final String[] methodStrings = {
 				BoundingBoxEstimation.Method.CORNERS.toString(),
 				BoundingBoxEstimation.Method.FACES.toString(),
-				BoundingBoxEstimation.Method.VOLUME.toString() };
+				BoundingBoxEstimation.Method.VOLUME.toString(),
+				BoundingBoxEstimation.Method.ADAPTIVE.toString() };
 
 		bboxMethodDropdown = new JComboBox<>( methodStrings );
 		bboxMethodDropdown.setSelectedIndex(1);
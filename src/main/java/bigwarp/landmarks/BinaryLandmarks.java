@@ -0,0 +1,270 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.landmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Landmarks in a compact binary file, an alternative to csv for large numbers
+ * of landmarks that is read with a single bulk read.
+ * <p>
+ * The file is little-endian and contains:
+ * <ul>
+ * <li>the bytes "BWLM", the format version, the number of dimensions and the
+ * number of rows, as ints</li>
+ * <li>the moving points, then the target points, each as one array of doubles
+ * per dimension</li>
+ * <li>one byte per row, 1 if the row is active</li>
+ * <li>the names, each as an int length followed by that many bytes of UTF-8</li>
+ * </ul>
+ * Unset points are stored as infinity, as in {@link LandmarkTableModel}.
+ */
+public class BinaryLandmarks
+{
+	public static final String EXTENSION = ".bwlm";
+
+	private static final int MAGIC = 0x4d4c5742; // "BWLM" in little-endian
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 16;
+
+	private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+	private final ArrayList< String > names;
+
+	private final BitSet active;
+
+	private final PointColumns moving;
+
+	private final PointColumns target;
+
+	private BinaryLandmarks( final ArrayList< String > names, final BitSet active, final PointColumns moving, final PointColumns target )
+	{
+		this.names = names;
+		this.active = active;
+		this.moving = moving;
+		this.target = target;
+	}
+
+	public int numDimensions()
+	{
+		return moving.numDimensions();
+	}
+
+	public int numRows()
+	{
+		return names.size();
+	}
+
+	public ArrayList< String > getNames()
+	{
+		return names;
+	}
+
+	public BitSet getActive()
+	{
+		return active;
+	}
+
+	public PointColumns getMoving()
+	{
+		return moving;
+	}
+
+	public PointColumns getTarget()
+	{
+		return target;
+	}
+
+	/**
+	 * @param f a file
+	 * @return true if the file name has the extension of binary landmark files
+	 */
+	public static boolean isBinary( final File f )
+	{
+		return f.getName().toLowerCase().endsWith( EXTENSION );
+	}
+
+	/**
+	 * Returns the binary file that is written next to a csv file, see
+	 * {@link LandmarkTableModel#setWriteBinarySidecar(boolean)}.
+	 *
+	 * @param csv the csv file
+	 * @return the sidecar file
+	 */
+	public static File sidecar( final File csv )
+	{
+		return new File( csv.getAbsolutePath() + EXTENSION );
+	}
+
+	/**
+	 * Reads landmarks from a binary file.
+	 *
+	 * @param f the file
+	 * @return the landmarks
+	 * @throws IOException if the file can not be read or is not a binary landmark file
+	 */
+	public static BinaryLandmarks read( final File f ) throws IOException
+	{
+		try ( final FileChannel channel = FileChannel.open( f.toPath(), StandardOpenOption.READ ) )
+		{
+			if ( channel.size() > Integer.MAX_VALUE )
+				throw new IOException( "Binary landmark file too large: " + f );
+
+			// read into the heap rather than mapping, a mapping keeps the file
+			// open until the buffer is garbage collected
+			final ByteBuffer buf = ByteBuffer.allocate( ( int ) channel.size() );
+			while ( buf.hasRemaining() )
+				if ( channel.read( buf ) < 0 )
+					break;
+
+			buf.flip();
+			buf.order( ByteOrder.LITTLE_ENDIAN );
+			if ( buf.remaining() < HEADER_BYTES || buf.getInt() != MAGIC )
+				throw new IOException( "Not a binary landmark file: " + f );
+
+			final int version = buf.getInt();
+			if ( version != VERSION )
+				throw new IOException( "Unsupported binary landmark file version " + version + ": " + f );
+
+			final int ndims = buf.getInt();
+			final int numRows = buf.getInt();
+			if ( ndims < 2 || ndims > 3 || numRows < 0
+					|| buf.remaining() < ( long ) numRows * ( 2 * ndims * Double.BYTES + 1 ) )
+				throw new IOException( "Invalid binary landmark file: " + f );
+
+			final PointColumns moving = readPoints( buf, ndims, numRows );
+			final PointColumns target = readPoints( buf, ndims, numRows );
+
+			final BitSet active = new BitSet( numRows );
+			for ( int i = 0; i < numRows; i++ )
+				if ( buf.get() != 0 )
+					active.set( i );
+
+			final ArrayList< String > names = new ArrayList<>( numRows );
+			byte[] bytes = new byte[ 64 ];
+			for ( int i = 0; i < numRows; i++ )
+			{
+				final int length = buf.getInt();
+				if ( length < 0 || length > buf.remaining() )
+					throw new IOException( "Invalid binary landmark file: " + f );
+
+				if ( length > bytes.length )
+					bytes = new byte[ Math.max( length, 2 * bytes.length ) ];
+
+				buf.get( bytes, 0, length );
+				names.add( new String( bytes, 0, length, StandardCharsets.UTF_8 ) );
+			}
+			return new BinaryLandmarks( names, active, moving, target );
+		}
+		catch ( final BufferUnderflowException e )
+		{
+			throw new IOException( "Truncated binary landmark file: " + f, e );
+		}
+	}
+
+	private static PointColumns readPoints( final ByteBuffer buf, final int ndims, final int numRows )
+	{
+		final double[][] columns = new double[ ndims ][ numRows ];
+		for ( int d = 0; d < ndims; d++ )
+		{
+			buf.slice().order( ByteOrder.LITTLE_ENDIAN ).asDoubleBuffer().get( columns[ d ] );
+			buf.position( buf.position() + numRows * Double.BYTES );
+		}
+		return new PointColumns( columns, numRows );
+	}
+
+	/**
+	 * Writes landmarks to a binary file.
+	 *
+	 * @param landmarks the landmarks
+	 * @param f the file
+	 * @throws IOException if the file can not be written
+	 */
+	public static void write( final LandmarkSnapshot landmarks, final File f ) throws IOException
+	{
+		final int ndims = landmarks.numDimensions();
+		final int numRows = landmarks.numRows();
+		try ( final FileChannel channel = FileChannel.open( f.toPath(),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ) )
+		{
+			final ByteBuffer buf = ByteBuffer.allocate( WRITE_BUFFER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+			buf.putInt( MAGIC ).putInt( VERSION ).putInt( ndims ).putInt( numRows );
+
+			for ( int d = 0; d < ndims; d++ )
+				for ( int i = 0; i < numRows; i++ )
+					ensureRemaining( channel, buf, Double.BYTES ).putDouble( landmarks.getMoving( i, d ) );
+
+			for ( int d = 0; d < ndims; d++ )
+				for ( int i = 0; i < numRows; i++ )
+					ensureRemaining( channel, buf, Double.BYTES ).putDouble( landmarks.getTarget( i, d ) );
+
+			for ( int i = 0; i < numRows; i++ )
+				ensureRemaining( channel, buf, 1 ).put( ( byte ) ( landmarks.isActive( i ) ? 1 : 0 ) );
+
+			for ( int i = 0; i < numRows; i++ )
+			{
+				final byte[] name = landmarks.getName( i ).getBytes( StandardCharsets.UTF_8 );
+				ensureRemaining( channel, buf, Integer.BYTES ).putInt( name.length );
+				if ( name.length > buf.capacity() )
+				{
+					flush( channel, buf );
+					writeFully( channel, ByteBuffer.wrap( name ) );
+				}
+				else
+					ensureRemaining( channel, buf, name.length ).put( name );
+			}
+			flush( channel, buf );
+		}
+	}
+
+	private static ByteBuffer ensureRemaining( final FileChannel channel, final ByteBuffer buf, final int n ) throws IOException
+	{
+		if ( buf.remaining() < n )
+			flush( channel, buf );
+
+		return buf;
+	}
+
+	private static void flush( final FileChannel channel, final ByteBuffer buf ) throws IOException
+	{
+		buf.flip();
+		writeFully( channel, buf );
+		buf.clear();
+	}
+
+	private static void writeFully( final FileChannel channel, final ByteBuffer buf ) throws IOException
+	{
+		while ( buf.hasRemaining() )
+			channel.write( buf );
+	}
+}
@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.landmarks;
+
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Spatial queries on the landmarks of a {@link LandmarkSnapshot} in one space,
+ * obtained with {@link LandmarkTableModel#getIndex(int)}.
+ * <p>
+ * Combines a {@link LandmarkKdTree} built from an earlier snapshot with the
+ * rows that changed since then, which are searched one by one. Rows returned
+ * by queries refer to {@link #getSnapshot()}.
+ */
+public class LandmarkIndex
+{
+	private final LandmarkSnapshot landmarks;
+
+	private final int space;
+
+	private final LandmarkKdTree tree;
+
+	private final BitSet stale;
+
+	private final int ndims;
+
+	LandmarkIndex( final LandmarkSnapshot landmarks, final int space, final LandmarkKdTree tree, final BitSet stale )
+	{
+		this.landmarks = landmarks;
+		this.space = space;
+		this.tree = tree;
+		this.stale = stale;
+		this.ndims = landmarks.numDimensions();
+	}
+
+	/**
+	 * @return the landmarks that query results refer to
+	 */
+	public LandmarkSnapshot getSnapshot()
+	{
+		return landmarks;
+	}
+
+	public int getSpace()
+	{
+		return space;
+	}
+
+	/**
+	 * Finds the row whose point is nearest to the given point.
+	 *
+	 * @param pt the point
+	 * @param maxSqrDistance only rows closer than the square root of this are found
+	 * @return the nearest row, or -1 if there is none
+	 */
+	public int nearest( final double[] pt, final double maxSqrDistance )
+	{
+		final double[] q = new double[ ndims ];
+		int best = tree.nearest( pt, maxSqrDistance, stale );
+		double bestSqrDistance = best < 0 ? maxSqrDistance : sqrDistance( best, pt, q );
+
+		for ( int i = stale.nextSetBit( 0 ); i >= 0 && i < landmarks.numRows(); i = stale.nextSetBit( i + 1 ) )
+		{
+			final double dist = sqrDistance( i, pt, q );
+			if ( dist < bestSqrDistance )
+			{
+				bestSqrDistance = dist;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Passes every row whose point lies in the given box to a consumer, in no
+	 * particular order.
+	 *
+	 * @param min the minimum of the box
+	 * @param max the maximum of the box
+	 * @param rows receives the rows
+	 */
+	public void forEachInBox( final double[] min, final double[] max, final IntConsumer rows )
+	{
+		tree.forEachInBox( min, max, stale, rows );
+
+		final double[] q = new double[ ndims ];
+		for ( int i = stale.nextSetBit( 0 ); i >= 0 && i < landmarks.numRows(); i = stale.nextSetBit( i + 1 ) )
+		{
+			landmarks.copyPoint( i, space, q );
+			if ( LandmarkKdTree.inBox( q, min, max ) )
+				rows.accept( i );
+		}
+	}
+
+	private double sqrDistance( final int row, final double[] pt, final double[] tmp )
+	{
+		landmarks.copyPoint( row, space, tmp );
+		double dist = 0;
+		for ( int d = 0; d < ndims; d++ )
+			dist += ( tmp[ d ] - pt[ d ] ) * ( tmp[ d ] - pt[ d ] );
+
+		// unset points are never nearest
+		return Double.isNaN( dist ) ? Double.POSITIVE_INFINITY : dist;
+	}
+}
@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.landmarks;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * A k-d tree of the landmarks of a {@link LandmarkSnapshot} in one space
+ * ({@link LandmarkSnapshot#MOVING}, {@link LandmarkSnapshot#TARGET}, or
+ * {@link LandmarkSnapshot#WARPED}). Unset points are left out.
+ * <p>
+ * Immutable. Rows that changed since the tree was built can be excluded from
+ * queries and searched separately, see {@link LandmarkIndex}.
+ */
+public class LandmarkKdTree
+{
+	private final int ndims;
+
+	// the rows and their coordinates, in tree order
+	private final int[] rows;
+
+	private final double[][] coords;
+
+	public LandmarkKdTree( final LandmarkSnapshot landmarks, final int space )
+	{
+		ndims = landmarks.numDimensions();
+
+		final int N = landmarks.numRows();
+		final int[] rowsTmp = new int[ N ];
+		final double[][] coordsTmp = new double[ ndims ][ N ];
+		final double[] pt = new double[ ndims ];
+		int n = 0;
+		for ( int i = 0; i < N; i++ )
+		{
+			landmarks.copyPoint( i, space, pt );
+			if ( !isSet( pt ) )
+				continue;
+
+			rowsTmp[ n ] = i;
+			for ( int d = 0; d < ndims; d++ )
+				coordsTmp[ d ][ n ] = pt[ d ];
+
+			n++;
+		}
+
+		rows = Arrays.copyOf( rowsTmp, n );
+		coords = new double[ ndims ][];
+		for ( int d = 0; d < ndims; d++ )
+			coords[ d ] = Arrays.copyOf( coordsTmp[ d ], n );
+
+		build( 0, n, 0 );
+	}
+
+	private static boolean isSet( final double[] pt )
+	{
+		for ( final double x : pt )
+			if ( !Double.isFinite( x ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @return the number of points in this tree
+	 */
+	public int size()
+	{
+		return rows.length;
+	}
+
+	/*
+	 * Places the median along the split dimension of each node at the middle
+	 * of its range, smaller coordinates before and larger ones after it.
+	 */
+	private void build( final int lo, final int hi, final int depth )
+	{
+		if ( hi - lo < 2 )
+			return;
+
+		final int d = depth % ndims;
+		final int mid = ( lo + hi ) >>> 1;
+		select( lo, hi - 1, mid, coords[ d ] );
+		build( lo, mid, depth + 1 );
+		build( mid + 1, hi, depth + 1 );
+	}
+
+	private void select( int lo, int hi, final int k, final double[] x )
+	{
+		while ( lo < hi )
+		{
+			final double pivot = x[ ( lo + hi ) >>> 1 ];
+			int i = lo;
+			int j = hi;
+			while ( i <= j )
+			{
+				while ( x[ i ] < pivot )
+					i++;
+				while ( x[ j ] > pivot )
+					j--;
+				if ( i <= j )
+					swap( i++, j-- );
+			}
+			if ( k <= j )
+				hi = j;
+			else if ( k >= i )
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private void swap( final int i, final int j )
+	{
+		final int r = rows[ i ];
+		rows[ i ] = rows[ j ];
+		rows[ j ] = r;
+		for ( int d = 0; d < ndims; d++ )
+		{
+			final double c = coords[ d ][ i ];
+			coords[ d ][ i ] = coords[ d ][ j ];
+			coords[ d ][ j ] = c;
+		}
+	}
+
+	/**
+	 * Finds the row whose point is nearest to the given point.
+	 *
+	 * @param pt the point
+	 * @param maxSqrDistance only rows closer than the square root of this are found
+	 * @param exclude rows to skip, can be null
+	 * @return the nearest row, or -1 if there is none
+	 */
+	public int nearest( final double[] pt, final double maxSqrDistance, final BitSet exclude )
+	{
+		final Search search = new Search( pt, maxSqrDistance, exclude );
+		search.search( 0, rows.length, 0 );
+		return search.best;
+	}
+
+	/**
+	 * Passes every row whose point lies in the given box to a consumer.
+	 *
+	 * @param min the minimum of the box
+	 * @param max the maximum of the box
+	 * @param exclude rows to skip, can be null
+	 * @param consumer receives the rows
+	 */
+	public void forEachInBox( final double[] min, final double[] max, final BitSet exclude, final IntConsumer consumer )
+	{
+		forEachInBox( 0, rows.length, 0, min, max, exclude, consumer );
+	}
+
+	private void forEachInBox( final int lo, final int hi, final int depth, final double[] min, final double[] max,
+			final BitSet exclude, final IntConsumer consumer )
+	{
+		if ( lo >= hi )
+			return;
+
+		final int mid = ( lo + hi ) >>> 1;
+		boolean inside = exclude == null || !exclude.get( rows[ mid ] );
+		for ( int d = 0; d < ndims && inside; d++ )
+			inside = coords[ d ][ mid ] >= min[ d ] && coords[ d ][ mid ] <= max[ d ];
+
+		if ( inside )
+			consumer.accept( rows[ mid ] );
+
+		// smaller coordinates are before the middle, larger ones after it
+		final int d = depth % ndims;
+		if ( min[ d ] <= coords[ d ][ mid ] )
+			forEachInBox( lo, mid, depth + 1, min, max, exclude, consumer );
+		if ( max[ d ] >= coords[ d ][ mid ] )
+			forEachInBox( mid + 1, hi, depth + 1, min, max, exclude, consumer );
+	}
+
+	static boolean inBox( final double[] pt, final double[] min, final double[] max )
+	{
+		for ( int d = 0; d < min.length; d++ )
+			if ( !( pt[ d ] >= min[ d ] && pt[ d ] <= max[ d ] ) )
+				return false;
+
+		return true;
+	}
+
+	private class Search
+	{
+		final double[] pt;
+
+		final BitSet exclude;
+
+		double bestSqrDistance;
+
+		int best = -1;
+
+		Search( final double[] pt, final double maxSqrDistance, final BitSet exclude )
+		{
+			this.pt = pt;
+			this.bestSqrDistance = maxSqrDistance;
+			this.exclude = exclude;
+		}
+
+		void search( final int lo, final int hi, final int depth )
+		{
+			if ( lo >= hi )
+				return;
+
+			final int mid = ( lo + hi ) >>> 1;
+			if ( exclude == null || !exclude.get( rows[ mid ] ) )
+			{
+				double dist = 0;
+				for ( int d = 0; d < ndims; d++ )
+				{
+					final double diff = pt[ d ] - coords[ d ][ mid ];
+					dist += diff * diff;
+				}
+				if ( dist < bestSqrDistance )
+				{
+					bestSqrDistance = dist;
+					best = rows[ mid ];
+				}
+			}
+
+			final int d = depth % ndims;
+			final double diff = pt[ d ] - coords[ d ][ mid ];
+			if ( diff < 0 )
+			{
+				search( lo, mid, depth + 1 );
+				if ( diff * diff < bestSqrDistance )
+					search( mid + 1, hi, depth + 1 );
+			}
+			else
+			{
+				search( mid + 1, hi, depth + 1 );
+				if ( diff * diff < bestSqrDistance )
+					search( lo, mid, depth + 1 );
+			}
+		}
+	}
+}
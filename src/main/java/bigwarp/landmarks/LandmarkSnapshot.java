@@ -0,0 +1,279 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.landmarks;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * An immutable copy of the landmarks of a {@link LandmarkTableModel} at one
+ * point in time.
+ * <p>
+ * Obtained with {@link LandmarkTableModel#getSnapshot()}, and meant for
+ * readers that look at many landmarks at once, like overlays, solvers and
+ * exporters. They can use a snapshot without holding the lock on the table
+ * while the table is being edited. Unset points are infinite and rows without
+ * a warped point have NaN coordinates, as in the table.
+ */
+public class LandmarkSnapshot
+{
+	/** The moving points */
+	public static final int MOVING = 0;
+
+	/** The target points */
+	public static final int TARGET = 1;
+
+	/** The moving points as displayed in target space: the warped point if there is one, the target point otherwise */
+	public static final int WARPED = 2;
+
+	private final long version;
+
+	private final int ndims;
+
+	private final int numRows;
+
+	private final int numActive;
+
+	private final String[] names;
+
+	private final double[][] moving;
+
+	private final double[][] target;
+
+	private final double[][] warped;
+
+	private final BitSet active;
+
+	private final BitSet isWarped;
+
+	private final int[] activeIndex;
+
+	/*
+	 * Copies the landmarks, sharing the names and the point columns of each
+	 * space that are not stale with the previous snapshot of the same table,
+	 * since snapshots never write to them.
+	 */
+	LandmarkSnapshot( final long version, final int numRows, final List< String > names,
+			final PointColumns moving, final PointColumns target, final PointColumns warped,
+			final BitSet active, final BitSet isWarped,
+			final LandmarkSnapshot previous, final boolean[] staleColumns, final boolean staleNames )
+	{
+		this.version = version;
+		this.ndims = moving.numDimensions();
+		this.numRows = numRows;
+
+		final boolean reuse = previous != null && previous.numRows == numRows && previous.ndims == ndims;
+		this.names = reuse && !staleNames ? previous.names : names.toArray( new String[ numRows ] );
+		this.moving = reuse && !staleColumns[ MOVING ] ? previous.moving : copy( moving, numRows );
+		this.target = reuse && !staleColumns[ TARGET ] ? previous.target : copy( target, numRows );
+		this.warped = reuse && !staleColumns[ WARPED ] ? previous.warped : copy( warped, numRows );
+		this.active = ( BitSet ) active.clone();
+		this.isWarped = ( BitSet ) isWarped.clone();
+
+		activeIndex = new int[ numRows ];
+		int j = 0;
+		for ( int i = 0; i < numRows; i++ )
+			activeIndex[ i ] = active.get( i ) ? j++ : -1;
+
+		numActive = j;
+	}
+
+	private static double[][] copy( final PointColumns pts, final int n )
+	{
+		final double[][] out = new double[ pts.numDimensions() ][];
+		for ( int d = 0; d < out.length; d++ )
+			out[ d ] = Arrays.copyOf( pts.column( d ), n );
+
+		return out;
+	}
+
+	/**
+	 * @return the version of the table this is a copy of, increases with every change
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	public int numDimensions()
+	{
+		return ndims;
+	}
+
+	public int numRows()
+	{
+		return numRows;
+	}
+
+	public int numActive()
+	{
+		return numActive;
+	}
+
+	public String getName( final int row )
+	{
+		return names[ row ];
+	}
+
+	public boolean isActive( final int row )
+	{
+		return active.get( row );
+	}
+
+	/**
+	 * @param row the row
+	 * @return the index of the row among the active rows, or -1 if it is not active
+	 */
+	public int getActiveIndex( final int row )
+	{
+		return activeIndex[ row ];
+	}
+
+	/**
+	 * @param row the row
+	 * @return true if the row has a moving point without target point, whose warped point is known
+	 */
+	public boolean isWarped( final int row )
+	{
+		return isWarped.get( row );
+	}
+
+	public boolean isMovingPoint( final int row )
+	{
+		return !Double.isInfinite( moving[ 0 ][ row ] );
+	}
+
+	public boolean isFixedPoint( final int row )
+	{
+		return !Double.isInfinite( target[ 0 ][ row ] );
+	}
+
+	public double getMoving( final int row, final int d )
+	{
+		return moving[ d ][ row ];
+	}
+
+	public double getTarget( final int row, final int d )
+	{
+		return target[ d ][ row ];
+	}
+
+	public double getWarped( final int row, final int d )
+	{
+		return warped[ d ][ row ];
+	}
+
+	/**
+	 * Copies the moving or target point of a row, as many coordinates as fit.
+	 *
+	 * @param row the row
+	 * @param isMoving the moving point if true, the target point otherwise
+	 * @param point the destination
+	 */
+	public void copyPoint( final int row, final boolean isMoving, final double[] point )
+	{
+		copy( isMoving ? moving : target, row, point );
+	}
+
+	/**
+	 * Copies the point of a row in the given space, as many coordinates as fit.
+	 *
+	 * @param row the row
+	 * @param space {@link #MOVING}, {@link #TARGET}, or {@link #WARPED}
+	 * @param point the destination
+	 */
+	public void copyPoint( final int row, final int space, final double[] point )
+	{
+		if ( space == MOVING )
+			copy( moving, row, point );
+		else if ( space == WARPED && isWarped( row ) )
+			copy( warped, row, point );
+		else
+			copy( target, row, point );
+	}
+
+	public void copyMovingPoint( final int row, final double[] point )
+	{
+		copy( moving, row, point );
+	}
+
+	public void copyTargetPoint( final int row, final double[] point )
+	{
+		copy( target, row, point );
+	}
+
+	public void copyWarpedPoint( final int row, final double[] point )
+	{
+		copy( warped, row, point );
+	}
+
+	private void copy( final double[][] pts, final int row, final double[] point )
+	{
+		for ( int d = 0; d < ndims && d < point.length; d++ )
+			point[ d ] = pts[ d ][ row ];
+	}
+
+	/**
+	 * Copies the active landmarks.
+	 *
+	 * @param movingLandmarks the destination for the moving points [ndims][numActive]
+	 * @param targetLandmarks the destination for the target points [ndims][numActive]
+	 */
+	public void copyLandmarks( final double[][] movingLandmarks, final double[][] targetLandmarks )
+	{
+		// copy runs of consecutive active rows column by column
+		int k = 0;
+		for ( int start = active.nextSetBit( 0 ); start >= 0 && start < numRows; )
+		{
+			final int end = Math.min( numRows, active.nextClearBit( start ) );
+			for ( int d = 0; d < ndims; d++ )
+			{
+				System.arraycopy( moving[ d ], start, movingLandmarks[ d ], k, end - start );
+				System.arraycopy( target[ d ], start, targetLandmarks[ d ], k, end - start );
+			}
+			k += end - start;
+			start = active.nextSetBit( end );
+		}
+	}
+
+	/**
+	 * Copies one landmark to its position among the active landmarks, if the
+	 * row is active.
+	 *
+	 * @param row the row
+	 * @param movingLandmarks the destination for the moving points [ndims][numActive]
+	 * @param targetLandmarks the destination for the target points [ndims][numActive]
+	 */
+	public void copyLandmarks( final int row, final double[][] movingLandmarks, final double[][] targetLandmarks )
+	{
+		if ( row < 0 || row >= numRows || !active.get( row ) )
+			return;
+
+		final int k = activeIndex[ row ];
+		for ( int d = 0; d < ndims; d++ )
+		{
+			movingLandmarks[ d ][ k ] = moving[ d ][ row ];
+			targetLandmarks[ d ][ k ] = target[ d ][ row ];
+		}
+	}
+}
@@ -26,15 +26,24 @@ package bigwarp.landmarks;
 
 import bdv.viewer.TransformListener;
 import java.awt.Color;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.swing.SwingUtilities;
 import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.AbstractTableModel;
@@ -48,6 +57,8 @@ import bigwarp.landmarks.actions.AddPointEdit;
 import bigwarp.landmarks.actions.DeleteRowEdit;
 import bigwarp.landmarks.actions.LandmarkUndoManager;
 import bigwarp.landmarks.actions.ModifyPointEdit;
+import bigwarp.transforms.DualTpsTransform;
+import bigwarp.transforms.NewtonInverse;
 import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import net.imglib2.RealLocalizable;
 import net.imglib2.realtransform.InvertibleRealTransform;
@@ -89,34 +100,41 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 
 	protected int numActive = 0;
 
+	// points and flags are stored per column, unset points are infinite
 	protected ArrayList<String> 	names;
-	protected ArrayList<Boolean>	activeList;
-	protected ArrayList<Double[]>	movingPts;
-	protected ArrayList<Double[]>	targetPts;
+	protected BitSet				activeList;
+	protected PointColumns			movingPts;
+	protected PointColumns			targetPts;
 
-	// this list contains as many elemnts as the table, and
+	// this array contains as many elemnts as the table, and
 	// contains a unique integer >= 0 if the row is active, or -1 otherwise 
-	protected ArrayList<Integer> tableIndexToActiveIndex;
+	protected int[] tableIndexToActiveIndex;
 
 	protected boolean pointUpdatePending = false; //
 	protected boolean pointUpdatePendingMoving = false; //
-	protected Double[] pointToOverride;	// hold a backup of a point for fallback
+	protected double[] pointToOverride;	// hold a backup of a point for fallback
 	
 	// keeps track of whether points have been updated
-	protected ArrayList<Boolean> doesPointHaveAndNeedWarp;
+	protected BitSet doesPointHaveAndNeedWarp;
 	protected ArrayList<Integer> indicesOfChangedPoints;
 	protected boolean			 elementDeleted = false;
-	protected ArrayList<Boolean> needsInverse;
+	protected BitSet needsInverse;
 	
 	// true for a row if, after the transform is updated,
 	// the warped point has a higher error than the specified tolerance
-	protected ArrayList<Boolean> movingDisplayPointUnreliable;
+	protected BitSet movingDisplayPointUnreliable;
+
+	// convergence of the last inverse computed for each row's warped point,
+	// the iterations are -1 if it was not warm started
+	protected ArrayList<Integer> inverseIterations;
+	protected ArrayList<Double> inverseErrors;
 
 	// the transformation 
 	protected ThinPlateR2LogRSplineKernelTransform estimatedXfm;
 	
-	// keeps track of warped points so we don't always have to do it on the fly
-	protected ArrayList<Double[]> warpedPoints;
+	// keeps track of warped points so we don't always have to do it on the fly,
+	// NaN if a row has none
+	protected PointColumns warpedPoints;
 
 
 	// inverse iterations
@@ -125,6 +143,43 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	// inverse threshold
 	protected double inverseThreshold = 0.5;
 
+	/**
+	 * The number of inverse iterations recorded for a warped point that was
+	 * computed from scratch, see {@link #getInverseIterations(int)}. Only the
+	 * error of the transformation's own inverse is known, not its iterations.
+	 */
+	public static final int INVERSE_FROM_SCRATCH = -1;
+
+	// the number of threads that compute warped points
+	protected int numWarpThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 );
+
+	// computes warped points in the background, created when first needed
+	protected ExecutorService warpExecutor;
+
+	// incremented for every call to updateAllWarpedPoints, so results of older calls are discarded
+	protected final AtomicLong warpGeneration = new AtomicLong();
+
+	// incremented for every change to the landmarks, while holding the lock on this table
+	protected final AtomicLong version = new AtomicLong();
+
+	// the latest snapshot, rebuilt when first requested after a change
+	protected volatile LandmarkSnapshot snapshot;
+
+	// the parts of the latest snapshot that changed since it was built, the
+	// point columns of each space and the names, the rest is shared with the next one
+	protected final boolean[] staleSnapshotColumns = new boolean[]{ true, true, true };
+	protected boolean staleSnapshotNames = true;
+
+	// spatial indexes of the moving, target and warped points, and the rows
+	// that changed since each was built
+	protected final LandmarkKdTree[] kdTrees = new LandmarkKdTree[ 3 ];
+	protected final BitSet[] kdTreeStaleRows = new BitSet[]{ new BitSet(), new BitSet(), new BitSet() };
+
+	/**
+	 * The most rows that may change before a spatial index is rebuilt.
+	 */
+	public static final int MAX_STALE_ROWS = 64;
+
 	// keep track of the value of the last point that was edited but not-undoable
 	// this lets us both render points correctly, and create desirable undo behavior
 	// for point drags.
@@ -139,6 +194,8 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 
 	protected boolean modifiedSinceLastSave;
 
+	protected boolean writeBinarySidecar = false;
+
 	final static String[] columnNames3d = new String[]
 			{
 			"Name", "Active",
@@ -166,13 +223,13 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		lastPoint = PENDING_PT;
 		
 		names = new ArrayList<>();
-		activeList = new ArrayList<>();
-		tableIndexToActiveIndex = new ArrayList<>();
+		activeList = new BitSet();
+		tableIndexToActiveIndex = new int[ 0 ];
 		
-		movingPts = new ArrayList<Double[]>();
-		targetPts = new ArrayList<Double[]>();
+		movingPts = new PointColumns( ndims );
+		targetPts = new PointColumns( ndims );
 
-		pointToOverride = new Double[ ndims ];
+		pointToOverride = new double[ ndims ];
 		Arrays.fill( pointToOverride, Double.POSITIVE_INFINITY );
 		
 		if( ndims == 2 ){
@@ -182,11 +239,13 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			columnNames = columnNames3d;
 		}
 		
-		warpedPoints = new ArrayList<Double[]>();
-		doesPointHaveAndNeedWarp = new ArrayList<Boolean>();
-		movingDisplayPointUnreliable = new ArrayList<Boolean>();
+		warpedPoints = new PointColumns( ndims );
+		doesPointHaveAndNeedWarp = new BitSet();
+		movingDisplayPointUnreliable = new BitSet();
+		inverseIterations = new ArrayList<Integer>();
+		inverseErrors = new ArrayList<Double>();
 		indicesOfChangedPoints  = new ArrayList<Integer>();
-		needsInverse = new ArrayList<Boolean>();
+		needsInverse = new BitSet();
 		
 		setTableListener();
 		
@@ -224,8 +283,8 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			System.out.println("");
 			for( int d = 0; d < ndims; d++ )
 			{
-				System.out.print( " " + (movingPts.get( i )[ ndims + d ].doubleValue() - estimatedXfm.getSourceLandmarks()[ d ][ i ]) );
-				System.out.print( " " + (targetPts.get( i )[ ndims + d ].doubleValue() - estimatedXfm.getSourceLandmarks()[ d ][ i ]) );
+				System.out.print( " " + (movingPts.get( i, d ) - estimatedXfm.getSourceLandmarks()[ d ][ i ]) );
+				System.out.print( " " + (targetPts.get( i, d ) - estimatedXfm.getSourceLandmarks()[ d ][ i ]) );
 			}
 		}
 	}
@@ -253,7 +312,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		{
 			for( int d = 0; d < ndims; d++ )
 			{
-				if ( targetPts.get( i )[ d ].doubleValue() != estimatedXfm.getSourceLandmarks()[ d ][ i ] )
+				if ( targetPts.get( i, d ) != estimatedXfm.getSourceLandmarks()[ d ][ i ] )
 				{
 					System.out.println("Wrong for pt: " + i );
 					return false;
@@ -307,9 +366,9 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		return pointUpdatePendingMoving;
 	}
 	
-	public void restorePendingUpdate( )
+	public synchronized void restorePendingUpdate( )
 	{
-		ArrayList< Double[] > pts;
+		PointColumns pts;
 		
 		int i = 0;
 		if( pointUpdatePendingMoving )
@@ -323,10 +382,10 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			pts = movingPts;
 		}
 		
-		for( int d = 0; d < ndims; d++ )
-			pts.get( i )[ d ] = pointToOverride[ d ];
+		pts.set( i, pointToOverride );
 		
 		activeList.set( i, true );
+		modifiedPoint( i, LandmarkSnapshot.MOVING );
 		buildTableToActiveIndex();
 		pointUpdatePending = false;
 		
@@ -363,13 +422,156 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		return columnNames[col];
 	}
 	
-	public ArrayList<Double[]> getPoints( boolean moving ) {
+	/**
+	 * A list view of the moving or target points. Elements are boxed copies,
+	 * changes to them have to be written back with {@link List#set(int, Object)}.
+	 *
+	 * @param moving the moving points if true, the target points otherwise
+	 * @return the list view
+	 */
+	public List<Double[]> getPoints( boolean moving ) {
 		if( moving )
-			return movingPts;
+			return modifying( movingPts.asList(), LandmarkSnapshot.MOVING );
 		else 
-			return targetPts;
+			return modifying( targetPts.asList(), LandmarkSnapshot.TARGET );
+	}
+
+	/*
+	 * Wraps a list view of points so that setting elements counts as a change.
+	 */
+	private List< Double[] > modifying( final List< Double[] > points, final int space )
+	{
+		return new AbstractList< Double[] >()
+		{
+			@Override
+			public Double[] get( int i )
+			{
+				synchronized( LandmarkTableModel.this ) {
+					return points.get( i );
+				}
+			}
+
+			@Override
+			public Double[] set( int i, Double[] pt )
+			{
+				synchronized( LandmarkTableModel.this ) {
+					final Double[] previous = points.set( i, pt );
+					modifiedPoint( i, space );
+					return previous;
+				}
+			}
+
+			@Override
+			public int size()
+			{
+				return points.size();
+			}
+		};
+	}
+
+	/**
+	 * Returns an immutable copy of the landmarks that can be read without
+	 * holding the lock on this table. Successive calls return the same copy
+	 * until the table changes.
+	 *
+	 * @return the snapshot
+	 */
+	public LandmarkSnapshot getSnapshot()
+	{
+		final LandmarkSnapshot s = snapshot;
+		if ( s != null && s.getVersion() == version.get() )
+			return s;
+
+		synchronized( this ) {
+			if ( snapshot == null || snapshot.getVersion() != version.get() )
+			{
+				snapshot = new LandmarkSnapshot( version.get(), numRows, names,
+						movingPts, targetPts, warpedPoints, activeList, doesPointHaveAndNeedWarp,
+						snapshot, staleSnapshotColumns, staleSnapshotNames );
+
+				Arrays.fill( staleSnapshotColumns, false );
+				staleSnapshotNames = false;
+			}
+
+			return snapshot;
+		}
+	}
+
+	/**
+	 * @return the number of changes to the landmarks so far
+	 */
+	public long getVersion()
+	{
+		return version.get();
+	}
+
+	/*
+	 * Records a change to the landmarks, call while holding the lock.
+	 */
+	protected void modified()
+	{
+		version.incrementAndGet();
+		Arrays.fill( staleSnapshotColumns, true );
+		staleSnapshotNames = true;
+	}
+
+	/*
+	 * Records a change to the point of a row in the given space, which also
+	 * changes where the moving point is displayed in target space.
+	 */
+	protected void modifiedPoint( final int row, final int space )
+	{
+		version.incrementAndGet();
+		staleSnapshotColumns[ space ] = true;
+		kdTreeStaleRows[ space ].set( row );
+		kdTreeStaleRows[ LandmarkSnapshot.WARPED ].set( row );
 	}
 
+	/*
+	 * Records that rows were added or removed.
+	 */
+	protected void modifiedStructure()
+	{
+		modified();
+		Arrays.fill( kdTrees, null );
+	}
+
+	/**
+	 * Returns a spatial index of the landmarks in one space, for the current
+	 * landmarks.
+	 * <p>
+	 * Uses a {@link LandmarkKdTree} per space that is rebuilt lazily. Rows
+	 * edited since the tree was built are searched separately, until there are
+	 * so many that rebuilding is cheaper.
+	 *
+	 * @param space {@link LandmarkSnapshot#MOVING}, {@link LandmarkSnapshot#TARGET}, or {@link LandmarkSnapshot#WARPED}
+	 * @return the index
+	 */
+	public synchronized LandmarkIndex getIndex( final int space )
+	{
+		final LandmarkSnapshot landmarks = getSnapshot();
+		final BitSet staleRows = kdTreeStaleRows[ space ];
+		if ( kdTrees[ space ] == null || staleRows.cardinality() > MAX_STALE_ROWS )
+		{
+			kdTrees[ space ] = new LandmarkKdTree( landmarks, space );
+			staleRows.clear();
+		}
+		return new LandmarkIndex( landmarks, space, kdTrees[ space ], ( BitSet ) staleRows.clone() );
+	}
+
+	/**
+	 * Finds the row whose point is nearest to the given point, see
+	 * {@link #getIndex(int)}.
+	 *
+	 * @param pt the point
+	 * @param space {@link LandmarkSnapshot#MOVING}, {@link LandmarkSnapshot#TARGET}, or {@link LandmarkSnapshot#WARPED}
+	 * @param maxSqrDistance only rows closer than the square root of this are found
+	 * @return the nearest row, or -1 if there is none
+	 */
+	public int getIndexNearestTo( final double[] pt, final int space, final double maxSqrDistance )
+	{
+		return getIndex( space ).nearest( pt, maxSqrDistance );
+	}
 
 	public ArrayList<String> getNames() 
 	{
@@ -378,7 +580,10 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	
 	public void setColumnName( int row, String name )
 	{
-		names.set( row, name );
+		synchronized( this ) {
+			names.set( row, name );
+			modified();
+		}
 		fireTableCellUpdated( row, NAMECOLUMN );
 	}
 
@@ -389,6 +594,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 
 	public void setIsActive( int row, boolean isActive )
 	{
+		final boolean wasActive;
 		synchronized( this ) {
 			if( isRowUnpaired( row ) && isActive )
 			{
@@ -397,11 +603,13 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 				return;
 			}
 
+			wasActive = activeList.get( row );
 			activeList.set( row, isActive );
 			buildTableToActiveIndex();
+			modified();
 		}
 
-		if( activeList.get( row ) != isActive )
+		if( wasActive != isActive )
 		{
 			fireTableCellUpdated( row, ACTIVECOLUMN );
 			modifiedSinceLastSave = true;
@@ -411,26 +619,20 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	private void buildTableToActiveIndex()
 	{
 		synchronized(this) {
-			tableIndexToActiveIndex.clear();
+			if( tableIndexToActiveIndex.length < getRowCount() )
+				tableIndexToActiveIndex = new int[ Math.max( getRowCount(), 2 * tableIndexToActiveIndex.length ) ];
 
-			int N = 0;
 			int j = 0;
 			for( int i = 0; i < getRowCount(); i++ )
-			{
-				if( isActive( i ))
-				{
-	//				tableIndexToActiveIndex.set( i, j++ );
-					tableIndexToActiveIndex.add( j++ );
-					N++;
-				}
-			}
-			numActive = N;
+				tableIndexToActiveIndex[ i ] = isActive( i ) ? j++ : -1;
+
+			numActive = j;
 		}
 	}
 
 	public int getActiveIndex( int tableIndex )
 	{
-		return tableIndexToActiveIndex.get( tableIndex );
+		return tableIndexToActiveIndex[ tableIndex ];
 	}
 
 	public Class<?> getColumnClass( int col ){
@@ -447,7 +649,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		if( i < 0 || i >= getRowCount() ){
 			return false;
 		}else{
-			return (Boolean)getValueAt(i,1);
+			return activeList.get( i );
 		}
 	}
 
@@ -477,13 +679,17 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			names.remove(i);
 			movingPts.remove(i);
 			targetPts.remove(i);
-			activeList.remove(i);
+			removeBit(activeList, i);
+			modifiedStructure();
 
 			if (indicesOfChangedPoints.contains(i))
 				indicesOfChangedPoints.remove(indicesOfChangedPoints.indexOf(i));
 
-			doesPointHaveAndNeedWarp.remove(i);
-			movingDisplayPointUnreliable.remove(i);
+			removeBit(doesPointHaveAndNeedWarp, i);
+			removeBit(movingDisplayPointUnreliable, i);
+			removeBit(needsInverse, i);
+			inverseIterations.remove(i);
+			inverseErrors.remove(i);
 			warpedPoints.remove(i);
 
 			numRows--;
@@ -510,8 +716,8 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	public boolean isRowUnpaired( final int i )
 	{
 		for( int d = 0; d < ndims; d++ )
-			if( Double.isInfinite( movingPts.get( i )[ d ] ) || 
-				Double.isInfinite( targetPts.get( i )[ d ] ))
+			if( Double.isInfinite( movingPts.get( i, d ) ) || 
+				Double.isInfinite( targetPts.get( i, d ) ))
 					return true;
 
 		return false;
@@ -551,7 +757,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			for ( int i = lastAddedIndex; i < numRows; i++ )
 			{
 				// moving image
-				if ( Double.isInfinite( movingPts.get( i )[ 0 ] ) )
+				if ( Double.isInfinite( movingPts.get( i, 0 ) ) )
 				{
 					pointUpdatePendingMoving = true;
 
@@ -563,7 +769,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 				}
 
 				// target image
-				if ( Double.isInfinite( targetPts.get( i )[ 0 ] ) )
+				if ( Double.isInfinite( targetPts.get( i, 0 ) ) )
 				{
 					pointUpdatePendingMoving = true;
 
@@ -612,17 +818,16 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			if( pt == null )
 				return;
 
-			for ( int d = 0; d < ndims; d++ )
-				warpedPoints.get( i )[ d ] = pt[ d ];
-
+			warpedPoints.set( i, pt );
 			doesPointHaveAndNeedWarp.set( i, true );
+			modifiedPoint( i, LandmarkSnapshot.WARPED );
 		}
 	}
 	
 	public void printWarpedPoints()
 	{
 		String s = "";
-		int N = doesPointHaveAndNeedWarp.size();
+		int N = numRows;
 		for( int i = 0; i < N; i++ )
 		{
 			if( doesPointHaveAndNeedWarp.get( i ))
@@ -630,7 +835,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 //				String s = "" + i + " : ";
 				s += String.format("%04d : ", i);
 				for ( int d = 0; d < ndims; d++ )
-					s += String.format("%f\t", warpedPoints.get( i )[ d ] );
+					s += String.format("%f\t", warpedPoints.get( i, d ) );
 				
 				s+="\n";
 			}
@@ -638,30 +843,54 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		System.out.println( s );
 	}
 
-	public ArrayList< Double[] > getWarpedPoints()
+	/**
+	 * @return a list view of the warped points, see {@link #getPoints(boolean)}
+	 */
+	public List< Double[] > getWarpedPoints()
 	{
-		return warpedPoints;
+		return modifying( warpedPoints.asList(), LandmarkSnapshot.WARPED );
 	}
 	
-	public ArrayList<Boolean> getChangedSinceWarp()
+	public List<Boolean> getChangedSinceWarp()
 	{
-		return doesPointHaveAndNeedWarp;
+		return new AbstractList< Boolean >()
+		{
+			@Override
+			public Boolean get( int i )
+			{
+				return doesPointHaveAndNeedWarp.get( i );
+			}
+
+			@Override
+			public int size()
+			{
+				return numRows;
+			}
+		};
 	}
 
 	public void resetWarpedPoint( int i )
 	{
-		if ( activeList.get( i ) )
-			doesPointHaveAndNeedWarp.set( i, false );
+		synchronized( this ) {
+			if ( activeList.get( i ) )
+			{
+				// also forget the coordinates, so they are not used as the
+				// starting point of the next inverse
+				doesPointHaveAndNeedWarp.set( i, false );
+				warpedPoints.fill( i, Double.NaN );
+				modifiedPoint( i, LandmarkSnapshot.WARPED );
+			}
+		}
 	}
 
 	public void resetWarpedPoints()
 	{
-		for ( int i = 0; i < doesPointHaveAndNeedWarp.size(); i++ )
+		for ( int i = 0; i < numRows; i++ )
 			resetWarpedPoint( i );
 	}
 
 	public void resetNeedsInverse(){
-		Collections.fill( needsInverse, false );
+		needsInverse.clear();
 	}
 	
 	public void setNeedsInverse( int i )
@@ -673,6 +902,26 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	{
 		return movingDisplayPointUnreliable.get( row );
 	}
+
+	/**
+	 * @param row the row
+	 * @return the iterations of the last inverse computed for the warped point of the row,
+	 * or {@link #INVERSE_FROM_SCRATCH} if it was computed without a previous solution
+	 * as a starting point
+	 */
+	public synchronized int getInverseIterations( int row )
+	{
+		return inverseIterations.get( row );
+	}
+
+	/**
+	 * @param row the row
+	 * @return the error of the last inverse computed for the warped point of the row
+	 */
+	public synchronized double getInverseError( int row )
+	{
+		return inverseErrors.get( row );
+	}
 	
 	protected void firePointUpdated( int row, boolean isMoving )
 	{
@@ -684,23 +933,21 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	private void addEmptyRow( int index )
 	{
 		synchronized(this) {
-			Double[] movingPt = new Double[ ndims ];
-			Double[] targetPt = new Double[ ndims ];
-
-			Arrays.fill( targetPt, Double.POSITIVE_INFINITY );
-			Arrays.fill( movingPt, Double.POSITIVE_INFINITY );
-
-			movingPts.add( index, movingPt );
-			targetPts.add( index, targetPt );
+			movingPts.insert( index, Double.POSITIVE_INFINITY );
+			targetPts.insert( index, Double.POSITIVE_INFINITY );
 			
 			names.add( index, nextName( index ));
-			activeList.add( index, false );
-			warpedPoints.add( index, new Double[ ndims ] );
-			doesPointHaveAndNeedWarp.add( index, false );
-			movingDisplayPointUnreliable.add( index, false );
-			tableIndexToActiveIndex.add( -1 );
+			insertBit( activeList, index );
+			warpedPoints.insert( index, Double.NaN );
+			insertBit( doesPointHaveAndNeedWarp, index );
+			insertBit( movingDisplayPointUnreliable, index );
+			insertBit( needsInverse, index );
+			inverseIterations.add( index, 0 );
+			inverseErrors.add( index, 0.0 );
 			
 			numRows++;
+			buildTableToActiveIndex();
+			modifiedStructure();
 			modifiedSinceLastSave = true;
 		}
 
@@ -786,13 +1033,13 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 				else
 				{
 					if ( isMoving )
-						oldpt = toPrimitive( movingPts.get( index ) );
+						oldpt = movingPts.get( index );
 					else
-						oldpt = toPrimitive( targetPts.get( index ) );
+						oldpt = targetPts.get( index );
 				}
 			}
 			
-			ArrayList< Double[] > pts;
+			PointColumns pts;
 
 			/********************
 			 * Update the point *
@@ -803,12 +1050,8 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			else
 				pts = targetPts;
 
-			// create a new point and add it
-			Double[] exPts = new Double[ ndims ];
-			for( int i = 0; i < ndims; i++ ){
-				exPts[ i ] = pt[ i ];
-			}
-			pts.set( index, exPts );
+			pts.set( index, pt );
+			modifiedPoint( index, isMoving ? LandmarkSnapshot.MOVING : LandmarkSnapshot.TARGET );
 
 			/************************************************
 			 * Determine if we have to update warped points *
@@ -858,9 +1101,9 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	public void setLastPoint( int i, boolean isMoving )
 	{
 		if( isMoving )
-			lastPoint = toPrimitive( movingPts.get( i ) );
+			lastPoint = movingPts.get( i );
 		else
-			lastPoint = toPrimitive( targetPts.get( i ) );
+			lastPoint = targetPts.get( i );
 	}
 
 	public void resetLastPoint()
@@ -871,20 +1114,235 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	/**
 	 * Looks through the table for points where there is a point in moving space but not fixed space.
 	 * For any such landmarks that are found, compute the inverse transform and add the result to the fixed points line.
-	 * 
+	 * <p>
+	 * The inverses are computed in parallel in the background, on copies of the
+	 * transformation, without holding the lock on this table. The results are
+	 * published together when all are done, unless this method was called again
+	 * in the meantime, or for rows whose moving point changed.
+	 *
 	 *  @param xfm the new transformation
+	 *  @return completes when the results were published or discarded, or
+	 *  exceptionally if computing them failed, which is also logged
 	 */
-	public void updateAllWarpedPoints( final InvertibleRealTransform xfm )
+	public CompletableFuture< Void > updateAllWarpedPoints( final InvertibleRealTransform xfm )
 	{
+		final long generation = warpGeneration.incrementAndGet();
+		if ( xfm == null )
+			return CompletableFuture.completedFuture( null );
+
 		final InvertibleRealTransform xfmToUse;
 		if (xfm instanceof Wrapped2DTransformAs3D && ndims == 2)
-			xfmToUse = ((Wrapped2DTransformAs3D) xfm).transform;
+			xfmToUse = ((Wrapped2DTransformAs3D) xfm).getTransform();
 		else
 			xfmToUse = xfm;
 
-		for ( int i = 0; i < numRows; i++ )
-			if ( !isFixedPoint( i ) && isMovingPoint( i ) )
-				computeWarpedPoint( i, xfmToUse );
+		// snapshot the unpaired moving points
+		final int[] rows;
+		final double[][] moving;
+		final double[][] guesses;
+		synchronized ( this )
+		{
+			int n = 0;
+			final int[] candidates = new int[ numRows ];
+			for ( int i = 0; i < numRows; i++ )
+				if ( !isFixedPoint( i ) && isMovingPoint( i ) )
+					candidates[ n++ ] = i;
+
+			rows = Arrays.copyOf( candidates, n );
+			moving = new double[ n ][];
+			guesses = new double[ n ][];
+			for ( int k = 0; k < n; k++ )
+			{
+				moving[ k ] = movingPts.get( rows[ k ] );
+				guesses[ k ] = previousWarpedPoint( rows[ k ] );
+			}
+		}
+
+		if ( rows.length == 0 )
+			return CompletableFuture.completedFuture( null );
+
+		final double[][] warped = new double[ rows.length ][];
+		final double[] errors = new double[ rows.length ];
+		final int[] iterations = new int[ rows.length ];
+		final int numJobs = Math.min( numWarpThreads, rows.length );
+		@SuppressWarnings( "unchecked" )
+		final CompletableFuture< Void >[] jobs = new CompletableFuture[ numJobs ];
+		for ( int j = 0; j < numJobs; j++ )
+		{
+			final int job = j;
+			final InvertibleRealTransform xfmCopy = copyForInverse( xfmToUse );
+			jobs[ j ] = CompletableFuture.runAsync( () -> {
+				final NewtonInverse newton = new NewtonInverse( ndims );
+				for ( int k = job; k < rows.length; k += numJobs )
+				{
+					// give up early if a newer update was requested
+					if ( warpGeneration.get() != generation )
+						return;
+
+					warped[ k ] = new double[ ndims ];
+					if ( warmStartInverse( xfmCopy, newton, moving[ k ], guesses[ k ], warped[ k ] ) )
+					{
+						iterations[ k ] = newton.getIterations();
+						errors[ k ] = newton.getError();
+					}
+					else
+					{
+						iterations[ k ] = INVERSE_FROM_SCRATCH;
+						errors[ k ] = computeInverse( xfmCopy, moving[ k ], warped[ k ] );
+					}
+				}
+			}, getWarpExecutor() );
+		}
+
+		return CompletableFuture.allOf( jobs )
+				.thenRun( () -> publishWarpedPoints( generation, rows, moving, warped, errors, iterations ) )
+				.whenComplete( ( r, e ) -> {
+					// callers usually ignore the returned future, so report failures here
+					if ( e != null )
+						logger.error( "Failed to compute warped points", e );
+				} );
+	}
+
+	/**
+	 * Sets the warped points computed by {@link #updateAllWarpedPoints}, if
+	 * no newer update was requested, all in one step.
+	 */
+	protected void publishWarpedPoints( final long generation, final int[] rows, final double[][] moving,
+			final double[][] warped, final double[] errors, final int[] iterations )
+	{
+		final ArrayList< String > unreliable = new ArrayList<>();
+		synchronized ( this )
+		{
+			if ( warpGeneration.get() != generation )
+				return;
+
+			for ( int k = 0; k < rows.length; k++ )
+			{
+				final int i = rows[ k ];
+				if ( i >= numRows || isFixedPoint( i ) || !isMovingPoint( i ) || !movingPointEquals( i, moving[ k ] ) )
+					continue;
+
+				final boolean isUnreliable = errors[ k ] > inverseThreshold;
+				movingDisplayPointUnreliable.set( i, isUnreliable );
+				inverseIterations.set( i, iterations[ k ] );
+				inverseErrors.set( i, errors[ k ] );
+				if ( isUnreliable )
+					unreliable.add( names.get( i ) );
+
+				updateWarpedPoint( i, warped[ k ] );
+			}
+		}
+
+		for ( final String name : unreliable )
+			showUnreliableWarning( name );
+	}
+
+	/**
+	 * Shows that the warped point of a landmark is inaccurate. Called from
+	 * the threads that compute warped points, so the message is shown on the
+	 * event dispatch thread.
+	 *
+	 * @param name the name of the landmark
+	 */
+	protected void showUnreliableWarning( final String name )
+	{
+		final BigWarpMessageAnimator msg = message;
+		if ( msg != null )
+			SwingUtilities.invokeLater( () -> msg.showMessage( String.format(
+					"Warning: location of moving point %s in warped space is innacurate", name ) ) );
+	}
+
+	/**
+	 * The warped point of a row from a previous inverse, if it has one.
+	 *
+	 * @param i the row
+	 * @return the warped point or null
+	 */
+	protected synchronized double[] previousWarpedPoint( final int i )
+	{
+		final double[] out = warpedPoints.get( i );
+		for ( int d = 0; d < ndims; d++ )
+			if ( !Double.isFinite( out[ d ] ) )
+				return null;
+
+		return out;
+	}
+
+	/**
+	 * Computes the inverse of a point iteratively starting from a previous
+	 * solution, which converges in a few iterations if the transformation
+	 * changed little.
+	 *
+	 * @param xfm the transformation
+	 * @param newton the solver
+	 * @param tgt the point
+	 * @param guess the previous solution, can be null
+	 * @param warpedPt receives the inverse of the point
+	 * @return true if it converged, false if the inverse should be computed from scratch
+	 */
+	protected boolean warmStartInverse( final InvertibleRealTransform xfm, final NewtonInverse newton,
+			final double[] tgt, final double[] guess, final double[] warpedPt )
+	{
+		// only iterative inverses benefit
+		// the approximate inverse of a dual thin plate spline is direct
+		if ( guess == null || !( xfm instanceof WrappedIterativeInvertibleRealTransform ) || xfm instanceof DualTpsTransform )
+			return false;
+
+		System.arraycopy( guess, 0, warpedPt, 0, ndims );
+		return newton.solve( xfm, tgt, warpedPt, inverseThreshold );
+	}
+
+	/**
+	 * Computes the inverse of a point.
+	 *
+	 * @param xfm the transformation
+	 * @param tgt the point
+	 * @param warpedPt receives the inverse of the point
+	 * @return the error of an iterative or approximate inverse, zero otherwise
+	 */
+	protected static double computeInverse( final InvertibleRealTransform xfm, final double[] tgt, final double[] warpedPt )
+	{
+		xfm.applyInverse( warpedPt, tgt );
+		if( xfm instanceof DualTpsTransform )
+			return ((DualTpsTransform)xfm).residual( warpedPt, tgt );
+
+		if( xfm instanceof WrappedIterativeInvertibleRealTransform )
+			return ((WrappedIterativeInvertibleRealTransform<?>)xfm).getOptimzer().getError();
+
+		return 0;
+	}
+
+	/**
+	 * Copies a transformation for use in another thread. Iterative inverses
+	 * use the maximum iterations and threshold of this table, since copies
+	 * do not keep the settings of their optimizer.
+	 *
+	 * @param xfm the transformation
+	 * @return the copy
+	 */
+	protected InvertibleRealTransform copyForInverse( final InvertibleRealTransform xfm )
+	{
+		final InvertibleRealTransform copy = xfm.copy();
+		if ( copy instanceof WrappedIterativeInvertibleRealTransform )
+		{
+			final WrappedIterativeInvertibleRealTransform< ? > inv = ( WrappedIterativeInvertibleRealTransform< ? > ) copy;
+			inv.getOptimzer().setMaxIters( maxInverseIterations );
+			inv.getOptimzer().setTolerance( inverseThreshold );
+		}
+		return copy;
+	}
+
+	protected synchronized ExecutorService getWarpExecutor()
+	{
+		if ( warpExecutor == null )
+		{
+			warpExecutor = Executors.newFixedThreadPool( numWarpThreads, r -> {
+				final Thread t = new Thread( r, "LandmarkTableModel warped points" );
+				t.setDaemon( true );
+				return t;
+			} );
+		}
+		return warpExecutor;
 	}
 
 	/**
@@ -899,44 +1357,69 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	 * <p>
 	 * If these conditions are satisfied, the position of the moving point in
 	 * target space by iteratively estimating the inverse of the thin plate
-	 * spline transformation.
+	 * spline transformation. The inverse is computed without holding the
+	 * lock on this table.
 	 * 
 	 * @param i the row in the table
 	 * @param xfm the invertible transformation
 	 */
 	public void computeWarpedPoint( int i, final InvertibleRealTransform xfm )
 	{
+		final double[] tgt;
+		final double[] guess;
+		final String name;
 		synchronized( this ) {
-			// TODO pass a transform here as argument - don't use estimatedXfm stored here
+			if ( xfm == null || i >= numRows || isFixedPoint( i ) || !isMovingPoint( i ) )
+				return;
 
-			// TODO Perhaps move this into its own thread. and expose the parameters for solving the inverse.
-			if ( !isFixedPoint( i ) && isMovingPoint( i ) && xfm != null )
-			{
-				double[] tgt = toPrimitive( movingPts.get( i ) );
+			tgt = movingPts.get( i );
+			guess = previousWarpedPoint( i );
+			name = names.get( i );
+		}
 
-				double[] warpedPt = new double[ ndims ];
-				xfm.applyInverse( warpedPt, tgt );
+		final double[] warpedPt = new double[ ndims ];
+		final NewtonInverse newton = new NewtonInverse( ndims );
+		final int iterations;
+		final double error;
+		if ( warmStartInverse( xfm, newton, tgt, guess, warpedPt ) )
+		{
+			iterations = newton.getIterations();
+			error = newton.getError();
+		}
+		else
+		{
+			iterations = INVERSE_FROM_SCRATCH;
+			error = computeInverse( xfm, tgt, warpedPt );
+		}
 
-				if( xfm instanceof WrappedIterativeInvertibleRealTransform )
-				{
-					WrappedIterativeInvertibleRealTransform<?> inv = (WrappedIterativeInvertibleRealTransform<?>)xfm;
-					double error = inv.getOptimzer().getError();
+		// TODO should check for failure or non-convergence here
+		// can use the error returned by the inverse method to do this. 
+		// BUT - it's not clear what to do upon failure 
+		final boolean isUnreliable = error > inverseThreshold;
+		synchronized( this ) {
+			if ( i >= numRows || isFixedPoint( i ) || !isMovingPoint( i ) || !movingPointEquals( i, tgt ) )
+				return;
 
-					if( error > inverseThreshold )
-					{
-						movingDisplayPointUnreliable.set( i, true );
-						message.showMessage( String.format(
-							"Warning: location of moving point %s in warped space is innacurate", names.get( i )));
-					}
-					else
-						movingDisplayPointUnreliable.set( i, false );
-				}
+			movingDisplayPointUnreliable.set( i, isUnreliable );
+			inverseIterations.set( i, iterations );
+			inverseErrors.set( i, error );
+			updateWarpedPoint( i, warpedPt );
+		}
 
-				// TODO should check for failure or non-convergence here
-				// can use the error returned by the inverse method to do this. 
-				// BUT - it's not clear what to do upon failure 
-				updateWarpedPoint( i, warpedPt );
-			}
+		if ( isUnreliable )
+			showUnreliableWarning( name );
+	}
+
+	/**
+	 * @param numThreads the number of threads used to compute warped points
+	 */
+	public synchronized void setNumWarpThreads( final int numThreads )
+	{
+		numWarpThreads = Math.max( 1, numThreads );
+		if ( warpExecutor != null )
+		{
+			warpExecutor.shutdown();
+			warpExecutor = null;
 		}
 	}
 
@@ -951,20 +1434,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	}
 	public int getIndexNearestTo( double[] pt, boolean isMoving )
 	{
-		Double[] p;
-		double minDist = Double.MAX_VALUE;
-		int minIndex = -1;
-		for( int i = 0; i < numRows; i++ )
-		{
-			p = getPoint( isMoving, i );
-			double thisdist = squaredDistance( p, pt );
-			if( thisdist < minDist )
-			{
-				minDist = thisdist;
-				minIndex = i;
-			}
-		}
-		return minIndex;
+		return getIndexNearestTo( pt, isMoving ? LandmarkSnapshot.MOVING : LandmarkSnapshot.TARGET, Double.MAX_VALUE );
 	}
 
 	public double squaredDistance( Double[] p, double[] q )
@@ -979,20 +1449,11 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 
 	public int getIndexNearestTo( RealLocalizable pt, boolean isMoving )
 	{
-		Double[] p;
-		double minDist = Double.MAX_VALUE;
-		int minIndex = -1;
-		for( int i = 0; i < numRows; i++ )
-		{
-			p = getPoint( isMoving, i );
-			double thisdist = squaredDistance( p, pt );
-			if( thisdist < minDist )
-			{
-				minDist = thisdist;
-				minIndex = i;
-			}
-		}
-		return minIndex;
+		final double[] p = new double[ ndims ];
+		for( int d = 0; d < ndims; d++ )
+			p[ d ] = pt.getDoublePosition( d );
+
+		return getIndexNearestTo( p, isMoving );
 	}
 
 	public double squaredDistance( Double[] p, RealLocalizable q )
@@ -1005,32 +1466,49 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		return dist;
 	}
 
+	/**
+	 * @param isMoving the moving point if true, the target point otherwise
+	 * @param index the row
+	 * @return a boxed copy of the point
+	 */
 	public Double[] getPoint( boolean isMoving, int index )
 	{
 		if ( isMoving )
-			return movingPts.get( index );
+			return getMovingPoint( index );
 		else
-			return targetPts.get( index );
+			return getFixedPoint( index );
 	}
 
 	public Double[] getMovingPoint( int index )
 	{
-		return movingPts.get( index );
+		return movingPts.asList().get( index );
 	}
 
 	public Double[] getFixedPoint( int index )
 	{
-		return targetPts.get( index );
+		return targetPts.asList().get( index );
 	}
 
 	public boolean isMovingPoint( int index )
 	{
-		return !Double.isInfinite( movingPts.get( index )[ 0 ] );
+		return !Double.isInfinite( movingPts.get( index, 0 ) );
 	}
 
 	public boolean isFixedPoint( int index )
 	{
-		return !Double.isInfinite( targetPts.get( index )[ 0 ] );
+		return !Double.isInfinite( targetPts.get( index, 0 ) );
+	}
+
+	/*
+	 * Whether the moving point of a row is still at the given position.
+	 */
+	private boolean movingPointEquals( int index, double[] pt )
+	{
+		for ( int d = 0; d < ndims; d++ )
+			if ( Double.compare( movingPts.get( index, d ), pt[ d ] ) != 0 )
+				return false;
+
+		return true;
 	}
 
 	public boolean isFixedPoint( int index, boolean isMoving )
@@ -1066,6 +1544,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			{
 				activeList.set( index, activate );
 				buildTableToActiveIndex();
+				modified();
 			}
 		}
 
@@ -1145,87 +1624,138 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	}
 	
 	/**
-	 * Loads this table from a file
+	 * Loads this table from a file, replacing all rows.
+	 * <p>
+	 * Reads binary landmark files (see {@link BinaryLandmarks}) if the file
+	 * has that extension, or if the file is a csv file with a binary sidecar
+	 * that is not older than it. Otherwise the csv file is read one row at a
+	 * time. Listeners are notified with a single event.
+	 *
 	 * @param f the file
 	 * @param invert invert the moving and target point sets
 	 * @throws IOException an exception
 	 */
 	public void load( File f, boolean invert ) throws IOException
 	{
-		synchronized(this) {
-			clear();
+		final File sidecar = BinaryLandmarks.sidecar( f );
+		if ( BinaryLandmarks.isBinary( f ) )
+			loadBinary( f, invert );
+		else if ( sidecar.isFile() && sidecar.lastModified() >= f.lastModified() )
+			loadBinary( sidecar, invert );
+		else
+			loadCsv( f, invert );
+	}
 
-			CSVReader reader = new CSVReader( new FileReader( f.getAbsolutePath() ));
-			List< String[] > rows = null;
-			try
-			{
-				rows = reader.readAll();
-				reader.close();
-			}
-			catch( CsvException e ){}
-			if( rows == null || rows.size() < 1 )
-			{
-				System.err.println("Error reading csv");
-				return;
-			}
+	protected void loadBinary( File f, boolean invert ) throws IOException
+	{
+		final BinaryLandmarks landmarks = BinaryLandmarks.read( f );
+		setLandmarks( landmarks.getNames(), landmarks.getActive(),
+				invert ? landmarks.getTarget() : landmarks.getMoving(),
+				invert ? landmarks.getMoving() : landmarks.getTarget() );
+	}
 
-			int ndims = 3;
-			int expectedRowLength = 8;
+	protected void loadCsv( File f, boolean invert ) throws IOException
+	{
+		final ArrayList< String > names = new ArrayList<>();
+		final BitSet active = new BitSet();
+		PointColumns mvg = null;
+		PointColumns tgt = null;
 
-			int i = 0;
-			for( String[] row : rows )
+		try ( final CSVReader reader = new CSVReader( new BufferedReader( new FileReader( f.getAbsolutePath() ) ) ) )
+		{
+			int ndims = 0;
+			double[] pt = null;
+			String[] row;
+			while ( ( row = reader.readNext() ) != null )
 			{
-				// detect a file with 2d landmarks
-				if( i == 0 && // only check for the first row
-						row.length == 6 )
+				if ( ndims == 0 )
 				{
-					ndims = 2;
-					expectedRowLength = 6;
+					// detect a file with 2d landmarks
+					// only check for the first row
+					ndims = row.length == 6 ? 2 : 3;
+					pt = new double[ ndims ];
+					mvg = new PointColumns( ndims );
+					tgt = new PointColumns( ndims );
 				}
 
-				if( row.length != expectedRowLength  )
+				if ( row.length != 2 * ndims + 2 )
 					throw new IOException( "Invalid file - not enough columns" );
 
-				names.add( row[ 0 ] );
-				activeList.add( Boolean.parseBoolean( row[ 1 ]) );
+				if ( Boolean.parseBoolean( row[ 1 ] ) )
+					active.set( names.size() );
 
-				Double[] movingPt = new Double[ ndims ];
-				Double[] targetPt = new Double[ ndims ];
+				names.add( row[ 0 ] );
 
 				int k = 2;
-				for( int d = 0; d < ndims; d++ )
-					movingPt[ d ] = Double.parseDouble( row[ k++ ]);
+				for ( int d = 0; d < ndims; d++ )
+					pt[ d ] = Double.parseDouble( row[ k++ ] );
 
-				for( int d = 0; d < ndims; d++ )
-					targetPt[ d ] = Double.parseDouble( row[ k++ ]);
+				mvg.add( pt );
 
-				if( invert )
-				{
-					movingPts.add( targetPt );
-					targetPts.add( movingPt );
-				}
-				else
-				{
-					movingPts.add( movingPt );
-					targetPts.add( targetPt );
-				}
+				for ( int d = 0; d < ndims; d++ )
+					pt[ d ] = Double.parseDouble( row[ k++ ] );
 
-				warpedPoints.add( new Double[ ndims ] );
-				doesPointHaveAndNeedWarp.add( false );
-				movingDisplayPointUnreliable.add( false );
-				i++;
+				tgt.add( pt );
 			}
+		}
+		catch ( CsvException e )
+		{
+			throw new IOException( "Error reading csv " + f, e );
+		}
+		catch ( NumberFormatException e )
+		{
+			throw new IOException( "Invalid file - not a number in " + f, e );
+		}
+
+		if ( names.isEmpty() )
+		{
+			// clear the table, but keep its dimensionality
+			logger.warn( "No landmarks in " + f );
+			setLandmarks( names, active, new PointColumns( this.ndims ), new PointColumns( this.ndims ) );
+			return;
+		}
+
+		if ( invert )
+			setLandmarks( names, active, tgt, mvg );
+		else
+			setLandmarks( names, active, mvg, tgt );
+	}
 
-			this.ndims = ndims;
-			numRows = i;
+	/*
+	 * Replaces all rows of this table, and notifies listeners with one event.
+	 * Edits of the previous rows can no longer be undone.
+	 */
+	protected void setLandmarks( ArrayList< String > names, BitSet active, PointColumns mvg, PointColumns tgt )
+	{
+		synchronized( this ) {
+			final int n = names.size();
+
+			this.names = names;
+			activeList = active;
+			movingPts = mvg;
+			targetPts = tgt;
+
+			warpedPoints = new PointColumns( mvg.numDimensions(), n );
+			for ( int i = 0; i < n; i++ )
+				warpedPoints.insert( i, Double.NaN );
+
+			doesPointHaveAndNeedWarp.clear();
+			movingDisplayPointUnreliable.clear();
+			needsInverse.clear();
+			indicesOfChangedPoints.clear();
+			inverseIterations = new ArrayList<>( Collections.nCopies( n, 0 ) );
+			inverseErrors = new ArrayList<>( Collections.nCopies( n, 0.0 ) );
+			pointUpdatePending = false;
+			undoRedoManager.discardAllEdits();
+
+			this.ndims = mvg.numDimensions();
+			numRows = n;
 			updateNextRows( 0 );
 			buildTableToActiveIndex();
-	//		initTransformation();
+			modifiedStructure();
 		}
 
-		for( int i = 0; i < numRows; i++ )
-			fireTableRowsInserted( i, i );
-
+		fireTableDataChanged();
 	}
 
 	public int numActive()
@@ -1255,11 +1785,10 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			if (index >= getRowCount())
 				return false;
 
-			for (int d = 0; (d < point.length) && d < ndims; d++)
-				if (moving)
-					point[d] = movingPts.get(index)[d];
-				else
-					point[d] = targetPts.get(index)[d];
+			if (moving)
+				movingPts.get(index, point);
+			else
+				targetPts.get(index, point);
 
 			return true;
 		}
@@ -1279,8 +1808,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			if (index >= movingPts.size())
 				return false;
 
-			for (int d = 0; (d < point.length) && d < ndims; d++)
-					point[d] = movingPts.get(index)[d];
+			movingPts.get(index, point);
 
 			return true;
 		}
@@ -1300,8 +1828,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			if (index >= warpedPoints.size())
 				return false;
 
-			for (int d = 0; (d < point.length) && d < ndims; d++)
-					point[d] = warpedPoints.get(index)[d];
+			warpedPoints.get(index, point);
 
 			return true;
 		}
@@ -1321,8 +1848,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			if (index >= targetPts.size())
 				return false;
 
-			for (int d = 0; (d < point.length) && d < ndims; d++)
-					point[d] = targetPts.get(index)[d];
+			targetPts.get(index, point);
 
 			return true;
 		}
@@ -1332,7 +1858,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		synchronized (this) {
 			for (int i = 0; i < this.numRows && i < destination.length; i++)
 				for (int d = 0; d < ndims && d < destination[i].length; d++)
-					destination[i][d] = movingPts.get(i)[d];
+					destination[i][d] = movingPts.get(i, d);
 		}
 	}
 
@@ -1340,7 +1866,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		synchronized (this) {
 			for (int i = 0; i < this.numRows && i < destination.length; i++)
 				for (int d = 0; d < ndims && d < destination[i].length; d++)
-					destination[i][d] = warpedPoints.get(i)[d];
+					destination[i][d] = warpedPoints.get(i, d);
 		}
 	}
 
@@ -1348,7 +1874,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		synchronized (this) {
 			for (int i = 0; i < this.numRows && i < destination.length; i++)
 				for (int d = 0; d < ndims && d < destination[i].length; d++)
-					destination[i][d] = targetPts.get(i)[d];
+					destination[i][d] = targetPts.get(i, d);
 		}
 	}
 
@@ -1365,8 +1891,8 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 				int activeIndex = getActiveIndex( tableIndex );
 				for ( int d = 0; d < ndims; d++ )
 				{
-					movingLandmarks[ d ][ activeIndex ] = movingPts.get( tableIndex )[ d ];
-					targetLandmarks[ d ][ activeIndex ] = targetPts.get( tableIndex )[ d ];
+					movingLandmarks[ d ][ activeIndex ] = movingPts.get( tableIndex, d );
+					targetLandmarks[ d ][ activeIndex ] = targetPts.get( tableIndex, d );
 				}
 			}
 		}
@@ -1379,18 +1905,18 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 					String.format("copyLandmarks. nActive=%d.  sizes = %d x %d ; %d x %d ", numActive,
 							movingLandmarks.length, movingLandmarks[0].length,
 							targetLandmarks.length, targetLandmarks[0].length));
+			// copy runs of consecutive active rows column by column
 			int k = 0;
-			for ( int i = 0; i < this.numRows; i++ )
+			for ( int start = activeList.nextSetBit( 0 ); start >= 0 && start < numRows; )
 			{
-				if ( activeList.get( i ) )
+				final int end = Math.min( numRows, activeList.nextClearBit( start ) );
+				for ( int d = 0; d < ndims; d++ )
 				{
-					for ( int d = 0; d < ndims; d++ )
-					{
-						movingLandmarks[ d ][ k ] = movingPts.get( i )[ d ];
-						targetLandmarks[ d ][ k ] = targetPts.get( i )[ d ];
-					}
-					k++;
+					System.arraycopy( movingPts.column( d ), start, movingLandmarks[ d ], k, end - start );
+					System.arraycopy( targetPts.column( d ), start, targetLandmarks[ d ], k, end - start );
 				}
+				k += end - start;
+				start = activeList.nextSetBit( end );
 			}
 		}
 	}
@@ -1411,42 +1937,95 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 	}
 	
 	/**
-	 * Saves the table to a file
+	 * Saves this table to a file, as csv unless the file has the extension of
+	 * binary landmark files (see {@link BinaryLandmarks}).
+	 * <p>
+	 * The rows are written one at a time from a snapshot, so the table is not
+	 * locked while writing.
+	 *
 	 * @param f the file
 	 * @throws IOException an exception
 	 */
 	public void save( File f ) throws IOException
 	{
-		CSVWriter csvWriter = new CSVWriter(new FileWriter( f.getAbsoluteFile() )); 
+		final LandmarkSnapshot landmarks = getSnapshot();
+		save( landmarks, f );
+		if ( writeBinarySidecar && !BinaryLandmarks.isBinary( f ) )
+			BinaryLandmarks.write( landmarks, BinaryLandmarks.sidecar( f ) );
 
-		synchronized(this) { 
-			int N = names.size();
-			List<String[]> rows = new ArrayList<String[]>( N );
-			
-			int rowLength = 2 * ndims + 2;
-			for( int i = 0; i < N; i++ )
+		markSaved( landmarks );
+	}
+
+	/**
+	 * Saves landmarks to a file, as csv unless the file has the extension of
+	 * binary landmark files.
+	 *
+	 * @param landmarks the landmarks
+	 * @param f the file
+	 * @throws IOException an exception
+	 */
+	public static void save( LandmarkSnapshot landmarks, File f ) throws IOException
+	{
+		if ( BinaryLandmarks.isBinary( f ) )
+			BinaryLandmarks.write( landmarks, f );
+		else
+			saveCsv( landmarks, f );
+	}
+
+	/**
+	 * Records that the given landmarks were saved, so this table is not
+	 * {@link #isModifiedSinceSave() modified} unless it changed since.
+	 *
+	 * @param landmarks the saved landmarks
+	 */
+	public void markSaved( LandmarkSnapshot landmarks )
+	{
+		synchronized( this ) {
+			if ( getVersion() == landmarks.getVersion() )
+				modifiedSinceLastSave = false;
+		}
+	}
+
+	protected static void saveCsv( LandmarkSnapshot landmarks, File f ) throws IOException
+	{
+		final int ndims = landmarks.numDimensions();
+		try ( final CSVWriter csvWriter = new CSVWriter( new BufferedWriter( new FileWriter( f.getAbsoluteFile() ) ) ) )
+		{
+			final String[] row = new String[ 2 * ndims + 2 ];
+			for( int i = 0; i < landmarks.numRows(); i++ )
 			{
-				String[] row = new String[ rowLength ];
-				row[ 0 ] = names.get( i );
-				row[ 1 ] = activeList.get( i ).toString();
+				row[ 0 ] = landmarks.getName( i );
+				row[ 1 ] = Boolean.toString( landmarks.isActive( i ) );
 
 				int k = 2;
-				int j = 0;
-				while( j < ndims )
-					row[ k++ ] = movingPts.get( i )[ j++ ].toString();
+				for( int d = 0; d < ndims; d++ )
+					row[ k++ ] = Double.toString( landmarks.getMoving( i, d ) );
 
-				j = 0;
-				while( j < ndims )
-					row[ k++ ] = targetPts.get( i )[ j++ ].toString();
+				for( int d = 0; d < ndims; d++ )
+					row[ k++ ] = Double.toString( landmarks.getTarget( i, d ) );
 
-				rows.add( row );
+				csvWriter.writeNext( row );
 			}
-			csvWriter.writeAll( rows );
-			csvWriter.close();
-			modifiedSinceLastSave = false;
 		}
 	}
-	
+
+	/**
+	 * Sets whether saving to a csv file also writes the landmarks in the
+	 * binary format next to it, which {@link #load(File, boolean)} then reads
+	 * instead of the csv.
+	 *
+	 * @param writeBinarySidecar whether to write the binary file
+	 */
+	public void setWriteBinarySidecar( final boolean writeBinarySidecar )
+	{
+		this.writeBinarySidecar = writeBinarySidecar;
+	}
+
+	public boolean isWriteBinarySidecar()
+	{
+		return writeBinarySidecar;
+	}
+
 	public static String print( Double[] d )
 	{
 		String out = "";
@@ -1478,6 +2057,7 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			if( col == NAMECOLUMN )
 			{
 				names.set(row, (String)value );
+				modified();
 			}
 			else if( col == ACTIVECOLUMN )
 			{
@@ -1485,13 +2065,13 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 			}
 			else if( col < 2 + ndims )
 			{
-				Double[] thesePts = movingPts.get(row);
-				thesePts[ col - 2 ] = ((Double)value).doubleValue();
+				movingPts.set( row, col - 2, ((Double)value).doubleValue() );
+				modifiedPoint( row, LandmarkSnapshot.MOVING );
 			}
 			else
 			{
-				Double[] thesePts = targetPts.get(row);
-				thesePts[ col - ndims - 2 ] = ((Double)value).doubleValue();
+				targetPts.set( row, col - ndims - 2, ((Double)value).doubleValue() );
+				modifiedPoint( row, LandmarkSnapshot.TARGET );
 			}
 
 		}
@@ -1509,9 +2089,9 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		else if ( columnIndex == ACTIVECOLUMN )
 			return activeList.get( rowIndex );
 		else if( columnIndex < 2 + ndims )
-			return movingPts.get( rowIndex )[ columnIndex - 2 ];
+			return movingPts.get( rowIndex, columnIndex - 2 );
 		else
-			return targetPts.get( rowIndex )[ columnIndex - ndims - 2 ];
+			return targetPts.get( rowIndex, columnIndex - ndims - 2 );
 	}
 
 	/**
@@ -1537,17 +2117,10 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		double[] tmp = new double[ ndims ];
 		for ( int i = 0; i < N; i++ )
 		{
-			Double[] thisMoving = movingPts.get( i );
-			Double[] thisTarget = targetPts.get( i );
-
-			for ( int d = 0; d < ndims; d++ )
-				tmp[ d ] = thisMoving[ d ];
-
+			movingPts.get( i, tmp );
 			inv.add( tmp, false, null );
 
-			for ( int d = 0; d < ndims; d++ )
-				tmp[ d ] = thisTarget[ d ];
-
+			targetPts.get( i, tmp );
 			inv.setPoint( i, true, tmp, null );
 		}
 
@@ -1577,6 +2150,27 @@ public class LandmarkTableModel extends AbstractTableModel implements TransformL
 		return out;
 	}
 
+	/*
+	 * Removes a bit from a set, shifting the following bits down.
+	 */
+	private static void removeBit( final BitSet bits, final int index )
+	{
+		final int n = bits.length();
+		for ( int j = index; j < n; j++ )
+			bits.set( j, bits.get( j + 1 ) );
+	}
+
+	/*
+	 * Inserts a clear bit into a set, shifting the following bits up.
+	 */
+	private static void insertBit( final BitSet bits, final int index )
+	{
+		for ( int j = bits.length(); j > index; j-- )
+			bits.set( j, bits.get( j - 1 ) );
+
+		bits.clear( index );
+	}
+
 	@Override
 	public void transformChanged( final InvertibleRealTransform transform )
 	{
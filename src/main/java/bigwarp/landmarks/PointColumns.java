@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.landmarks;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A growable list of points stored as one primitive array per dimension.
+ * <p>
+ * The arrays returned by {@link #column(int)} are the backing storage, and can
+ * be read without copying. They are replaced when the capacity grows, so must
+ * not be kept across insertions. Not thread safe.
+ */
+public class PointColumns
+{
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private final int ndims;
+
+	private double[][] columns;
+
+	private int size;
+
+	public PointColumns( final int ndims )
+	{
+		this( ndims, DEFAULT_CAPACITY );
+	}
+
+	public PointColumns( final int ndims, final int capacity )
+	{
+		this.ndims = ndims;
+		columns = new double[ ndims ][ Math.max( capacity, 1 ) ];
+		size = 0;
+	}
+
+	/**
+	 * Uses the given arrays as storage, without copying.
+	 *
+	 * @param columns the coordinates, one array per dimension
+	 * @param size the number of points
+	 */
+	public PointColumns( final double[][] columns, final int size )
+	{
+		this.ndims = columns.length;
+		this.columns = columns;
+		this.size = size;
+	}
+
+	public int numDimensions()
+	{
+		return ndims;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @param d the dimension
+	 * @return the coordinates of all points along d, valid up to {@link #size()}
+	 */
+	public double[] column( final int d )
+	{
+		return columns[ d ];
+	}
+
+	public double get( final int i, final int d )
+	{
+		return columns[ d ][ i ];
+	}
+
+	public void set( final int i, final int d, final double value )
+	{
+		columns[ d ][ i ] = value;
+	}
+
+	/**
+	 * Copies the i-th point into a destination array, as many coordinates as
+	 * fit.
+	 *
+	 * @param i the point index
+	 * @param point the destination
+	 */
+	public void get( final int i, final double[] point )
+	{
+		for ( int d = 0; d < ndims && d < point.length; d++ )
+			point[ d ] = columns[ d ][ i ];
+	}
+
+	public double[] get( final int i )
+	{
+		final double[] point = new double[ ndims ];
+		get( i, point );
+		return point;
+	}
+
+	public void set( final int i, final double[] point )
+	{
+		for ( int d = 0; d < ndims; d++ )
+			columns[ d ][ i ] = point[ d ];
+	}
+
+	public void fill( final int i, final double value )
+	{
+		for ( int d = 0; d < ndims; d++ )
+			columns[ d ][ i ] = value;
+	}
+
+	public void add( final double[] point )
+	{
+		ensureCapacity( size + 1 );
+		size++;
+		set( size - 1, point );
+	}
+
+	/**
+	 * Inserts a point with all coordinates equal to the given value, shifting
+	 * the points at and after the index.
+	 *
+	 * @param i the index of the new point
+	 * @param value the coordinates of the new point
+	 */
+	public void insert( final int i, final double value )
+	{
+		ensureCapacity( size + 1 );
+		for ( int d = 0; d < ndims; d++ )
+			System.arraycopy( columns[ d ], i, columns[ d ], i + 1, size - i );
+
+		size++;
+		fill( i, value );
+	}
+
+	public void remove( final int i )
+	{
+		for ( int d = 0; d < ndims; d++ )
+			System.arraycopy( columns[ d ], i + 1, columns[ d ], i, size - i - 1 );
+
+		size--;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+	public void ensureCapacity( final int capacity )
+	{
+		if ( capacity <= columns[ 0 ].length )
+			return;
+
+		final int newCapacity = Math.max( capacity, columns[ 0 ].length + ( columns[ 0 ].length >> 1 ) );
+		for ( int d = 0; d < ndims; d++ )
+			columns[ d ] = Arrays.copyOf( columns[ d ], newCapacity );
+	}
+
+	/**
+	 * A list view of the points. Getting an element boxes a copy of the
+	 * point, changes to it have to be written back with
+	 * {@link List#set(int, Object)}.
+	 *
+	 * @return the list view
+	 */
+	public List< Double[] > asList()
+	{
+		return new AbstractList< Double[] >()
+		{
+			@Override
+			public Double[] get( final int i )
+			{
+				checkIndex( i );
+				final Double[] point = new Double[ ndims ];
+				for ( int d = 0; d < ndims; d++ )
+					point[ d ] = columns[ d ][ i ];
+
+				return point;
+			}
+
+			@Override
+			public Double[] set( final int i, final Double[] point )
+			{
+				final Double[] previous = get( i );
+				for ( int d = 0; d < ndims; d++ )
+					columns[ d ][ i ] = point[ d ];
+
+				return previous;
+			}
+
+			@Override
+			public int size()
+			{
+				return size;
+			}
+		};
+	}
+
+	private void checkIndex( final int i )
+	{
+		if ( i < 0 || i >= size )
+			throw new IndexOutOfBoundsException( "Index: " + i + ", Size: " + size );
+	}
+}
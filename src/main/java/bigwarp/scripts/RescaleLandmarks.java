@@ -23,7 +23,7 @@ package bigwarp.scripts;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.List;
 
 import bigwarp.landmarks.LandmarkTableModel;
 
@@ -75,10 +75,13 @@ public class RescaleLandmarks
 
 	public static void scaleLandmarks( LandmarkTableModel ltm, double[] scales, boolean isMoving )
 	{
-		ArrayList< Double[] > pts = ltm.getPoints( isMoving );
+		List< Double[] > pts = ltm.getPoints( isMoving );
 		for( int i = 0; i < ltm.getRowCount(); i++ )
 		{
-			scale( pts.get(i), scales );
+			// the points are copies, write them back
+			Double[] pt = pts.get( i );
+			scale( pt, scales );
+			pts.set( i, pt );
 		}
 	}
 	
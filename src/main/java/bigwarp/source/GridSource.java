@@ -31,10 +31,12 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
+import net.imglib2.Volatile;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 
-public class GridSource< T extends RealType< T >> implements Source< T >
+public class GridSource< T extends RealType< T > & NativeType< T > > implements Source< T >
 {
 	
 	public enum GRID_TYPE { MOD, LINE };
@@ -46,6 +48,8 @@ public class GridSource< T extends RealType< T >> implements Source< T >
 	protected final Interval interval;
 
 	protected final GridRealRandomAccessibleRealInterval<T> gridImg;
+
+	protected final WarpVisCache< T > cache;
 	
 	protected T type;
 	
@@ -57,21 +61,34 @@ public class GridSource< T extends RealType< T >> implements Source< T >
 		
 		interval = sourceData.sources.get( sourceData.targetSourceIndices[ 0 ] ).getSpimSource().getSource( 0, 0 );
 		gridImg = new GridRealRandomAccessibleRealInterval<T>( interval, t, warp );
+		cache = new WarpVisCache<>( gridImg, interval, t );
+	}
+
+	/**
+	 * @param volatileType the volatile value type
+	 * @return a source that shows the cached values of this source as they are computed
+	 */
+	public < V extends Volatile< T > & NumericType< V > > VolatileWarpVisSource< T, V > asVolatile( final V volatileType )
+	{
+		return new VolatileWarpVisSource<>( this, cache, volatileType );
 	}
 	
 	public void setGridSpacing( double spacing )
 	{
 		gridImg.ra.setGridSpacing( spacing );
+		cache.invalidate();
 	}
 	
 	public void setGridWidth( double width )
 	{
 		gridImg.ra.setGridWidth( width );
+		cache.invalidate();
 	}
 
 	public void setWarp( RealTransform warp )
 	{
 		gridImg.ra.warp = warp;
+		cache.invalidate();
 	}
 	
 	@Override
@@ -83,26 +100,29 @@ public class GridSource< T extends RealType< T >> implements Source< T >
 	public void setMethod( GRID_TYPE method )
 	{
 		gridImg.ra.setMethod( method );
+		cache.invalidate();
 	}
 
 	@Override
 	public RandomAccessibleInterval<T> getSource( int t, int level ) 
 	{
-		return Views.interval( Views.raster( 
-				getInterpolatedSource( t, level, Interpolation.NEARESTNEIGHBOR ) ), 
-				interval );
+		return cache.getImage( level );
 	}
 
 	@Override
 	public RealRandomAccessible<T> getInterpolatedSource( int t, int level, Interpolation method ) 
 	{
-		return gridImg;
+		return WarpVisCache.interpolate( getSource( t, level ), method );
 	}
 
 	@Override
 	public void getSourceTransform( int t, int level, AffineTransform3D transform )
 	{
-		sourceData.sources.get( 0 ).getSpimSource().getSourceTransform( t, level, transform );
+		// the levels of this source are relative to the full resolution of the first source
+		final AffineTransform3D levelTransform = new AffineTransform3D();
+		cache.getLevelTransform( level, levelTransform );
+		sourceData.sources.get( 0 ).getSpimSource().getSourceTransform( t, 0, transform );
+		transform.concatenate( levelTransform );
 	}
 
 	@Override
@@ -126,7 +146,7 @@ public class GridSource< T extends RealType< T >> implements Source< T >
 	@Override
 	public int getNumMipmapLevels() 
 	{
-		return 1;
+		return cache.getNumMipmapLevels();
 	}
 	
 }
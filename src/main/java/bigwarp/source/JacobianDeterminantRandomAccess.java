@@ -24,6 +24,8 @@ package bigwarp.source;
 import org.ejml.data.DenseMatrix64F;
 import org.ejml.ops.CommonOps;
 
+import bigwarp.transforms.BigWarpTransform;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import net.imglib2.AbstractRealInterval;
 import net.imglib2.AbstractRealLocalizable;
 import net.imglib2.Interval;
@@ -34,16 +36,24 @@ import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessibleRealInterval;
 import net.imglib2.realtransform.AffineTransform;
 import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
 import net.imglib2.realtransform.inverse.DifferentiableRealTransform;
 import net.imglib2.type.numeric.RealType;
 
 public class JacobianDeterminantRandomAccess< T extends RealType<T>> extends AbstractRealLocalizable implements RealRandomAccess< T >
 {
 	protected DifferentiableRealTransform transform;
+
+	// the spline that the transform evaluates, or null if it is not a thin plate spline
+	protected ThinPlateSplineJacobian tpsJacobian;
 	
 	final private T value;
 	final double[] warpRes;
 
+	// scratch space for the position and the jacobian
+	final private double[] x;
+	final private double[] jac;
+
 	protected JacobianDeterminantRandomAccess( double[] dimensions )
 	{
 		this( dimensions, null, null );
@@ -55,6 +65,19 @@ public class JacobianDeterminantRandomAccess< T extends RealType<T>> extends Abs
 		setTransform( transform );
 		this.value = value;
 		warpRes = new double[ numDimensions() ]; 
+		x = new double[ numDimensions() ];
+		jac = new double[ 9 ];
+	}
+
+	private JacobianDeterminantRandomAccess( final JacobianDeterminantRandomAccess< T > other )
+	{
+		super( other.numDimensions() );
+		transform = other.transform == null ? null : other.transform.copy();
+		tpsJacobian = other.tpsJacobian;
+		value = other.value.copy();
+		warpRes = new double[ numDimensions() ];
+		x = new double[ numDimensions() ];
+		jac = new double[ 9 ];
 	}
 	
 	public void setTransform( final DifferentiableRealTransform transform )
@@ -62,35 +85,70 @@ public class JacobianDeterminantRandomAccess< T extends RealType<T>> extends Abs
 		if( transform != null)
 		{
 			this.transform = transform.copy();
+			tpsJacobian = ThinPlateSplineJacobian.create( transform );
 		}
 	}
 
+	/**
+	 * Returns the jacobian determinant at the current position.
+	 * <p>
+	 * The returned value is reused by subsequent calls, use a copy of this
+	 * accessor for each thread.
+	 */
 	@Override
 	public T get() 
 	{
-		// copy value here so this is thread safe
-		T out = value.copy();
 		if( transform == null )
 		{
-			out.setZero();
-			return out;
+			value.setZero();
+			return value;
 		}
 
 		// compute the jacobian determinant at this point
-		double[] x = new double[ numDimensions() ];
 		localize( x );
-		AffineTransform jacobian = transform.jacobian( x );
-		DenseMatrix64F jacMtx = new DenseMatrix64F();
-		jacMtx.data = jacobian.getRowPackedCopy(); 
-		out.setReal( CommonOps.det( jacMtx ) );
+		if ( tpsJacobian != null && x.length >= tpsJacobian.ndims )
+			value.setReal( tpsJacobian.determinant( x, jac ) );
+		else
+			value.setReal( determinant( transform.jacobian( x ) ) );
+
+		return value;
+	}
+
+	/**
+	 * @param jacobian a jacobian
+	 * @return its determinant
+	 */
+	protected static double determinant( final AffineTransform jacobian )
+	{
+		final int nd = jacobian.numDimensions();
+		if ( nd == 2 )
+			return jacobian.get( 0, 0 ) * jacobian.get( 1, 1 ) - jacobian.get( 0, 1 ) * jacobian.get( 1, 0 );
+		else if ( nd == 3 )
+			return det3( jacobian.get( 0, 0 ), jacobian.get( 0, 1 ), jacobian.get( 0, 2 ),
+					jacobian.get( 1, 0 ), jacobian.get( 1, 1 ), jacobian.get( 1, 2 ),
+					jacobian.get( 2, 0 ), jacobian.get( 2, 1 ), jacobian.get( 2, 2 ) );
+
+		final DenseMatrix64F jacMtx = new DenseMatrix64F( nd, nd );
+		for ( int i = 0; i < nd; i++ )
+			for ( int j = 0; j < nd; j++ )
+				jacMtx.set( i, j, jacobian.get( i, j ) );
+
+		return CommonOps.det( jacMtx );
+	}
 
-		return out;
+	private static double det3(
+			final double m00, final double m01, final double m02,
+			final double m10, final double m11, final double m12,
+			final double m20, final double m21, final double m22 )
+	{
+		return m00 * ( m11 * m22 - m12 * m21 )
+				- m01 * ( m10 * m22 - m12 * m20 )
+				+ m02 * ( m10 * m21 - m11 * m20 );
 	}
 
 	public RealRandomAccess<T> copy() 
 	{
-		return new JacobianDeterminantRandomAccess< T >( new double[ position.length ], value.copy(), 
-				transform );
+		return new JacobianDeterminantRandomAccess< T >( this );
 	}
 
 	public RealRandomAccess<T> copyRandomAccess() 
@@ -263,6 +321,161 @@ public class JacobianDeterminantRandomAccess< T extends RealType<T>> extends Abs
 		position[ d ] = p;
 	}
 	
+	/**
+	 * The parameters of a 2d or 3d thin plate spline, for evaluating its
+	 * jacobian in closed form without allocating. Immutable, so can be shared
+	 * between accessors.
+	 */
+	protected static class ThinPlateSplineJacobian
+	{
+		final int ndims;
+
+		final int numLandmarks;
+
+		// landmarks and knot weights, one array per dimension
+		final double[][] p;
+
+		final double[][] w;
+
+		// row packed, including the identity
+		final double[] affine;
+
+		ThinPlateSplineJacobian( final ThinPlateR2LogRSplineKernelTransform kernel )
+		{
+			final double[][] src = kernel.getSourceLandmarks();
+			final double[] weights = kernel.getKnotWeights();
+			ndims = src.length;
+			numLandmarks = kernel.getNumLandmarks();
+
+			p = new double[ ndims ][];
+			w = new double[ ndims ][ numLandmarks ];
+			for ( int d = 0; d < ndims; d++ )
+			{
+				p[ d ] = src[ d ].clone();
+				for ( int l = 0; l < numLandmarks; l++ )
+					w[ d ][ l ] = weights[ l * ndims + d ];
+			}
+
+			affine = new double[ ndims * ndims ];
+			final double[][] a = kernel.getAffine();
+			for ( int i = 0; i < ndims; i++ )
+				for ( int j = 0; j < ndims; j++ )
+					affine[ i * ndims + j ] = ( i == j ? 1 : 0 ) + ( a != null ? a[ i ][ j ] : 0 );
+		}
+
+		/**
+		 * Returns the 2d or 3d thin plate spline that the given transform
+		 * evaluates, or null.
+		 *
+		 * @param transform the transform
+		 * @return the spline or null
+		 */
+		static ThinPlateSplineJacobian create( final RealTransform transform )
+		{
+			if ( !( transform instanceof ThinplateSplineTransform ) )
+				return null;
+
+			final ThinPlateR2LogRSplineKernelTransform kernel = BigWarpTransform.getKernelTransform( ( ThinplateSplineTransform ) transform );
+			if ( kernel == null || kernel.getSourceLandmarks().length < 2 || kernel.getSourceLandmarks().length > 3 )
+				return null;
+
+			return new ThinPlateSplineJacobian( kernel );
+		}
+
+		/**
+		 * Computes the jacobian at a point. Since the kernel r^2 log r has
+		 * gradient (x - p) (2 log r + 1), the element (i,j) is the affine part
+		 * plus the sum over landmarks of w_i (x_j - p_j) (log r^2 + 1).
+		 *
+		 * @param x the point, only the first ndims elements are used
+		 * @param jac receives the row packed ndims x ndims jacobian
+		 */
+		void jacobian( final double[] x, final double[] jac )
+		{
+			System.arraycopy( affine, 0, jac, 0, ndims * ndims );
+			if ( ndims == 2 )
+			{
+				final double x0 = x[ 0 ], x1 = x[ 1 ];
+				final double[] p0 = p[ 0 ], p1 = p[ 1 ];
+				final double[] w0 = w[ 0 ], w1 = w[ 1 ];
+				double j00 = 0, j01 = 0, j10 = 0, j11 = 0;
+				for ( int l = 0; l < numLandmarks; l++ )
+				{
+					final double d0 = x0 - p0[ l ];
+					final double d1 = x1 - p1[ l ];
+					final double r2 = d0 * d0 + d1 * d1;
+					if ( r2 > 0 )
+					{
+						final double g = Math.log( r2 ) + 1;
+						final double g0 = g * d0;
+						final double g1 = g * d1;
+						j00 += w0[ l ] * g0;
+						j01 += w0[ l ] * g1;
+						j10 += w1[ l ] * g0;
+						j11 += w1[ l ] * g1;
+					}
+				}
+				jac[ 0 ] += j00;
+				jac[ 1 ] += j01;
+				jac[ 2 ] += j10;
+				jac[ 3 ] += j11;
+			}
+			else
+			{
+				final double x0 = x[ 0 ], x1 = x[ 1 ], x2 = x[ 2 ];
+				final double[] p0 = p[ 0 ], p1 = p[ 1 ], p2 = p[ 2 ];
+				final double[] w0 = w[ 0 ], w1 = w[ 1 ], w2 = w[ 2 ];
+				double j00 = 0, j01 = 0, j02 = 0, j10 = 0, j11 = 0, j12 = 0, j20 = 0, j21 = 0, j22 = 0;
+				for ( int l = 0; l < numLandmarks; l++ )
+				{
+					final double d0 = x0 - p0[ l ];
+					final double d1 = x1 - p1[ l ];
+					final double d2 = x2 - p2[ l ];
+					final double r2 = d0 * d0 + d1 * d1 + d2 * d2;
+					if ( r2 > 0 )
+					{
+						final double g = Math.log( r2 ) + 1;
+						final double g0 = g * d0;
+						final double g1 = g * d1;
+						final double g2 = g * d2;
+						j00 += w0[ l ] * g0;
+						j01 += w0[ l ] * g1;
+						j02 += w0[ l ] * g2;
+						j10 += w1[ l ] * g0;
+						j11 += w1[ l ] * g1;
+						j12 += w1[ l ] * g2;
+						j20 += w2[ l ] * g0;
+						j21 += w2[ l ] * g1;
+						j22 += w2[ l ] * g2;
+					}
+				}
+				jac[ 0 ] += j00;
+				jac[ 1 ] += j01;
+				jac[ 2 ] += j02;
+				jac[ 3 ] += j10;
+				jac[ 4 ] += j11;
+				jac[ 5 ] += j12;
+				jac[ 6 ] += j20;
+				jac[ 7 ] += j21;
+				jac[ 8 ] += j22;
+			}
+		}
+
+		/**
+		 * @param x the point, only the first ndims elements are used
+		 * @param jac scratch space for at least ndims x ndims elements
+		 * @return the jacobian determinant at the point
+		 */
+		double determinant( final double[] x, final double[] jac )
+		{
+			jacobian( x, jac );
+			if ( ndims == 2 )
+				return jac[ 0 ] * jac[ 3 ] - jac[ 1 ] * jac[ 2 ];
+			else
+				return det3( jac[ 0 ], jac[ 1 ], jac[ 2 ], jac[ 3 ], jac[ 4 ], jac[ 5 ], jac[ 6 ], jac[ 7 ], jac[ 8 ] );
+		}
+	}
+
 	public static class JacobianDeterminantRandomAccessibleInterval<T extends RealType<T>> extends AbstractRealInterval implements RealRandomAccessibleRealInterval<T> 
 	{
 		protected final JacobianDeterminantRandomAccess< T > ra;
@@ -39,10 +39,13 @@ import net.imglib2.RealRandomAccessible;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.inverse.DifferentiableRealTransform;
+import net.imglib2.Volatile;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
 
-public class JacobianDeterminantSource< T extends RealType< T >> implements Source< T >
+public class JacobianDeterminantSource< T extends RealType< T > & NativeType< T > > implements Source< T >
 {
 	protected final String name;
 	
@@ -51,6 +54,8 @@ public class JacobianDeterminantSource< T extends RealType< T >> implements Sour
 	protected final Interval interval;
 	
 	protected final JacobianDeterminantRandomAccess.JacobianDeterminantRandomAccessibleInterval< T > jacDetImg;
+
+	protected final WarpVisCache< T > cache;
 	
 	protected final VoxelDimensions voxDims;
 
@@ -71,9 +76,23 @@ public class JacobianDeterminantSource< T extends RealType< T >> implements Sour
 		if( srcVoxDims != null )
 			unit = srcVoxDims.unit();
 
-		voxDims = new FinalVoxelDimensions( unit, 1.0, 1.0, 1.0 );
+		voxDims = srcVoxDims != null ? srcVoxDims : new FinalVoxelDimensions( unit, 1.0, 1.0, 1.0 );
 
 		jacDetImg = new JacobianDeterminantRandomAccess.JacobianDeterminantRandomAccessibleInterval< T >( interval, t, null );
+
+		// the function is defined in world coordinates, sample it at the voxels of the target
+		final AffineTransform3D targetTransform = new AffineTransform3D();
+		sourceData.sources.get( sourceData.targetSourceIndices[ 0 ] ).getSpimSource().getSourceTransform( 0, 0, targetTransform );
+		cache = new WarpVisCache<>( jacDetImg, interval, t, targetTransform );
+	}
+
+	/**
+	 * @param volatileType the volatile value type
+	 * @return a source that shows the cached values of this source as they are computed
+	 */
+	public < V extends Volatile< T > & NumericType< V > > VolatileWarpVisSource< T, V > asVolatile( final V volatileType )
+	{
+		return new VolatileWarpVisSource<>( this, cache, volatileType );
 	}
 	
 	public double getMax( LandmarkTableModel lm )
@@ -100,6 +119,7 @@ public class JacobianDeterminantSource< T extends RealType< T >> implements Sour
 	public void setTransform( final DifferentiableRealTransform transform )
 	{
 		jacDetImg.setTransform( transform );
+		cache.invalidate();
 	}
 	
 	public void debug( double[] pt )
@@ -163,21 +183,19 @@ public class JacobianDeterminantSource< T extends RealType< T >> implements Sour
 	@Override
 	public RandomAccessibleInterval<T> getSource( int t, int level ) 
 	{
-		return Views.interval( Views.raster( 
-				getInterpolatedSource( t, level, Interpolation.NEARESTNEIGHBOR ) ), 
-				interval );
+		return cache.getImage( level );
 	}
 
 	@Override
 	public RealRandomAccessible<T> getInterpolatedSource( int t, int level, Interpolation method ) 
 	{
-		return jacDetImg;
+		return WarpVisCache.interpolate( getSource( t, level ), method );
 	}
 
 	@Override
 	public void getSourceTransform( int t, int level, AffineTransform3D transform )
 	{
-		transform.identity();
+		cache.getSourceTransform( level, transform );
 	}
 
 	@Override
@@ -201,7 +219,7 @@ public class JacobianDeterminantSource< T extends RealType< T >> implements Sour
 	@Override
 	public int getNumMipmapLevels() 
 	{
-		return 1;
+		return cache.getNumMipmapLevels();
 	}
 	
 }
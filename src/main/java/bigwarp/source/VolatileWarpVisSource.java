@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.source;
+
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * The volatile version of a warp visualization source, showing the values of
+ * its {@link WarpVisCache} as they are computed.
+ *
+ * @param <T> the value type
+ * @param <V> the volatile value type
+ */
+public class VolatileWarpVisSource< T extends RealType< T > & NativeType< T >, V extends Volatile< T > & NumericType< V > > implements Source< V >
+{
+	protected final Source< T > source;
+
+	protected final WarpVisCache< T > cache;
+
+	protected final V type;
+
+	public VolatileWarpVisSource( final Source< T > source, final WarpVisCache< T > cache, final V type )
+	{
+		this.source = source;
+		this.cache = cache;
+		this.type = type;
+	}
+
+	@Override
+	public boolean isPresent( int t )
+	{
+		return source.isPresent( t );
+	}
+
+	@Override
+	public RandomAccessibleInterval< V > getSource( int t, int level )
+	{
+		return cache.getVolatileImage( level );
+	}
+
+	@Override
+	public RealRandomAccessible< V > getInterpolatedSource( int t, int level, Interpolation method )
+	{
+		return WarpVisCache.interpolate( getSource( t, level ), method );
+	}
+
+	@Override
+	public void getSourceTransform( int t, int level, AffineTransform3D transform )
+	{
+		source.getSourceTransform( t, level, transform );
+	}
+
+	@Override
+	public V getType()
+	{
+		return type;
+	}
+
+	@Override
+	public String getName()
+	{
+		return source.getName();
+	}
+
+	@Override
+	public VoxelDimensions getVoxelDimensions()
+	{
+		return source.getVoxelDimensions();
+	}
+
+	@Override
+	public int getNumMipmapLevels()
+	{
+		return cache.getNumMipmapLevels();
+	}
+}
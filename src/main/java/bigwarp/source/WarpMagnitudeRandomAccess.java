@@ -21,13 +21,20 @@
  */
 package bigwarp.source;
 
+import bigwarp.transforms.BigWarpTransform;
+import bigwarp.transforms.WrappedCoordinateTransform;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import mpicbg.models.AbstractModel;
 import mpicbg.models.CoordinateTransform;
 import net.imglib2.AbstractRealLocalizable;
 import net.imglib2.Localizable;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealRandomAccess;
+import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.Wrapped2DTransformAs3D;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
 import net.imglib2.type.numeric.RealType;
 
 public class WarpMagnitudeRandomAccess< T extends RealType<T>> extends AbstractRealLocalizable implements RealRandomAccess< T >
@@ -36,10 +43,15 @@ public class WarpMagnitudeRandomAccess< T extends RealType<T>> extends AbstractR
 	RealTransform warp;
 	RealTransform baseline;
 	
+	// the difference of warp and baseline, if the warp is a thin plate spline
+	// and the baseline is affine, null otherwise
+	ThinPlateSplineResidual residual;
+
 	T value;
 	
 	final double[] warpRes;
 	final double[] baseRes;
+	final double[] mypt;
 
 	protected WarpMagnitudeRandomAccess( double[] dimensions )
 	{
@@ -61,20 +73,52 @@ public class WarpMagnitudeRandomAccess< T extends RealType<T>> extends AbstractR
 		this.value = value;
 		warpRes = new double[ numDimensions() ]; 
 		baseRes = new double[ numDimensions() ]; 
+		mypt = new double[ numDimensions() ];
+		updateResidual();
 	}
 
+	/**
+	 * Sets the warp and baseline transforms to compare.
+	 *
+	 * @param warp the warp
+	 * @param baseline the baseline
+	 */
+	public void setTransforms( final RealTransform warp, final RealTransform baseline )
+	{
+		this.warp = warp;
+		this.baseline = baseline;
+		updateResidual();
+	}
+
+	private void updateResidual()
+	{
+		residual = ThinPlateSplineResidual.create( warp, baseline );
+		if ( residual != null && residual.ndims > numDimensions() )
+			residual = null;
+	}
+
+	/**
+	 * Returns the distance between the warped and baseline transformed
+	 * current position.
+	 * <p>
+	 * The returned value is reused by subsequent calls, use a copy of this
+	 * accessor for each thread.
+	 */
 	@Override
 	public T get() 
 	{
-		T out = value.copy();
 		if( warp == null || baseline == null )
 		{
-			out.setZero();
-			return out;
+			value.setZero();
+			return value;
 		}
-					
-		double[] mypt = new double[ this.numDimensions() ];
+
 		this.localize( mypt );
+		if ( residual != null )
+		{
+			value.setReal( residual.magnitude( mypt ) );
+			return value;
+		}
 
 		// apply the warp
 		warp.apply( mypt, warpRes );
@@ -86,9 +130,9 @@ public class WarpMagnitudeRandomAccess< T extends RealType<T>> extends AbstractR
 		for( int d = 0; d < warpRes.length; d++ )
 			dist += ( warpRes[ d ] - baseRes[ d ] ) * ( warpRes[ d ] - baseRes[ d ] );  
 
-		out.setReal( Math.sqrt( dist ));
+		value.setReal( Math.sqrt( dist ));
 
-		return out;
+		return value;
 	}
 	
 	private boolean withinRad( double[] pt1, double[] pt2, double rad )
@@ -103,8 +147,13 @@ public class WarpMagnitudeRandomAccess< T extends RealType<T>> extends AbstractR
 
 	public RealRandomAccess<T> copy() 
 	{
-		return new WarpMagnitudeRandomAccess< T >( new double[ position.length ], value.copy(), 
-				warp, baseline );
+		final WarpMagnitudeRandomAccess< T > copy = new WarpMagnitudeRandomAccess< T >(
+				new double[ position.length ], value.copy(), null, null );
+		// the residual is immutable and shared between copies
+		copy.warp = warp;
+		copy.baseline = baseline;
+		copy.residual = residual;
+		return copy;
 	}
 
 	public RealRandomAccess<T> copyRandomAccess() 
@@ -277,4 +326,152 @@ public class WarpMagnitudeRandomAccess< T extends RealType<T>> extends AbstractR
 		position[ d ] = p;
 	}
 
+	/**
+	 * The difference between a thin plate spline and an affine transform,
+	 * evaluated without scratch space. This is the kernel sum of the spline
+	 * plus the difference of the affine parts, which are combined once.
+	 * Immutable.
+	 */
+	protected static class ThinPlateSplineResidual
+	{
+		final int ndims;
+
+		final int numLandmarks;
+
+		// landmarks and knot weights, one array per dimension
+		final double[][] p;
+
+		final double[][] w;
+
+		// row packed ndims x ( ndims + 1 ), the affine part of the spline
+		// including the identity minus the baseline
+		final double[] affine;
+
+		ThinPlateSplineResidual( final ThinPlateR2LogRSplineKernelTransform kernel, final AffineGet baseline )
+		{
+			final double[][] src = kernel.getSourceLandmarks();
+			final double[] weights = kernel.getKnotWeights();
+			ndims = src.length;
+			numLandmarks = kernel.getNumLandmarks();
+
+			p = new double[ ndims ][];
+			w = new double[ ndims ][ numLandmarks ];
+			for ( int d = 0; d < ndims; d++ )
+			{
+				p[ d ] = src[ d ].clone();
+				for ( int l = 0; l < numLandmarks; l++ )
+					w[ d ][ l ] = weights[ l * ndims + d ];
+			}
+
+			final double[][] a = kernel.getAffine();
+			final double[] t = kernel.getTranslation();
+			affine = new double[ ndims * ( ndims + 1 ) ];
+			for ( int i = 0; i < ndims; i++ )
+			{
+				for ( int j = 0; j < ndims; j++ )
+					affine[ i * ( ndims + 1 ) + j ] = ( i == j ? 1 : 0 ) + ( a != null ? a[ i ][ j ] : 0 ) - baseline.get( i, j );
+
+				affine[ i * ( ndims + 1 ) + ndims ] = ( t != null ? t[ i ] : 0 ) - baseline.get( i, ndims );
+			}
+		}
+
+		/**
+		 * Returns the difference of a warp and a baseline transform, if the
+		 * warp evaluates a thin plate spline and the baseline is affine.
+		 *
+		 * @param warp the warp
+		 * @param baseline the baseline
+		 * @return the difference, or null
+		 */
+		static ThinPlateSplineResidual create( final RealTransform warp, final RealTransform baseline )
+		{
+			final ThinplateSplineTransform tps = thinPlateSpline( warp );
+			final AffineGet affine = affine( baseline );
+			if ( tps == null || affine == null )
+				return null;
+
+			final ThinPlateR2LogRSplineKernelTransform kernel = BigWarpTransform.getKernelTransform( tps );
+			if ( kernel == null || kernel.getSourceLandmarks().length != affine.numDimensions() )
+				return null;
+
+			return new ThinPlateSplineResidual( kernel, affine );
+		}
+
+		private static ThinplateSplineTransform thinPlateSpline( final RealTransform warp )
+		{
+			if ( warp instanceof ThinplateSplineTransform )
+				return ( ThinplateSplineTransform ) warp;
+			else if ( warp instanceof WrappedIterativeInvertibleRealTransform )
+				return thinPlateSpline( ( ( WrappedIterativeInvertibleRealTransform< ? > ) warp ).getTransform() );
+			else if ( warp instanceof Wrapped2DTransformAs3D )
+				return thinPlateSpline( ( ( Wrapped2DTransformAs3D ) warp ).getTransform() );
+
+			return null;
+		}
+
+		private static AffineGet affine( final RealTransform baseline )
+		{
+			if ( baseline instanceof AffineGet )
+				return ( AffineGet ) baseline;
+			else if ( baseline instanceof WrappedCoordinateTransform && ( ( WrappedCoordinateTransform ) baseline ).getAffine() instanceof AffineGet )
+				return ( AffineGet ) ( ( WrappedCoordinateTransform ) baseline ).getAffine();
+
+			return null;
+		}
+
+		/**
+		 * @param x the point, only the first ndims elements are used
+		 * @return the distance between the spline and the baseline at the point
+		 */
+		double magnitude( final double[] x )
+		{
+			if ( ndims == 2 )
+			{
+				final double x0 = x[ 0 ], x1 = x[ 1 ];
+				final double[] p0 = p[ 0 ], p1 = p[ 1 ];
+				final double[] w0 = w[ 0 ], w1 = w[ 1 ];
+				double v0 = affine[ 0 ] * x0 + affine[ 1 ] * x1 + affine[ 2 ];
+				double v1 = affine[ 3 ] * x0 + affine[ 4 ] * x1 + affine[ 5 ];
+				for ( int l = 0; l < numLandmarks; l++ )
+				{
+					final double d0 = x0 - p0[ l ];
+					final double d1 = x1 - p1[ l ];
+					final double r2 = d0 * d0 + d1 * d1;
+					if ( r2 > 0 )
+					{
+						// r^2 log r
+						final double u = 0.5 * r2 * Math.log( r2 );
+						v0 += w0[ l ] * u;
+						v1 += w1[ l ] * u;
+					}
+				}
+				return Math.sqrt( v0 * v0 + v1 * v1 );
+			}
+			else
+			{
+				final double x0 = x[ 0 ], x1 = x[ 1 ], x2 = x[ 2 ];
+				final double[] p0 = p[ 0 ], p1 = p[ 1 ], p2 = p[ 2 ];
+				final double[] w0 = w[ 0 ], w1 = w[ 1 ], w2 = w[ 2 ];
+				double v0 = affine[ 0 ] * x0 + affine[ 1 ] * x1 + affine[ 2 ] * x2 + affine[ 3 ];
+				double v1 = affine[ 4 ] * x0 + affine[ 5 ] * x1 + affine[ 6 ] * x2 + affine[ 7 ];
+				double v2 = affine[ 8 ] * x0 + affine[ 9 ] * x1 + affine[ 10 ] * x2 + affine[ 11 ];
+				for ( int l = 0; l < numLandmarks; l++ )
+				{
+					final double d0 = x0 - p0[ l ];
+					final double d1 = x1 - p1[ l ];
+					final double d2 = x2 - p2[ l ];
+					final double r2 = d0 * d0 + d1 * d1 + d2 * d2;
+					if ( r2 > 0 )
+					{
+						final double u = 0.5 * r2 * Math.log( r2 );
+						v0 += w0[ l ] * u;
+						v1 += w1[ l ] * u;
+						v2 += w2[ l ] * u;
+					}
+				}
+				return Math.sqrt( v0 * v0 + v1 * v1 + v2 * v2 );
+			}
+		}
+	}
+
 }
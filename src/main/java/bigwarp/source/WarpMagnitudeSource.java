@@ -38,10 +38,13 @@ import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
+import net.imglib2.Volatile;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
 
-public class WarpMagnitudeSource< T extends RealType< T >> implements Source< T >
+public class WarpMagnitudeSource< T extends RealType< T > & NativeType< T > > implements Source< T >
 {
 	protected final String name;
 	
@@ -50,6 +53,8 @@ public class WarpMagnitudeSource< T extends RealType< T >> implements Source< T
 	protected final Interval interval;
 	
 	protected final WarpMagnitudeRandomAccessibleInterval<T> warpMagImg;
+
+	protected final WarpVisCache< T > cache;
 	
 	protected final VoxelDimensions voxDims;
 
@@ -68,8 +73,22 @@ public class WarpMagnitudeSource< T extends RealType< T >> implements Source< T
 		if( srcVoxDims != null )
 			unit = srcVoxDims.unit();
 
-		voxDims = new FinalVoxelDimensions( unit, 1.0, 1.0, 1.0 );
+		voxDims = srcVoxDims != null ? srcVoxDims : new FinalVoxelDimensions( unit, 1.0, 1.0, 1.0 );
 		warpMagImg = new WarpMagnitudeRandomAccessibleInterval<T>( interval, t, null, null );
+
+		// the function is defined in world coordinates, sample it at the voxels of the target
+		final AffineTransform3D targetTransform = new AffineTransform3D();
+		sourceData.sources.get( sourceData.targetSourceIndices[ 0 ] ).getSpimSource().getSourceTransform( 0, 0, targetTransform );
+		cache = new WarpVisCache<>( warpMagImg, interval, t, targetTransform );
+	}
+
+	/**
+	 * @param volatileType the volatile value type
+	 * @return a source that shows the cached values of this source as they are computed
+	 */
+	public < V extends Volatile< T > & NumericType< V > > VolatileWarpVisSource< T, V > asVolatile( final V volatileType )
+	{
+		return new VolatileWarpVisSource<>( this, cache, volatileType );
 	}
 	
 	public double getMax( LandmarkTableModel lm )
@@ -95,12 +114,14 @@ public class WarpMagnitudeSource< T extends RealType< T >> implements Source< T
 	
 	public void setWarp( RealTransform warp )
 	{
-		warpMagImg.ra.warp = warp;
+		warpMagImg.ra.setTransforms( warp, warpMagImg.ra.baseline );
+		cache.invalidate();
 	}
 	
 	public void setBaseline( RealTransform baseline )
 	{
-		warpMagImg.ra.baseline = baseline;
+		warpMagImg.ra.setTransforms( warpMagImg.ra.warp, baseline );
+		cache.invalidate();
 	}
 	
 	public RealTransform getBaseline()
@@ -171,21 +192,19 @@ public class WarpMagnitudeSource< T extends RealType< T >> implements Source< T
 	@Override
 	public RandomAccessibleInterval<T> getSource( int t, int level ) 
 	{
-		return Views.interval( Views.raster( 
-				getInterpolatedSource( t, level, Interpolation.NEARESTNEIGHBOR ) ), 
-				interval );
+		return cache.getImage( level );
 	}
 
 	@Override
 	public RealRandomAccessible<T> getInterpolatedSource( int t, int level, Interpolation method ) 
 	{
-		return warpMagImg;
+		return WarpVisCache.interpolate( getSource( t, level ), method );
 	}
 
 	@Override
 	public void getSourceTransform( int t, int level, AffineTransform3D transform )
 	{
-		transform.identity();
+		cache.getSourceTransform( level, transform );
 	}
 
 	@Override
@@ -209,7 +228,7 @@ public class WarpMagnitudeSource< T extends RealType< T >> implements Source< T
 	@Override
 	public int getNumMipmapLevels() 
 	{
-		return 1;
+		return cache.getNumMipmapLevels();
 	}
 	
 }
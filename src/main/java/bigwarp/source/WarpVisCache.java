@@ -0,0 +1,305 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.source;
+
+import java.util.Arrays;
+
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.Interpolation;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Caches a function that is expensive to evaluate, such as a property of the
+ * current transform, in lazily computed cell images at several resolutions.
+ * <p>
+ * Level 0 holds the function at the integer positions of an interval, mapped
+ * through an optional sample transform (e.g. the source transform of the image
+ * whose voxels the cache should match), each further level every second position of the previous one, along every
+ * dimension that is still longer than {@link #MIN_LEVEL_SIZE} (so thin or
+ * anisotropic volumes are not downsampled along their short dimensions). Levels
+ * are added until the longest dimension is that short, and each level is
+ * sampled directly, so rendering a zoomed out view costs in proportion to the
+ * number of screen pixels. Cells
+ * are computed when first requested, and all levels are discarded by
+ * {@link #invalidate()} when the function changes, so the renderer evaluates
+ * the function once per voxel rather than once per screen pixel and frame.
+ * Volatile views of the levels are computed by a shared queue, for
+ * progressive display. Cells of discarded levels that are still queued when
+ * the function changes are skipped rather than computed.
+ *
+ * @param <T> the value type
+ */
+public class WarpVisCache< T extends RealType< T > & NativeType< T > >
+{
+	/**
+	 * Dimensions are downsampled only while they are longer than this.
+	 */
+	public static final long MIN_LEVEL_SIZE = 64;
+
+	private static final int MAX_LEVELS = 16;
+
+	private static SharedQueue queue;
+
+	private final RealRandomAccessible< T > function;
+
+	private final Interval interval;
+
+	private final AffineTransform3D sampleTransform;
+
+	private final T type;
+
+	private final int numLevels;
+
+	private final long[][] factors;
+
+	private volatile long generation = 0;
+
+	private CachedCellImg< T, ? >[] levels;
+
+	private RandomAccessibleInterval< ? extends Volatile< T > >[] volatileLevels;
+
+	/**
+	 * @param function the function, a {@link RealRandomAccessible#realRandomAccess()} is taken per cell
+	 * @param interval positions at which to evaluate the function at level 0
+	 * @param type the value type
+	 */
+	public WarpVisCache( final RealRandomAccessible< T > function, final Interval interval, final T type )
+	{
+		this( function, interval, type, new AffineTransform3D() );
+	}
+
+	/**
+	 * @param function the function, a {@link RealRandomAccessible#realRandomAccess()} is taken per cell
+	 * @param interval voxels at which to evaluate the function at level 0
+	 * @param type the value type
+	 * @param sampleTransform the transform from voxels to the coordinates of the function
+	 */
+	public WarpVisCache( final RealRandomAccessible< T > function, final Interval interval, final T type,
+			final AffineTransform3D sampleTransform )
+	{
+		this.function = function;
+		this.interval = new FinalInterval( interval );
+		this.sampleTransform = sampleTransform.copy();
+		this.type = type.createVariable();
+
+		// the number of times each dimension is halved
+		final int nd = interval.numDimensions();
+		final int[] maxHalvings = new int[ nd ];
+		int n = 1;
+		for ( int d = 0; d < nd; d++ )
+		{
+			while ( maxHalvings[ d ] < MAX_LEVELS - 1 && ( interval.dimension( d ) >> maxHalvings[ d ] ) > MIN_LEVEL_SIZE )
+				maxHalvings[ d ]++;
+
+			n = Math.max( n, maxHalvings[ d ] + 1 );
+		}
+
+		numLevels = n;
+		factors = new long[ numLevels ][ nd ];
+		for ( int level = 0; level < numLevels; level++ )
+			for ( int d = 0; d < nd; d++ )
+				factors[ level ][ d ] = 1L << Math.min( level, maxHalvings[ d ] );
+
+		invalidate();
+	}
+
+	/**
+	 * Discards all computed values, call after the function changed.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public synchronized void invalidate()
+	{
+		generation++;
+		levels = new CachedCellImg[ numLevels ];
+		volatileLevels = new RandomAccessibleInterval[ numLevels ];
+	}
+
+	/**
+	 * @return the number of changes of the function so far
+	 */
+	public long getGeneration()
+	{
+		return generation;
+	}
+
+	public int getNumMipmapLevels()
+	{
+		return numLevels;
+	}
+
+	/**
+	 * @param level the level
+	 * @return the downsampling factors of the level relative to level 0
+	 */
+	public long[] getDownsamplingFactors( final int level )
+	{
+		return factors[ level ].clone();
+	}
+
+	/**
+	 * Returns the image of a level, for the current function.
+	 *
+	 * @param level the level
+	 * @return the image
+	 */
+	public synchronized RandomAccessibleInterval< T > getImage( final int level )
+	{
+		if ( levels[ level ] == null )
+			levels[ level ] = createLevel( level );
+
+		return levels[ level ];
+	}
+
+	/**
+	 * Returns a volatile view of the image of a level, whose values are
+	 * computed in the background.
+	 *
+	 * @param level the level
+	 * @return the volatile image
+	 */
+	public synchronized < V extends Volatile< T > > RandomAccessibleInterval< V > getVolatileImage( final int level )
+	{
+		if ( volatileLevels[ level ] == null )
+			volatileLevels[ level ] = VolatileViews.wrapAsVolatile( getImage( level ), getQueue() );
+
+		@SuppressWarnings( "unchecked" )
+		final RandomAccessibleInterval< V > img = ( RandomAccessibleInterval< V > ) volatileLevels[ level ];
+		return img;
+	}
+
+	/**
+	 * Interpolates an image of this cache, extended by its border.
+	 *
+	 * @param img an image from {@link #getImage(int)} or {@link #getVolatileImage(int)}
+	 * @param method the interpolation
+	 * @return the interpolated image
+	 */
+	public static < S extends NumericType< S > > RealRandomAccessible< S > interpolate(
+			final RandomAccessibleInterval< S > img, final Interpolation method )
+	{
+		if ( method == Interpolation.NLINEAR )
+			return Views.interpolate( Views.extendBorder( img ), new NLinearInterpolatorFactory< S >() );
+		else
+			return Views.interpolate( Views.extendBorder( img ), new NearestNeighborInterpolatorFactory< S >() );
+	}
+
+	/**
+	 * Sets the transform from the voxels of a level to the voxels of level 0.
+	 *
+	 * @param level the level
+	 * @param transform receives the transform
+	 */
+	public void getLevelTransform( final int level, final AffineTransform3D transform )
+	{
+		transform.identity();
+		final long[] f = factors[ level ];
+		for ( int d = 0; d < f.length && d < 3; d++ )
+		{
+			// voxel i of the level covers voxels i * f to ( i + 1 ) * f - 1 of level 0
+			transform.set( f[ d ], d, d );
+			transform.set( interval.min( d ) + 0.5 * ( f[ d ] - 1 ), d, 3 );
+		}
+	}
+
+	/**
+	 * Sets the transform from the voxels of a level to the coordinates of the
+	 * function, i.e. the sample transform after the level transform, as a
+	 * source transform for the images of this cache.
+	 *
+	 * @param level the level
+	 * @param transform receives the transform
+	 */
+	public void getSourceTransform( final int level, final AffineTransform3D transform )
+	{
+		getLevelTransform( level, transform );
+		transform.preConcatenate( sampleTransform );
+	}
+
+	private CachedCellImg< T, ? > createLevel( final int level )
+	{
+		final int nd = interval.numDimensions();
+		final long[] f = factors[ level ];
+		final long[] dims = new long[ nd ];
+		boolean flat = false;
+		for ( int d = 0; d < nd; d++ )
+		{
+			dims[ d ] = ( interval.dimension( d ) + f[ d ] - 1 ) / f[ d ];
+			flat |= dims[ d ] == 1;
+		}
+
+		final int[] cellDims = new int[ nd ];
+		Arrays.fill( cellDims, flat ? 256 : 32 );
+
+		// cells of this level are useless once the function changed
+		final long levelGeneration = generation;
+
+		final ReadOnlyCachedCellImgFactory factory = new ReadOnlyCachedCellImgFactory(
+				ReadOnlyCachedCellImgOptions.options().cellDimensions( cellDims ) );
+
+		return factory.create( dims, type, cell -> {
+			// sample the function at the center of the level 0 voxels that
+			// each voxel of this level covers
+			final RealRandomAccess< T > access = function.realRandomAccess();
+			final double[] voxel = new double[ nd ];
+			final double[] position = new double[ nd ];
+			final Cursor< T > c = Views.flatIterable( cell ).localizingCursor();
+			while ( c.hasNext() )
+			{
+				if ( generation != levelGeneration )
+					return;
+
+				c.fwd();
+				for ( int d = 0; d < nd; d++ )
+					voxel[ d ] = interval.min( d ) + c.getLongPosition( d ) * f[ d ] + 0.5 * ( f[ d ] - 1 );
+
+				sampleTransform.apply( voxel, position );
+				access.setPosition( position );
+				c.get().set( access.get() );
+			}
+		} );
+	}
+
+	private static synchronized SharedQueue getQueue()
+	{
+		if ( queue == null )
+			queue = new SharedQueue( Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 ) );
+
+		return queue;
+	}
+}
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import bigwarp.landmarks.LandmarkSnapshot;
+import bigwarp.landmarks.LandmarkTableModel;
+import net.imglib2.realtransform.InvertibleRealTransform;
+
+/**
+ * A {@link TransformSolver} that is meant to live as long as the
+ * {@link LandmarkTableModel} it estimates transformations for.
+ * <p>
+ * Keeps buffers of the active landmarks between solves, which are filled
+ * again only when the version of the table changed since the last solve.
+ * Landmarks are read from a {@link LandmarkSnapshot}, so solving does not
+ * block edits to the table.
+ *
+ * @param <T> the transform type
+ */
+public abstract class AbstractTransformSolver< T extends InvertibleRealTransform > implements TransformSolver< T >
+{
+	protected double[][] mvgPts;
+
+	protected double[][] tgtPts;
+
+	// the version of the landmarks in the buffers, -1 if none
+	private long bufferedVersion = -1;
+
+	/**
+	 * Estimates the transformation for the active landmarks of the given
+	 * table.
+	 *
+	 * @param landmarkTable the landmarks
+	 * @return the transformation
+	 */
+	public synchronized T solve( final LandmarkTableModel landmarkTable )
+	{
+		copyLandmarks( landmarkTable.getSnapshot() );
+		return solve( mvgPts, tgtPts );
+	}
+
+	private void copyLandmarks( final LandmarkSnapshot landmarks )
+	{
+		final int numActive = landmarks.numActive();
+		final int ndims = landmarks.numDimensions();
+
+		if( mvgPts == null || mvgPts.length != ndims || mvgPts[0].length != numActive )
+		{
+			mvgPts = new double[ ndims ][ numActive ];
+			tgtPts = new double[ ndims ][ numActive ];
+			bufferedVersion = -1;
+		}
+
+		if( landmarks.getVersion() != bufferedVersion )
+		{
+			landmarks.copyLandmarks( mvgPts, tgtPts );
+			bufferedVersion = landmarks.getVersion();
+		}
+	}
+}
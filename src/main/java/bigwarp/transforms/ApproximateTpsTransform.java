@@ -0,0 +1,734 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.Wrapped2DTransformAs3D;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+
+/**
+ * Approximate evaluation of a thin plate spline with a bounded error, in the
+ * style of the fast multipole method.
+ * <p>
+ * Space is divided into a uniform grid of cells. For the cell containing an
+ * evaluation point, the kernel centers are split into a near and a far set.
+ * The contribution of the near set is summed directly. The contribution of
+ * the far set is smooth over the cell and is replaced by its Taylor
+ * polynomial of degree {@link #ORDER} about the cell center (the local
+ * expansion), which is computed once per cell and then reused for all points
+ * in that cell. Coherent access, like rendering or exporting an image, thus
+ * costs a small number of direct kernel evaluations per point instead of one
+ * per landmark.
+ * <p>
+ * A center is far if the remainder of the Taylor expansion of the kernel
+ * r^2 log r is guaranteed to be small enough that the errors of all far
+ * centers, weighted by the magnitude of their weights, add up to at most the
+ * tolerance in every component of the result. The cell size is chosen such
+ * that on average about {@link #NEAR_LANDMARKS} centers are near.
+ * <p>
+ * Instances share the (immutable) spline with their copies, but are not
+ * thread safe themselves. Local expansions are cached per instance.
+ */
+public class ApproximateTpsTransform implements RealTransform
+{
+	/**
+	 * Thin plate splines with fewer landmarks than this are not approximated
+	 * by {@link #approximate(RealTransform, double)}.
+	 */
+	public static final int MIN_LANDMARKS = 128;
+
+	/**
+	 * The degree of the local expansions.
+	 */
+	public static final int ORDER = 4;
+
+	/**
+	 * The average number of landmarks that are summed directly.
+	 */
+	public static final int NEAR_LANDMARKS = 32;
+
+	protected static final int CACHE_SIZE = 256;
+
+	private final Spline spline;
+
+	private final double[] x;
+
+	private final double[] h;
+
+	private final double[] hPowers;
+
+	private final double[] monomials;
+
+	private final double[] pairCoefficients;
+
+	private final double[] result;
+
+	private final long[] coords;
+
+	private final Cell[] cache;
+
+	/**
+	 * Approximates the given thin plate spline such that each component of
+	 * the result differs by at most the given tolerance from the exact
+	 * value.
+	 *
+	 * @param tps the thin plate spline
+	 * @param tolerance the maximum error
+	 */
+	public ApproximateTpsTransform( final ThinPlateR2LogRSplineKernelTransform tps, final double tolerance )
+	{
+		this( new Spline( tps, tolerance ) );
+	}
+
+	protected ApproximateTpsTransform( final Spline spline )
+	{
+		this.spline = spline;
+
+		final int nd = spline.ndims;
+		x = new double[ nd ];
+		h = new double[ nd ];
+		hPowers = new double[ ORDER / 2 + 1 ];
+		monomials = new double[ spline.terms.numMonomials ];
+		pairCoefficients = new double[ spline.terms.numPairs ];
+		result = new double[ nd ];
+		coords = new long[ nd ];
+		cache = new Cell[ CACHE_SIZE ];
+	}
+
+	/**
+	 * Returns a transformation that evaluates the thin plate spline in the
+	 * given transformation approximately, if there is one and it has at least
+	 * {@link #MIN_LANDMARKS} landmarks. The transformation is returned as is
+	 * otherwise, or if the tolerance is not positive.
+	 * <p>
+	 * Understands the thin plate splines that {@link BigWarpTransform}
+	 * produces, including their 2d-as-3d wrapping. The inverse of the result
+	 * is computed iteratively from the approximation.
+	 *
+	 * @param xfm the transformation
+	 * @param tolerance the maximum error
+	 * @return the approximation, or xfm
+	 */
+	public static RealTransform approximate( final RealTransform xfm, final double tolerance )
+	{
+		if ( xfm == null || tolerance <= 0 )
+			return xfm;
+
+		if ( xfm instanceof Wrapped2DTransformAs3D )
+		{
+			final InvertibleRealTransform inner = ( ( Wrapped2DTransformAs3D ) xfm ).getTransform();
+			final RealTransform approx = approximate( inner, tolerance );
+			if ( approx == inner )
+				return xfm;
+
+			return new Wrapped2DTransformAs3D( ( InvertibleRealTransform ) approx );
+		}
+		else if ( xfm instanceof WrappedIterativeInvertibleRealTransform )
+		{
+			final RealTransform inner = ( ( WrappedIterativeInvertibleRealTransform< ? > ) xfm ).getTransform();
+			final RealTransform approx = approximate( inner, tolerance );
+			if ( approx == inner )
+				return xfm;
+
+			return new WrappedIterativeInvertibleRealTransform<>( approx );
+		}
+		else if ( xfm instanceof ThinplateSplineTransform )
+		{
+			final ThinPlateR2LogRSplineKernelTransform tps = BigWarpTransform.getKernelTransform( ( ThinplateSplineTransform ) xfm );
+			if ( tps == null || tps.getNumLandmarks() < MIN_LANDMARKS )
+				return xfm;
+
+			return new ApproximateTpsTransform( tps, tolerance );
+		}
+
+		return xfm;
+	}
+
+	public double getTolerance()
+	{
+		return spline.tolerance;
+	}
+
+	/**
+	 * @return the side length of the cells that share a local expansion
+	 */
+	public double getCellSize()
+	{
+		return spline.cellSize;
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return spline.ndims;
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return spline.ndims;
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		for ( int d = 0; d < spline.ndims; d++ )
+			x[ d ] = source[ d ];
+
+		compute( x, target );
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		source.localize( x );
+		compute( x, result );
+		target.setPosition( result );
+	}
+
+	/*
+	 * x and y must not be the same array.
+	 */
+	private void compute( final double[] x, final double[] y )
+	{
+		final Spline s = spline;
+		final int nd = s.ndims;
+
+		final Cell cell = getCell( x );
+		for ( int d = 0; d < nd; d++ )
+			h[ d ] = x[ d ] - ( coords[ d ] + 0.5 ) * s.cellSize;
+
+		s.terms.evaluate( cell.coefficients, h, monomials, hPowers, y );
+
+		for ( int k = 0; k < cell.numNear; k++ )
+		{
+			final int l = cell.near[ k ];
+			double r2 = 0;
+			for ( int d = 0; d < nd; d++ )
+			{
+				final double diff = x[ d ] - s.points[ l * nd + d ];
+				r2 += diff * diff;
+			}
+			if ( r2 == 0 )
+				continue;
+
+			final double u = 0.5 * r2 * Math.log( r2 );
+			for ( int d = 0; d < nd; d++ )
+				y[ d ] += u * s.weights[ l * nd + d ];
+		}
+
+		for ( int i = 0; i < nd; i++ )
+		{
+			double v = y[ i ] + x[ i ];
+			if ( s.translation != null )
+				v += s.translation[ i ];
+
+			if ( s.affine != null )
+				for ( int j = 0; j < nd; j++ )
+					v += s.affine[ i ][ j ] * x[ j ];
+
+			y[ i ] = v;
+		}
+	}
+
+	/*
+	 * Sets coords to the grid coordinates of the cell containing x and
+	 * returns the cell, building it if it is not cached.
+	 */
+	private Cell getCell( final double[] x )
+	{
+		long hash = 0;
+		for ( int d = 0; d < spline.ndims; d++ )
+		{
+			coords[ d ] = ( long ) Math.floor( x[ d ] / spline.cellSize );
+			hash = 31 * hash + coords[ d ];
+		}
+
+		final int slot = ( int ) ( ( hash ^ ( hash >>> 17 ) ) & ( CACHE_SIZE - 1 ) );
+		Cell cell = cache[ slot ];
+		if ( cell == null )
+		{
+			cell = new Cell( spline );
+			cache[ slot ] = cell;
+		}
+		else if ( cell.isAt( coords ) )
+			return cell;
+
+		spline.build( cell, coords, monomials, pairCoefficients );
+		return cell;
+	}
+
+	@Override
+	public ApproximateTpsTransform copy()
+	{
+		return new ApproximateTpsTransform( spline );
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "ApproximateTpsTransform( %d landmarks, tolerance %f, cell size %f )",
+				spline.numLandmarks, spline.tolerance, spline.cellSize );
+	}
+
+	/**
+	 * The parameters of the thin plate spline, and the cell geometry
+	 * derived from them.
+	 */
+	protected static class Spline
+	{
+		final int ndims;
+
+		final int numLandmarks;
+
+		// [ l * ndims + d ]
+		final double[] points;
+
+		final double[] weights;
+
+		final double[][] affine;
+
+		final double[] translation;
+
+		final double tolerance;
+
+		final double cellSize;
+
+		// centers closer than this to a cell center are summed directly
+		final double nearRadius;
+
+		final ExpansionTerms terms;
+
+		Spline( final ThinPlateR2LogRSplineKernelTransform tps, final double tolerance )
+		{
+			final double[][] src = tps.getSourceLandmarks();
+			final double[] knotWeights = tps.getKnotWeights();
+
+			this.ndims = src.length;
+			this.numLandmarks = tps.getNumLandmarks();
+			this.affine = tps.getAffine();
+			this.translation = tps.getTranslation();
+			this.tolerance = tolerance;
+			this.terms = ExpansionTerms.get( ndims, ORDER );
+
+			final int N = numLandmarks;
+			points = new double[ N * ndims ];
+			weights = new double[ N * ndims ];
+
+			double totalWeight = 0;
+			final double[] min = new double[ ndims ];
+			final double[] max = new double[ ndims ];
+			for ( int d = 0; d < ndims; d++ )
+			{
+				min[ d ] = Double.POSITIVE_INFINITY;
+				max[ d ] = Double.NEGATIVE_INFINITY;
+			}
+			for ( int l = 0; l < N; l++ )
+			{
+				double wmax = 0;
+				for ( int d = 0; d < ndims; d++ )
+				{
+					points[ l * ndims + d ] = src[ d ][ l ];
+					weights[ l * ndims + d ] = knotWeights[ l * ndims + d ];
+					wmax = Math.max( wmax, Math.abs( knotWeights[ l * ndims + d ] ) );
+					min[ d ] = Math.min( min[ d ], src[ d ][ l ] );
+					max[ d ] = Math.max( max[ d ], src[ d ][ l ] );
+				}
+				totalWeight += wmax;
+			}
+
+			// radius of a ball that contains NEAR_LANDMARKS landmarks on average
+			double maxExtent = 0;
+			for ( int d = 0; d < ndims; d++ )
+				maxExtent = Math.max( maxExtent, max[ d ] - min[ d ] );
+
+			double volume = 1;
+			for ( int d = 0; d < ndims; d++ )
+				volume *= Math.max( max[ d ] - min[ d ], maxExtent / N );
+
+			final double unitBall = ndims == 2 ? Math.PI : 4 * Math.PI / 3;
+			final double targetRadius = maxExtent > 0 ?
+					Math.pow( NEAR_LANDMARKS * volume / ( N * unitBall ), 1.0 / ndims ) : 1;
+
+			// largest cell whose near radius does not exceed the target radius
+			final double budget = totalWeight > 0 ? tolerance / totalWeight : Double.POSITIVE_INFINITY;
+			double lo = 0;
+			double hi = targetRadius;
+			for ( int i = 0; i < 50; i++ )
+			{
+				final double mid = 0.5 * ( lo + hi );
+				if ( nearRadius( mid, budget ) <= targetRadius )
+					lo = mid;
+				else
+					hi = mid;
+			}
+
+			final double halfDiagonal = lo > 0 ? lo : targetRadius / 2;
+			cellSize = 2 * halfDiagonal / Math.sqrt( ndims );
+			nearRadius = nearRadius( halfDiagonal, budget );
+		}
+
+		/*
+		 * The distance from a cell center beyond which the expansion error of
+		 * a center with unit weight is below the budget anywhere in the cell.
+		 * The remainder of the Taylor expansion of degree p of r^2 log r, at
+		 * an offset of length h from a center at distance r, is at most
+		 * 2 / ( m ( m - 2 ) ) h^m / ( r - h )^( m - 2 ), with m = p + 1.
+		 */
+		static double nearRadius( final double halfDiagonal, final double budget )
+		{
+			final int m = ORDER + 1;
+			final double bound = 2.0 / ( m * ( m - 2 ) ) * Math.pow( halfDiagonal, m );
+			return halfDiagonal + Math.pow( bound / budget, 1.0 / ( m - 2 ) );
+		}
+
+		/*
+		 * Splits the landmarks into the near and far sets of the cell at the
+		 * given grid coordinates and computes the local expansion of the far
+		 * set.
+		 */
+		void build( final Cell cell, final long[] coords, final double[] monomials, final double[] pairCoefficients )
+		{
+			final int nd = ndims;
+			final double[] c = new double[ nd ];
+			final double[] v = new double[ nd ];
+			for ( int d = 0; d < nd; d++ )
+			{
+				cell.coords[ d ] = coords[ d ];
+				c[ d ] = ( coords[ d ] + 0.5 ) * cellSize;
+			}
+
+			Arrays.fill( cell.coefficients, 0 );
+			cell.numNear = 0;
+
+			final double nearRadius2 = nearRadius * nearRadius;
+			for ( int l = 0; l < numLandmarks; l++ )
+			{
+				double r2 = 0;
+				for ( int d = 0; d < nd; d++ )
+				{
+					v[ d ] = c[ d ] - points[ l * nd + d ];
+					r2 += v[ d ] * v[ d ];
+				}
+
+				if ( r2 <= nearRadius2 )
+					cell.addNear( l );
+				else
+					terms.accumulate( v, r2, weights, l, monomials, pairCoefficients, cell.coefficients );
+			}
+		}
+	}
+
+	/**
+	 * The near set and local expansion of a grid cell.
+	 */
+	protected static class Cell
+	{
+		final long[] coords;
+
+		final double[] coefficients;
+
+		int[] near;
+
+		int numNear;
+
+		Cell( final Spline spline )
+		{
+			coords = new long[ spline.ndims ];
+			coefficients = new double[ spline.terms.numTerms * spline.ndims ];
+			near = new int[ NEAR_LANDMARKS * 2 ];
+		}
+
+		boolean isAt( final long[] pos )
+		{
+			for ( int d = 0; d < pos.length; d++ )
+				if ( coords[ d ] != pos[ d ] )
+					return false;
+
+			return true;
+		}
+
+		void addNear( final int l )
+		{
+			if ( numNear == near.length )
+				near = Arrays.copyOf( near, 2 * near.length );
+
+			near[ numNear++ ] = l;
+		}
+	}
+
+	/**
+	 * The terms of the Taylor expansion of degree p of U( v + h ), with
+	 * U( v ) = |v|^2 log |v|, in h about a fixed v. With s = |v|^2, these are
+	 * <pre>
+	 * U( v + h ) = sum_{a + 2b &lt;= p} g_ab( s ) ( v . h )^a |h|^2b
+	 * </pre>
+	 * where g_00 = s log s / 2, g_10 = log s + 1, g_01 = ( log s + 1 ) / 2,
+	 * and for k = a + b &gt; 1
+	 * g_ab = (-1)^k binomial( k, a ) 2^(a-1) / ( k ( k - 1 ) s^(k-1) ).
+	 * Expanding ( v . h )^a into monomials of h gives terms with
+	 * coefficients that are sums over the centers, and that are stored in
+	 * the order of this class.
+	 */
+	protected static class ExpansionTerms
+	{
+		private static final ExpansionTerms[] CACHE = new ExpansionTerms[ 4 ];
+
+		final int ndims;
+
+		final int order;
+
+		final int numMonomials;
+
+		// monomials of degree up to order, as parent monomial times a variable
+		final int[] parent;
+
+		final int[] variable;
+
+		final int numPairs;
+
+		final int[] pairA;
+
+		final int[] pairB;
+
+		final double[] pairFactor;
+
+		final int numTerms;
+
+		final int[] termPair;
+
+		final int[] termMonomial;
+
+		final double[] termFactor;
+
+		static synchronized ExpansionTerms get( final int ndims, final int order )
+		{
+			if ( order == ORDER && ndims < CACHE.length )
+			{
+				if ( CACHE[ ndims ] == null )
+					CACHE[ ndims ] = new ExpansionTerms( ndims, order );
+
+				return CACHE[ ndims ];
+			}
+			return new ExpansionTerms( ndims, order );
+		}
+
+		ExpansionTerms( final int ndims, final int order )
+		{
+			this.ndims = ndims;
+			this.order = order;
+
+			// enumerate exponents by degree
+			final ArrayList< int[] > exps = new ArrayList<>();
+			exps.add( new int[ ndims ] );
+			final int[] degreeStart = new int[ order + 2 ];
+			degreeStart[ 1 ] = 1;
+			for ( int deg = 1; deg <= order; deg++ )
+			{
+				for ( int i = degreeStart[ deg - 1 ]; i < degreeStart[ deg ]; i++ )
+				{
+					final int[] e = exps.get( i );
+					// extend only with variables at or after the last one used, to avoid duplicates
+					int last = 0;
+					for ( int d = 0; d < ndims; d++ )
+						if ( e[ d ] > 0 )
+							last = d;
+
+					for ( int d = last; d < ndims; d++ )
+					{
+						final int[] f = e.clone();
+						f[ d ]++;
+						exps.add( f );
+					}
+				}
+				degreeStart[ deg + 1 ] = exps.size();
+			}
+
+			numMonomials = exps.size();
+			parent = new int[ numMonomials ];
+			variable = new int[ numMonomials ];
+			for ( int i = 1; i < numMonomials; i++ )
+			{
+				final int[] e = exps.get( i );
+				int last = 0;
+				for ( int d = 0; d < ndims; d++ )
+					if ( e[ d ] > 0 )
+						last = d;
+
+				final int[] p = e.clone();
+				p[ last ]--;
+				parent[ i ] = indexOf( exps, p );
+				variable[ i ] = last;
+			}
+
+			// pairs (a, b) with a + 2b <= order
+			final ArrayList< int[] > pairs = new ArrayList<>();
+			for ( int a = 0; a <= order; a++ )
+				for ( int b = 0; a + 2 * b <= order; b++ )
+					pairs.add( new int[] { a, b } );
+
+			numPairs = pairs.size();
+			pairA = new int[ numPairs ];
+			pairB = new int[ numPairs ];
+			pairFactor = new double[ numPairs ];
+			int nt = 0;
+			for ( int i = 0; i < numPairs; i++ )
+			{
+				final int a = pairs.get( i )[ 0 ];
+				final int b = pairs.get( i )[ 1 ];
+				final int k = a + b;
+				pairA[ i ] = a;
+				pairB[ i ] = b;
+				if ( k > 1 )
+					pairFactor[ i ] = ( k % 2 == 0 ? 1 : -1 ) * binomial( k, a ) * Math.pow( 2, a - 1 ) / ( k * ( k - 1 ) );
+
+				nt += degreeStart[ a + 1 ] - degreeStart[ a ];
+			}
+
+			numTerms = nt;
+			termPair = new int[ numTerms ];
+			termMonomial = new int[ numTerms ];
+			termFactor = new double[ numTerms ];
+			int t = 0;
+			for ( int i = 0; i < numPairs; i++ )
+			{
+				final int a = pairA[ i ];
+				for ( int j = degreeStart[ a ]; j < degreeStart[ a + 1 ]; j++ )
+				{
+					// multinomial coefficient a! / prod( e_d! )
+					double f = factorial( a );
+					for ( final int e : exps.get( j ) )
+						f /= factorial( e );
+
+					termPair[ t ] = i;
+					termMonomial[ t ] = j;
+					termFactor[ t ] = f;
+					t++;
+				}
+			}
+		}
+
+		private static int indexOf( final List< int[] > exps, final int[] e )
+		{
+			for ( int i = 0; i < exps.size(); i++ )
+				if ( Arrays.equals( exps.get( i ), e ) )
+					return i;
+
+			return -1;
+		}
+
+		private static double factorial( final int n )
+		{
+			double f = 1;
+			for ( int i = 2; i <= n; i++ )
+				f *= i;
+
+			return f;
+		}
+
+		private static double binomial( final int n, final int k )
+		{
+			return factorial( n ) / ( factorial( k ) * factorial( n - k ) );
+		}
+
+		private void monomials( final double[] v, final double[] out )
+		{
+			out[ 0 ] = 1;
+			for ( int i = 1; i < numMonomials; i++ )
+				out[ i ] = out[ parent[ i ] ] * v[ variable[ i ] ];
+		}
+
+		/**
+		 * Adds the expansion of the kernel centered at landmark l, at offset
+		 * v from the expansion center, to the coefficients.
+		 */
+		void accumulate( final double[] v, final double s, final double[] weights, final int l,
+				final double[] monomials, final double[] pairCoefficients, final double[] coefficients )
+		{
+			final int nd = ndims;
+			monomials( v, monomials );
+
+			final double logs = Math.log( s );
+			final double sinv = 1 / s;
+			for ( int p = 0; p < numPairs; p++ )
+			{
+				final int k = pairA[ p ] + pairB[ p ];
+				if ( k == 0 )
+					pairCoefficients[ p ] = 0.5 * s * logs;
+				else if ( k == 1 )
+					pairCoefficients[ p ] = pairA[ p ] == 1 ? logs + 1 : 0.5 * ( logs + 1 );
+				else
+				{
+					double g = pairFactor[ p ];
+					for ( int i = 1; i < k; i++ )
+						g *= sinv;
+
+					pairCoefficients[ p ] = g;
+				}
+			}
+
+			for ( int t = 0; t < numTerms; t++ )
+			{
+				final double c = pairCoefficients[ termPair[ t ] ] * termFactor[ t ] * monomials[ termMonomial[ t ] ];
+				for ( int d = 0; d < nd; d++ )
+					coefficients[ t * nd + d ] += c * weights[ l * nd + d ];
+			}
+		}
+
+		/**
+		 * Sets y to the expansion with the given coefficients at offset h
+		 * from its center.
+		 */
+		void evaluate( final double[] coefficients, final double[] h, final double[] monomials, final double[] hPowers, final double[] y )
+		{
+			final int nd = ndims;
+			monomials( h, monomials );
+
+			double h2 = 0;
+			for ( int d = 0; d < nd; d++ )
+				h2 += h[ d ] * h[ d ];
+
+			hPowers[ 0 ] = 1;
+			for ( int b = 1; b < hPowers.length; b++ )
+				hPowers[ b ] = hPowers[ b - 1 ] * h2;
+
+			for ( int d = 0; d < nd; d++ )
+				y[ d ] = 0;
+
+			for ( int t = 0; t < numTerms; t++ )
+			{
+				final double m = monomials[ termMonomial[ t ] ] * hPowers[ pairB[ termPair[ t ] ] ];
+				for ( int d = 0; d < nd; d++ )
+					y[ d ] += coefficients[ t * nd + d ] * m;
+			}
+		}
+	}
+}
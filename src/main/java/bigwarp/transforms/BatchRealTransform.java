@@ -0,0 +1,44 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+/**
+ * Transforms blocks of points stored as a structure of arrays,
+ * {@code double[ ndims ][ n ]}, in one call.
+ *
+ * @see BatchTransforms
+ */
+public interface BatchRealTransform
+{
+	public int numDimensions();
+
+	/**
+	 * Transforms the points with indexes start to start + length - 1.
+	 * source and target may be the same arrays.
+	 *
+	 * @param source the source points, [ dimension ][ point ]
+	 * @param target the destination points, [ dimension ][ point ]
+	 * @param start the index of the first point
+	 * @param length the number of points
+	 */
+	public void apply( final double[][] source, final double[][] target, final int start, final int length );
+}
@@ -0,0 +1,398 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.Wrapped2DTransformAs3D;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+
+/**
+ * Batched application of the transformations that {@link BigWarpTransform}
+ * produces to many points at once.
+ * <p>
+ * Thin plate splines and affines are evaluated with loops over contiguous
+ * arrays of points that the JIT can unroll and vectorize, without per point
+ * calls. Other transformations are applied point by point.
+ */
+public class BatchTransforms
+{
+	/**
+	 * The number of points processed together by the thin plate spline
+	 * kernel, small enough for its scratch arrays to stay in cache.
+	 */
+	public static final int BLOCK_SIZE = 512;
+
+	private BatchTransforms()
+	{}
+
+	/**
+	 * Returns a batched version of the given transformation. The result is
+	 * thread safe if it evaluates a thin plate spline or an affine directly,
+	 * or if the transformation is thread safe.
+	 *
+	 * @param xfm the transformation
+	 * @return the batched transformation
+	 */
+	public static BatchRealTransform wrap( final RealTransform xfm )
+	{
+		if ( xfm instanceof Wrapped2DTransformAs3D )
+			return new Wrapped2DAs3D( wrap( ( ( Wrapped2DTransformAs3D ) xfm ).getTransform() ) );
+		else if ( xfm instanceof WrappedIterativeInvertibleRealTransform )
+			return wrap( ( ( WrappedIterativeInvertibleRealTransform< ? > ) xfm ).getTransform() );
+		else if ( xfm instanceof ThinplateSplineTransform )
+		{
+			final ThinPlateR2LogRSplineKernelTransform kernel = BigWarpTransform.getKernelTransform( ( ThinplateSplineTransform ) xfm );
+			if ( kernel != null )
+				return new ThinPlateSpline( kernel );
+		}
+		else if ( xfm instanceof WrappedCoordinateTransform && ( ( WrappedCoordinateTransform ) xfm ).getAffine() instanceof AffineGet )
+			return new Affine( ( AffineGet ) ( ( WrappedCoordinateTransform ) xfm ).getAffine() );
+		else if ( xfm instanceof AffineGet )
+			return new Affine( ( AffineGet ) xfm );
+
+		return new Pointwise( xfm );
+	}
+
+	/**
+	 * Transforms all points in source.
+	 *
+	 * @param xfm the transformation
+	 * @param source the source points, [ dimension ][ point ]
+	 * @param target the destination points, [ dimension ][ point ], may be source
+	 */
+	public static void apply( final RealTransform xfm, final double[][] source, final double[][] target )
+	{
+		wrap( xfm ).apply( source, target, 0, source[ 0 ].length );
+	}
+
+	/**
+	 * Transforms all points in source using the given number of threads.
+	 *
+	 * @param xfm the transformation
+	 * @param source the source points, [ dimension ][ point ]
+	 * @param target the destination points, [ dimension ][ point ], may be source
+	 * @param nThreads the number of threads
+	 * @throws RuntimeException if a thread failed or this thread was
+	 * interrupted, target is then only partly written
+	 */
+	public static void apply( final RealTransform xfm, final double[][] source, final double[][] target, final int nThreads )
+	{
+		final int n = source[ 0 ].length;
+		if ( nThreads <= 1 || n <= BLOCK_SIZE )
+		{
+			apply( xfm, source, target );
+			return;
+		}
+
+		final int numJobs = Math.min( nThreads, ( n + BLOCK_SIZE - 1 ) / BLOCK_SIZE );
+		final int step = ( n + numJobs - 1 ) / numJobs;
+		final ExecutorService threadPool = Executors.newFixedThreadPool( numJobs );
+		final List< Callable< Boolean > > jobs = new ArrayList<>();
+		for ( int j = 0; j < numJobs; j++ )
+		{
+			final int start = j * step;
+			final int length = Math.min( step, n - start );
+			final BatchRealTransform batch = wrap( xfm.copy() );
+			jobs.add( () -> {
+				batch.apply( source, target, start, length );
+				return true;
+			} );
+		}
+
+		try
+		{
+			final List< Future< Boolean > > futures = threadPool.invokeAll( jobs );
+			for ( final Future< Boolean > f : futures )
+				f.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while transforming points", e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( "Failed to transform points", e.getCause() );
+		}
+		finally
+		{
+			threadPool.shutdownNow();
+		}
+	}
+
+	/**
+	 * A thin plate spline, with its parameters copied on construction.
+	 */
+	protected static class ThinPlateSpline implements BatchRealTransform
+	{
+		private final int ndims;
+
+		private final int numLandmarks;
+
+		// [ d ][ l ]
+		private final double[][] points;
+
+		private final double[][] weights;
+
+		// includes the identity
+		private final double[][] affine;
+
+		private final double[] translation;
+
+		public ThinPlateSpline( final ThinPlateR2LogRSplineKernelTransform kernel )
+		{
+			final double[][] src = kernel.getSourceLandmarks();
+			final double[] w = kernel.getKnotWeights();
+			ndims = src.length;
+			numLandmarks = kernel.getNumLandmarks();
+
+			points = new double[ ndims ][ numLandmarks ];
+			weights = new double[ ndims ][ numLandmarks ];
+			for ( int d = 0; d < ndims; d++ )
+				for ( int l = 0; l < numLandmarks; l++ )
+				{
+					points[ d ][ l ] = src[ d ][ l ];
+					weights[ d ][ l ] = w[ l * ndims + d ];
+				}
+
+			affine = new double[ ndims ][ ndims ];
+			final double[][] a = kernel.getAffine();
+			for ( int i = 0; i < ndims; i++ )
+				for ( int j = 0; j < ndims; j++ )
+					affine[ i ][ j ] = ( i == j ? 1 : 0 ) + ( a != null ? a[ i ][ j ] : 0 );
+
+			final double[] t = kernel.getTranslation();
+			translation = t != null ? t.clone() : new double[ ndims ];
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return ndims;
+		}
+
+		@Override
+		public void apply( final double[][] source, final double[][] target, final int start, final int length )
+		{
+			final int blockSize = Math.min( BLOCK_SIZE, length );
+			final double[][] x = new double[ ndims ][ blockSize ];
+			final double[][] y = new double[ ndims ][ blockSize ];
+			final double[] u = new double[ blockSize ];
+
+			for ( int offset = 0; offset < length; offset += blockSize )
+			{
+				final int m = Math.min( blockSize, length - offset );
+				for ( int d = 0; d < ndims; d++ )
+				{
+					System.arraycopy( source[ d ], start + offset, x[ d ], 0, m );
+					Arrays.fill( y[ d ], 0, m, 0 );
+				}
+
+				for ( int l = 0; l < numLandmarks; l++ )
+				{
+					// squared distances
+					final double[] x0 = x[ 0 ];
+					final double p0 = points[ 0 ][ l ];
+					for ( int i = 0; i < m; i++ )
+					{
+						final double diff = x0[ i ] - p0;
+						u[ i ] = diff * diff;
+					}
+					for ( int d = 1; d < ndims; d++ )
+					{
+						final double[] xd = x[ d ];
+						final double pd = points[ d ][ l ];
+						for ( int i = 0; i < m; i++ )
+						{
+							final double diff = xd[ i ] - pd;
+							u[ i ] += diff * diff;
+						}
+					}
+
+					// kernel r^2 log r
+					for ( int i = 0; i < m; i++ )
+					{
+						final double r2 = u[ i ];
+						u[ i ] = r2 > 0 ? 0.5 * r2 * Math.log( r2 ) : 0;
+					}
+
+					for ( int d = 0; d < ndims; d++ )
+					{
+						final double[] yd = y[ d ];
+						final double w = weights[ d ][ l ];
+						for ( int i = 0; i < m; i++ )
+							yd[ i ] += w * u[ i ];
+					}
+				}
+
+				// affine part
+				for ( int d = 0; d < ndims; d++ )
+				{
+					final double[] yd = y[ d ];
+					final double t = translation[ d ];
+					for ( int i = 0; i < m; i++ )
+						yd[ i ] += t;
+
+					for ( int j = 0; j < ndims; j++ )
+					{
+						final double a = affine[ d ][ j ];
+						final double[] xj = x[ j ];
+						for ( int i = 0; i < m; i++ )
+							yd[ i ] += a * xj[ i ];
+					}
+					System.arraycopy( yd, 0, target[ d ], start + offset, m );
+				}
+			}
+		}
+	}
+
+	/**
+	 * An affine, with its matrix copied on construction.
+	 */
+	protected static class Affine implements BatchRealTransform
+	{
+		private final int ndims;
+
+		// ndims x ( ndims + 1 )
+		private final double[][] matrix;
+
+		public Affine( final AffineGet affine )
+		{
+			ndims = affine.numDimensions();
+			matrix = new double[ ndims ][ ndims + 1 ];
+			for ( int i = 0; i < ndims; i++ )
+				for ( int j = 0; j <= ndims; j++ )
+					matrix[ i ][ j ] = affine.get( i, j );
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return ndims;
+		}
+
+		@Override
+		public void apply( final double[][] source, final double[][] target, final int start, final int length )
+		{
+			final int blockSize = Math.min( BLOCK_SIZE, length );
+			final double[][] x = new double[ ndims ][ blockSize ];
+			for ( int offset = 0; offset < length; offset += blockSize )
+			{
+				final int m = Math.min( blockSize, length - offset );
+				for ( int d = 0; d < ndims; d++ )
+					System.arraycopy( source[ d ], start + offset, x[ d ], 0, m );
+
+				for ( int d = 0; d < ndims; d++ )
+				{
+					final double[] row = matrix[ d ];
+					final double[] yd = target[ d ];
+					final int s = start + offset;
+					for ( int i = 0; i < m; i++ )
+						yd[ s + i ] = row[ ndims ];
+
+					for ( int j = 0; j < ndims; j++ )
+					{
+						final double a = row[ j ];
+						final double[] xj = x[ j ];
+						for ( int i = 0; i < m; i++ )
+							yd[ s + i ] += a * xj[ i ];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies a 2d batched transformation to the first two dimensions.
+	 */
+	protected static class Wrapped2DAs3D implements BatchRealTransform
+	{
+		private final BatchRealTransform transform;
+
+		public Wrapped2DAs3D( final BatchRealTransform transform )
+		{
+			this.transform = transform;
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return 3;
+		}
+
+		@Override
+		public void apply( final double[][] source, final double[][] target, final int start, final int length )
+		{
+			transform.apply( source, target, start, length );
+			if ( source != target )
+				System.arraycopy( source[ 2 ], start, target[ 2 ], start, length );
+		}
+	}
+
+	/**
+	 * Applies a transformation point by point.
+	 */
+	protected static class Pointwise implements BatchRealTransform
+	{
+		private final RealTransform transform;
+
+		public Pointwise( final RealTransform transform )
+		{
+			this.transform = transform;
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return transform.numSourceDimensions();
+		}
+
+		@Override
+		public void apply( final double[][] source, final double[][] target, final int start, final int length )
+		{
+			final int nd = transform.numSourceDimensions();
+			final double[] p = new double[ nd ];
+			final double[] q = new double[ transform.numTargetDimensions() ];
+			for ( int i = start; i < start + length; i++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+					p[ d ] = source[ d ][ i ];
+
+				transform.apply( p, q );
+				for ( int d = 0; d < q.length; d++ )
+					target[ d ][ i ] = q[ d ];
+			}
+		}
+	}
+}
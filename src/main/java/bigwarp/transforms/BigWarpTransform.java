@@ -24,12 +24,18 @@ package bigwarp.transforms;
 import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import bdv.gui.TransformTypeSelectDialog;
 import bdv.util.RandomAccessibleIntervalMipmapSource;
 import bdv.viewer.SourceAndConverter;
 import bdv.viewer.animate.SimilarityModel3D;
 import bigwarp.BigWarp.BigWarpData;
+import bigwarp.landmarks.LandmarkSnapshot;
 import bigwarp.landmarks.LandmarkTableModel;
 import ij.IJ;
 import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
@@ -46,6 +52,7 @@ import mpicbg.models.RigidModel3D;
 import mpicbg.models.SimilarityModel2D;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
+import net.imglib2.FinalRealInterval;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.InverseRealTransform;
 import net.imglib2.realtransform.InvertibleRealTransform;
@@ -55,18 +62,35 @@ import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform
 
 public class BigWarpTransform
 {
+	protected static Logger logger = LoggerFactory.getLogger( BigWarpTransform.class );
+
 	private final int ndims;
 
 	private final LandmarkTableModel tableModel;
 
 	private String transformType;
 	
-	private InvertibleRealTransform currentTransform;
+	// written by the solver threads
+	private volatile InvertibleRealTransform currentTransform;
 
 	private double inverseTolerance = 0.5;
 
 	private int maxIterations = 200;
 
+	// cells of the inverse lookup grid along the longest side, 0 to not use one
+	private int inverseLookupResolution = 0;
+
+	private boolean approximateInverse = false;
+
+	private final TpsTransformSolver tpsSolver;
+
+	// estimates the thin plate spline with moving and target points swapped
+	private final TpsTransformSolver dualTpsSolver;
+
+	private final CompactRbfTransformSolver compactRbfSolver;
+
+	private final ConcurrentHashMap< String, ModelTransformSolver > modelSolvers;
+
 	public BigWarpTransform( final LandmarkTableModel tableModel )
 	{
 		this( tableModel, TransformTypeSelectDialog.TPS );
@@ -77,6 +101,10 @@ public class BigWarpTransform
 		this.tableModel = tableModel;
 		this.ndims = tableModel.getNumdims();
 		this.transformType = transformType;
+		this.tpsSolver = new TpsTransformSolver();
+		this.dualTpsSolver = new TpsTransformSolver( true );
+		this.compactRbfSolver = new CompactRbfTransformSolver();
+		this.modelSolvers = new ConcurrentHashMap<>();
 	}
 
 	public void setTransformType( final String transformType )
@@ -94,6 +122,40 @@ public class BigWarpTransform
 		this.maxIterations = maxIterations;
 	}
 
+	/**
+	 * Accelerates the inverse of nonlinear transformations with a lookup grid
+	 * that is built once per estimate, see {@link InverseLookupTransform}.
+	 *
+	 * @param resolution the number of grid cells along the longest side of the moving landmarks, 0 to disable
+	 */
+	public void setInverseLookupResolution( final int resolution )
+	{
+		this.inverseLookupResolution = resolution;
+	}
+
+	public int getInverseLookupResolution()
+	{
+		return inverseLookupResolution;
+	}
+
+	/**
+	 * Inverts thin plate splines with a second thin plate spline estimated
+	 * from the landmarks with moving and target points swapped, instead of
+	 * iteratively, see {@link DualTpsTransform}. The inverse is then as fast
+	 * as the forward transformation, but only approximate between landmarks.
+	 *
+	 * @param approximateInverse whether to use the approximate inverse
+	 */
+	public void setApproximateInverse( final boolean approximateInverse )
+	{
+		this.approximateInverse = approximateInverse;
+	}
+
+	public boolean isApproximateInverse()
+	{
+		return approximateInverse;
+	}
+
 	public double getInverseTolerance()
 	{
 		return inverseTolerance;
@@ -115,26 +177,97 @@ public class BigWarpTransform
 	}
 	
 	public InvertibleRealTransform getTransformation( final int index )
+	{
+		return getTransformation( transformType, index );
+	}
+
+	/**
+	 * Estimates a transformation of the given type, independent of the
+	 * current transform type of this object.
+	 *
+	 * @param transformType the transform type
+	 * @param index a landmark row that changed since the last estimate, or -1. Unused, the
+	 * solvers detect changes from the version of the landmark table.
+	 * @return the transformation
+	 */
+	public InvertibleRealTransform getTransformation( final String transformType, final int index )
+	{
+		return getTransformation( transformType, index, () -> false );
+	}
+
+	/**
+	 * Estimates a transformation of the given type, unless cancelled.
+	 *
+	 * @param transformType the transform type
+	 * @param index a landmark row that changed since the last estimate, or -1. Unused, the
+	 * solvers detect changes from the version of the landmark table.
+	 * @param isCancelled checked between the stages of the estimate
+	 * @return the transformation, or null if cancelled
+	 */
+	public InvertibleRealTransform getTransformation( final String transformType, final int index, final BooleanSupplier isCancelled )
+	{
+		final InvertibleRealTransform invXfm = estimateTransformation( transformType, index, isCancelled );
+		if ( invXfm != null )
+			currentTransform = invXfm;
+
+		return invXfm;
+	}
+
+	/**
+	 * Estimates a transformation of the given type without making it the
+	 * current transformation of this object, for example to preview it.
+	 *
+	 * @param transformType the transform type
+	 * @param index a landmark row that changed since the last estimate, or -1. Unused, the
+	 * solvers detect changes from the version of the landmark table.
+	 * @return the transformation
+	 */
+	public InvertibleRealTransform estimateTransformation( final String transformType, final int index )
+	{
+		return estimateTransformation( transformType, index, () -> false );
+	}
+
+	/**
+	 * Estimates a transformation of the given type without making it the
+	 * current transformation of this object, unless cancelled. For thin plate
+	 * splines and compact RBFs, cancellation is checked after the spline is
+	 * solved, before its inverse is prepared.
+	 *
+	 * @param transformType the transform type
+	 * @param index a landmark row that changed since the last estimate, or -1. Unused, the
+	 * solvers detect changes from the version of the landmark table.
+	 * @param isCancelled checked between the stages of the estimate
+	 * @return the transformation, or null if cancelled
+	 */
+	public InvertibleRealTransform estimateTransformation( final String transformType, final int index, final BooleanSupplier isCancelled )
 	{
 		InvertibleRealTransform invXfm = null;
 		if( transformType.equals( TransformTypeSelectDialog.TPS ))
 		{
-			WrappedIterativeInvertibleRealTransform<?> tpsXfm = new TpsTransformSolver().solve( tableModel );
+			WrappedIterativeInvertibleRealTransform<?> tpsXfm = tpsSolver.solve( tableModel );
+			if ( isCancelled.getAsBoolean() )
+				return null;
+
 			tpsXfm.getOptimzer().setMaxIters(maxIterations);
 			tpsXfm.getOptimzer().setTolerance(inverseTolerance);
-			invXfm = tpsXfm;
+			if ( approximateInverse )
+				invXfm = withDualInverse( tpsXfm );
+			else
+				invXfm = withInverseLookup( tpsXfm );
 		}
-		else
+		else if( transformType.equals( TransformTypeSelectDialog.COMPACT_RBF ))
 		{
-			final double[][] mvgPts;
-			final double[][] tgtPts;
-
-			final int numActive = tableModel.numActive();
-			mvgPts = new double[ ndims ][ numActive ];
-			tgtPts = new double[ ndims ][ numActive ];
-			tableModel.copyLandmarks( mvgPts, tgtPts ); // synchronized
+			WrappedIterativeInvertibleRealTransform<?> rbfXfm = compactRbfSolver.solve( tableModel );
+			if ( isCancelled.getAsBoolean() )
+				return null;
 
-			invXfm = new ModelTransformSolver( getModelType() ).solve(mvgPts, tgtPts);
+			rbfXfm.getOptimzer().setMaxIters(maxIterations);
+			rbfXfm.getOptimzer().setTolerance(inverseTolerance);
+			invXfm = withInverseLookup( rbfXfm );
+		}
+		else
+		{
+			invXfm = getModelSolver( transformType ).solve( tableModel );
 		}
 
 		if( tableModel.getNumdims() == 2 )
@@ -142,18 +275,18 @@ public class BigWarpTransform
 			invXfm = new Wrapped2DTransformAs3D( invXfm );
 		}
 
-		currentTransform = invXfm;
 		return invXfm;
 	}
 
 	public void fitModel( final Model<?> model )
 	{
-		int numActive = tableModel.numActive();
+		final LandmarkSnapshot landmarks = tableModel.getSnapshot();
+		int numActive = landmarks.numActive();
 
 		double[][] mvgPts = new double[ ndims ][ numActive ];
 		double[][] tgtPts = new double[ ndims ][ numActive ];
 
-		tableModel.copyLandmarks( mvgPts, tgtPts );
+		landmarks.copyLandmarks( mvgPts, tgtPts );
 
 		double[] w = new double[ numActive ];
 		Arrays.fill( w, 1.0 );
@@ -167,15 +300,129 @@ public class BigWarpTransform
 		}
 	}
 
+	/**
+	 * Returns the long-lived solver for the given (linear) transform type.
+	 *
+	 * @param transformType the transform type
+	 * @return the solver
+	 */
+	protected ModelTransformSolver getModelSolver( final String transformType )
+	{
+		return modelSolvers.computeIfAbsent( transformType, t -> new ModelTransformSolver( getModelType( t ) ) );
+	}
+
+	/**
+	 * Returns true if the given transform type is linear, i.e., can be
+	 * estimated by fitting a {@link Model}.
+	 *
+	 * @param transformType the transform type
+	 * @return true if linear
+	 */
+	public static boolean isLinear( final String transformType )
+	{
+		return !transformType.equals( TransformTypeSelectDialog.TPS ) &&
+				!transformType.equals( TransformTypeSelectDialog.COMPACT_RBF );
+	}
+
+	/**
+	 * Returns the solver for the compactly supported radial basis function
+	 * transform type, for example to set its support radius.
+	 *
+	 * @return the solver
+	 */
+	public CompactRbfTransformSolver getCompactRbfSolver()
+	{
+		return compactRbfSolver;
+	}
+
 	public Model<?> getModelType()
+	{
+		return getModelType( transformType );
+	}
+
+	public Model<?> getModelType( final String transformType )
 	{
 		if( tableModel.getNumdims() == 2 )
-			return getModel2D();
+			return getModel2D( transformType );
 		else
-			return getModel3D();
+			return getModel3D( transformType );
+	}
+
+	/**
+	 * Pairs a thin plate spline with the spline estimated from swapped
+	 * landmarks as its inverse. Its residuals are available from
+	 * {@link DualTpsTransform#getLandmarkResidual()} and
+	 * {@link DualTpsTransform#getMidpointResidual()}.
+	 *
+	 * @param tpsXfm the thin plate spline
+	 * @return the thin plate spline with approximate inverse
+	 */
+	protected DualTpsTransform withDualInverse( final WrappedIterativeInvertibleRealTransform< ? > tpsXfm )
+	{
+		final WrappedIterativeInvertibleRealTransform< ? > dualXfm = dualTpsSolver.solve( tableModel );
+		return new DualTpsTransform(
+				( ThinplateSplineTransform ) tpsXfm.getTransform(),
+				( ThinplateSplineTransform ) dualXfm.getTransform() );
+	}
+
+	/**
+	 * Adds an inverse lookup grid covering the active moving landmarks, and a
+	 * margin of a tenth of their extent, if enabled.
+	 *
+	 * @param xfm the iteratively inverted transformation
+	 * @return the transformation with a lookup grid, or xfm
+	 */
+	protected WrappedIterativeInvertibleRealTransform< ? > withInverseLookup( final WrappedIterativeInvertibleRealTransform< ? > xfm )
+	{
+		if ( inverseLookupResolution <= 0 )
+			return xfm;
+
+		final double[] min = new double[ ndims ];
+		final double[] max = new double[ ndims ];
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+		final LandmarkSnapshot landmarks = tableModel.getSnapshot();
+		final double[] pt = new double[ ndims ];
+		for ( int i = 0; i < landmarks.numRows(); i++ )
+		{
+			if ( !landmarks.isActive( i ) )
+				continue;
+
+			landmarks.copyMovingPoint( i, pt );
+
+			for ( int d = 0; d < ndims; d++ )
+			{
+				min[ d ] = Math.min( min[ d ], pt[ d ] );
+				max[ d ] = Math.max( max[ d ], pt[ d ] );
+			}
+		}
+
+		if ( !( min[ 0 ] <= max[ 0 ] ) )
+			return xfm;
+
+		for ( int d = 0; d < ndims; d++ )
+		{
+			final double margin = 0.1 * ( max[ d ] - min[ d ] );
+			min[ d ] -= margin;
+			max[ d ] += margin;
+		}
+
+		final InverseLookupTransform< ? > lookup = new InverseLookupTransform<>( xfm.getTransform(),
+				new FinalRealInterval( min, max ), inverseLookupResolution, inverseTolerance, maxIterations );
+
+		if ( logger.isDebugEnabled() )
+			logger.debug( "inverse lookup error: max {}, mean {}, {} of cells within tolerance",
+					lookup.getMaxError(), lookup.getMeanError(), lookup.getFractionWithinTolerance() );
+
+		return lookup;
 	}
 
 	public AbstractAffineModel3D<?> getModel3D()
+	{
+		return getModel3D( transformType );
+	}
+
+	public static AbstractAffineModel3D<?> getModel3D( final String transformType )
 	{
 		switch( transformType ){
 		case TransformTypeSelectDialog.AFFINE:
@@ -191,6 +438,11 @@ public class BigWarpTransform
 	}
 
 	public AbstractAffineModel2D<?> getModel2D()
+	{
+		return getModel2D( transformType );
+	}
+
+	public static AbstractAffineModel2D<?> getModel2D( final String transformType )
 	{
 		switch( transformType ){
 		case TransformTypeSelectDialog.AFFINE:
@@ -207,7 +459,7 @@ public class BigWarpTransform
 
 	public InvertibleCoordinateTransform getCoordinateTransform()
 	{
-		if( !transformType.equals( TransformTypeSelectDialog.TPS ))
+		if( isLinear( transformType ))
 		{
 			WrappedCoordinateTransform wct = (WrappedCoordinateTransform)( unwrap2d( getTransformation() ));
 			return wct.getTransform();
@@ -234,10 +486,10 @@ public class BigWarpTransform
 	public AffineTransform3D affine3d()
 	{
 		AffineTransform3D out = new AffineTransform3D();
-		if( transformType.equals( TransformTypeSelectDialog.TPS ))
+		if( !isLinear( transformType ))
 		{
-			double[][] tpsAffine = getTpsBase().getAffine();
-			double[] translation = getTpsBase().getTranslation();
+			double[][] tpsAffine = getNonlinearAffine();
+			double[] translation = getNonlinearTranslation();
 
 			double[] affine = new double[ 12 ];
 			if( ndims == 2 )
@@ -341,26 +593,70 @@ public class BigWarpTransform
 		if( tps == null )
 			return null;
 		else
+			return getKernelTransform( tps );
+	}
+
+	/**
+	 * Returns the kernel transform that the given {@link ThinplateSplineTransform} wraps.
+	 *
+	 * @param tps the thin plate spline
+	 * @return the kernel transform, or null if it could not be accessed
+	 */
+	public static ThinPlateR2LogRSplineKernelTransform getKernelTransform( final ThinplateSplineTransform tps )
+	{
+		// TODO add get method in ThinplateSplineTransform to avoid reflection here
+		final Class< ThinplateSplineTransform > c_tps = ThinplateSplineTransform.class;
+		try
 		{
-			// TODO add get method in ThinplateSplineTransform to avoid reflection here
-			final Class< ThinplateSplineTransform > c_tps = ThinplateSplineTransform.class;
-			try
-			{
-				final Field tpsField = c_tps.getDeclaredField( "tps" );
-				tpsField.setAccessible( true );
-				ThinPlateR2LogRSplineKernelTransform tpsbase = (ThinPlateR2LogRSplineKernelTransform)tpsField.get(  tps );
-				tpsField.setAccessible( false );
+			final Field tpsField = c_tps.getDeclaredField( "tps" );
+			tpsField.setAccessible( true );
+			ThinPlateR2LogRSplineKernelTransform tpsbase = (ThinPlateR2LogRSplineKernelTransform)tpsField.get(  tps );
+			tpsField.setAccessible( false );
 
-				return tpsbase;
-			}
-			catch(Exception e )
-			{
-				e.printStackTrace();
-				return null;
-			}
+			return tpsbase;
+		}
+		catch(Exception e )
+		{
+			e.printStackTrace();
+			return null;
 		}
 	}
 
+	/**
+	 * Returns the compactly supported radial basis function transform if
+	 * that is the current transform type, null otherwise.
+	 *
+	 * @return the transform
+	 */
+	public CompactRbfTransform getCompactRbf()
+	{
+		if( transformType.equals( TransformTypeSelectDialog.COMPACT_RBF ))
+		{
+			WrappedIterativeInvertibleRealTransform<?> wiirt = (WrappedIterativeInvertibleRealTransform<?>)( unwrap2d( getTransformation()) );
+			return ((CompactRbfTransform)wiirt.getTransform());
+		}
+		return null;
+	}
+
+	/*
+	 * The affine part of a non-linear transform, without the identity.
+	 */
+	private double[][] getNonlinearAffine()
+	{
+		if( transformType.equals( TransformTypeSelectDialog.COMPACT_RBF ))
+			return getCompactRbf().getAffine();
+		else
+			return getTpsBase().getAffine();
+	}
+
+	private double[] getNonlinearTranslation()
+	{
+		if( transformType.equals( TransformTypeSelectDialog.COMPACT_RBF ))
+			return getCompactRbf().getTranslation();
+		else
+			return getTpsBase().getTranslation();
+	}
+
 	public ThinplateSplineTransform getTps()
 	{
 		if( transformType.equals( TransformTypeSelectDialog.TPS ))
@@ -416,7 +712,7 @@ public class BigWarpTransform
 	public String affineToString()
 	{
 		String s = "";
-		if( getTransformType().equals( TransformTypeSelectDialog.TPS ))
+		if( !isLinear( getTransformType() ))
 		{
 			double[][] affine = affinePartOfTpsHC();
 			for( int r = 0; r < affine.length; r++ )
@@ -456,9 +752,8 @@ public class BigWarpTransform
 			mtx = new double[3][4];
 		}
 		
-		ThinPlateR2LogRSplineKernelTransform tps = getTpsBase();
-		double[][] tpsAffine = tps.getAffine();
-		double[] translation = tps.getTranslation();
+		double[][] tpsAffine = getNonlinearAffine();
+		double[] translation = getNonlinearTranslation();
 		for( int r = 0; r < nr; r++ )
 			for( int c = 0; c < nc; c++ )
 			{
@@ -0,0 +1,246 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * A transformation made of an affine part plus a sum of compactly supported
+ * radial basis functions (Wendland's C2 function) centered at landmarks:
+ * <pre>
+ * y = x + A x + b + sum_i w_i phi( |x - p_i| / s )
+ * phi( r ) = ( 1 - r )^4 ( 4r + 1 ) for r &lt; 1, and 0 otherwise
+ * </pre>
+ * Only landmarks closer than the support radius s contribute to the
+ * transformation at a point. They are found with a {@link LandmarkCellIndex},
+ * so evaluation cost does not grow with the total number of landmarks.
+ * <p>
+ * Instances share their (immutable) parameters with their copies, but are not
+ * thread safe themselves.
+ */
+public class CompactRbfTransform implements RealTransform
+{
+	private final int ndims;
+
+	private final int numLandmarks;
+
+	private final double[][] centers;
+
+	// [numLandmarks * ndims]
+	private final double[] weights;
+
+	// affine part of the displacement [ndims][ndims]
+	private final double[][] affine;
+
+	private final double[] translation;
+
+	private final double supportRadius;
+
+	private final LandmarkCellIndex index;
+
+	private final double[] tmp;
+
+	private final int[] cell;
+
+	private final int[] offset;
+
+	/**
+	 * @param centers the landmarks [ndims][N]
+	 * @param weights the weights of the basis functions, the d-th component of the i-th landmark at [ i * ndims + d ]
+	 * @param affine the affine part of the displacement [ndims][ndims]
+	 * @param translation the translation [ndims]
+	 * @param supportRadius the support radius of the basis functions
+	 */
+	public CompactRbfTransform( final double[][] centers, final double[] weights, final double[][] affine, final double[] translation, final double supportRadius )
+	{
+		this( centers, weights, affine, translation, supportRadius,
+				new LandmarkCellIndex( centers, centers[ 0 ].length, supportRadius ) );
+	}
+
+	protected CompactRbfTransform( final double[][] centers, final double[] weights, final double[][] affine, final double[] translation, final double supportRadius,
+			final LandmarkCellIndex index )
+	{
+		this.ndims = centers.length;
+		this.numLandmarks = centers[ 0 ].length;
+		this.centers = centers;
+		this.weights = weights;
+		this.affine = affine;
+		this.translation = translation;
+		this.supportRadius = supportRadius;
+		this.index = index;
+
+		tmp = new double[ ndims ];
+		cell = new int[ ndims ];
+		offset = new int[ ndims ];
+	}
+
+	public double[][] getCenters()
+	{
+		return centers;
+	}
+
+	public double[] getWeights()
+	{
+		return weights;
+	}
+
+	public double[][] getAffine()
+	{
+		return affine;
+	}
+
+	public double[] getTranslation()
+	{
+		return translation;
+	}
+
+	public double getSupportRadius()
+	{
+		return supportRadius;
+	}
+
+	public int getNumLandmarks()
+	{
+		return numLandmarks;
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return ndims;
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return ndims;
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		for ( int d = 0; d < ndims; d++ )
+			tmp[ d ] = source[ d ];
+
+		compute( tmp, target );
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		source.localize( tmp );
+		final double[] res = new double[ ndims ];
+		compute( tmp, res );
+		target.setPosition( res );
+	}
+
+	/*
+	 * x and y must not be the same array.
+	 */
+	private void compute( final double[] x, final double[] y )
+	{
+		for ( int i = 0; i < ndims; i++ )
+		{
+			double v = x[ i ] + translation[ i ];
+			for ( int j = 0; j < ndims; j++ )
+				v += affine[ i ][ j ] * x[ j ];
+
+			y[ i ] = v;
+		}
+
+		for ( int d = 0; d < ndims; d++ )
+		{
+			cell[ d ] = index.cell( x[ d ] );
+			offset[ d ] = -1;
+		}
+
+		final double s2 = supportRadius * supportRadius;
+		while ( true )
+		{
+			long key = 0;
+			for ( int d = 0; d < ndims; d++ )
+				key = LandmarkCellIndex.pack( key, cell[ d ] + offset[ d ], d );
+
+			final int c = index.find( key );
+			if ( c >= 0 )
+			{
+				for ( int k = index.cellStart( c ); k < index.cellEnd( c ); k++ )
+				{
+					final int l = index.pointIndex( k );
+					double r2 = 0;
+					for ( int d = 0; d < ndims; d++ )
+					{
+						final double diff = x[ d ] - centers[ d ][ l ];
+						r2 += diff * diff;
+					}
+					if ( r2 < s2 )
+					{
+						final double phi = wendland( Math.sqrt( r2 ) / supportRadius );
+						for ( int d = 0; d < ndims; d++ )
+							y[ d ] += phi * weights[ l * ndims + d ];
+					}
+				}
+			}
+
+			// next of the 3^ndims neighboring cells
+			int d = 0;
+			while ( d < ndims && offset[ d ] == 1 )
+				offset[ d++ ] = -1;
+
+			if ( d == ndims )
+				break;
+
+			offset[ d ]++;
+		}
+	}
+
+	/**
+	 * Wendland's compactly supported C2 function, positive definite in up to
+	 * three dimensions.
+	 *
+	 * @param r the distance relative to the support radius
+	 * @return the function value
+	 */
+	public static double wendland( final double r )
+	{
+		if ( r >= 1 )
+			return 0;
+
+		final double a = 1 - r;
+		final double a2 = a * a;
+		return a2 * a2 * ( 4 * r + 1 );
+	}
+
+	@Override
+	public CompactRbfTransform copy()
+	{
+		return new CompactRbfTransform( centers, weights, affine, translation, supportRadius, index );
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "CompactRbfTransform( %d landmarks, support radius %f )", numLandmarks, supportRadius );
+	}
+}
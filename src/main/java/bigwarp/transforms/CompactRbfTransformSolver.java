@@ -0,0 +1,420 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import java.util.Arrays;
+
+import Jama.LUDecomposition;
+import Jama.Matrix;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+
+/**
+ * Estimates a {@link CompactRbfTransform} from landmarks.
+ * <p>
+ * The affine part is the least squares fit of the landmark displacements,
+ * the basis function weights interpolate the residual displacements. Because
+ * every basis function is supported only near its landmark, the interpolation
+ * matrix is sparse. It is symmetric positive definite, and the system is
+ * solved with a Jacobi-preconditioned conjugate gradient method, warm started
+ * from the previous solution when the number of landmarks is unchanged.
+ * <p>
+ * As for the thin plate spline, the transformation maps target points to
+ * moving points.
+ */
+public class CompactRbfTransformSolver extends AbstractTransformSolver< WrappedIterativeInvertibleRealTransform< ? > >
+{
+	/**
+	 * The number of landmarks that should lie within the support of each basis
+	 * function when the support radius is chosen automatically.
+	 */
+	public static final int DEFAULT_NEIGHBORS = 24;
+
+	private double supportRadius = -1;
+
+	private double regularization = 0;
+
+	private double tolerance = 1e-10;
+
+	private double[] weights;
+
+	public CompactRbfTransformSolver()
+	{}
+
+	/**
+	 * Sets the support radius of the basis functions. A non-positive value
+	 * chooses the radius from the density of the landmarks.
+	 *
+	 * @param supportRadius the support radius
+	 */
+	public void setSupportRadius( final double supportRadius )
+	{
+		this.supportRadius = supportRadius;
+	}
+
+	public double getSupportRadius()
+	{
+		return supportRadius;
+	}
+
+	/**
+	 * Sets the weight of a smoothness term. With a positive value the
+	 * transformation approximates rather than interpolates the landmarks.
+	 *
+	 * @param regularization the regularization weight
+	 */
+	public void setRegularization( final double regularization )
+	{
+		this.regularization = regularization;
+	}
+
+	public double getRegularization()
+	{
+		return regularization;
+	}
+
+	@Override
+	public synchronized WrappedIterativeInvertibleRealTransform< ? > solve( final double[][] mvgPts, final double[][] tgtPts )
+	{
+		return new WrappedIterativeInvertibleRealTransform< CompactRbfTransform >( solveRbf( mvgPts, tgtPts ) );
+	}
+
+	/**
+	 * Estimates the transformation from target to moving points.
+	 *
+	 * @param mvgPts the moving points [ndims][N]
+	 * @param tgtPts the target points [ndims][N]
+	 * @return the transformation
+	 */
+	public synchronized CompactRbfTransform solveRbf( final double[][] mvgPts, final double[][] tgtPts )
+	{
+		final int ndims = tgtPts.length;
+		final int N = tgtPts[ 0 ].length;
+
+		// copy, the transform keeps these
+		final double[][] src = new double[ ndims ][];
+		for ( int d = 0; d < ndims; d++ )
+			src[ d ] = Arrays.copyOf( tgtPts[ d ], N );
+
+		final double[][] affine = new double[ ndims ][ ndims ];
+		final double[] translation = new double[ ndims ];
+		fitAffine( src, mvgPts, affine, translation );
+
+		// residual displacement after the affine
+		final double[][] residual = new double[ ndims ][ N ];
+		for ( int i = 0; i < N; i++ )
+			for ( int d = 0; d < ndims; d++ )
+			{
+				double v = mvgPts[ d ][ i ] - src[ d ][ i ] - translation[ d ];
+				for ( int j = 0; j < ndims; j++ )
+					v -= affine[ d ][ j ] * src[ j ][ i ];
+
+				residual[ d ][ i ] = v;
+			}
+
+		final double radius = supportRadius > 0 ? supportRadius : estimateSupportRadius( src, DEFAULT_NEIGHBORS );
+		final LandmarkCellIndex index = new LandmarkCellIndex( src, N, radius );
+		final SparseSymmetricMatrix mtx = buildMatrix( src, index, radius );
+
+		if ( weights == null || weights.length != N * ndims )
+			weights = new double[ N * ndims ];
+
+		final double[] b = new double[ N ];
+		final double[] x = new double[ N ];
+		final double[] out = new double[ N * ndims ];
+		for ( int d = 0; d < ndims; d++ )
+		{
+			for ( int i = 0; i < N; i++ )
+			{
+				b[ i ] = residual[ d ][ i ];
+				x[ i ] = weights[ i * ndims + d ];
+			}
+
+			mtx.solve( b, x, tolerance, Math.max( 100, 4 * N ) );
+
+			for ( int i = 0; i < N; i++ )
+				out[ i * ndims + d ] = x[ i ];
+		}
+		System.arraycopy( out, 0, weights, 0, out.length );
+
+		return new CompactRbfTransform( src, out, affine, translation, radius, index );
+	}
+
+	/**
+	 * Chooses a support radius such that on average k landmarks lie within
+	 * the support of each basis function.
+	 *
+	 * @param pts the landmarks
+	 * @param k the desired number of neighbors
+	 * @return the radius
+	 */
+	public static double estimateSupportRadius( final double[][] pts, final int k )
+	{
+		final int ndims = pts.length;
+		final int N = pts[ 0 ].length;
+
+		double volume = 1;
+		double maxExtent = 0;
+		for ( int d = 0; d < ndims; d++ )
+		{
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			for ( int i = 0; i < N; i++ )
+			{
+				min = Math.min( min, pts[ d ][ i ] );
+				max = Math.max( max, pts[ d ][ i ] );
+			}
+			maxExtent = Math.max( maxExtent, max - min );
+			volume *= Math.max( max - min, 1e-9 );
+		}
+		if ( maxExtent <= 0 )
+			return 1;
+
+		// volume of the unit ball
+		final double unitBall = ndims == 2 ? Math.PI : ndims == 3 ? 4 * Math.PI / 3 : 2;
+		final double r = Math.pow( k * volume / ( N * unitBall ), 1.0 / ndims );
+
+		// for degenerate (e.g. planar) point sets, the volume underestimates the radius
+		return Math.max( r, maxExtent / Math.pow( N, 1.0 / ndims ) );
+	}
+
+	private SparseSymmetricMatrix buildMatrix( final double[][] pts, final LandmarkCellIndex index, final double radius )
+	{
+		final int ndims = pts.length;
+		final int N = pts[ 0 ].length;
+		final double r2max = radius * radius;
+
+		final int[] rowStart = new int[ N + 1 ];
+		int[] cols = new int[ N * 8 ];
+		double[] vals = new double[ N * 8 ];
+
+		final int[] cell = new int[ ndims ];
+		final int[] offset = new int[ ndims ];
+		int nnz = 0;
+		for ( int i = 0; i < N; i++ )
+		{
+			rowStart[ i ] = nnz;
+			for ( int d = 0; d < ndims; d++ )
+			{
+				cell[ d ] = index.cell( pts[ d ][ i ] );
+				offset[ d ] = -1;
+			}
+
+			while ( true )
+			{
+				long key = 0;
+				for ( int d = 0; d < ndims; d++ )
+					key = LandmarkCellIndex.pack( key, cell[ d ] + offset[ d ], d );
+
+				final int c = index.find( key );
+				if ( c >= 0 )
+				{
+					for ( int k = index.cellStart( c ); k < index.cellEnd( c ); k++ )
+					{
+						final int j = index.pointIndex( k );
+						double r2 = 0;
+						for ( int d = 0; d < ndims; d++ )
+						{
+							final double diff = pts[ d ][ i ] - pts[ d ][ j ];
+							r2 += diff * diff;
+						}
+						if ( r2 < r2max )
+						{
+							if ( nnz == cols.length )
+							{
+								cols = Arrays.copyOf( cols, 2 * nnz );
+								vals = Arrays.copyOf( vals, 2 * nnz );
+							}
+							cols[ nnz ] = j;
+							vals[ nnz ] = CompactRbfTransform.wendland( Math.sqrt( r2 ) / radius ) + ( i == j ? regularization : 0 );
+							nnz++;
+						}
+					}
+				}
+
+				int d = 0;
+				while ( d < ndims && offset[ d ] == 1 )
+					offset[ d++ ] = -1;
+
+				if ( d == ndims )
+					break;
+
+				offset[ d ]++;
+			}
+		}
+		rowStart[ N ] = nnz;
+		return new SparseSymmetricMatrix( N, rowStart, cols, vals );
+	}
+
+	/**
+	 * Least squares fit of y = x + A x + b.
+	 */
+	private static void fitAffine( final double[][] x, final double[][] y, final double[][] affine, final double[] translation )
+	{
+		final int ndims = x.length;
+		final int N = x[ 0 ].length;
+		final int n = ndims + 1;
+		if ( N < n )
+			return;
+
+		// normal equations with homogeneous coordinates
+		final double[][] ata = new double[ n ][ n ];
+		final double[][] atb = new double[ n ][ ndims ];
+		final double[] h = new double[ n ];
+		for ( int i = 0; i < N; i++ )
+		{
+			for ( int d = 0; d < ndims; d++ )
+				h[ d ] = x[ d ][ i ];
+			h[ ndims ] = 1;
+
+			for ( int r = 0; r < n; r++ )
+			{
+				for ( int c = 0; c < n; c++ )
+					ata[ r ][ c ] += h[ r ] * h[ c ];
+
+				for ( int d = 0; d < ndims; d++ )
+					atb[ r ][ d ] += h[ r ] * ( y[ d ][ i ] - x[ d ][ i ] );
+			}
+		}
+
+		final LUDecomposition lu = new LUDecomposition( new Matrix( ata ) );
+		if ( !lu.isNonsingular() )
+			return;
+
+		final Matrix sol = lu.solve( new Matrix( atb ) );
+		for ( int d = 0; d < ndims; d++ )
+		{
+			for ( int j = 0; j < ndims; j++ )
+				affine[ d ][ j ] = sol.get( j, d );
+
+			translation[ d ] = sol.get( ndims, d );
+		}
+	}
+
+	/**
+	 * A symmetric positive definite matrix in compressed row storage.
+	 */
+	protected static class SparseSymmetricMatrix
+	{
+		final int n;
+
+		final int[] rowStart;
+
+		final int[] cols;
+
+		final double[] vals;
+
+		final double[] diag;
+
+		SparseSymmetricMatrix( final int n, final int[] rowStart, final int[] cols, final double[] vals )
+		{
+			this.n = n;
+			this.rowStart = rowStart;
+			this.cols = cols;
+			this.vals = vals;
+
+			diag = new double[ n ];
+			for ( int i = 0; i < n; i++ )
+				for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; k++ )
+					if ( cols[ k ] == i )
+						diag[ i ] = vals[ k ];
+		}
+
+		void multiply( final double[] x, final double[] y )
+		{
+			for ( int i = 0; i < n; i++ )
+			{
+				double s = 0;
+				for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; k++ )
+					s += vals[ k ] * x[ cols[ k ] ];
+
+				y[ i ] = s;
+			}
+		}
+
+		/**
+		 * Jacobi-preconditioned conjugate gradient.
+		 *
+		 * @return the number of iterations
+		 */
+		int solve( final double[] b, final double[] x, final double tolerance, final int maxIters )
+		{
+			final double[] r = new double[ n ];
+			final double[] z = new double[ n ];
+			final double[] p = new double[ n ];
+			final double[] q = new double[ n ];
+
+			multiply( x, q );
+			double bnorm = 0;
+			for ( int i = 0; i < n; i++ )
+			{
+				r[ i ] = b[ i ] - q[ i ];
+				bnorm += b[ i ] * b[ i ];
+			}
+			if ( bnorm == 0 )
+			{
+				Arrays.fill( x, 0 );
+				return 0;
+			}
+			final double tol2 = tolerance * tolerance * bnorm;
+
+			double rz = 0;
+			for ( int i = 0; i < n; i++ )
+			{
+				z[ i ] = r[ i ] / diag[ i ];
+				p[ i ] = z[ i ];
+				rz += r[ i ] * z[ i ];
+			}
+
+			int iter = 0;
+			for ( ; iter < maxIters; iter++ )
+			{
+				double rr = 0;
+				for ( int i = 0; i < n; i++ )
+					rr += r[ i ] * r[ i ];
+
+				if ( rr <= tol2 )
+					break;
+
+				multiply( p, q );
+				double pq = 0;
+				for ( int i = 0; i < n; i++ )
+					pq += p[ i ] * q[ i ];
+
+				final double alpha = rz / pq;
+				double rzNew = 0;
+				for ( int i = 0; i < n; i++ )
+				{
+					x[ i ] += alpha * p[ i ];
+					r[ i ] -= alpha * q[ i ];
+					z[ i ] = r[ i ] / diag[ i ];
+					rzNew += r[ i ] * z[ i ];
+				}
+
+				final double beta = rzNew / rz;
+				rz = rzNew;
+				for ( int i = 0; i < n; i++ )
+					p[ i ] = z[ i ] + beta * p[ i ];
+			}
+			return iter;
+		}
+	}
+}
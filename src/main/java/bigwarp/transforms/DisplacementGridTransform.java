@@ -0,0 +1,573 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.Wrapped2DTransformAs3D;
+
+/**
+ * A proxy for an expensive transformation, for interactive rendering.
+ * <p>
+ * The displacement of the transformation is sampled onto a regular grid and
+ * interpolated linearly. The grid is split into blocks of
+ * {@link #BLOCK_SIZE}^n cells that are sampled lazily, the first time a point
+ * in them is transformed, and are shared by all copies of this transform. When
+ * a block is sampled, the interpolation error is checked at a subset of cell
+ * centers. Blocks where it exceeds the tolerance are not interpolated, but
+ * the transformation is evaluated exactly there.
+ * <p>
+ * When the transformation changes, {@link #update(RealTransform, RealInterval)}
+ * returns a new proxy that reuses blocks away from the region that was
+ * edited. Reused blocks are checked against the new transformation at their
+ * corners and center before they are used, and are sampled again if they
+ * differ by more than half the tolerance.
+ * <p>
+ * Sampled values are kept for at most {@link #MAX_BYTES}, the least recently
+ * used blocks are discarded first. Blocks that are evaluated exactly keep no
+ * values.
+ * <p>
+ * Not thread safe, use copies.
+ */
+public class DisplacementGridTransform implements RealTransform
+{
+	/**
+	 * The number of grid cells along each side of a block.
+	 */
+	public static final int BLOCK_SIZE = 16;
+
+	protected static final int CHECK_STRIDE = 4;
+
+	/**
+	 * The largest memory used by the sampled values of a grid, including
+	 * the blocks of the previous transformation.
+	 */
+	public static final long MAX_BYTES = 64L << 20;
+
+	private static final long MAX_BLOCK_COORDINATE = 1L << 19;
+
+	private final Grid grid;
+
+	// the exact transformation, of grid.ndims dimensions
+	private final RealTransform exact;
+
+	private final int numDimensions;
+
+	private final double[] x;
+
+	private final double[] y;
+
+	private final long[] blockCoords;
+
+	private final int[] cornerIndex;
+
+	private final double[] fraction;
+
+	private long lastKey;
+
+	private Block lastBlock;
+
+	protected DisplacementGridTransform( final Grid grid, final RealTransform exact, final int numDimensions )
+	{
+		this.grid = grid;
+		this.exact = exact;
+		this.numDimensions = numDimensions;
+
+		final int nd = grid.ndims;
+		x = new double[ nd ];
+		y = new double[ nd ];
+		blockCoords = new long[ nd ];
+		cornerIndex = new int[ nd ];
+		fraction = new double[ nd ];
+		lastBlock = null;
+	}
+
+	/**
+	 * Creates a proxy for the given transformation. Transformations of 2d
+	 * images that are wrapped as 3d are sampled on a 2d grid.
+	 *
+	 * @param xfm the exact transformation
+	 * @param spacing the spacing of the grid
+	 * @param tolerance the largest interpolation error
+	 * @return the proxy
+	 */
+	public static DisplacementGridTransform create( final RealTransform xfm, final double spacing, final double tolerance )
+	{
+		if ( xfm instanceof Wrapped2DTransformAs3D )
+		{
+			final RealTransform inner = ( ( Wrapped2DTransformAs3D ) xfm ).getTransform();
+			return new DisplacementGridTransform( new Grid( 2, spacing, tolerance, null, null ), inner.copy(), 3 );
+		}
+
+		final int nd = xfm.numSourceDimensions();
+		return new DisplacementGridTransform( new Grid( nd, spacing, tolerance, null, null ), xfm.copy(), nd );
+	}
+
+	/**
+	 * Creates a proxy for a new transformation with the same grid, reusing
+	 * the blocks of this proxy that do not intersect the affected region
+	 * if they still agree with the new transformation.
+	 *
+	 * @param xfm the new exact transformation
+	 * @param affected the region where the transformation changed most, or null if unknown, then no blocks are reused
+	 * @return the new proxy
+	 */
+	public DisplacementGridTransform update( final RealTransform xfm, final RealInterval affected )
+	{
+		final RealTransform inner = xfm instanceof Wrapped2DTransformAs3D ? ( ( Wrapped2DTransformAs3D ) xfm ).getTransform() : xfm;
+		if ( inner.numSourceDimensions() != grid.ndims )
+			return create( xfm, grid.spacing, grid.tolerance );
+
+		return new DisplacementGridTransform( new Grid( grid.ndims, grid.spacing, grid.tolerance, grid, affected ),
+				inner.copy(), numDimensions );
+	}
+
+	public double getSpacing()
+	{
+		return grid.spacing;
+	}
+
+	public double getTolerance()
+	{
+		return grid.tolerance;
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return numDimensions;
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return numDimensions;
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		for ( int d = 0; d < grid.ndims; d++ )
+			x[ d ] = source[ d ];
+
+		compute();
+
+		for ( int d = 0; d < grid.ndims; d++ )
+			target[ d ] = y[ d ];
+
+		for ( int d = grid.ndims; d < numDimensions; d++ )
+			target[ d ] = source[ d ];
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		for ( int d = 0; d < grid.ndims; d++ )
+			x[ d ] = source.getDoublePosition( d );
+
+		compute();
+
+		for ( int d = 0; d < grid.ndims; d++ )
+			target.setPosition( y[ d ], d );
+
+		for ( int d = grid.ndims; d < numDimensions; d++ )
+			target.setPosition( source.getDoublePosition( d ), d );
+	}
+
+	/*
+	 * Transforms x into y.
+	 */
+	private void compute()
+	{
+		final int nd = grid.ndims;
+		final double blockWidth = grid.spacing * BLOCK_SIZE;
+
+		long key = 0;
+		for ( int d = 0; d < nd; d++ )
+		{
+			final long c = ( long ) Math.floor( x[ d ] / blockWidth );
+			if ( c <= -MAX_BLOCK_COORDINATE || c >= MAX_BLOCK_COORDINATE )
+			{
+				exact.apply( x, y );
+				return;
+			}
+			blockCoords[ d ] = c;
+			key = LandmarkCellIndex.pack( key, ( int ) c, d );
+		}
+
+		final Block block;
+		if ( lastBlock != null && key == lastKey )
+			block = lastBlock;
+		else
+		{
+			block = grid.getBlock( key, blockCoords, exact );
+			lastKey = key;
+			lastBlock = block;
+		}
+
+		if ( block.exact )
+			exact.apply( x, y );
+		else
+			interpolate( block );
+	}
+
+	private void interpolate( final Block block )
+	{
+		final int nd = grid.ndims;
+		for ( int d = 0; d < nd; d++ )
+		{
+			final double u = x[ d ] / grid.spacing - blockCoords[ d ] * BLOCK_SIZE;
+			final int i = Math.max( 0, Math.min( BLOCK_SIZE - 1, ( int ) Math.floor( u ) ) );
+			cornerIndex[ d ] = i;
+			fraction[ d ] = u - i;
+		}
+
+		grid.interpolate( block.values, cornerIndex, fraction, y );
+		for ( int d = 0; d < nd; d++ )
+			y[ d ] += x[ d ];
+	}
+
+	/**
+	 * @return the memory used by the sampled values of the grid of this proxy
+	 */
+	long getCachedBytes()
+	{
+		return grid.getCachedBytes();
+	}
+
+	@Override
+	public DisplacementGridTransform copy()
+	{
+		return new DisplacementGridTransform( grid, exact.copy(), numDimensions );
+	}
+
+	/**
+	 * The sampled displacements of one block, ( BLOCK_SIZE + 1 )^n points.
+	 */
+	protected static class Block
+	{
+		// null if exact
+		final double[] values;
+
+		// true if the interpolation error exceeds the tolerance
+		final boolean exact;
+
+		Block( final double[] values, final boolean exact )
+		{
+			this.values = values;
+			this.exact = exact;
+		}
+
+		long bytes()
+		{
+			return values == null ? 0 : 8L * values.length;
+		}
+	}
+
+	/**
+	 * The grid geometry and the blocks sampled so far, shared between copies.
+	 */
+	protected static class Grid
+	{
+		final int ndims;
+
+		final double spacing;
+
+		final double tolerance;
+
+		final int pointsPerSide;
+
+		final int[] strides;
+
+		// in access order, least recently used first
+		private final LinkedHashMap< Long, Block > blocks;
+
+		// blocks of a previous transformation that are yet to be verified,
+		// discarded before any block of this grid
+		private final LinkedHashMap< Long, Block > previous;
+
+		// the memory used by both
+		private long bytes;
+
+		Grid( final int ndims, final double spacing, final double tolerance, final Grid old, final RealInterval affected )
+		{
+			this.ndims = ndims;
+			this.spacing = spacing;
+			this.tolerance = tolerance;
+
+			pointsPerSide = BLOCK_SIZE + 1;
+			strides = new int[ ndims ];
+			strides[ 0 ] = 1;
+			for ( int d = 1; d < ndims; d++ )
+				strides[ d ] = strides[ d - 1 ] * pointsPerSide;
+
+			blocks = new LinkedHashMap<>( 16, 0.75f, true );
+			previous = new LinkedHashMap<>();
+
+			// an unknown change invalidates all blocks
+			if ( old != null && affected != null )
+			{
+				synchronized ( old )
+				{
+					for ( final Map.Entry< Long, Block > e : old.previous.entrySet() )
+						if ( !intersects( e.getKey(), affected ) )
+							previous.put( e.getKey(), e.getValue() );
+
+					for ( final Map.Entry< Long, Block > e : old.blocks.entrySet() )
+						if ( !intersects( e.getKey(), affected ) )
+							previous.put( e.getKey(), e.getValue() );
+				}
+
+				for ( final Block block : previous.values() )
+					bytes += block.bytes();
+
+				evict();
+			}
+		}
+
+		synchronized long getCachedBytes()
+		{
+			return bytes;
+		}
+
+		/*
+		 * True if the block with the given key is within one grid spacing of
+		 * the region.
+		 */
+		private boolean intersects( final long key, final RealInterval region )
+		{
+			final double blockWidth = spacing * BLOCK_SIZE;
+			for ( int d = 0; d < ndims && d < region.numDimensions(); d++ )
+			{
+				final long c = LandmarkCellIndex.unpack( key, d );
+				final double min = c * blockWidth - spacing;
+				final double max = ( c + 1 ) * blockWidth + spacing;
+				if ( region.realMax( d ) < min || region.realMin( d ) > max )
+					return false;
+			}
+			return true;
+		}
+
+		Block getBlock( final long key, final long[] blockCoords, final RealTransform exact )
+		{
+			final Block old;
+			synchronized ( this )
+			{
+				final Block block = blocks.get( key );
+				if ( block != null )
+					return block;
+
+				old = previous.remove( key );
+				if ( old != null )
+					bytes -= old.bytes();
+			}
+
+			// sample outside of the lock, another thread may do the same
+			// block meanwhile. Exact blocks are correct for any transformation.
+			final Block block;
+			if ( old != null && ( old.exact || verify( old, blockCoords, exact ) ) )
+				block = old;
+			else
+				block = sample( blockCoords, exact );
+
+			synchronized ( this )
+			{
+				final Block other = blocks.get( key );
+				if ( other != null )
+					return other;
+
+				blocks.put( key, block );
+				bytes += block.bytes();
+				evict();
+				return block;
+			}
+		}
+
+		/*
+		 * Discards blocks of the previous transformation, then the least
+		 * recently used blocks, until within MAX_BYTES.
+		 */
+		private void evict()
+		{
+			while ( bytes > MAX_BYTES )
+			{
+				final Iterator< Block > it = previous.isEmpty() ? blocks.values().iterator() : previous.values().iterator();
+				if ( !it.hasNext() )
+					return;
+
+				bytes -= it.next().bytes();
+				it.remove();
+			}
+		}
+
+		private Block sample( final long[] blockCoords, final RealTransform exact )
+		{
+			final int nd = ndims;
+			final int numPoints = strides[ nd - 1 ] * pointsPerSide;
+			final double[] values = new double[ numPoints * nd ];
+
+			final int[] pos = new int[ nd ];
+			final double[] p = new double[ nd ];
+			final double[] q = new double[ nd ];
+			for ( int i = 0; i < numPoints; i++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+					p[ d ] = ( blockCoords[ d ] * BLOCK_SIZE + pos[ d ] ) * spacing;
+
+				exact.apply( p, q );
+				for ( int d = 0; d < nd; d++ )
+					values[ i * nd + d ] = q[ d ] - p[ d ];
+
+				next( pos, pointsPerSide );
+			}
+
+			if ( withinTolerance( values, blockCoords, exact ) )
+				return new Block( values, false );
+			else
+				return new Block( null, true );
+		}
+
+		/*
+		 * Compares interpolated and exact values at the centers of every
+		 * CHECK_STRIDE-th cell.
+		 */
+		private boolean withinTolerance( final double[] values, final long[] blockCoords, final RealTransform exact )
+		{
+			final int nd = ndims;
+			final int[] pos = new int[ nd ];
+			final double[] fraction = new double[ nd ];
+			final double[] p = new double[ nd ];
+			final double[] q = new double[ nd ];
+			final double[] r = new double[ nd ];
+			final int checksPerSide = BLOCK_SIZE / CHECK_STRIDE;
+
+			Arrays.fill( fraction, 0.5 );
+			final int numChecks = ( int ) Math.pow( checksPerSide, nd );
+			final int[] check = new int[ nd ];
+			for ( int i = 0; i < numChecks; i++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+				{
+					pos[ d ] = check[ d ] * CHECK_STRIDE + CHECK_STRIDE / 2;
+					p[ d ] = ( blockCoords[ d ] * BLOCK_SIZE + pos[ d ] + 0.5 ) * spacing;
+				}
+
+				exact.apply( p, q );
+				interpolate( values, pos, fraction, r );
+				for ( int d = 0; d < nd; d++ )
+					if ( Math.abs( q[ d ] - p[ d ] - r[ d ] ) > tolerance )
+						return false;
+
+				next( check, checksPerSide );
+			}
+			return true;
+		}
+
+		/*
+		 * Compares the block with the exact transformation at its corners
+		 * and center.
+		 */
+		private boolean verify( final Block block, final long[] blockCoords, final RealTransform exact )
+		{
+			final int nd = ndims;
+			final int[] pos = new int[ nd ];
+			final double[] p = new double[ nd ];
+			final double[] q = new double[ nd ];
+			final double[] r = new double[ nd ];
+			final double[] fraction = new double[ nd ];
+
+			for ( int corner = 0; corner <= ( 1 << nd ); corner++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+				{
+					if ( corner == ( 1 << nd ) )
+					{
+						// the center
+						pos[ d ] = BLOCK_SIZE / 2;
+						fraction[ d ] = 0;
+					}
+					else
+					{
+						// corners are at the upper end of the last cell
+						pos[ d ] = ( corner >> d & 1 ) == 0 ? 0 : BLOCK_SIZE - 1;
+						fraction[ d ] = ( corner >> d & 1 ) == 0 ? 0 : 1;
+					}
+					p[ d ] = ( blockCoords[ d ] * BLOCK_SIZE + pos[ d ] + fraction[ d ] ) * spacing;
+				}
+
+				exact.apply( p, q );
+				interpolate( block.values, pos, fraction, r );
+				for ( int d = 0; d < nd; d++ )
+					if ( Math.abs( q[ d ] - p[ d ] - r[ d ] ) > tolerance / 2 )
+						return false;
+			}
+			return true;
+		}
+
+		/*
+		 * Multilinear interpolation of the displacement in the cell with
+		 * lower corner at grid position pos.
+		 */
+		void interpolate( final double[] values, final int[] pos, final double[] fraction, final double[] out )
+		{
+			final int nd = ndims;
+			for ( int d = 0; d < nd; d++ )
+				out[ d ] = 0;
+
+			for ( int corner = 0; corner < ( 1 << nd ); corner++ )
+			{
+				double w = 1;
+				int index = 0;
+				for ( int d = 0; d < nd; d++ )
+				{
+					final int bit = corner >> d & 1;
+					w *= bit == 0 ? 1 - fraction[ d ] : fraction[ d ];
+					index += ( pos[ d ] + bit ) * strides[ d ];
+				}
+
+				if ( w == 0 )
+					continue;
+
+				for ( int d = 0; d < nd; d++ )
+					out[ d ] += w * values[ index * nd + d ];
+			}
+		}
+
+		private static void next( final int[] pos, final int size )
+		{
+			for ( int d = 0; d < pos.length; d++ )
+			{
+				if ( ++pos[ d ] < size )
+					return;
+
+				pos[ d ] = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+
+/**
+ * A thin plate spline whose inverse is approximated by a second thin plate
+ * spline, estimated from the same landmarks with moving and target points
+ * swapped, rather than computed iteratively.
+ * <p>
+ * Both splines agree exactly at the landmarks, but are not exact inverses of
+ * each other between them. {@link #getLandmarkResidual()} and
+ * {@link #getMidpointResidual()} measure how far apart they are, and
+ * {@link #residual} measures it for any point. Applying the inverse costs as
+ * much as applying the forward transformation, no iterations are needed.
+ * <p>
+ * Extends {@link WrappedIterativeInvertibleRealTransform} so that code
+ * expecting an iteratively inverted thin plate spline can use it, its
+ * optimizer is not used. Not thread safe, use copies.
+ */
+public class DualTpsTransform extends WrappedIterativeInvertibleRealTransform< ThinplateSplineTransform >
+{
+	private final ThinplateSplineTransform inverseTps;
+
+	private final double[] tmp;
+
+	private final double[] tmp2;
+
+	// computed on first request, negative until then
+	private double landmarkResidual = -1;
+
+	private double midpointResidual = -1;
+
+	/**
+	 * @param forward the thin plate spline
+	 * @param inverse the thin plate spline with moving and target points swapped
+	 */
+	public DualTpsTransform( final ThinplateSplineTransform forward, final ThinplateSplineTransform inverse )
+	{
+		super( forward );
+		this.inverseTps = inverse;
+		tmp = new double[ forward.numSourceDimensions() ];
+		tmp2 = new double[ forward.numSourceDimensions() ];
+	}
+
+	/**
+	 * @return the thin plate spline that approximates the inverse
+	 */
+	public ThinplateSplineTransform getInverseTransform()
+	{
+		return inverseTps;
+	}
+
+	@Override
+	public void applyInverse( final double[] source, final double[] target )
+	{
+		// copy since source and target may be the same array
+		for ( int d = 0; d < tmp.length; d++ )
+			tmp[ d ] = target[ d ];
+
+		inverseTps.apply( tmp, tmp2 );
+
+		for ( int d = 0; d < tmp.length; d++ )
+			source[ d ] = tmp2[ d ];
+	}
+
+	@Override
+	public void applyInverse( final RealPositionable source, final RealLocalizable target )
+	{
+		for ( int d = 0; d < tmp.length; d++ )
+			tmp[ d ] = target.getDoublePosition( d );
+
+		inverseTps.apply( tmp, tmp2 );
+
+		for ( int d = 0; d < tmp.length; d++ )
+			source.setPosition( tmp2[ d ], d );
+	}
+
+	/**
+	 * The distance between a point and the forward transformation of its
+	 * approximate inverse.
+	 *
+	 * @param source the approximate inverse of target
+	 * @param target the point
+	 * @return the distance
+	 */
+	public double residual( final double[] source, final double[] target )
+	{
+		getTransform().apply( source, tmp );
+		double e = 0;
+		for ( int d = 0; d < tmp.length; d++ )
+			e += ( tmp[ d ] - target[ d ] ) * ( tmp[ d ] - target[ d ] );
+
+		return Math.sqrt( e );
+	}
+
+	/**
+	 * Computed on the first call, in time linear in the number of landmarks.
+	 *
+	 * @return the largest residual of the approximate inverse at the landmarks,
+	 * zero up to numerical error unless the splines are ill-conditioned
+	 */
+	public double getLandmarkResidual()
+	{
+		if ( landmarkResidual < 0 )
+			landmarkResidual = maxResidual( false );
+
+		return landmarkResidual;
+	}
+
+	/**
+	 * Computed on the first call, in time quadratic in the number of
+	 * landmarks.
+	 *
+	 * @return the largest residual of the approximate inverse at the midpoints
+	 * between each landmark and its nearest neighbor, an estimate of its error
+	 * between landmarks
+	 */
+	public double getMidpointResidual()
+	{
+		if ( midpointResidual < 0 )
+			midpointResidual = maxResidual( true );
+
+		return midpointResidual;
+	}
+
+	private double maxResidual( final boolean midpoints )
+	{
+		final ThinPlateR2LogRSplineKernelTransform kernel = BigWarpTransform.getKernelTransform( inverseTps );
+		if ( kernel == null )
+			return Double.NaN;
+
+		final double[][] pts = kernel.getSourceLandmarks();
+		final int nd = pts.length;
+		final int N = kernel.getNumLandmarks();
+		final double[] p = new double[ nd ];
+		final double[] x = new double[ nd ];
+		double max = 0;
+		for ( int i = 0; i < N; i++ )
+		{
+			final int j = midpoints ? nearestNeighbor( pts, N, i ) : i;
+			if ( j < 0 )
+				continue;
+
+			for ( int d = 0; d < nd; d++ )
+				p[ d ] = 0.5 * ( pts[ d ][ i ] + pts[ d ][ j ] );
+
+			applyInverse( x, p );
+			max = Math.max( max, residual( x, p ) );
+		}
+		return max;
+	}
+
+	private static int nearestNeighbor( final double[][] pts, final int N, final int i )
+	{
+		int nearest = -1;
+		double min = Double.POSITIVE_INFINITY;
+		for ( int j = 0; j < N; j++ )
+		{
+			if ( j == i )
+				continue;
+
+			double r2 = 0;
+			for ( int d = 0; d < pts.length; d++ )
+				r2 += ( pts[ d ][ i ] - pts[ d ][ j ] ) * ( pts[ d ][ i ] - pts[ d ][ j ] );
+
+			if ( r2 < min )
+			{
+				min = r2;
+				nearest = j;
+			}
+		}
+		return nearest;
+	}
+
+	@Override
+	public DualTpsTransform copy()
+	{
+		return new DualTpsTransform( ( ThinplateSplineTransform ) getTransform().copy(), ( ThinplateSplineTransform ) inverseTps.copy() );
+	}
+
+	@Override
+	public DualTpsTransform inverse()
+	{
+		return new DualTpsTransform( inverseTps, getTransform() );
+	}
+}
@@ -0,0 +1,439 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import java.util.Arrays;
+
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+
+/**
+ * An iteratively inverted transformation whose inverse is accelerated by a
+ * lookup grid.
+ * <p>
+ * On construction, the inverse is computed once at the nodes of a regular
+ * grid over a region of the inverse's domain, each node starting from the
+ * solution of its neighbor. The interpolation error of every cell, the
+ * distance between the center of the cell and the forward transform of its
+ * interpolated inverse, is measured and reported.
+ * <p>
+ * {@link #applyInverse} interpolates the grid and checks the result with one
+ * evaluation of the forward transformation, refining it with a few Newton
+ * iterations if it is not within the tolerance. Without verification (see
+ * {@link #setVerify}) the interpolated result is returned without the check
+ * if the error of its cell is within half the tolerance, which is faster but
+ * not guaranteed to be within the tolerance everywhere. Points
+ * outside the grid, or where refinement fails, are inverted from scratch as
+ * by {@link WrappedIterativeInvertibleRealTransform}.
+ * <p>
+ * The grid belongs to one transformation, and is discarded with it when a new
+ * transformation is estimated. Copies share the grid. Not thread safe, use copies.
+ *
+ * @param <T> the type of the forward transformation
+ */
+public class InverseLookupTransform< T extends RealTransform > extends WrappedIterativeInvertibleRealTransform< T >
+{
+	/**
+	 * The largest number of grid nodes, the spacing is increased if needed.
+	 */
+	public static final int MAX_NODES = 1 << 22;
+
+	private final Lookup lookup;
+
+	private final int maxIterations;
+
+	private final NewtonInverse newton;
+
+	private final double[] x;
+
+	private final double[] y;
+
+	private final int[] cell;
+
+	private boolean verify;
+
+	private final double[] fraction;
+
+	/**
+	 * Builds the lookup grid.
+	 *
+	 * @param forward the forward transformation
+	 * @param region the region of the inverse's domain to cover
+	 * @param resolution the number of grid cells along the longest side of the region
+	 * @param tolerance the largest acceptable error of the inverse
+	 * @param maxIterations the maximum iterations of the inverse from scratch
+	 */
+	public InverseLookupTransform( final T forward, final RealInterval region, final int resolution,
+			final double tolerance, final int maxIterations )
+	{
+		this( forward, null, maxIterations, tolerance, region, resolution );
+	}
+
+	protected InverseLookupTransform( final T forward, final InverseLookupTransform< T > other )
+	{
+		this( forward, other.lookup, other.maxIterations, other.lookup.tolerance, null, 0 );
+	}
+
+	private InverseLookupTransform( final T forward, final Lookup lookup, final int maxIterations,
+			final double tolerance, final RealInterval region, final int resolution )
+	{
+		super( forward );
+		getOptimzer().setTolerance( tolerance );
+		getOptimzer().setMaxIters( maxIterations );
+		this.maxIterations = maxIterations;
+		this.verify = true;
+
+		final int nd = forward.numSourceDimensions();
+		newton = new NewtonInverse( nd );
+		x = new double[ nd ];
+		y = new double[ nd ];
+		cell = new int[ nd ];
+		fraction = new double[ nd ];
+
+		this.lookup = lookup != null ? lookup : new Lookup( forward, region, resolution, tolerance, maxIterations );
+	}
+
+	/**
+	 * @param verify whether to check every interpolated result against the forward transformation
+	 */
+	public void setVerify( final boolean verify )
+	{
+		this.verify = verify;
+	}
+
+	/**
+	 * @return the largest interpolation error of any grid cell
+	 */
+	public double getMaxError()
+	{
+		return lookup.maxError;
+	}
+
+	/**
+	 * @return the mean interpolation error of the grid cells
+	 */
+	public double getMeanError()
+	{
+		return lookup.meanError;
+	}
+
+	/**
+	 * @return the fraction of grid cells whose interpolation error is within the tolerance
+	 */
+	public double getFractionWithinTolerance()
+	{
+		return lookup.fractionWithinTolerance;
+	}
+
+	@Override
+	public void applyInverse( final double[] source, final double[] target )
+	{
+		final int nd = x.length;
+		for ( int d = 0; d < nd; d++ )
+			y[ d ] = target[ d ];
+
+		computeInverse();
+
+		for ( int d = 0; d < nd; d++ )
+			source[ d ] = x[ d ];
+	}
+
+	@Override
+	public void applyInverse( final RealPositionable source, final RealLocalizable target )
+	{
+		final int nd = x.length;
+		for ( int d = 0; d < nd; d++ )
+			y[ d ] = target.getDoublePosition( d );
+
+		computeInverse();
+
+		for ( int d = 0; d < nd; d++ )
+			source.setPosition( x[ d ], d );
+	}
+
+	/*
+	 * Inverts y into x.
+	 */
+	private void computeInverse()
+	{
+		final int c = lookup.locate( y, cell, fraction );
+		if ( c >= 0 )
+		{
+			lookup.interpolate( cell, fraction, x );
+			// the error is largest near the center for smooth transformations,
+			// keep a margin since it is measured at the center only
+			if ( !verify && lookup.cellError[ c ] <= 0.5 * lookup.tolerance )
+				return;
+
+			if ( newton.solve( getTransform(), y, x, lookup.tolerance ) )
+				return;
+		}
+		super.applyInverse( x, y );
+	}
+
+	@Override
+	@SuppressWarnings( "unchecked" )
+	public InverseLookupTransform< T > copy()
+	{
+		final InverseLookupTransform< T > copy = new InverseLookupTransform<>( ( T ) getTransform().copy(), this );
+		copy.setVerify( verify );
+		return copy;
+	}
+
+	/**
+	 * The inverse at the grid nodes and the errors of the cells, shared
+	 * between copies.
+	 */
+	protected static class Lookup
+	{
+		final int nd;
+
+		final double tolerance;
+
+		final double[] min;
+
+		final double spacing;
+
+		// the number of nodes along each dimension
+		final int[] size;
+
+		final int[] strides;
+
+		// [ node * nd + d ]
+		final double[] values;
+
+		// the error at the center of each cell, indexed by the node at its min corner
+		final float[] cellError;
+
+		double maxError;
+
+		double meanError;
+
+		double fractionWithinTolerance;
+
+		Lookup( final RealTransform forward, final RealInterval region, final int resolution, final double tolerance, final int maxIterations )
+		{
+			this.tolerance = tolerance;
+			nd = region.numDimensions();
+			min = new double[ nd ];
+
+			double maxExtent = 0;
+			for ( int d = 0; d < nd; d++ )
+			{
+				min[ d ] = region.realMin( d );
+				maxExtent = Math.max( maxExtent, region.realMax( d ) - region.realMin( d ) );
+			}
+			double s = maxExtent > 0 ? maxExtent / Math.max( 1, resolution ) : 1;
+
+			size = new int[ nd ];
+			strides = new int[ nd ];
+			long numNodesLong;
+			do
+			{
+				numNodesLong = 1;
+				for ( int d = 0; d < nd; d++ )
+				{
+					size[ d ] = 2 + ( int ) Math.ceil( ( region.realMax( d ) - min[ d ] ) / s );
+					numNodesLong *= size[ d ];
+				}
+				if ( numNodesLong > MAX_NODES )
+					s *= 1.25;
+			}
+			while ( numNodesLong > MAX_NODES );
+			spacing = s;
+
+			final int numNodes = ( int ) numNodesLong;
+			for ( int d = 0, stride = 1; d < nd; stride *= size[ d++ ] )
+				strides[ d ] = stride;
+
+			values = new double[ numNodes * nd ];
+			cellError = new float[ numNodes ];
+
+			final WrappedIterativeInvertibleRealTransform< ? > xfm = new WrappedIterativeInvertibleRealTransform<>( forward.copy() );
+			xfm.getOptimzer().setTolerance( tolerance );
+			xfm.getOptimzer().setMaxIters( maxIterations );
+			build( xfm, numNodes );
+			measureErrors( forward, numNodes );
+		}
+
+		/*
+		 * Inverts every node, starting from the solution at the previous node
+		 * along the first dimension where the node's index is not zero.
+		 */
+		private void build( final WrappedIterativeInvertibleRealTransform< ? > xfm, final int numNodes )
+		{
+			final RealTransform forward = xfm.getTransform();
+			final NewtonInverse newton = new NewtonInverse( nd );
+			final int[] pos = new int[ nd ];
+			final double[] p = new double[ nd ];
+			final double[] q = new double[ nd ];
+			for ( int i = 0; i < numNodes; i++ )
+			{
+				int previous = -1;
+				for ( int d = 0; d < nd; d++ )
+				{
+					p[ d ] = min[ d ] + pos[ d ] * spacing;
+					if ( previous < 0 && pos[ d ] > 0 )
+						previous = i - strides[ d ];
+				}
+
+				boolean solved = false;
+				if ( previous >= 0 )
+				{
+					System.arraycopy( values, previous * nd, q, 0, nd );
+					solved = newton.solve( forward, p, q, tolerance );
+				}
+				if ( !solved )
+					xfm.applyInverse( q, p );
+
+				System.arraycopy( q, 0, values, i * nd, nd );
+
+				for ( int d = 0; d < nd; d++ )
+				{
+					if ( ++pos[ d ] < size[ d ] )
+						break;
+					pos[ d ] = 0;
+				}
+			}
+		}
+
+		private void measureErrors( final RealTransform forward, final int numNodes )
+		{
+			final int[] pos = new int[ nd ];
+			final double[] center = new double[ nd ];
+			final double[] half = new double[ nd ];
+			final double[] q = new double[ nd ];
+			final double[] r = new double[ nd ];
+			Arrays.fill( half, 0.5 );
+
+			int numCells = 0;
+			int numWithin = 0;
+			double sum = 0;
+			maxError = 0;
+			for ( int i = 0; i < numNodes; i++ )
+			{
+				boolean isCell = true;
+				for ( int d = 0; d < nd; d++ )
+				{
+					center[ d ] = min[ d ] + ( pos[ d ] + 0.5 ) * spacing;
+					isCell &= pos[ d ] < size[ d ] - 1;
+				}
+
+				if ( isCell )
+				{
+					interpolate( pos, half, q );
+					forward.apply( q, r );
+					double e = 0;
+					for ( int d = 0; d < nd; d++ )
+						e += ( r[ d ] - center[ d ] ) * ( r[ d ] - center[ d ] );
+					e = Math.sqrt( e );
+
+					cellError[ i ] = ( float ) e;
+					maxError = Math.max( maxError, e );
+					sum += e;
+					numCells++;
+					if ( e <= tolerance )
+						numWithin++;
+				}
+				else
+					cellError[ i ] = Float.POSITIVE_INFINITY;
+
+				for ( int d = 0; d < nd; d++ )
+				{
+					if ( ++pos[ d ] < size[ d ] )
+						break;
+					pos[ d ] = 0;
+				}
+			}
+			meanError = numCells > 0 ? sum / numCells : 0;
+			fractionWithinTolerance = numCells > 0 ? ( double ) numWithin / numCells : 0;
+		}
+
+		/**
+		 * Finds the cell containing a point.
+		 *
+		 * @param p the point
+		 * @param cell receives the grid position of the cell
+		 * @param fraction receives the position of the point within the cell
+		 * @return the index of the cell, or -1 if the point is outside the grid
+		 */
+		int locate( final double[] p, final int[] cell, final double[] fraction )
+		{
+			int index = 0;
+			for ( int d = 0; d < nd; d++ )
+			{
+				final double u = ( p[ d ] - min[ d ] ) / spacing;
+				if ( !( u >= 0 && u <= size[ d ] - 1 ) )
+					return -1;
+
+				final int c = Math.min( ( int ) u, size[ d ] - 2 );
+				cell[ d ] = c;
+				fraction[ d ] = u - c;
+				index += c * strides[ d ];
+			}
+			return index;
+		}
+
+		/**
+		 * Interpolates the inverse multilinearly.
+		 *
+		 * @param cell the grid position of the cell
+		 * @param fraction the position within the cell
+		 * @param out receives the interpolated inverse
+		 */
+		void interpolate( final int[] cell, final double[] fraction, final double[] out )
+		{
+			int base = 0;
+			for ( int d = 0; d < nd; d++ )
+			{
+				base += cell[ d ] * strides[ d ];
+				out[ d ] = 0;
+			}
+
+			final int numCorners = 1 << nd;
+			for ( int k = 0; k < numCorners; k++ )
+			{
+				double w = 1;
+				int node = base;
+				for ( int d = 0; d < nd; d++ )
+				{
+					if ( ( k & ( 1 << d ) ) != 0 )
+					{
+						w *= fraction[ d ];
+						node += strides[ d ];
+					}
+					else
+						w *= 1 - fraction[ d ];
+				}
+
+				if ( w == 0 )
+					continue;
+
+				for ( int d = 0; d < nd; d++ )
+					out[ d ] += w * values[ node * nd + d ];
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over a set of points, for finding the points near a location
+ * in time independent of the total number of points.
+ * <p>
+ * Only non-empty cells are stored, as a sorted array of cell keys, so that
+ * memory does not depend on the extent of the points.
+ */
+public class LandmarkCellIndex
+{
+	private static final int BITS = 21;
+
+	private static final long OFFSET = 1L << ( BITS - 1 );
+
+	private final int ndims;
+
+	private final double cellSize;
+
+	// sorted keys of non-empty cells
+	private final long[] keys;
+
+	// points of cell i are pointIndexes[ cellStart[ i ] ] ... pointIndexes[ cellStart[ i + 1 ] - 1 ]
+	private final int[] cellStart;
+
+	private final int[] pointIndexes;
+
+	/**
+	 * @param pts the points [ndims][N]
+	 * @param N the number of points
+	 * @param cellSize the side length of grid cells
+	 */
+	public LandmarkCellIndex( final double[][] pts, final int N, final double cellSize )
+	{
+		this.ndims = pts.length;
+		this.cellSize = cellSize;
+
+		final long[] pointKeys = new long[ N ];
+		final Integer[] order = new Integer[ N ];
+		for ( int i = 0; i < N; i++ )
+		{
+			long key = 0;
+			for ( int d = 0; d < ndims; d++ )
+				key = pack( key, cell( pts[ d ][ i ] ), d );
+
+			pointKeys[ i ] = key;
+			order[ i ] = i;
+		}
+		Arrays.sort( order, ( a, b ) -> Long.compare( pointKeys[ a ], pointKeys[ b ] ) );
+
+		pointIndexes = new int[ N ];
+		int numCells = 0;
+		for ( int i = 0; i < N; i++ )
+		{
+			pointIndexes[ i ] = order[ i ];
+			if ( i == 0 || pointKeys[ order[ i ] ] != pointKeys[ order[ i - 1 ] ] )
+				numCells++;
+		}
+
+		keys = new long[ numCells ];
+		cellStart = new int[ numCells + 1 ];
+		int c = -1;
+		for ( int i = 0; i < N; i++ )
+		{
+			if ( i == 0 || pointKeys[ order[ i ] ] != pointKeys[ order[ i - 1 ] ] )
+			{
+				c++;
+				keys[ c ] = pointKeys[ order[ i ] ];
+				cellStart[ c ] = i;
+			}
+		}
+		cellStart[ numCells ] = N;
+	}
+
+	public int numDimensions()
+	{
+		return ndims;
+	}
+
+	public double getCellSize()
+	{
+		return cellSize;
+	}
+
+	/**
+	 * @param x a coordinate
+	 * @return the grid coordinate of the cell containing x
+	 */
+	public int cell( final double x )
+	{
+		final long c = ( long ) Math.floor( x / cellSize );
+		return ( int ) Math.max( -OFFSET, Math.min( OFFSET - 1, c ) );
+	}
+
+	/**
+	 * Adds the grid coordinate of dimension d to a cell key.
+	 *
+	 * @param key the key for the previous dimensions
+	 * @param cell the grid coordinate
+	 * @param d the dimension
+	 * @return the new key
+	 */
+	public static long pack( final long key, final int cell, final int d )
+	{
+		return key | ( ( cell + OFFSET ) << ( BITS * d ) );
+	}
+
+	/**
+	 * Extracts the grid coordinate of dimension d from a cell key.
+	 *
+	 * @param key the key
+	 * @param d the dimension
+	 * @return the grid coordinate
+	 */
+	public static int unpack( final long key, final int d )
+	{
+		return ( int ) ( ( ( key >>> ( BITS * d ) ) & ( ( 1L << BITS ) - 1 ) ) - OFFSET );
+	}
+
+	/**
+	 * @param key a cell key
+	 * @return the index of the cell, or a negative number if the cell is empty
+	 */
+	public int find( final long key )
+	{
+		return Arrays.binarySearch( keys, key );
+	}
+
+	public int cellStart( final int cellIndex )
+	{
+		return cellStart[ cellIndex ];
+	}
+
+	public int cellEnd( final int cellIndex )
+	{
+		return cellStart[ cellIndex + 1 ];
+	}
+
+	public int pointIndex( final int i )
+	{
+		return pointIndexes[ i ];
+	}
+}
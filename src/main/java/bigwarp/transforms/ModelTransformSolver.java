@@ -28,19 +28,37 @@ import mpicbg.models.InvertibleCoordinateTransform;
 import mpicbg.models.Model;
 import mpicbg.models.NotEnoughDataPointsException;
 
-public class ModelTransformSolver implements TransformSolver< WrappedCoordinateTransform >
+/**
+ * Estimates linear transformations from landmarks by fitting an mpicbg
+ * {@link Model}.
+ * <p>
+ * The model and the weights are reused between solves, every returned
+ * transform wraps its own copy of the fitted model.
+ */
+public class ModelTransformSolver extends AbstractTransformSolver< WrappedCoordinateTransform >
 {
-	private Model< ? > model;
+	private final Model< ? > model;
+
+	private double[] w;
 
 	public ModelTransformSolver( Model< ? > model )
 	{
 		this.model = model;
 	}
-	
-	public WrappedCoordinateTransform solve( final double[][] mvgPts, final double[][] tgtPts )
+
+	public Model< ? > getModel()
 	{
-		double[] w = new double[ mvgPts[ 0 ].length ];
-		Arrays.fill( w, 1.0 );
+		return model;
+	}
+
+	public synchronized WrappedCoordinateTransform solve( final double[][] mvgPts, final double[][] tgtPts )
+	{
+		final int N = mvgPts[ 0 ].length;
+		if( w == null || w.length != N )
+		{
+			w = new double[ N ];
+			Arrays.fill( w, 1.0 );
+		}
 
 		try {
 			model.fit( mvgPts, tgtPts, w );
@@ -49,6 +67,6 @@ public class ModelTransformSolver implements TransformSolver< WrappedCoordinateT
 		} catch (IllDefinedDataPointsException e) {
 			e.printStackTrace();
 		}
-		return new WrappedCoordinateTransform( ( InvertibleCoordinateTransform ) model, mvgPts.length ).inverse();
+		return new WrappedCoordinateTransform( ( InvertibleCoordinateTransform ) model.copy(), mvgPts.length ).inverse();
 	}
 }
@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * Inverts a smooth transformation at a point with Newton's method, starting
+ * from a given initial guess, such as the solution for a slightly different
+ * transformation. The Jacobian is estimated with finite differences and steps
+ * are halved until the residual decreases.
+ * <p>
+ * Converges in a few iterations from a good initial guess, but may fail to
+ * converge from a poor one, see {@link #solve}.
+ * <p>
+ * Not thread safe, use one instance per thread.
+ */
+public class NewtonInverse
+{
+	public static final int DEFAULT_MAX_ITERATIONS = 20;
+
+	private static final int MAX_STEP_HALVINGS = 10;
+
+	private final int nd;
+
+	private final double[] y;
+
+	private final double[] residual;
+
+	private final double[] step;
+
+	private final double[] xh;
+
+	private final double[] yh;
+
+	private final double[] trial;
+
+	// [ row ][ column ], one extra column for the right hand side
+	private final double[][] jacobian;
+
+	private int maxIterations;
+
+	private int iterations;
+
+	private double error;
+
+	public NewtonInverse( final int nd )
+	{
+		this.nd = nd;
+		y = new double[ nd ];
+		residual = new double[ nd ];
+		step = new double[ nd ];
+		xh = new double[ nd ];
+		yh = new double[ nd ];
+		trial = new double[ nd ];
+		jacobian = new double[ nd ][ nd + 1 ];
+		maxIterations = DEFAULT_MAX_ITERATIONS;
+	}
+
+	public void setMaxIterations( final int maxIterations )
+	{
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * @return the number of iterations of the last call to {@link #solve}
+	 */
+	public int getIterations()
+	{
+		return iterations;
+	}
+
+	/**
+	 * @return the distance between the transformed solution and the target of the last call to {@link #solve}
+	 */
+	public double getError()
+	{
+		return error;
+	}
+
+	/**
+	 * Finds x such that xfm( x ) is within tolerance of target.
+	 *
+	 * @param xfm the transformation
+	 * @param target the target point
+	 * @param x the initial guess, receives the solution
+	 * @param tolerance the largest acceptable distance
+	 * @return true if converged, otherwise x holds the best point found
+	 */
+	public boolean solve( final RealTransform xfm, final double[] target, final double[] x, final double tolerance )
+	{
+		iterations = 0;
+		xfm.apply( x, y );
+		error = residual( target, y, residual );
+
+		while ( error > tolerance && iterations < maxIterations )
+		{
+			iterations++;
+			if ( !newtonStep( xfm, x ) )
+				return false;
+
+			// halve the step until the residual decreases
+			double scale = 1;
+			boolean improved = false;
+			for ( int k = 0; k <= MAX_STEP_HALVINGS; k++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+					trial[ d ] = x[ d ] + scale * step[ d ];
+
+				xfm.apply( trial, yh );
+				final double trialError = residual( target, yh, xh );
+				if ( trialError < error )
+				{
+					System.arraycopy( trial, 0, x, 0, nd );
+					System.arraycopy( yh, 0, y, 0, nd );
+					System.arraycopy( xh, 0, residual, 0, nd );
+					error = trialError;
+					improved = true;
+					break;
+				}
+				scale *= 0.5;
+			}
+
+			if ( !improved )
+				return false;
+		}
+
+		return error <= tolerance;
+	}
+
+	private static double residual( final double[] target, final double[] y, final double[] r )
+	{
+		double e = 0;
+		for ( int d = 0; d < r.length; d++ )
+		{
+			r[ d ] = target[ d ] - y[ d ];
+			e += r[ d ] * r[ d ];
+		}
+		return Math.sqrt( e );
+	}
+
+	/*
+	 * Computes the Newton step for the current residual into step, using
+	 * forward differences for the Jacobian at x, where y = xfm( x ).
+	 */
+	private boolean newtonStep( final RealTransform xfm, final double[] x )
+	{
+		for ( int j = 0; j < nd; j++ )
+		{
+			final double h = 1e-6 * Math.max( 1, Math.abs( x[ j ] ) );
+			System.arraycopy( x, 0, xh, 0, nd );
+			xh[ j ] += h;
+			xfm.apply( xh, yh );
+			for ( int i = 0; i < nd; i++ )
+				jacobian[ i ][ j ] = ( yh[ i ] - y[ i ] ) / h;
+		}
+		for ( int i = 0; i < nd; i++ )
+			jacobian[ i ][ nd ] = residual[ i ];
+
+		// gaussian elimination with partial pivoting
+		for ( int c = 0; c < nd; c++ )
+		{
+			int p = c;
+			for ( int r = c + 1; r < nd; r++ )
+				if ( Math.abs( jacobian[ r ][ c ] ) > Math.abs( jacobian[ p ][ c ] ) )
+					p = r;
+
+			if ( jacobian[ p ][ c ] == 0 || Double.isNaN( jacobian[ p ][ c ] ) )
+				return false;
+
+			final double[] tmp = jacobian[ c ];
+			jacobian[ c ] = jacobian[ p ];
+			jacobian[ p ] = tmp;
+
+			for ( int r = c + 1; r < nd; r++ )
+			{
+				final double f = jacobian[ r ][ c ] / jacobian[ c ][ c ];
+				for ( int k = c; k <= nd; k++ )
+					jacobian[ r ][ k ] -= f * jacobian[ c ][ k ];
+			}
+		}
+		for ( int r = nd - 1; r >= 0; r-- )
+		{
+			double v = jacobian[ r ][ nd ];
+			for ( int k = r + 1; k < nd; k++ )
+				v -= jacobian[ r ][ k ] * step[ k ];
+
+			step[ r ] = v / jacobian[ r ][ r ];
+		}
+		return true;
+	}
+}
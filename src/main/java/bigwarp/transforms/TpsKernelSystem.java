@@ -0,0 +1,508 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import java.util.Arrays;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+
+/**
+ * The linear system that defines a thin plate spline, kept between solves so
+ * that it can be updated incrementally.
+ * <p>
+ * The system matrix
+ * <pre>
+ * [ K  P ]
+ * [ P' 0 ]
+ * </pre>
+ * (K the r^2 log(r) kernel between landmarks, P the landmarks in homogeneous
+ * coordinates) is inverted once by {@link #factor}. Moving a single landmark
+ * changes one row and column of this matrix, a rank-2 change, and the stored
+ * inverse is updated with the Sherman-Morrison-Woodbury formula in O(N^2)
+ * instead of being recomputed in O(N^3). Changing only the displacement at a
+ * landmark does not change the matrix at all.
+ * <p>
+ * Numerical drift of the updated inverse is monitored through the residual of
+ * the solution, the system is re-factored when it exceeds
+ * {@link #getRefactorTolerance()}.
+ * <p>
+ * The system matrix and its inverse take 16 (N+ndims+1)^2 bytes, callers
+ * that keep an instance around should {@link #release} it when the number
+ * of landmarks becomes large.
+ * <p>
+ * The spline is parameterized as in {@link ThinPlateR2LogRSplineKernelTransform},
+ * so that {@link #getTransform()} is equivalent to
+ * <code>new ThinPlateR2LogRSplineKernelTransform( ndims, srcPts, tgtPts )</code>.
+ *
+ * @author John Bogovic &lt;bogovicj@janelia.hhmi.org&gt;
+ */
+public class TpsKernelSystem
+{
+	private final int ndims;
+
+	private int numLandmarks;
+
+	// numLandmarks + ndims + 1
+	private int size;
+
+	// landmarks in the domain of the spline [ndims][numLandmarks]
+	private double[][] srcPts;
+
+	// landmarks in the range of the spline [ndims][numLandmarks]
+	private double[][] tgtPts;
+
+	// the system matrix and its inverse, row-major, size x size
+	private double[] mtx;
+
+	private double[] inv;
+
+	// the solution, [size][ndims] stored row-major
+	private double[] coefs;
+
+	private boolean factored;
+
+	private int numUpdatesSinceFactor;
+
+	private double refactorTolerance = 1e-9;
+
+	// work arrays for the rank-2 update
+	private double[] delta;
+
+	private double[] invColK;
+
+	private double[] invDelta;
+
+	private double[] residual;
+
+	public TpsKernelSystem( final int ndims )
+	{
+		this.ndims = ndims;
+		factored = false;
+	}
+
+	public int numDimensions()
+	{
+		return ndims;
+	}
+
+	public int getNumLandmarks()
+	{
+		return numLandmarks;
+	}
+
+	public boolean isFactored()
+	{
+		return factored;
+	}
+
+	/**
+	 * @return the number of incremental updates since the last full factorization
+	 */
+	public int getNumUpdatesSinceFactor()
+	{
+		return numUpdatesSinceFactor;
+	}
+
+	public double getRefactorTolerance()
+	{
+		return refactorTolerance;
+	}
+
+	/**
+	 * Sets the largest relative residual of the solution tolerated after
+	 * an incremental update before the system is re-factored.
+	 *
+	 * @param refactorTolerance the tolerance
+	 */
+	public void setRefactorTolerance( final double refactorTolerance )
+	{
+		this.refactorTolerance = refactorTolerance;
+	}
+
+	/**
+	 * Returns the source landmarks currently in the system.  Do not modify.
+	 *
+	 * @return the source landmarks
+	 */
+	public double[][] getSourcePoints()
+	{
+		return srcPts;
+	}
+
+	/**
+	 * Returns the target landmarks currently in the system.  Do not modify.
+	 *
+	 * @return the target landmarks
+	 */
+	public double[][] getTargetPoints()
+	{
+		return tgtPts;
+	}
+
+	public void invalidate()
+	{
+		factored = false;
+	}
+
+	/**
+	 * Invalidates the system and frees its matrices. A subsequent call to
+	 * {@link #factor(double[][], double[][])} allocates them again.
+	 */
+	public void release()
+	{
+		factored = false;
+		numLandmarks = 0;
+		size = 0;
+		srcPts = null;
+		tgtPts = null;
+		mtx = null;
+		inv = null;
+		coefs = null;
+		residual = null;
+		delta = null;
+		invColK = null;
+		invDelta = null;
+	}
+
+	/**
+	 * Builds and inverts the full system for the given landmarks.
+	 *
+	 * @param src the source landmarks [ndims][N]
+	 * @param tgt the target landmarks [ndims][N]
+	 * @return true if the system could be inverted
+	 */
+	public boolean factor( final double[][] src, final double[][] tgt )
+	{
+		final int N = src[ 0 ].length;
+		allocate( N );
+
+		for ( int d = 0; d < ndims; d++ )
+		{
+			System.arraycopy( src[ d ], 0, srcPts[ d ], 0, N );
+			System.arraycopy( tgt[ d ], 0, tgtPts[ d ], 0, N );
+		}
+
+		return factor();
+	}
+
+	/**
+	 * Moves the landmark pair at index k, updating the inverse of the system
+	 * and the solution.
+	 *
+	 * @param k the landmark index
+	 * @param src the new source position
+	 * @param tgt the new target position
+	 * @return true if successful
+	 */
+	public boolean update( final int k, final double[] src, final double[] tgt )
+	{
+		if ( !factored )
+			return false;
+
+		boolean srcChanged = false;
+		for ( int d = 0; d < ndims; d++ )
+		{
+			tgtPts[ d ][ k ] = tgt[ d ];
+			if ( srcPts[ d ][ k ] != src[ d ] )
+				srcChanged = true;
+		}
+
+		if ( srcChanged )
+		{
+			if ( !rank2Update( k, src ) )
+				return factor();
+
+			numUpdatesSinceFactor++;
+		}
+
+		// the right-hand side changed in either case
+		solveCoefficients();
+		if ( srcChanged && !refine() )
+			return factor();
+
+		return true;
+	}
+
+	/**
+	 * Returns a new {@link ThinPlateR2LogRSplineKernelTransform} for the
+	 * current solution. The transform does not share any data with this
+	 * object.
+	 *
+	 * @return the transform
+	 */
+	public ThinPlateR2LogRSplineKernelTransform getTransform()
+	{
+		final int N = numLandmarks;
+		final double[][] src = new double[ ndims ][];
+		for ( int d = 0; d < ndims; d++ )
+			src[ d ] = Arrays.copyOf( srcPts[ d ], N );
+
+		final double[] weights = new double[ N * ndims ];
+		System.arraycopy( coefs, 0, weights, 0, N * ndims );
+
+		final double[][] affine = new double[ ndims ][ ndims ];
+		final double[] translation = new double[ ndims ];
+		for ( int i = 0; i < ndims; i++ )
+		{
+			for ( int j = 0; j < ndims; j++ )
+				affine[ i ][ j ] = coefs[ ( N + j ) * ndims + i ];
+
+			translation[ i ] = coefs[ ( N + ndims ) * ndims + i ];
+		}
+		return new ThinPlateR2LogRSplineKernelTransform( src, affine, translation, weights );
+	}
+
+	private void allocate( final int N )
+	{
+		final int n = N + ndims + 1;
+		if ( srcPts == null || srcPts[ 0 ].length < N )
+		{
+			srcPts = new double[ ndims ][ N ];
+			tgtPts = new double[ ndims ][ N ];
+		}
+		// sized exactly, so that removing landmarks frees memory
+		if ( mtx == null || mtx.length != n * n )
+		{
+			mtx = new double[ n * n ];
+			inv = new double[ n * n ];
+		}
+		if ( coefs == null || coefs.length < n * ndims )
+		{
+			coefs = new double[ n * ndims ];
+			residual = new double[ n * ndims ];
+			delta = new double[ n ];
+			invColK = new double[ n ];
+			invDelta = new double[ n ];
+		}
+		numLandmarks = N;
+		size = n;
+	}
+
+	private boolean factor()
+	{
+		final int N = numLandmarks;
+		final int n = size;
+		Arrays.fill( mtx, 0, n * n, 0.0 );
+		for ( int i = 0; i < N; i++ )
+		{
+			for ( int j = i + 1; j < N; j++ )
+			{
+				final double u = kernel( srcPts, i, srcPts, j );
+				mtx[ i * n + j ] = u;
+				mtx[ j * n + i ] = u;
+			}
+			for ( int d = 0; d < ndims; d++ )
+			{
+				mtx[ i * n + N + d ] = srcPts[ d ][ i ];
+				mtx[ ( N + d ) * n + i ] = srcPts[ d ][ i ];
+			}
+			mtx[ i * n + N + ndims ] = 1;
+			mtx[ ( N + ndims ) * n + i ] = 1;
+		}
+
+		// invert directly into the stored inverse, mtx is not modified
+		factored = CommonOps.invert( DenseMatrix64F.wrap( n, n, mtx ), DenseMatrix64F.wrap( n, n, inv ) );
+		if ( !factored )
+			return false;
+
+		numUpdatesSinceFactor = 0;
+		solveCoefficients();
+		return true;
+	}
+
+	/*
+	 * Replaces row and column k of the system matrix with those for a new
+	 * source landmark position and updates the inverse.
+	 */
+	private boolean rank2Update( final int k, final double[] src )
+	{
+		final int N = numLandmarks;
+		final int n = size;
+
+		// the change to row k
+		for ( int j = 0; j < N; j++ )
+		{
+			if ( j == k )
+				delta[ j ] = 0;
+			else
+				delta[ j ] = kernel( src, srcPts, j ) - mtx[ k * n + j ];
+		}
+		for ( int d = 0; d < ndims; d++ )
+		{
+			delta[ N + d ] = src[ d ] - srcPts[ d ][ k ];
+			srcPts[ d ][ k ] = src[ d ];
+		}
+		delta[ N + ndims ] = 0;
+
+		// M' = M + e_k delta^T + delta e_k^T
+		for ( int j = 0; j < n; j++ )
+		{
+			mtx[ k * n + j ] += delta[ j ];
+			mtx[ j * n + k ] += ( j == k ) ? 0 : delta[ j ];
+		}
+
+		// the inverse is symmetric, so column k equals row k
+		System.arraycopy( inv, k * n, invColK, 0, n );
+		for ( int i = 0; i < n; i++ )
+		{
+			double s = 0;
+			final int off = i * n;
+			for ( int j = 0; j < n; j++ )
+				s += inv[ off + j ] * delta[ j ];
+
+			invDelta[ i ] = s;
+		}
+
+		// capacitance matrix S = I + V^T B U with U = [e_k delta], V = [delta e_k]
+		double dDotB = 0;
+		double dBd = 0;
+		for ( int j = 0; j < n; j++ )
+		{
+			dDotB += delta[ j ] * invColK[ j ];
+			dBd += delta[ j ] * invDelta[ j ];
+		}
+		final double s00 = 1 + dDotB;
+		final double s01 = dBd;
+		final double s10 = invColK[ k ];
+		final double s11 = 1 + dDotB;
+		final double det = s00 * s11 - s01 * s10;
+		if ( Math.abs( det ) < 1e-12 )
+			return false;
+
+		final double i00 = s11 / det;
+		final double i01 = -s01 / det;
+		final double i10 = -s10 / det;
+		final double i11 = s00 / det;
+
+		// B' = B - [ b_k  B delta ] S^-1 [ (B delta)^T ; b_k^T ]
+		for ( int i = 0; i < n; i++ )
+		{
+			final double a = invColK[ i ] * i00 + invDelta[ i ] * i10;
+			final double b = invColK[ i ] * i01 + invDelta[ i ] * i11;
+			final int off = i * n;
+			for ( int j = 0; j < n; j++ )
+				inv[ off + j ] -= a * invDelta[ j ] + b * invColK[ j ];
+		}
+		return true;
+	}
+
+	/*
+	 * coefs = inv * rhs, where rhs is the displacement at the landmarks,
+	 * and zero for the affine constraints.
+	 */
+	private void solveCoefficients()
+	{
+		final int N = numLandmarks;
+		final int n = size;
+		Arrays.fill( coefs, 0, n * ndims, 0.0 );
+		for ( int i = 0; i < n; i++ )
+		{
+			final int off = i * n;
+			for ( int l = 0; l < N; l++ )
+			{
+				final double b = inv[ off + l ];
+				for ( int d = 0; d < ndims; d++ )
+					coefs[ i * ndims + d ] += b * ( tgtPts[ d ][ l ] - srcPts[ d ][ l ] );
+			}
+		}
+	}
+
+	/*
+	 * Computes the residual of the current solution, applies one step of
+	 * iterative refinement, and returns false if the residual was too large.
+	 */
+	private boolean refine()
+	{
+		final int N = numLandmarks;
+		final int n = size;
+		double resNorm = 0;
+		double rhsNorm = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			final int off = i * n;
+			for ( int d = 0; d < ndims; d++ )
+			{
+				final double rhs = i < N ? tgtPts[ d ][ i ] - srcPts[ d ][ i ] : 0;
+				double r = rhs;
+				for ( int j = 0; j < n; j++ )
+					r -= mtx[ off + j ] * coefs[ j * ndims + d ];
+
+				residual[ i * ndims + d ] = r;
+				resNorm += r * r;
+				rhsNorm += rhs * rhs;
+			}
+		}
+
+		for ( int i = 0; i < n; i++ )
+		{
+			final int off = i * n;
+			for ( int j = 0; j < n; j++ )
+			{
+				final double b = inv[ off + j ];
+				for ( int d = 0; d < ndims; d++ )
+					coefs[ i * ndims + d ] += b * residual[ j * ndims + d ];
+			}
+		}
+
+		return resNorm <= refactorTolerance * refactorTolerance * Math.max( rhsNorm, 1.0 );
+	}
+
+	private double kernel( final double[][] p, final int i, final double[][] q, final int j )
+	{
+		double r2 = 0;
+		for ( int d = 0; d < ndims; d++ )
+		{
+			final double diff = p[ d ][ i ] - q[ d ][ j ];
+			r2 += diff * diff;
+		}
+		return r2Logr( r2 );
+	}
+
+	private double kernel( final double[] p, final double[][] q, final int j )
+	{
+		double r2 = 0;
+		for ( int d = 0; d < ndims; d++ )
+		{
+			final double diff = p[ d ] - q[ d ][ j ];
+			r2 += diff * diff;
+		}
+		return r2Logr( r2 );
+	}
+
+	/**
+	 * The thin plate spline kernel r^2 log(r) as a function of the squared
+	 * distance.
+	 *
+	 * @param r2 the squared distance
+	 * @return the kernel value
+	 */
+	public static double r2Logr( final double r2 )
+	{
+		if ( r2 <= 0 )
+			return 0;
+
+		return 0.5 * r2 * Math.log( r2 );
+	}
+}
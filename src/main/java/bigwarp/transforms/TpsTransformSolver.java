@@ -21,49 +21,174 @@
  */
 package bigwarp.transforms;
 
-import bigwarp.landmarks.LandmarkTableModel;
 import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import net.imglib2.realtransform.ThinplateSplineTransform;
 import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
 
-public class TpsTransformSolver implements TransformSolver< WrappedIterativeInvertibleRealTransform< ? >>
+/**
+ * Estimates thin plate spline transformations from landmarks.
+ * <p>
+ * An instance keeps the factorized kernel system of its last solve (see
+ * {@link TpsKernelSystem}). When the set of active landmarks is unchanged and
+ * only a few landmarks moved since then, as is the case when dragging a point,
+ * the existing solution is updated with low-rank updates. The full system is
+ * re-factored only when landmarks are added, removed, (de)activated, or when
+ * many landmarks moved at once.
+ * <p>
+ * The kernel system stores two dense (N+ndims+1)^2 matrices. Above
+ * {@link #MAX_INCREMENTAL_LANDMARKS} landmarks it is released and every solve
+ * is done from scratch.
+ * <p>
+ * Solving from a {@link bigwarp.landmarks.LandmarkTableModel} reuses the
+ * landmark buffers of {@link AbstractTransformSolver}.
+ * <p>
+ * A dual solver estimates the spline with moving and target points swapped,
+ * i.e., one that maps moving to target points and approximates the inverse of
+ * the usual spline (see {@link DualTpsTransform}).
+ */
+public class TpsTransformSolver extends AbstractTransformSolver< WrappedIterativeInvertibleRealTransform< ? >>
 {
-	private double[][] mvgPts;
-	private double[][] tgtPts;
+	private TpsKernelSystem system;
+
+	private final double[] srcTmp = new double[ 3 ];
+
+	private final double[] tgtTmp = new double[ 3 ];
+
+	private final int[] changedTmp = new int[ MAX_INCREMENTAL_UPDATES ];
+
+	/**
+	 * The most landmark changes between solves that are applied
+	 * as incremental updates rather than a full re-factorization.
+	 */
+	public static final int MAX_INCREMENTAL_UPDATES = 8;
 
-	public WrappedIterativeInvertibleRealTransform<?> solve( final double[][] mvgPts, final double[][] tgtPts )
+	/**
+	 * The most landmarks for which the kernel system is kept between solves,
+	 * about 16MB of matrices.
+	 */
+	public static final int MAX_INCREMENTAL_LANDMARKS = 1000;
+
+	private final boolean dual;
+
+	public TpsTransformSolver()
 	{
-		return new WrappedIterativeInvertibleRealTransform<ThinplateSplineTransform>( 
-				new ThinplateSplineTransform( 
-						new ThinPlateR2LogRSplineKernelTransform( tgtPts.length, tgtPts, mvgPts )));
+		this( false );
 	}
 
-	public WrappedIterativeInvertibleRealTransform<?> solve( 
-			final LandmarkTableModel landmarkTable )
+	/**
+	 * @param dual if true, the spline maps moving to target points
+	 */
+	public TpsTransformSolver( final boolean dual )
 	{
-		return solve( landmarkTable, -1 );
+		this.dual = dual;
 	}
 
-	public WrappedIterativeInvertibleRealTransform<?> solve( 
-			final LandmarkTableModel landmarkTable, final int indexChanged )
+	public boolean isDual()
 	{
-		synchronized( landmarkTable )
+		return dual;
+	}
+
+	public synchronized WrappedIterativeInvertibleRealTransform<?> solve( final double[][] mvgPts, final double[][] tgtPts )
+	{
+		if ( dual )
+			return wrap( solveKernel( tgtPts, mvgPts ) );
+
+		return wrap( solveKernel( mvgPts, tgtPts ) );
+	}
+
+	/**
+	 * Returns the thin plate spline for the given landmarks. The spline is
+	 * estimated in the "inverse" direction, i.e., it maps target points to
+	 * moving points.
+	 *
+	 * @param mvgPts the moving points [ndims][N]
+	 * @param tgtPts the target points [ndims][N]
+	 * @return the thin plate spline
+	 */
+	protected ThinPlateR2LogRSplineKernelTransform solveKernel( final double[][] mvgPts, final double[][] tgtPts )
+	{
+		final int ndims = tgtPts.length;
+		final int N = tgtPts[ 0 ].length;
+		if ( N > MAX_INCREMENTAL_LANDMARKS )
 		{
-			int numActive = landmarkTable.numActive();
-			int ndims = landmarkTable.getNumdims();
+			if ( system != null )
+			{
+				system.release();
+				system = null;
+			}
+			return new ThinPlateR2LogRSplineKernelTransform( ndims, tgtPts, mvgPts );
+		}
+
+		if ( system == null || system.numDimensions() != ndims )
+			system = new TpsKernelSystem( ndims );
 
-			if( mvgPts == null || mvgPts[0].length != numActive )
+		boolean ok;
+		if ( !system.isFactored() || system.getNumLandmarks() != N )
+			ok = system.factor( tgtPts, mvgPts );
+		else
+		{
+			// the spline maps target to moving points
+			final int numChanged = findChanged( system.getSourcePoints(), tgtPts, system.getTargetPoints(), mvgPts );
+			if ( numChanged < 0 )
+				ok = system.factor( tgtPts, mvgPts );
+			else
 			{
-				mvgPts = new double[ ndims ][ numActive ];
-				tgtPts = new double[ ndims ][ numActive ];
-				landmarkTable.copyLandmarks( mvgPts, tgtPts );
+				ok = true;
+				for ( int i = 0; i < numChanged && ok; i++ )
+				{
+					final int k = changedTmp[ i ];
+					for ( int d = 0; d < ndims; d++ )
+					{
+						srcTmp[ d ] = tgtPts[ d ][ k ];
+						tgtTmp[ d ] = mvgPts[ d ][ k ];
+					}
+					ok = system.update( k, srcTmp, tgtTmp );
+				}
+
+				if ( !ok )
+					ok = system.factor( tgtPts, mvgPts );
 			}
-			else if( indexChanged >= 0 )
+		}
+
+		if ( !ok )
+		{
+			// the kernel system is singular, fall back to the default estimation
+			system.invalidate();
+			return new ThinPlateR2LogRSplineKernelTransform( ndims, tgtPts, mvgPts );
+		}
+
+		return system.getTransform();
+	}
+
+	/*
+	 * Stores the indices of landmarks that differ in changedTmp and returns
+	 * how many there are, or -1 if there are too many for incremental updates.
+	 */
+	private int findChanged( final double[][] srcOld, final double[][] srcNew, final double[][] tgtOld, final double[][] tgtNew )
+	{
+		final int ndims = srcNew.length;
+		final int N = srcNew[ 0 ].length;
+		int numChanged = 0;
+		for ( int i = 0; i < N; i++ )
+		{
+			for ( int d = 0; d < ndims; d++ )
 			{
-				landmarkTable.copyLandmarks( indexChanged, mvgPts, tgtPts );
+				if ( srcOld[ d ][ i ] != srcNew[ d ][ i ] || tgtOld[ d ][ i ] != tgtNew[ d ][ i ] )
+				{
+					if ( numChanged == MAX_INCREMENTAL_UPDATES )
+						return -1;
+
+					changedTmp[ numChanged++ ] = i;
+					break;
+				}
 			}
 		}
+		return numChanged;
+	}
 
-		return solve( mvgPts, tgtPts );
+	private static WrappedIterativeInvertibleRealTransform< ThinplateSplineTransform > wrap( final ThinPlateR2LogRSplineKernelTransform tps )
+	{
+		return new WrappedIterativeInvertibleRealTransform<ThinplateSplineTransform>( 
+				new ThinplateSplineTransform( tps ));
 	}
 }
@@ -21,85 +21,174 @@
  */
 package bigwarp.transforms;
 
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.AbstractAffineModel3D;
 import mpicbg.models.InvertibleCoordinateTransform;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.InvertibleRealTransform;
 
+/**
+ * Wraps an mpicbg {@link InvertibleCoordinateTransform} as an imglib2
+ * {@link InvertibleRealTransform}.
+ * <p>
+ * Affine models (translation, rigid, similarity, affine) are converted to an
+ * {@link AffineTransform2D} or {@link AffineTransform3D} on construction, so
+ * that applying them allocates nothing. The model should not be changed
+ * after it is wrapped.
+ */
 public class WrappedCoordinateTransform implements InvertibleRealTransform
 {
 	private final InvertibleCoordinateTransform ct;
 	private final InvertibleCoordinateTransform ct_inv;
 	private final int nd;
 
+	// null if ct is not affine
+	private final InvertibleRealTransform affine;
+
 	public WrappedCoordinateTransform( InvertibleCoordinateTransform ct, int nd )
 	{
-        this.nd = nd;
+		this( ct, ct.createInverse(), nd, toAffine( ct, nd ) );
+	}
+
+	private WrappedCoordinateTransform( final InvertibleCoordinateTransform ct, final InvertibleCoordinateTransform ct_inv,
+			final int nd, final InvertibleRealTransform affine )
+	{
+		this.nd = nd;
 		this.ct = ct;
-		this.ct_inv = ct.createInverse();
+		this.ct_inv = ct_inv;
+		this.affine = affine;
+	}
+
+	/**
+	 * Converts an affine mpicbg model to an imglib2 affine transform.
+	 *
+	 * @param ct the model
+	 * @param nd the number of dimensions
+	 * @return the affine transform, or null if the model is not affine
+	 */
+	public static InvertibleRealTransform toAffine( final InvertibleCoordinateTransform ct, final int nd )
+	{
+		if ( nd == 2 && ct instanceof AbstractAffineModel2D )
+		{
+			final double[][] mtx = new double[ 2 ][ 3 ];
+			( ( AbstractAffineModel2D< ? > ) ct ).toMatrix( mtx );
+
+			final AffineTransform2D out = new AffineTransform2D();
+			out.set( mtx[ 0 ][ 0 ], mtx[ 0 ][ 1 ], mtx[ 0 ][ 2 ],
+					mtx[ 1 ][ 0 ], mtx[ 1 ][ 1 ], mtx[ 1 ][ 2 ] );
+			return out;
+		}
+		else if ( nd == 3 && ct instanceof AbstractAffineModel3D )
+		{
+			final double[][] mtx = new double[ 3 ][ 4 ];
+			( ( AbstractAffineModel3D< ? > ) ct ).toMatrix( mtx );
+
+			final AffineTransform3D out = new AffineTransform3D();
+			out.set( mtx[ 0 ][ 0 ], mtx[ 0 ][ 1 ], mtx[ 0 ][ 2 ], mtx[ 0 ][ 3 ],
+					mtx[ 1 ][ 0 ], mtx[ 1 ][ 1 ], mtx[ 1 ][ 2 ], mtx[ 1 ][ 3 ],
+					mtx[ 2 ][ 0 ], mtx[ 2 ][ 1 ], mtx[ 2 ][ 2 ], mtx[ 2 ][ 3 ] );
+			return out;
+		}
+		return null;
 	}
 
 	public InvertibleCoordinateTransform getTransform()
-    {
+	{
 		return ct;
 	}
 
+	/**
+	 * @return the equivalent imglib2 affine transform, or null if the wrapped model is not affine
+	 */
+	public InvertibleRealTransform getAffine()
+	{
+		return affine;
+	}
+
 	@Override
-	public void apply(double[] src, double[] tgt)
-    {
-		double[] res = ct.apply( src );
-        System.arraycopy( res, 0, tgt, 0, res.length );
+	public void apply( double[] src, double[] tgt )
+	{
+		if ( affine != null )
+		{
+			affine.apply( src, tgt );
+			return;
+		}
+
+		System.arraycopy( src, 0, tgt, 0, nd );
+		ct.applyInPlace( tgt );
 	}
 
 	@Override
 	public void apply( RealLocalizable src, RealPositionable tgt )
-    {
-        double[] srcpt = new double[ src.numDimensions() ];
-        src.localize( srcpt );
+	{
+		if ( affine != null )
+		{
+			affine.apply( src, tgt );
+			return;
+		}
+
+		double[] srcpt = new double[ src.numDimensions() ];
+		src.localize( srcpt );
 
-        double[] res = ct.apply( srcpt );
-        tgt.setPosition( res );
+		ct.applyInPlace( srcpt );
+		tgt.setPosition( srcpt );
 	}
 
 	@Override
 	public int numSourceDimensions()
-    {
+	{
 		return nd;
 	}
 
 	@Override
 	public int numTargetDimensions()
-    {
-		return nd; 
+	{
+		return nd;
 	}
 
 	@Override
 	public void applyInverse( double[] src, double[] tgt )
-    {
-	    double[] res = ct_inv.apply( tgt );
-        System.arraycopy( res, 0, src, 0, res.length );    
+	{
+		if ( affine != null )
+		{
+			affine.applyInverse( src, tgt );
+			return;
+		}
+
+		System.arraycopy( tgt, 0, src, 0, nd );
+		ct_inv.applyInPlace( src );
 	}
 
 	@Override
 	public void applyInverse( RealPositionable src, RealLocalizable tgt )
-    {
-        double[] tgtpt = new double[ tgt.numDimensions() ];
-        tgt.localize( tgtpt );
-        
-        double[] res = ct_inv.apply( tgtpt );
-        src.setPosition( res );
+	{
+		if ( affine != null )
+		{
+			affine.applyInverse( src, tgt );
+			return;
+		}
+
+		double[] tgtpt = new double[ tgt.numDimensions() ];
+		tgt.localize( tgtpt );
+
+		ct_inv.applyInPlace( tgtpt );
+		src.setPosition( tgtpt );
 	}
 
 	@Override
 	public WrappedCoordinateTransform copy()
-    {
-		return new WrappedCoordinateTransform( ct, nd );
+	{
+		// the wrapped models and affines are only read, so can be shared
+		return new WrappedCoordinateTransform( ct, ct_inv, nd, affine );
 	}
 
 	@Override
 	public WrappedCoordinateTransform inverse()
-    {
-		return new WrappedCoordinateTransform( ct_inv, nd );
+	{
+		return new WrappedCoordinateTransform( ct_inv, ct, nd, affine == null ? null : affine.inverse() );
 	}
 
 }
@@ -1,5 +1,6 @@
 package net.imglib2.realtransform;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
 
 import net.imglib2.FinalInterval;
@@ -12,12 +13,20 @@ import net.imglib2.iterator.RealIntervalIterator;
 
 public class BoundingBoxEstimation {
 
-	public static enum Method { CORNERS, FACES, VOLUME };
+	public static enum Method { CORNERS, FACES, VOLUME, ADAPTIVE };
+
+	/**
+	 * The maximum number of times a face cell is subdivided by the
+	 * {@link Method#ADAPTIVE} method.
+	 */
+	public static final int MAX_REFINEMENTS = 6;
 
 	private Method method;
 
 	private int samplesPerDim = 5;
 
+	private double tolerance = 0.5;
+
 	private double[] steps;
 
 	public BoundingBoxEstimation()
@@ -51,6 +60,22 @@ public class BoundingBoxEstimation {
 		this.samplesPerDim = samplesPerDim;
 	}
 
+	/**
+	 * Sets the tolerance of the {@link Method#ADAPTIVE} method, faces are
+	 * refined until the bounding box is stable to within this distance.
+	 *
+	 * @param tolerance the tolerance (in pixels of the transformed space)
+	 */
+	public void setTolerance( final double tolerance )
+	{
+		this.tolerance = tolerance;
+	}
+
+	public double getTolerance()
+	{
+		return tolerance;
+	}
+
 	public double[] setSamplesPerDim( final RealInterval itvl, int maxSamples )
 	{
 		steps = samplesPerDim( itvl, maxSamples );
@@ -83,6 +108,8 @@ public class BoundingBoxEstimation {
 			return corners(xfm, interval);
 		case VOLUME:
 			return volume(xfm, interval, steps );
+		case ADAPTIVE:
+			return adaptive( xfm, interval, samplesPerDim, tolerance );
 		default:
 			return faces( xfm, interval, steps );
 		}
@@ -90,7 +117,9 @@ public class BoundingBoxEstimation {
 
 	public BoundingBoxEstimation copy()
 	{
-		return new BoundingBoxEstimation(method, samplesPerDim);
+		final BoundingBoxEstimation copy = new BoundingBoxEstimation(method, samplesPerDim);
+		copy.setTolerance( tolerance );
+		return copy;
 	}
 
 	/**
@@ -254,4 +283,193 @@ public class BoundingBoxEstimation {
 		return new FinalInterval( min, max );
 	}
 
+	public static FinalInterval adaptive( RealTransform xfm, Interval interval, int samplesPerDim, double tolerance )
+	{
+		return containingInterval( adaptiveReal( xfm, interval, samplesPerDim, tolerance ));
+	}
+
+	/**
+	 * Estimates the bounding box of the transformed interval by sampling its
+	 * faces on a coarse grid with samplesPerDim samples per dimension, then
+	 * subdividing only those cells whose transformed image is near the current
+	 * extremes and not yet well approximated by its corners. A cell is well
+	 * approximated if its transformed center deviates from the mean of its
+	 * transformed corners by at most the tolerance.
+	 *
+	 * @param xfm the transformation
+	 * @param interval the interval
+	 * @param samplesPerDim the number of samples per dimension of the coarse grid
+	 * @param tolerance the tolerance
+	 * @return the bounding box
+	 */
+	public static FinalRealInterval adaptiveReal( RealTransform xfm, RealInterval interval, int samplesPerDim, double tolerance )
+	{
+		if( xfm == null )
+			return new FinalRealInterval( interval );
+
+		final int nd = interval.numDimensions();
+		final double[] min = new double[ nd ];
+		final double[] max = new double[ nd ];
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+
+		final double[] src = new double[ nd ];
+		final double[] dst = new double[ nd ];
+
+		// coarse cells on all faces
+		final int n = Math.max( samplesPerDim - 1, 1 );
+		final ArrayDeque< Cell > cells = new ArrayDeque<>();
+		final double[] faceMin = new double[ nd ];
+		final double[] faceMax = new double[ nd ];
+		final long[] gridSize = new long[ nd ];
+		for( int i = 0; i < nd; i++ )
+		{
+			for( int side = 0; side < 2; side++ )
+			{
+				subInterval( interval, side == 0 ? interval.realMin( i ) : interval.realMax( i ), i, faceMin, faceMax );
+				for( int d = 0; d < nd; d++ )
+					gridSize[ d ] = d == i ? 1 : n;
+
+				final IntervalIterator it = new IntervalIterator( gridSize );
+				while( it.hasNext() )
+				{
+					it.fwd();
+					final Cell cell = new Cell( nd, 0 );
+					for( int d = 0; d < nd; d++ )
+					{
+						final double w = ( faceMax[ d ] - faceMin[ d ] ) / gridSize[ d ];
+						cell.min[ d ] = faceMin[ d ] + w * it.getLongPosition( d );
+						cell.max[ d ] = d == i ? faceMax[ d ] : cell.min[ d ] + w;
+					}
+					cell.evaluate( xfm, src, dst, min, max );
+					cells.add( cell );
+				}
+			}
+		}
+
+		// refine cells that could contain an extreme, until stable
+		while( !cells.isEmpty() )
+		{
+			final Cell cell = cells.poll();
+			if( cell.error <= tolerance || cell.depth >= MAX_REFINEMENTS || !cell.isNearExtreme( min, max, tolerance ) )
+				continue;
+
+			cell.subdivide( xfm, src, dst, min, max, cells );
+		}
+
+		return new FinalRealInterval( min, max );
+	}
+
+	/**
+	 * A box on a face of the interval together with the bounding box of its
+	 * transformed corners and center.
+	 */
+	private static final class Cell
+	{
+		final double[] min;
+
+		final double[] max;
+
+		final double[] lo;
+
+		final double[] hi;
+
+		final int depth;
+
+		double error;
+
+		Cell( final int nd, final int depth )
+		{
+			min = new double[ nd ];
+			max = new double[ nd ];
+			lo = new double[ nd ];
+			hi = new double[ nd ];
+			this.depth = depth;
+		}
+
+		void evaluate( final RealTransform xfm, final double[] src, final double[] dst, final double[] globalMin, final double[] globalMax )
+		{
+			final int nd = min.length;
+			Arrays.fill( lo, Double.POSITIVE_INFINITY );
+			Arrays.fill( hi, Double.NEGATIVE_INFINITY );
+
+			final double[] mean = new double[ nd ];
+			int numCorners = 0;
+			for( int c = 0; c < ( 1 << nd ); c++ )
+			{
+				boolean duplicate = false;
+				for( int d = 0; d < nd; d++ )
+				{
+					final boolean upper = ( ( c >> d ) & 1 ) == 1;
+					duplicate |= upper && min[ d ] == max[ d ];
+					src[ d ] = upper ? max[ d ] : min[ d ];
+				}
+				if( duplicate )
+					continue;
+
+				xfm.apply( src, dst );
+				include( dst, globalMin, globalMax );
+				for( int d = 0; d < nd; d++ )
+					mean[ d ] += dst[ d ];
+
+				numCorners++;
+			}
+
+			for( int d = 0; d < nd; d++ )
+				src[ d ] = 0.5 * ( min[ d ] + max[ d ] );
+
+			xfm.apply( src, dst );
+			include( dst, globalMin, globalMax );
+
+			error = 0;
+			for( int d = 0; d < nd; d++ )
+				error = Math.max( error, Math.abs( dst[ d ] - mean[ d ] / numCorners ) );
+		}
+
+		private void include( final double[] pt, final double[] globalMin, final double[] globalMax )
+		{
+			for( int d = 0; d < pt.length; d++ )
+			{
+				lo[ d ] = Math.min( lo[ d ], pt[ d ] );
+				hi[ d ] = Math.max( hi[ d ], pt[ d ] );
+				globalMin[ d ] = Math.min( globalMin[ d ], pt[ d ] );
+				globalMax[ d ] = Math.max( globalMax[ d ], pt[ d ] );
+			}
+		}
+
+		boolean isNearExtreme( final double[] globalMin, final double[] globalMax, final double tolerance )
+		{
+			for( int d = 0; d < lo.length; d++ )
+			{
+				if( lo[ d ] - error <= globalMin[ d ] + tolerance || hi[ d ] + error >= globalMax[ d ] - tolerance )
+					return true;
+			}
+			return false;
+		}
+
+		void subdivide( final RealTransform xfm, final double[] src, final double[] dst, final double[] globalMin, final double[] globalMax,
+				final ArrayDeque< Cell > cells )
+		{
+			final int nd = min.length;
+			for( int c = 0; c < ( 1 << nd ); c++ )
+			{
+				boolean duplicate = false;
+				final Cell child = new Cell( nd, depth + 1 );
+				for( int d = 0; d < nd; d++ )
+				{
+					final boolean upper = ( ( c >> d ) & 1 ) == 1;
+					final double mid = 0.5 * ( min[ d ] + max[ d ] );
+					duplicate |= upper && min[ d ] == max[ d ];
+					child.min[ d ] = upper ? mid : min[ d ];
+					child.max[ d ] = upper ? max[ d ] : mid;
+				}
+				if( duplicate )
+					continue;
+
+				child.evaluate( xfm, src, dst, globalMin, globalMax );
+				cells.add( child );
+			}
+		}
+	}
+
 }
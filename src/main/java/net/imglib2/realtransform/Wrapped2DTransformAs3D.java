@@ -21,19 +21,79 @@
  */
 package net.imglib2.realtransform;
 
+import bigwarp.transforms.BigWarpTransform;
+import bigwarp.transforms.WrappedCoordinateTransform;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
 
+/**
+ * Applies a 2d transformation to the first two dimensions of 3d points and
+ * passes the third through.
+ * <p>
+ * This wrapper keeps no state of its own and may be called from several
+ * threads at once if the wrapped transformation may. 2d affines, including
+ * the affine models in a {@link WrappedCoordinateTransform}, and the forward
+ * direction of thin plate splines are evaluated directly from a copy of their
+ * parameters taken on construction, so they are thread safe and allocate
+ * nothing. The wrapped transformation should not be changed afterwards.
+ */
 public class Wrapped2DTransformAs3D implements InvertibleRealTransform
 {
-	public InvertibleRealTransform transform;
+	private final InvertibleRealTransform transform;
+
+	// row packed 2x3 matrices if the transform is a 2d affine, null otherwise
+	private final double[] affine;
+
+	private final double[] affineInverse;
+
+	// if the forward transform is a thin plate spline, null otherwise
+	private final ThinPlateSpline2D tps;
 
-	public double[] tmp;
+	// scratch space for other transforms, one per thread
+	private final ThreadLocal< double[] > tmp;
 
 	public Wrapped2DTransformAs3D( final InvertibleRealTransform transform )
 	{
 		this.transform = transform;
-		tmp = new double[ 2 ];
+
+		final AffineTransform2D a = toAffine2D( transform );
+		if ( a != null )
+		{
+			affine = a.getRowPackedCopy();
+			affineInverse = a.inverse().getRowPackedCopy();
+		}
+		else
+		{
+			affine = null;
+			affineInverse = null;
+		}
+
+		tps = affine == null ? ThinPlateSpline2D.create( transform ) : null;
+		tmp = ThreadLocal.withInitial( () -> new double[ 2 ] );
+	}
+
+	protected Wrapped2DTransformAs3D( final Wrapped2DTransformAs3D other, final InvertibleRealTransform transform )
+	{
+		this.transform = transform;
+		this.affine = other.affine;
+		this.affineInverse = other.affineInverse;
+		this.tps = other.tps;
+		this.tmp = ThreadLocal.withInitial( () -> new double[ 2 ] );
+	}
+
+	private static AffineTransform2D toAffine2D( final InvertibleRealTransform transform )
+	{
+		if ( transform instanceof AffineTransform2D )
+			return ( AffineTransform2D ) transform;
+		else if ( transform instanceof WrappedCoordinateTransform )
+		{
+			final InvertibleRealTransform a = ( ( WrappedCoordinateTransform ) transform ).getAffine();
+			if ( a instanceof AffineTransform2D )
+				return ( AffineTransform2D ) a;
+		}
+		return null;
 	}
 
 	public InvertibleRealTransform getTransform()
@@ -56,60 +116,108 @@ public class Wrapped2DTransformAs3D implements InvertibleRealTransform
 	@Override
 	public void apply( double[] source, double[] target )
 	{
-		// TODO this could be done without tmp if all downstream implementations
-		// could take source and target inputs with dim larger than the
-		// transform dim
-		tmp[ 0 ] = source[ 0 ];
-		tmp[ 1 ] = source[ 1 ];
-		transform.apply( tmp, tmp );
-		target[ 0 ] = tmp[ 0 ];
-		target[ 1 ] = tmp[ 1 ];
-//		transform.apply( source, target );
-		target[ 2 ] = source[ 2 ];
+		final double x = source[ 0 ];
+		final double y = source[ 1 ];
+		final double z = source[ 2 ];
+		if ( affine != null )
+		{
+			target[ 0 ] = affine[ 0 ] * x + affine[ 1 ] * y + affine[ 2 ];
+			target[ 1 ] = affine[ 3 ] * x + affine[ 4 ] * y + affine[ 5 ];
+		}
+		else if ( tps != null )
+			tps.apply( x, y, target );
+		else
+		{
+			// downstream implementations may not accept inputs with
+			// more dimensions than the transform, so go through tmp
+			final double[] p = tmp.get();
+			p[ 0 ] = x;
+			p[ 1 ] = y;
+			transform.apply( p, p );
+			target[ 0 ] = p[ 0 ];
+			target[ 1 ] = p[ 1 ];
+		}
+		target[ 2 ] = z;
 	}
 
 	@Override
 	public void apply( RealLocalizable source, RealPositionable target )
 	{
-		// TODO this could be done without tmp if all downstream implementations
-		// could take source and target inputs with dim larger than the
-		// transform dim
-		tmp[ 0 ] = source.getDoublePosition( 0 );
-		tmp[ 1 ] = source.getDoublePosition( 1 );
-		transform.apply( tmp, tmp );
-		target.setPosition( tmp[ 0 ], 0 );
-		target.setPosition( tmp[ 1 ], 1 );
-//		transform.apply( source, target );
-		target.setPosition( source.getDoublePosition( 2 ), 2 );
+		final double x = source.getDoublePosition( 0 );
+		final double y = source.getDoublePosition( 1 );
+		final double z = source.getDoublePosition( 2 );
+		if ( affine != null )
+		{
+			target.setPosition( affine[ 0 ] * x + affine[ 1 ] * y + affine[ 2 ], 0 );
+			target.setPosition( affine[ 3 ] * x + affine[ 4 ] * y + affine[ 5 ], 1 );
+		}
+		else
+		{
+			final double[] p = tmp.get();
+			if ( tps != null )
+				tps.apply( x, y, p );
+			else
+			{
+				p[ 0 ] = x;
+				p[ 1 ] = y;
+				transform.apply( p, p );
+			}
+			target.setPosition( p[ 0 ], 0 );
+			target.setPosition( p[ 1 ], 1 );
+		}
+		target.setPosition( z, 2 );
 	}
 
 	@Override
 	public void applyInverse( double[] source, double[] target )
 	{
-		tmp[ 0 ] = target[ 0 ];
-		tmp[ 1 ] = target[ 1 ];
-		transform.applyInverse( tmp, tmp );
-		source[ 0 ] = tmp[ 0 ];
-		source[ 1 ] = tmp[ 1 ];
-//		transform.applyInverse( source, target );
-		source[ 2 ] = target[ 2 ];
+		final double x = target[ 0 ];
+		final double y = target[ 1 ];
+		final double z = target[ 2 ];
+		if ( affineInverse != null )
+		{
+			source[ 0 ] = affineInverse[ 0 ] * x + affineInverse[ 1 ] * y + affineInverse[ 2 ];
+			source[ 1 ] = affineInverse[ 3 ] * x + affineInverse[ 4 ] * y + affineInverse[ 5 ];
+		}
+		else
+		{
+			final double[] p = tmp.get();
+			p[ 0 ] = x;
+			p[ 1 ] = y;
+			transform.applyInverse( p, p );
+			source[ 0 ] = p[ 0 ];
+			source[ 1 ] = p[ 1 ];
+		}
+		source[ 2 ] = z;
 	}
 
 	@Override
 	public void applyInverse( RealPositionable source, RealLocalizable target )
 	{
-		tmp[ 0 ] = target.getDoublePosition( 0 );
-		tmp[ 1 ] = target.getDoublePosition( 1 );
-		transform.applyInverse( tmp, tmp );
-		source.setPosition( tmp[ 0 ], 0 );
-		source.setPosition( tmp[ 1 ], 1 );
-//		transform.applyInverse( source, target );
-		source.setPosition( target.getDoublePosition( 2 ), 2 );
+		final double x = target.getDoublePosition( 0 );
+		final double y = target.getDoublePosition( 1 );
+		final double z = target.getDoublePosition( 2 );
+		if ( affineInverse != null )
+		{
+			source.setPosition( affineInverse[ 0 ] * x + affineInverse[ 1 ] * y + affineInverse[ 2 ], 0 );
+			source.setPosition( affineInverse[ 3 ] * x + affineInverse[ 4 ] * y + affineInverse[ 5 ], 1 );
+		}
+		else
+		{
+			final double[] p = tmp.get();
+			p[ 0 ] = x;
+			p[ 1 ] = y;
+			transform.applyInverse( p, p );
+			source.setPosition( p[ 0 ], 0 );
+			source.setPosition( p[ 1 ], 1 );
+		}
+		source.setPosition( z, 2 );
 	}
 
 	public InvertibleRealTransform copy()
 	{
-		return new Wrapped2DTransformAs3D( transform.copy() );
+		// the fast paths are immutable and can be shared
+		return new Wrapped2DTransformAs3D( this, transform.copy() );
 	}
 
 	@Override
@@ -118,4 +226,106 @@ public class Wrapped2DTransformAs3D implements InvertibleRealTransform
 		return new Wrapped2DTransformAs3D( transform.inverse() );
 	}
 
+	/**
+	 * The parameters of a 2d thin plate spline, evaluated without scratch
+	 * space.
+	 */
+	protected static class ThinPlateSpline2D
+	{
+		final int numLandmarks;
+
+		final double[] px;
+
+		final double[] py;
+
+		final double[] wx;
+
+		final double[] wy;
+
+		// row packed 2x3, including the identity
+		final double[] affine;
+
+		ThinPlateSpline2D( final ThinPlateR2LogRSplineKernelTransform kernel )
+		{
+			final double[][] src = kernel.getSourceLandmarks();
+			final double[] w = kernel.getKnotWeights();
+			numLandmarks = kernel.getNumLandmarks();
+
+			px = new double[ numLandmarks ];
+			py = new double[ numLandmarks ];
+			wx = new double[ numLandmarks ];
+			wy = new double[ numLandmarks ];
+			for ( int l = 0; l < numLandmarks; l++ )
+			{
+				px[ l ] = src[ 0 ][ l ];
+				py[ l ] = src[ 1 ][ l ];
+				wx[ l ] = w[ 2 * l ];
+				wy[ l ] = w[ 2 * l + 1 ];
+			}
+
+			affine = new double[] { 1, 0, 0, 0, 1, 0 };
+			final double[][] a = kernel.getAffine();
+			if ( a != null )
+				for ( int i = 0; i < 2; i++ )
+					for ( int j = 0; j < 2; j++ )
+						affine[ 3 * i + j ] += a[ i ][ j ];
+
+			final double[] t = kernel.getTranslation();
+			if ( t != null )
+			{
+				affine[ 2 ] += t[ 0 ];
+				affine[ 5 ] += t[ 1 ];
+			}
+		}
+
+		/**
+		 * Returns the 2d thin plate spline that the forward direction of the
+		 * given transform evaluates, or null.
+		 *
+		 * @param transform the transform
+		 * @return the spline or null
+		 */
+		static ThinPlateSpline2D create( final InvertibleRealTransform transform )
+		{
+			if ( !( transform instanceof WrappedIterativeInvertibleRealTransform ) )
+				return null;
+
+			final RealTransform fwd = ( ( WrappedIterativeInvertibleRealTransform< ? > ) transform ).getTransform();
+			if ( !( fwd instanceof ThinplateSplineTransform ) )
+				return null;
+
+			final ThinPlateR2LogRSplineKernelTransform kernel = BigWarpTransform.getKernelTransform( ( ThinplateSplineTransform ) fwd );
+			if ( kernel == null || kernel.getSourceLandmarks().length != 2 )
+				return null;
+
+			return new ThinPlateSpline2D( kernel );
+		}
+
+		/**
+		 * @param x the first coordinate
+		 * @param y the second coordinate
+		 * @param result receives the transformed point in its first two elements
+		 */
+		void apply( final double x, final double y, final double[] result )
+		{
+			double vx = affine[ 0 ] * x + affine[ 1 ] * y + affine[ 2 ];
+			double vy = affine[ 3 ] * x + affine[ 4 ] * y + affine[ 5 ];
+			for ( int l = 0; l < numLandmarks; l++ )
+			{
+				final double dx = x - px[ l ];
+				final double dy = y - py[ l ];
+				final double r2 = dx * dx + dy * dy;
+				if ( r2 > 0 )
+				{
+					// r^2 log r
+					final double u = 0.5 * r2 * Math.log( r2 );
+					vx += wx[ l ] * u;
+					vy += wy[ l ] * u;
+				}
+			}
+			result[ 0 ] = vx;
+			result[ 1 ] = vy;
+		}
+	}
+
 }
@@ -5,8 +5,11 @@ import org.junit.Test;
 
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.BoundingBoxEstimation;
+import net.imglib2.realtransform.RealTransform;
 
 public class BBoxTests {
 
@@ -41,4 +44,68 @@ public class BBoxTests {
 		assertEquals( "max z ", itvl.max(2) * 4, bbox.max(2) );
 	}
 
+	@Test
+	public void testAdaptive()
+	{
+		final AffineTransform3D xfm = new AffineTransform3D();
+		xfm.scale(2, 3, 4);
+
+		final BoundingBoxEstimation bboxAdaptive = new BoundingBoxEstimation(BoundingBoxEstimation.Method.ADAPTIVE);
+		final Interval bbox = bboxAdaptive.estimatePixelInterval(xfm, itvl);
+		assertEquals( "max x ", itvl.max(0) * 2, bbox.max(0) );
+		assertEquals( "max y ", itvl.max(1) * 3, bbox.max(1) );
+		assertEquals( "max z ", itvl.max(2) * 4, bbox.max(2) );
+
+		// a narrow bump on a face that a coarse grid misses
+		final RealTransform bump = new Bump();
+		final BoundingBoxEstimation bboxDense = new BoundingBoxEstimation(BoundingBoxEstimation.Method.FACES, 200);
+		final Interval expected = bboxDense.estimatePixelInterval(bump, itvl);
+		final Interval adaptive = bboxAdaptive.estimatePixelInterval(bump, itvl);
+		for( int d = 0; d < 3; d++ )
+		{
+			assertEquals( "min " + d, expected.min(d), adaptive.min(d), 1 );
+			assertEquals( "max " + d, expected.max(d), adaptive.max(d), 1 );
+		}
+	}
+
+	private static class Bump implements RealTransform
+	{
+		@Override
+		public int numSourceDimensions()
+		{
+			return 3;
+		}
+
+		@Override
+		public int numTargetDimensions()
+		{
+			return 3;
+		}
+
+		@Override
+		public void apply( final double[] source, final double[] target )
+		{
+			final double dy = source[ 1 ] - 11;
+			final double dz = source[ 2 ] - 7;
+			target[ 0 ] = source[ 0 ] + 10 * Math.exp( -( dy * dy + dz * dz ) / 8 );
+			target[ 1 ] = source[ 1 ];
+			target[ 2 ] = source[ 2 ];
+		}
+
+		@Override
+		public void apply( final RealLocalizable source, final RealPositionable target )
+		{
+			final double[] pt = new double[ 3 ];
+			source.localize( pt );
+			apply( pt, pt );
+			target.setPosition( pt );
+		}
+
+		@Override
+		public RealTransform copy()
+		{
+			return this;
+		}
+	}
+
 }
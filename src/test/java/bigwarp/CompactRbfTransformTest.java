@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import bdv.gui.TransformTypeSelectDialog;
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bigwarp.BigWarp.BigWarpData;
+import bigwarp.landmarks.LandmarkTableModel;
+import bigwarp.source.JacobianDeterminantSource;
+import bigwarp.transforms.BigWarpTransform;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class CompactRbfTransformTest
+{
+	@Test
+	public void testJacobianSourceIn3d()
+	{
+		final LandmarkTableModel ltm = new LandmarkTableModel( 3 );
+		final Random rand = new Random( 5 );
+		final double[] mvg = new double[ 3 ];
+		final double[] tgt = new double[ 3 ];
+		for ( int i = 0; i < 20; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+			{
+				tgt[ d ] = 20 * rand.nextDouble();
+				mvg[ d ] = tgt[ d ] + rand.nextDouble();
+			}
+			ltm.pointEdit( -1, mvg, false, true, null, false );
+			ltm.pointEdit( -1, tgt, false, false, null, false );
+		}
+
+		final Source< FloatType > src = new RandomAccessibleIntervalSource<>(
+				ArrayImgs.floats( 20, 20, 20 ), new FloatType(), new AffineTransform3D(), "img" );
+		final BigWarpData< ? > data = BigWarpInit.createBigWarpData(
+				new Source[] { src }, new Source[] { src }, new String[] { "mvg", "tgt" } );
+		final JacobianDeterminantSource< FloatType > jdSrc = new JacobianDeterminantSource<>( "jacobian", data, new FloatType() );
+
+		// compact rbf, the jacobian source is not applicable
+		final BigWarpTransform bwTransform = new BigWarpTransform( ltm, TransformTypeSelectDialog.COMPACT_RBF );
+		final InvertibleRealTransform rbf = bwTransform.getTransformation();
+		assertTrue( rbf instanceof WrappedIterativeInvertibleRealTransform );
+		assertNull( BigWarp.getThinPlateSpline( rbf ) );
+		jdSrc.setTransform( BigWarp.getThinPlateSpline( rbf ) );
+
+		// thin plate spline
+		bwTransform.setTransformType( TransformTypeSelectDialog.TPS );
+		final InvertibleRealTransform tps = bwTransform.getTransformation();
+		assertNotNull( BigWarp.getThinPlateSpline( tps ) );
+		jdSrc.setTransform( BigWarp.getThinPlateSpline( tps ) );
+
+		final RealRandomAccess< FloatType > access = jdSrc.getInterpolatedSource( 0, 0, Interpolation.NEARESTNEIGHBOR ).realRandomAccess();
+		access.setPosition( new double[] { 10, 10, 10 } );
+		assertTrue( access.get().getRealDouble() > 0 );
+	}
+}
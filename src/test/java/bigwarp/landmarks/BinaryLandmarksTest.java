@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.landmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BinaryLandmarksTest
+{
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final LandmarkTableModel ltm = randomLandmarks( 3, 200 );
+		final LandmarkSnapshot expected = ltm.getSnapshot();
+
+		final File bin = File.createTempFile( "landmarks", BinaryLandmarks.EXTENSION );
+		final File csv = File.createTempFile( "landmarks", ".csv" );
+		bin.deleteOnExit();
+		csv.deleteOnExit();
+		ltm.save( bin );
+		ltm.save( csv );
+
+		final LandmarkTableModel fromBinary = new LandmarkTableModel( 3 );
+		fromBinary.load( bin );
+		assertSame( expected, fromBinary.getSnapshot(), false );
+
+		final LandmarkTableModel fromCsv = new LandmarkTableModel( 3 );
+		fromCsv.load( csv );
+		assertSame( expected, fromCsv.getSnapshot(), false );
+
+		final LandmarkTableModel inverted = new LandmarkTableModel( 3 );
+		inverted.load( bin, true );
+		assertSame( expected, inverted.getSnapshot(), true );
+	}
+
+	@Test
+	public void testSidecar() throws IOException
+	{
+		final LandmarkTableModel ltm = randomLandmarks( 2, 50 );
+		final File csv = File.createTempFile( "landmarks", ".csv" );
+		final File sidecar = BinaryLandmarks.sidecar( csv );
+		csv.deleteOnExit();
+		sidecar.deleteOnExit();
+
+		ltm.setWriteBinarySidecar( true );
+		ltm.save( csv );
+		assertTrue( sidecar.isFile() );
+
+		final LandmarkTableModel loaded = new LandmarkTableModel( 2 );
+		loaded.load( csv );
+		assertSame( ltm.getSnapshot(), loaded.getSnapshot(), false );
+	}
+
+	private static LandmarkTableModel randomLandmarks( final int nd, final int N )
+	{
+		final Random rand = new Random( 9 );
+		final LandmarkTableModel ltm = new LandmarkTableModel( nd );
+		final double[] p = new double[ nd ];
+		for ( int i = 0; i < N; i++ )
+		{
+			for ( int d = 0; d < nd; d++ )
+				p[ d ] = 100 * rand.nextDouble();
+
+			ltm.add( p, true );
+			// leave some rows unpaired
+			if ( i % 7 != 0 )
+			{
+				for ( int d = 0; d < nd; d++ )
+					p[ d ] = 100 * rand.nextDouble();
+
+				ltm.setPoint( i, false, p, null );
+			}
+		}
+		ltm.setColumnName( 1, "custom name" );
+		ltm.setIsActive( 2, false );
+		return ltm;
+	}
+
+	private static void assertSame( final LandmarkSnapshot expected, final LandmarkSnapshot actual, final boolean inverted )
+	{
+		assertEquals( expected.numRows(), actual.numRows() );
+		assertEquals( expected.numDimensions(), actual.numDimensions() );
+		for ( int i = 0; i < expected.numRows(); i++ )
+		{
+			assertEquals( expected.getName( i ), actual.getName( i ) );
+			assertEquals( "active " + i, expected.isActive( i ), actual.isActive( i ) );
+			for ( int d = 0; d < expected.numDimensions(); d++ )
+			{
+				assertEquals( expected.getMoving( i, d ), inverted ? actual.getTarget( i, d ) : actual.getMoving( i, d ), 0 );
+				assertEquals( expected.getTarget( i, d ), inverted ? actual.getMoving( i, d ) : actual.getTarget( i, d ), 0 );
+			}
+		}
+	}
+}
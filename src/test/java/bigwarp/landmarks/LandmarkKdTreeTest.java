@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.landmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class LandmarkKdTreeTest
+{
+	@Test
+	public void testNearestMatchesLinearSearch()
+	{
+		final Random rand = new Random( 5 );
+		final LandmarkTableModel ltm = new LandmarkTableModel( 3 );
+		for ( int i = 0; i < 500; i++ )
+		{
+			final double[] p = randomPoint( rand );
+			ltm.add( p, true );
+			// leave some rows unpaired
+			if ( i % 5 != 0 )
+				ltm.setPoint( i, false, randomPoint( rand ), null );
+		}
+
+		for ( int i = 0; i < 300; i++ )
+		{
+			// edits between queries are searched separately
+			ltm.setPoint( rand.nextInt( ltm.getRowCount() ), rand.nextBoolean(), randomPoint( rand ), null );
+
+			final double[] q = randomPoint( rand );
+			final int space = i % 3;
+			final double maxSqrDist = ( i % 2 == 0 ) ? Double.MAX_VALUE : 100;
+			assertEquals( "query " + i, nearestLinear( ltm.getSnapshot(), space, q, maxSqrDist ),
+					ltm.getIndexNearestTo( q, space, maxSqrDist ) );
+		}
+	}
+
+	@Test
+	public void testBoxMatchesLinearSearch()
+	{
+		final Random rand = new Random( 6 );
+		final LandmarkTableModel ltm = new LandmarkTableModel( 3 );
+		for ( int i = 0; i < 500; i++ )
+		{
+			ltm.add( randomPoint( rand ), true );
+			if ( i % 5 != 0 )
+				ltm.setPoint( i, false, randomPoint( rand ), null );
+		}
+
+		for ( int i = 0; i < 200; i++ )
+		{
+			ltm.setPoint( rand.nextInt( ltm.getRowCount() ), rand.nextBoolean(), randomPoint( rand ), null );
+
+			final double[] a = randomPoint( rand );
+			final double[] b = randomPoint( rand );
+			final double[] min = new double[ 3 ];
+			final double[] max = new double[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+			{
+				min[ d ] = Math.min( a[ d ], b[ d ] );
+				max[ d ] = Math.max( a[ d ], b[ d ] );
+			}
+
+			final int space = i % 3;
+			final LandmarkIndex index = ltm.getIndex( space );
+			final IntStream.Builder found = IntStream.builder();
+			index.forEachInBox( min, max, found );
+			final int[] rows = found.build().toArray();
+			Arrays.sort( rows );
+
+			assertArrayEquals( "query " + i, inBoxLinear( index.getSnapshot(), space, min, max ), rows );
+		}
+	}
+
+	private static int[] inBoxLinear( final LandmarkSnapshot landmarks, final int space, final double[] min, final double[] max )
+	{
+		final double[] p = new double[ 3 ];
+		return IntStream.range( 0, landmarks.numRows() ).filter( i -> {
+			landmarks.copyPoint( i, space, p );
+			return LandmarkKdTree.inBox( p, min, max );
+		} ).toArray();
+	}
+
+	private static double[] randomPoint( final Random rand )
+	{
+		return new double[]{ 100 * rand.nextDouble(), 100 * rand.nextDouble(), 100 * rand.nextDouble() };
+	}
+
+	private static int nearestLinear( final LandmarkSnapshot landmarks, final int space, final double[] q, final double maxSqrDist )
+	{
+		final double[] p = new double[ 3 ];
+		int best = -1;
+		double bestDist = maxSqrDist;
+		for ( int i = 0; i < landmarks.numRows(); i++ )
+		{
+			landmarks.copyPoint( i, space, p );
+			final double dist = ( p[ 0 ] - q[ 0 ] ) * ( p[ 0 ] - q[ 0 ] ) + ( p[ 1 ] - q[ 1 ] ) * ( p[ 1 ] - q[ 1 ] ) + ( p[ 2 ] - q[ 2 ] ) * ( p[ 2 ] - q[ 2 ] );
+			if ( dist < bestDist )
+			{
+				bestDist = dist;
+				best = i;
+			}
+		}
+		return best;
+	}
+}
@@ -22,9 +22,11 @@
 package bigwarp.landmarks;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 
 import javax.swing.JTable;
 
@@ -137,4 +139,63 @@ public class LandmarkModelTest
 		table = null;
 		panel = null;
 	}
+
+	@Test
+	public void testLoadEmptyCsv() throws IOException
+	{
+		final File empty = File.createTempFile( "empty", ".csv" );
+		final File header = File.createTempFile( "header", ".csv" );
+		try
+		{
+			Files.write( header.toPath(), "name,active,mx,my,tx,ty\n".getBytes() );
+			try
+			{
+				ltm.load( header );
+				fail( "header only file" );
+			}
+			catch ( final IOException e )
+			{
+				assertEquals( "unchanged by invalid file", 5, ltm.getRowCount() );
+			}
+
+			ltm.load( empty );
+			assertEquals( "empty", 0, ltm.getRowCount() );
+			assertEquals( "dimensions kept", 2, ltm.getNumdims() );
+
+			ltm.add( new double[] { 1.0, 2.0 }, true );
+			assertEquals( "added", 1, ltm.getRowCount() );
+		}
+		finally
+		{
+			empty.delete();
+			header.delete();
+		}
+	}
+
+	@Test
+	public void testSnapshotAfterEdits()
+	{
+		final LandmarkSnapshot before = ltm.getSnapshot();
+		final double mx = before.getMoving( 0, 0 );
+		final double tx = before.getTarget( 0, 0 );
+
+		ltm.setPoint( 0, true, new double[] { -7.0, -8.0 }, null );
+		final LandmarkSnapshot moved = ltm.getSnapshot();
+		assertEquals( "old snapshot unchanged", mx, before.getMoving( 0, 0 ), 0 );
+		assertEquals( "moving point", -7.0, moved.getMoving( 0, 0 ), 0 );
+		assertEquals( "target point", tx, moved.getTarget( 0, 0 ), 0 );
+		assertEquals( "name", before.getName( 0 ), moved.getName( 0 ) );
+
+		ltm.setColumnName( 1, "renamed" );
+		final LandmarkSnapshot renamed = ltm.getSnapshot();
+		assertEquals( "renamed", "renamed", renamed.getName( 1 ) );
+		assertEquals( "moving point kept", -7.0, renamed.getMoving( 0, 0 ), 0 );
+		assertEquals( "old name", before.getName( 1 ), moved.getName( 1 ) );
+
+		ltm.setPoint( 1, false, new double[] { 3.0, 4.0 }, null );
+		final LandmarkSnapshot target = ltm.getSnapshot();
+		assertEquals( "target point", 3.0, target.getTarget( 1, 0 ), 0 );
+		assertEquals( "moving point kept", -7.0, target.getMoving( 0, 0 ), 0 );
+		assertEquals( "name kept", "renamed", target.getName( 1 ) );
+	}
 }
@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.landmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class PointColumnsTest
+{
+	@Test
+	public void testInsertRemove()
+	{
+		final PointColumns pts = new PointColumns( 2, 1 );
+		for ( int i = 0; i < 100; i++ )
+			pts.add( new double[]{ i, -i } );
+
+		assertEquals( 100, pts.size() );
+
+		pts.insert( 10, Double.POSITIVE_INFINITY );
+		assertEquals( 101, pts.size() );
+		assertEquals( Double.POSITIVE_INFINITY, pts.get( 10, 1 ), 0 );
+		assertArrayEquals( new double[]{ 10, -10 }, pts.get( 11 ), 0 );
+
+		pts.remove( 0 );
+		assertArrayEquals( new double[]{ 99, -99 }, pts.get( pts.size() - 1 ), 0 );
+		assertEquals( 9, pts.column( 0 )[ 8 ], 0 );
+	}
+
+	@Test
+	public void testListView()
+	{
+		final PointColumns pts = new PointColumns( 3 );
+		pts.add( new double[]{ 1, 2, 3 } );
+
+		final List< Double[] > list = pts.asList();
+		final Double[] p = list.get( 0 );
+		p[ 2 ] = 7.0;
+
+		// elements are copies
+		assertEquals( 3, pts.get( 0, 2 ), 0 );
+
+		list.set( 0, p );
+		assertEquals( 7, pts.get( 0, 2 ), 0 );
+	}
+}
@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.source;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class JacobianDeterminantRandomAccessTest
+{
+	@Test
+	public void testClosedFormMatchesJacobian()
+	{
+		final Random rand = new Random( 3 );
+		for ( int nd = 2; nd <= 3; nd++ )
+		{
+			final int N = 40;
+			final double[][] src = new double[ nd ][ N ];
+			final double[][] tgt = new double[ nd ][ N ];
+			for ( int l = 0; l < N; l++ )
+				for ( int d = 0; d < nd; d++ )
+				{
+					src[ d ][ l ] = 100 * rand.nextDouble();
+					tgt[ d ][ l ] = 1.1 * src[ d ][ l ] + 5 * Math.sin( src[ ( d + 1 ) % nd ][ l ] / 20 );
+				}
+
+			final ThinplateSplineTransform tps = new ThinplateSplineTransform( new ThinPlateR2LogRSplineKernelTransform( nd, src, tgt ) );
+			final RealRandomAccess< DoubleType > ra = new JacobianDeterminantRandomAccess<>( new double[ nd ], new DoubleType(), tps ).copy();
+
+			final double[] x = new double[ nd ];
+			for ( int i = 0; i < 100; i++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+					x[ d ] = 100 * rand.nextDouble();
+
+				ra.setPosition( x );
+				final double expected = JacobianDeterminantRandomAccess.determinant( tps.jacobian( x ) );
+				assertEquals( nd + "d point " + i, expected, ra.get().getRealDouble(), 1e-6 * Math.max( 1, Math.abs( expected ) ) );
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import bigwarp.source.WarpMagnitudeRandomAccess.ThinPlateSplineResidual;
+import bigwarp.transforms.ModelTransformSolver;
+import bigwarp.transforms.TpsTransformSolver;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.SimilarityModel2D;
+import mpicbg.models.SimilarityModel3D;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.Wrapped2DTransformAs3D;
+
+public class WarpMagnitudeRandomAccessTest
+{
+	@Test
+	public void testResidual2d()
+	{
+		final double[][] mvg = randomPoints( 2, 30, 1 );
+		final double[][] tgt = warp( mvg );
+		final RealTransform warp = new Wrapped2DTransformAs3D( new TpsTransformSolver().solve( mvg, tgt ) );
+
+		final AffineTransform2D affine = new AffineTransform2D();
+		affine.set( 1.05, 0.1, 2, -0.05, 0.95, -3 );
+		compare( warp, affine, 2 );
+		compare( warp, new ModelTransformSolver( new SimilarityModel2D() ).solve( mvg, tgt ), 2 );
+		compare( warp, new ModelTransformSolver( new RigidModel2D() ).solve( mvg, tgt ), 2 );
+	}
+
+	@Test
+	public void testResidual3d()
+	{
+		final double[][] mvg = randomPoints( 3, 30, 2 );
+		final double[][] tgt = warp( mvg );
+		final RealTransform warp = new TpsTransformSolver().solve( mvg, tgt );
+
+		final AffineTransform3D affine = new AffineTransform3D();
+		affine.set( 1.05, 0.1, 0, 2, -0.05, 0.95, 0.02, -3, 0.01, 0, 1.1, 4 );
+		compare( warp, affine, 3 );
+		compare( warp, new ModelTransformSolver( new SimilarityModel3D() ).solve( mvg, tgt ), 3 );
+		compare( warp, new ModelTransformSolver( new RigidModel3D() ).solve( mvg, tgt ), 3 );
+	}
+
+	/*
+	 * Compares the residual to the distance between warp and baseline
+	 * evaluated separately. The warp may have three dimensions for nd = 2.
+	 */
+	private static void compare( final RealTransform warp, final RealTransform baseline, final int nd )
+	{
+		final ThinPlateSplineResidual residual = ThinPlateSplineResidual.create( warp, baseline );
+		assertNotNull( "residual", residual );
+
+		final Random rand = new Random( 7 );
+		final double[] x = new double[ warp.numSourceDimensions() ];
+		final double[] y = new double[ warp.numTargetDimensions() ];
+		final double[] z = new double[ nd ];
+		for ( int i = 0; i < 100; i++ )
+		{
+			for ( int d = 0; d < nd; d++ )
+				x[ d ] = 120 * rand.nextDouble() - 10;
+
+			warp.apply( x, y );
+			baseline.apply( x, z );
+
+			double dist = 0;
+			for ( int d = 0; d < nd; d++ )
+				dist += ( y[ d ] - z[ d ] ) * ( y[ d ] - z[ d ] );
+
+			final double expected = Math.sqrt( dist );
+			assertEquals( nd + "d point " + i, expected, residual.magnitude( x ), 1e-8 * Math.max( 1, expected ) );
+		}
+	}
+
+	private static double[][] randomPoints( final int nd, final int N, final long seed )
+	{
+		final Random rand = new Random( seed );
+		final double[][] pts = new double[ nd ][ N ];
+		for ( int d = 0; d < nd; d++ )
+			for ( int i = 0; i < N; i++ )
+				pts[ d ][ i ] = 100 * rand.nextDouble();
+
+		return pts;
+	}
+
+	private static double[][] warp( final double[][] pts )
+	{
+		final int nd = pts.length;
+		final double[][] out = new double[ nd ][ pts[ 0 ].length ];
+		for ( int d = 0; d < nd; d++ )
+			for ( int i = 0; i < pts[ 0 ].length; i++ )
+				out[ d ][ i ] = 1.1 * pts[ d ][ i ] + 5 * Math.sin( pts[ ( d + 1 ) % nd ][ i ] / 20 );
+
+		return out;
+	}
+}
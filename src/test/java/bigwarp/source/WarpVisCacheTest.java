@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.source;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RealLocalizable;
+import net.imglib2.position.FunctionRealRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class WarpVisCacheTest
+{
+	private static final double EPS = 1e-9;
+
+	@Test
+	public void testLevels()
+	{
+		// 200 x 100 x 10, only dimensions longer than MIN_LEVEL_SIZE are halved
+		final FinalInterval interval = new FinalInterval( new long[] { 5, -3, 0 }, new long[] { 204, 96, 9 } );
+		final WarpVisCache< DoubleType > cache = new WarpVisCache<>( function( 0 ), interval, new DoubleType() );
+
+		assertEquals( "levels", 3, cache.getNumMipmapLevels() );
+		assertArrayEquals( new long[] { 1, 1, 1 }, cache.getDownsamplingFactors( 0 ) );
+		assertArrayEquals( new long[] { 2, 2, 1 }, cache.getDownsamplingFactors( 1 ) );
+		assertArrayEquals( new long[] { 4, 2, 1 }, cache.getDownsamplingFactors( 2 ) );
+
+		assertArrayEquals( new long[] { 200, 100, 10 }, dimensions( cache, 0 ) );
+		assertArrayEquals( new long[] { 100, 50, 10 }, dimensions( cache, 1 ) );
+		assertArrayEquals( new long[] { 50, 50, 10 }, dimensions( cache, 2 ) );
+	}
+
+	@Test
+	public void testLevelTransformCentering()
+	{
+		final FinalInterval interval = new FinalInterval( new long[] { 5, -3, 0 }, new long[] { 204, 96, 9 } );
+		final AffineTransform3D level2 = new AffineTransform3D();
+		new WarpVisCache<>( function( 0 ), interval, new DoubleType() ).getLevelTransform( 2, level2 );
+
+		// voxel 0 of level 2 is centered on level 0 voxels 5 to 8, -3 to -2 and 0
+		assertArrayEquals( new double[] {
+				4, 0, 0, 6.5,
+				0, 2, 0, -2.5,
+				0, 0, 1, 0 }, level2.getRowPackedCopy(), EPS );
+	}
+
+	@Test
+	public void testSampledAtSourceTransform()
+	{
+		final FinalInterval interval = new FinalInterval( new long[] { 5, -3, 0 }, new long[] { 204, 96, 9 } );
+		final AffineTransform3D sampleTransform = new AffineTransform3D();
+		sampleTransform.set(
+				0.5, 0.0, 0.0, 10.0,
+				0.0, 2.0, 0.0, -5.0,
+				0.0, 0.0, 3.0, 7.0 );
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		final double[] voxel = new double[ 3 ];
+		final double[] position = new double[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			final WarpVisCache< DoubleType > cache = new WarpVisCache<>( function( d ), interval, new DoubleType(), sampleTransform );
+			for ( int level = 0; level < cache.getNumMipmapLevels(); level++ )
+			{
+				cache.getSourceTransform( level, transform );
+				final RandomAccess< DoubleType > access = cache.getImage( level ).randomAccess();
+				for ( final long[] pos : new long[][] { { 0, 0, 0 }, { 3, 4, 5 }, { 49, 49, 9 } } )
+				{
+					for ( int i = 0; i < 3; i++ )
+						voxel[ i ] = pos[ i ];
+
+					transform.apply( voxel, position );
+					access.setPosition( pos );
+					assertEquals( "level " + level + " dimension " + d, position[ d ], access.get().getRealDouble(), EPS );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidate()
+	{
+		final WarpVisCache< DoubleType > cache = new WarpVisCache<>( function( 0 ), new FinalInterval( 10, 10, 10 ), new DoubleType() );
+		final long generation = cache.getGeneration();
+		final Object img = cache.getImage( 0 );
+		cache.invalidate();
+		assertEquals( generation + 1, cache.getGeneration() );
+		assertNotSame( img, cache.getImage( 0 ) );
+	}
+
+	private static FunctionRealRandomAccessible< DoubleType > function( final int d )
+	{
+		return new FunctionRealRandomAccessible<>( 3,
+				( final RealLocalizable x, final DoubleType t ) -> t.setReal( x.getDoublePosition( d ) ),
+				DoubleType::new );
+	}
+
+	private static long[] dimensions( final WarpVisCache< DoubleType > cache, final int level )
+	{
+		final long[] dims = new long[ 3 ];
+		cache.getImage( level ).dimensions( dims );
+		return dims;
+	}
+}
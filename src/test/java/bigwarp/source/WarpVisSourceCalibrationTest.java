@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.source;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.Source;
+import bigwarp.BigWarp.BigWarpData;
+import bigwarp.BigWarpInit;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class WarpVisSourceCalibrationTest
+{
+	private static final double EPS = 1e-4;
+
+	@Test
+	public void testAnisotropicOffsetTarget()
+	{
+		final AffineTransform3D calibration = new AffineTransform3D();
+		calibration.set(
+				0.5, 0.0, 0.0, 10.0,
+				0.0, 2.0, 0.0, -5.0,
+				0.0, 0.0, 3.0, 7.0 );
+
+		final Source< FloatType > src = new RandomAccessibleIntervalSource<>(
+				ArrayImgs.floats( 20, 10, 8 ), new FloatType(), calibration, "img" );
+		final BigWarpData< ? > data = BigWarpInit.createBigWarpData(
+				new Source[] { src }, new Source[] { src }, new String[] { "mvg", "tgt" } );
+
+		// the warp doubles coordinates, so the magnitude is the distance to the origin
+		final AffineTransform3D warp = new AffineTransform3D();
+		warp.scale( 2 );
+		final WarpMagnitudeSource< FloatType > magSrc = new WarpMagnitudeSource<>( "magnitude", data, new FloatType() );
+		magSrc.setWarp( warp );
+		magSrc.setBaseline( new AffineTransform3D() );
+
+		final JacobianDeterminantSource< FloatType > jdSrc = new JacobianDeterminantSource<>( "jacobian", data, new FloatType() );
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		magSrc.getSourceTransform( 0, 0, transform );
+		assertArrayEquals( calibration.getRowPackedCopy(), transform.getRowPackedCopy(), EPS );
+		jdSrc.getSourceTransform( 0, 0, transform );
+		assertArrayEquals( calibration.getRowPackedCopy(), transform.getRowPackedCopy(), EPS );
+
+		// sampled at the physical position of each voxel
+		final RandomAccess< FloatType > access = magSrc.getSource( 0, 0 ).randomAccess();
+		final double[] voxel = new double[ 3 ];
+		final double[] world = new double[ 3 ];
+		for ( final long[] pos : new long[][] { { 0, 0, 0 }, { 3, 4, 5 }, { 19, 9, 7 } } )
+		{
+			for ( int d = 0; d < 3; d++ )
+				voxel[ d ] = pos[ d ];
+
+			calibration.apply( voxel, world );
+			access.setPosition( pos );
+			final double expected = Math.sqrt( world[ 0 ] * world[ 0 ] + world[ 1 ] * world[ 1 ] + world[ 2 ] * world[ 2 ] );
+			assertEquals( expected, access.get().getRealDouble(), EPS );
+		}
+	}
+}
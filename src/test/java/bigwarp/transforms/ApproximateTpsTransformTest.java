@@ -0,0 +1,83 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+
+public class ApproximateTpsTransformTest
+{
+	@Test
+	public void testErrorBound()
+	{
+		final Random rand = new Random( 11 );
+		final double tolerance = 0.01;
+		for ( int nd = 2; nd <= 3; nd++ )
+		{
+			final int N = 400;
+			final double[][] src = new double[ nd ][ N ];
+			final double[][] tgt = new double[ nd ][ N ];
+			for ( int i = 0; i < N; i++ )
+				for ( int d = 0; d < nd; d++ )
+				{
+					src[ d ][ i ] = 200 * rand.nextDouble();
+					tgt[ d ][ i ] = src[ d ][ i ] + 10 * rand.nextDouble() - 5;
+				}
+
+			final ThinPlateR2LogRSplineKernelTransform tps = new ThinPlateR2LogRSplineKernelTransform( nd, src, tgt );
+			final ApproximateTpsTransform approx = new ApproximateTpsTransform( tps, tolerance );
+
+			final double[] p = new double[ nd ];
+			final double[] q = new double[ nd ];
+			for ( int i = 0; i < 500; i++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+					p[ d ] = 300 * rand.nextDouble() - 50;
+
+				final double[] expected = tps.apply( p );
+				approx.apply( p, q );
+				for ( int d = 0; d < nd; d++ )
+					assertEquals( expected[ d ], q[ d ], tolerance );
+			}
+		}
+	}
+
+	@Test
+	public void testInPlace()
+	{
+		final double[][] src = new double[][]{ { 0, 10, 0, 10, 5 }, { 0, 0, 10, 10, 4 } };
+		final double[][] tgt = new double[][]{ { 1, 11, 1, 11, 7 }, { 2, 2, 12, 12, 7 } };
+		final ThinPlateR2LogRSplineKernelTransform tps = new ThinPlateR2LogRSplineKernelTransform( 2, src, tgt );
+		final ApproximateTpsTransform approx = new ApproximateTpsTransform( tps, 1e-6 );
+
+		final double[] p = new double[]{ 3, 4 };
+		final double[] expected = tps.apply( p );
+		approx.apply( p, p );
+		assertTrue( Math.abs( expected[ 0 ] - p[ 0 ] ) < 1e-6 && Math.abs( expected[ 1 ] - p[ 1 ] ) < 1e-6 );
+	}
+}
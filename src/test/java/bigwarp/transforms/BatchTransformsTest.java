@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.Wrapped2DTransformAs3D;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+
+public class BatchTransformsTest
+{
+	private static final double EPS = 1e-9;
+
+	@Test
+	public void testThinPlateSpline()
+	{
+		final Random rand = new Random( 5 );
+		for ( int nd = 2; nd <= 3; nd++ )
+		{
+			final ThinPlateR2LogRSplineKernelTransform tps = randomTps( rand, nd, 50 );
+
+			// more than one block, and not a multiple of the block size
+			final int n = 2 * BatchTransforms.BLOCK_SIZE + 17;
+			final double[][] pts = new double[ nd ][ n ];
+			for ( int i = 0; i < n; i++ )
+				for ( int d = 0; d < nd; d++ )
+					pts[ d ][ i ] = 150 * rand.nextDouble() - 25;
+
+			final double[][] result = new double[ nd ][ n ];
+			BatchTransforms.apply( new ThinplateSplineTransform( tps ), pts, result, 3 );
+
+			final double[] p = new double[ nd ];
+			for ( int i = 0; i < n; i++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+					p[ d ] = pts[ d ][ i ];
+
+				final double[] expected = tps.apply( p );
+				for ( int d = 0; d < nd; d++ )
+					assertEquals( expected[ d ], result[ d ][ i ], EPS );
+			}
+		}
+	}
+
+	@Test
+	public void testWrapped2DInPlace()
+	{
+		final Random rand = new Random( 9 );
+		final ThinPlateR2LogRSplineKernelTransform tps = randomTps( rand, 2, 20 );
+		final Wrapped2DTransformAs3D xfm = new Wrapped2DTransformAs3D(
+				new WrappedIterativeInvertibleRealTransform<>( new ThinplateSplineTransform( tps ) ) );
+
+		final int n = 100;
+		final double[][] pts = new double[ 3 ][ n ];
+		for ( int i = 0; i < n; i++ )
+			for ( int d = 0; d < 3; d++ )
+				pts[ d ][ i ] = 100 * rand.nextDouble();
+
+		final double[][] expected = new double[ 3 ][ n ];
+		final double[] p = new double[ 3 ];
+		final double[] q = new double[ 3 ];
+		for ( int i = 0; i < n; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				p[ d ] = pts[ d ][ i ];
+
+			xfm.apply( p, q );
+			for ( int d = 0; d < 3; d++ )
+				expected[ d ][ i ] = q[ d ];
+		}
+
+		BatchTransforms.apply( xfm, pts, pts );
+		for ( int i = 0; i < n; i++ )
+			for ( int d = 0; d < 3; d++ )
+				assertEquals( expected[ d ][ i ], pts[ d ][ i ], EPS );
+	}
+
+	@Test( expected = RuntimeException.class )
+	public void testFailureIsThrown()
+	{
+		final int n = 2 * BatchTransforms.BLOCK_SIZE + 17;
+		final double[][] pts = new double[ 2 ][ n ];
+		BatchTransforms.apply( new FailingTransform(), pts, new double[ 2 ][ n ], 3 );
+	}
+
+	private static class FailingTransform implements RealTransform
+	{
+		@Override
+		public int numSourceDimensions()
+		{
+			return 2;
+		}
+
+		@Override
+		public int numTargetDimensions()
+		{
+			return 2;
+		}
+
+		@Override
+		public void apply( final double[] source, final double[] target )
+		{
+			throw new IllegalStateException( "failed" );
+		}
+
+		@Override
+		public void apply( final RealLocalizable source, final RealPositionable target )
+		{
+			throw new IllegalStateException( "failed" );
+		}
+
+		@Override
+		public RealTransform copy()
+		{
+			return this;
+		}
+	}
+
+	private static ThinPlateR2LogRSplineKernelTransform randomTps( final Random rand, final int nd, final int N )
+	{
+		final double[][] src = new double[ nd ][ N ];
+		final double[][] tgt = new double[ nd ][ N ];
+		for ( int i = 0; i < N; i++ )
+			for ( int d = 0; d < nd; d++ )
+			{
+				src[ d ][ i ] = 100 * rand.nextDouble();
+				tgt[ d ][ i ] = src[ d ][ i ] + 6 * rand.nextDouble() - 3;
+			}
+
+		return new ThinPlateR2LogRSplineKernelTransform( nd, src, tgt );
+	}
+}
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import bdv.gui.TransformTypeSelectDialog;
+import bigwarp.landmarks.LandmarkSnapshot;
+import bigwarp.landmarks.LandmarkTableModel;
+import net.imglib2.realtransform.InvertibleRealTransform;
+
+public class BigWarpTransformTest
+{
+	private static final double EPS = 1e-9;
+
+	@Test
+	public void testToggleActiveResolves() throws IOException
+	{
+		final LandmarkTableModel ltm = new LandmarkTableModel( 2 );
+		ltm.load( new File( "src/test/resources/testPoints.csv" ) );
+
+		final AtomicInteger activeEvents = new AtomicInteger();
+		ltm.addTableModelListener( e -> {
+			if ( e.getColumn() == LandmarkTableModel.ACTIVECOLUMN )
+				activeEvents.incrementAndGet();
+		} );
+
+		final BigWarpTransform bwTransform = new BigWarpTransform( ltm, TransformTypeSelectDialog.TPS );
+		final double[] p = new double[] { 3.3, 4.4, 0 };
+		final double[] all = new double[ 3 ];
+		bwTransform.getTransformation().apply( p, all );
+
+		ltm.setIsActive( 0, false );
+		assertEquals( "active event", 1, activeEvents.get() );
+
+		final double[] fewer = new double[ 3 ];
+		bwTransform.getTransformation().apply( p, fewer );
+
+		final double[] expected = new double[ 3 ];
+		new BigWarpTransform( ltm, TransformTypeSelectDialog.TPS ).getTransformation().apply( p, expected );
+		assertArrayEquals( expected, fewer, EPS );
+		assertTrue( "deactivating changes the transform", Math.abs( all[ 0 ] - fewer[ 0 ] ) + Math.abs( all[ 1 ] - fewer[ 1 ] ) > EPS );
+
+		ltm.setIsActive( 0, true );
+		assertEquals( "active event", 2, activeEvents.get() );
+
+		final InvertibleRealTransform xfm = bwTransform.getTransformation();
+		final double[] again = new double[ 3 ];
+		xfm.apply( p, again );
+		assertArrayEquals( all, again, EPS );
+	}
+
+	@Test
+	public void testInverseLookup() throws IOException
+	{
+		final LandmarkTableModel ltm = new LandmarkTableModel( 2 );
+		ltm.load( new File( "src/test/resources/testPoints.csv" ) );
+
+		final BigWarpTransform bwTransform = new BigWarpTransform( ltm, TransformTypeSelectDialog.TPS );
+		assertFalse( "off by default", bwTransform.unwrap2d( bwTransform.getTransformation() ) instanceof InverseLookupTransform );
+
+		bwTransform.setInverseLookupResolution( 64 );
+		assertEquals( 64, bwTransform.getInverseLookupResolution() );
+		final InvertibleRealTransform xfm = bwTransform.getTransformation();
+		assertTrue( "inverse lookup", bwTransform.unwrap2d( xfm ) instanceof InverseLookupTransform );
+
+		// the spline maps target to moving landmarks
+		assertInverseAtLandmarks( ltm.getSnapshot(), xfm, bwTransform.getInverseTolerance() );
+	}
+
+	@Test
+	public void testApproximateInverse() throws IOException
+	{
+		final LandmarkTableModel ltm = new LandmarkTableModel( 2 );
+		ltm.load( new File( "src/test/resources/testPoints.csv" ) );
+
+		final BigWarpTransform bwTransform = new BigWarpTransform( ltm, TransformTypeSelectDialog.TPS );
+		assertFalse( "off by default", bwTransform.unwrap2d( bwTransform.getTransformation() ) instanceof DualTpsTransform );
+
+		bwTransform.setApproximateInverse( true );
+		assertTrue( bwTransform.isApproximateInverse() );
+		final InvertibleRealTransform xfm = bwTransform.getTransformation();
+		assertTrue( "dual thin plate spline", bwTransform.unwrap2d( xfm ) instanceof DualTpsTransform );
+
+		// the dual spline interpolates the landmarks exactly
+		assertInverseAtLandmarks( ltm.getSnapshot(), xfm, 1e-6 );
+
+		bwTransform.setApproximateInverse( false );
+		assertFalse( "switched off", bwTransform.unwrap2d( bwTransform.getTransformation() ) instanceof DualTpsTransform );
+	}
+
+	private static void assertInverseAtLandmarks( final LandmarkSnapshot landmarks, final InvertibleRealTransform xfm, final double tolerance )
+	{
+		final double[] mvg = new double[ 3 ];
+		final double[] tgt = new double[ 3 ];
+		final double[] inv = new double[ 3 ];
+		for ( int i = 0; i < landmarks.numRows(); i++ )
+		{
+			landmarks.copyMovingPoint( i, mvg );
+			landmarks.copyTargetPoint( i, tgt );
+			xfm.applyInverse( inv, mvg );
+			assertArrayEquals( "landmark " + i, tgt, inv, tolerance );
+		}
+	}
+}
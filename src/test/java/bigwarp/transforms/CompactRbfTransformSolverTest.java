@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompactRbfTransformSolverTest
+{
+	private static final double EPS = 1e-4;
+
+	@Test
+	public void testInterpolatesLandmarks()
+	{
+		final Random rand = new Random( 7 );
+		for ( int nd = 2; nd <= 3; nd++ )
+		{
+			final int N = 60;
+			final double[][] tgt = new double[ nd ][ N ];
+			final double[][] mvg = new double[ nd ][ N ];
+			for ( int i = 0; i < N; i++ )
+				for ( int d = 0; d < nd; d++ )
+				{
+					tgt[ d ][ i ] = 100 * rand.nextDouble();
+					mvg[ d ][ i ] = 1.1 * tgt[ d ][ i ] + 5 + 2 * rand.nextDouble() - 1;
+				}
+
+			final CompactRbfTransformSolver solver = new CompactRbfTransformSolver();
+			solver.setRegularization( 0 );
+			final CompactRbfTransform xfm = solver.solveRbf( mvg, tgt );
+
+			final double[] p = new double[ nd ];
+			final double[] q = new double[ nd ];
+			final double[] expected = new double[ nd ];
+			for ( int i = 0; i < N; i++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+				{
+					p[ d ] = tgt[ d ][ i ];
+					expected[ d ] = mvg[ d ][ i ];
+				}
+				xfm.apply( p, q );
+				assertArrayEquals( "landmark " + i, expected, q, EPS );
+			}
+		}
+	}
+
+	@Test
+	public void testAffineOutsideSupport()
+	{
+		final double[][] tgt = new double[][]{ { 0, 10, 0, 10, 5 }, { 0, 0, 10, 10, 5 } };
+		final double[][] mvg = new double[][]{ { 1, 11, 1, 11, 7 }, { 2, 2, 12, 12, 7 } };
+
+		final CompactRbfTransformSolver solver = new CompactRbfTransformSolver();
+		solver.setSupportRadius( 4 );
+		final CompactRbfTransform xfm = solver.solveRbf( mvg, tgt );
+
+		// far from every landmark only the affine part contributes
+		final double[] q = new double[ 2 ];
+		xfm.apply( new double[]{ 1000, -1000 }, q );
+
+		final double[][] a = xfm.getAffine();
+		final double[] b = xfm.getTranslation();
+		assertEquals( 1000 + a[ 0 ][ 0 ] * 1000 - a[ 0 ][ 1 ] * 1000 + b[ 0 ], q[ 0 ], EPS );
+		assertEquals( -1000 + a[ 1 ][ 0 ] * 1000 - a[ 1 ][ 1 ] * 1000 + b[ 1 ], q[ 1 ], EPS );
+	}
+}
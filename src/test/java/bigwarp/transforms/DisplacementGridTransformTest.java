@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.RealTransform;
+
+public class DisplacementGridTransformTest
+{
+	@Test
+	public void testWithinTolerance()
+	{
+		final double tol = 0.05;
+		final Wave exact = new Wave( 3, 40 );
+		final DisplacementGridTransform grid = DisplacementGridTransform.create( exact, 2, tol );
+
+		final Random rand = new Random( 3 );
+		final double[] p = new double[ 2 ];
+		final double[] q = new double[ 2 ];
+		final double[] r = new double[ 2 ];
+		for ( int i = 0; i < 10000; i++ )
+		{
+			p[ 0 ] = 200 * rand.nextDouble() - 100;
+			p[ 1 ] = 200 * rand.nextDouble() - 100;
+			grid.apply( p, q );
+			exact.apply( p, r );
+			assertEquals( r[ 0 ], q[ 0 ], tol );
+			assertEquals( r[ 1 ], q[ 1 ], tol );
+		}
+	}
+
+	@Test
+	public void testUpdate()
+	{
+		final double tol = 0.05;
+		final DisplacementGridTransform grid = DisplacementGridTransform.create( new Wave( 3, 40 ), 2, tol );
+
+		final double[] p = new double[] { 10, 10 };
+		final double[] q = new double[ 2 ];
+		grid.apply( p, q );
+
+		// the changed block is outside the affected region, so must be verified
+		final Wave changed = new Wave( 5, 40 );
+		final DisplacementGridTransform updated = grid.update( changed, new FinalRealInterval( new double[] { 500, 500 }, new double[] { 501, 501 } ) );
+
+		final double[] r = new double[ 2 ];
+		updated.apply( p, q );
+		changed.apply( p, r );
+		assertEquals( r[ 0 ], q[ 0 ], tol );
+		assertEquals( r[ 1 ], q[ 1 ], tol );
+	}
+
+	@Test
+	public void testUnknownChangeDiscardsBlocks()
+	{
+		final DisplacementGridTransform grid = DisplacementGridTransform.create( new Wave( 3, 40 ), 2, 0.05 );
+		grid.apply( new double[] { 10, 10 }, new double[ 2 ] );
+		assertTrue( grid.getCachedBytes() > 0 );
+
+		final DisplacementGridTransform kept = grid.update( new Wave( 3, 40 ), new FinalRealInterval( new double[] { 500, 500 }, new double[] { 501, 501 } ) );
+		assertEquals( grid.getCachedBytes(), kept.getCachedBytes() );
+
+		final DisplacementGridTransform discarded = grid.update( new Wave( 3, 40 ), null );
+		assertEquals( 0, discarded.getCachedBytes() );
+	}
+
+	@Test
+	public void testMemoryBound()
+	{
+		final DisplacementGridTransform grid = DisplacementGridTransform.create( new Wave( 3, 40 ), 1, 0.05 );
+		final double[] p = new double[ 2 ];
+		final double[] q = new double[ 2 ];
+		final int n = 150;
+		for ( int i = 0; i < n; i++ )
+			for ( int j = 0; j < n; j++ )
+			{
+				p[ 0 ] = 16 * i + 8;
+				p[ 1 ] = 16 * j + 8;
+				grid.apply( p, q );
+				assertTrue( grid.getCachedBytes() <= DisplacementGridTransform.MAX_BYTES );
+			}
+
+		// still correct after blocks were discarded
+		final double[] r = new double[ 2 ];
+		p[ 0 ] = 8;
+		p[ 1 ] = 8;
+		grid.apply( p, q );
+		new Wave( 3, 40 ).apply( p, r );
+		assertEquals( r[ 0 ], q[ 0 ], 0.05 );
+		assertEquals( r[ 1 ], q[ 1 ], 0.05 );
+	}
+
+	/*
+	 * A smooth displacement.
+	 */
+	private static class Wave implements RealTransform
+	{
+		private final double amplitude;
+
+		private final double wavelength;
+
+		Wave( final double amplitude, final double wavelength )
+		{
+			this.amplitude = amplitude;
+			this.wavelength = wavelength;
+		}
+
+		@Override
+		public int numSourceDimensions()
+		{
+			return 2;
+		}
+
+		@Override
+		public int numTargetDimensions()
+		{
+			return 2;
+		}
+
+		@Override
+		public void apply( final double[] source, final double[] target )
+		{
+			final double x = source[ 0 ];
+			final double y = source[ 1 ];
+			target[ 0 ] = x + amplitude * Math.sin( 2 * Math.PI * y / wavelength );
+			target[ 1 ] = y + amplitude * Math.cos( 2 * Math.PI * x / wavelength );
+		}
+
+		@Override
+		public void apply( final RealLocalizable source, final RealPositionable target )
+		{
+			final double[] s = new double[ 2 ];
+			final double[] t = new double[ 2 ];
+			source.localize( s );
+			apply( s, t );
+			target.setPosition( t );
+		}
+
+		@Override
+		public RealTransform copy()
+		{
+			return this;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+
+public class DualTpsTransformTest
+{
+	private static final double EPS = 1e-6;
+
+	@Test
+	public void testApproximateInverse()
+	{
+		final Random rand = new Random( 23 );
+		for ( int nd = 2; nd <= 3; nd++ )
+		{
+			final int N = 30;
+			final double[][] src = new double[ nd ][ N ];
+			final double[][] tgt = new double[ nd ][ N ];
+			for ( int i = 0; i < N; i++ )
+				for ( int d = 0; d < nd; d++ )
+					src[ d ][ i ] = 100 * rand.nextDouble();
+
+			// a smooth deformation
+			for ( int i = 0; i < N; i++ )
+				for ( int d = 0; d < nd; d++ )
+					tgt[ d ][ i ] = src[ d ][ i ] + 4 * Math.sin( src[ ( d + 1 ) % nd ][ i ] / 30 );
+
+			final DualTpsTransform xfm = new DualTpsTransform(
+					new ThinplateSplineTransform( new ThinPlateR2LogRSplineKernelTransform( nd, src, tgt ) ),
+					new ThinplateSplineTransform( new ThinPlateR2LogRSplineKernelTransform( nd, tgt, src ) ) );
+
+			// exact at the landmarks, also when inverting in place
+			final double[] p = new double[ nd ];
+			final double[] expected = new double[ nd ];
+			for ( int i = 0; i < N; i++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+				{
+					p[ d ] = tgt[ d ][ i ];
+					expected[ d ] = src[ d ][ i ];
+				}
+				xfm.applyInverse( p, p );
+				assertArrayEquals( "landmark " + i, expected, p, EPS );
+			}
+			assertEquals( 0, xfm.getLandmarkResidual(), EPS );
+
+			// approximate between landmarks
+			final double[] x = new double[ nd ];
+			for ( int i = 0; i < 100; i++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+					p[ d ] = 20 + 60 * rand.nextDouble();
+
+				xfm.applyInverse( x, p );
+				assertTrue( xfm.residual( x, p ) < 0.5 );
+			}
+			assertTrue( xfm.getMidpointResidual() < 0.5 );
+
+			// the inverse swaps the splines
+			final DualTpsTransform inv = xfm.inverse();
+			for ( int d = 0; d < nd; d++ )
+			{
+				p[ d ] = tgt[ d ][ 0 ];
+				expected[ d ] = src[ d ][ 0 ];
+			}
+			inv.apply( p, x );
+			assertArrayEquals( expected, x, EPS );
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+
+public class InverseLookupTransformTest
+{
+	@Test
+	public void testWithinTolerance()
+	{
+		final Random rand = new Random( 17 );
+		for ( int nd = 2; nd <= 3; nd++ )
+		{
+			final int N = 40;
+			final double[][] src = new double[ nd ][ N ];
+			final double[][] tgt = new double[ nd ][ N ];
+			for ( int i = 0; i < N; i++ )
+				for ( int d = 0; d < nd; d++ )
+				{
+					src[ d ][ i ] = 100 * rand.nextDouble();
+					tgt[ d ][ i ] = src[ d ][ i ] + 6 * rand.nextDouble() - 3;
+				}
+
+			final ThinplateSplineTransform tps = new ThinplateSplineTransform( new ThinPlateR2LogRSplineKernelTransform( nd, src, tgt ) );
+			final double tolerance = 0.01;
+			final double[] min = new double[ nd ];
+			final double[] max = new double[ nd ];
+			Arrays.fill( max, 100 );
+			final InverseLookupTransform< ThinplateSplineTransform > xfm = new InverseLookupTransform<>(
+					tps, new FinalRealInterval( min, max ), 16, tolerance, 200 );
+
+			assertTrue( xfm.getMaxError() >= xfm.getMeanError() );
+
+			// inside and outside of the grid
+			final double[] p = new double[ nd ];
+			final double[] x = new double[ nd ];
+			final double[] y = new double[ nd ];
+			for ( int i = 0; i < 200; i++ )
+			{
+				for ( int d = 0; d < nd; d++ )
+					p[ d ] = 140 * rand.nextDouble() - 20;
+
+				xfm.applyInverse( x, p );
+				tps.apply( x, y );
+
+				double e = 0;
+				for ( int d = 0; d < nd; d++ )
+					e += ( y[ d ] - p[ d ] ) * ( y[ d ] - p[ d ] );
+				assertTrue( Math.sqrt( e ) <= tolerance );
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+
+public class NewtonInverseTest
+{
+	@Test
+	public void testWarmStart()
+	{
+		final Random rand = new Random( 13 );
+		final int nd = 2;
+		final int N = 30;
+		final double[][] src = new double[ nd ][ N ];
+		final double[][] tgt = new double[ nd ][ N ];
+		for ( int i = 0; i < N; i++ )
+			for ( int d = 0; d < nd; d++ )
+			{
+				src[ d ][ i ] = 100 * rand.nextDouble();
+				tgt[ d ][ i ] = src[ d ][ i ] + 8 * rand.nextDouble() - 4;
+			}
+
+		final ThinPlateR2LogRSplineKernelTransform tps = new ThinPlateR2LogRSplineKernelTransform( nd, src, tgt );
+		final ThinplateSplineTransform xfm = new ThinplateSplineTransform( tps );
+
+		final double tolerance = 1e-6;
+		final NewtonInverse newton = new NewtonInverse( nd );
+		final double[] x = new double[ nd ];
+		final double[] y = new double[ nd ];
+		for ( int i = 0; i < 100; i++ )
+		{
+			final double[] expected = new double[] { 100 * rand.nextDouble(), 100 * rand.nextDouble() };
+			final double[] target = tps.apply( expected );
+
+			// a nearby starting point, like the solution for a slightly different transformation
+			for ( int d = 0; d < nd; d++ )
+				x[ d ] = expected[ d ] + 0.5 * rand.nextDouble() - 0.25;
+
+			assertTrue( newton.solve( xfm, target, x, tolerance ) );
+			assertTrue( newton.getIterations() <= 5 );
+
+			xfm.apply( x, y );
+			for ( int d = 0; d < nd; d++ )
+				assertEquals( target[ d ], y[ d ], tolerance );
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+
+public class TpsKernelSystemTest
+{
+	private static final double EPS = 1e-6;
+
+	@Test
+	public void testFactorMatchesTps()
+	{
+		for ( int nd = 2; nd <= 3; nd++ )
+		{
+			final double[][] src = randomPoints( nd, 30, 1 );
+			final double[][] tgt = perturb( src, 2 );
+
+			final TpsKernelSystem system = new TpsKernelSystem( nd );
+			assertTrue( "factor", system.factor( src, tgt ) );
+
+			compare( new ThinPlateR2LogRSplineKernelTransform( nd, src, tgt ), system.getTransform(), nd );
+		}
+	}
+
+	@Test
+	public void testIncrementalUpdates()
+	{
+		final Random rand = new Random( 3 );
+		for ( int nd = 2; nd <= 3; nd++ )
+		{
+			final double[][] src = randomPoints( nd, 40, 4 );
+			final double[][] tgt = perturb( src, 5 );
+
+			final TpsKernelSystem system = new TpsKernelSystem( nd );
+			system.factor( src, tgt );
+
+			final double[] p = new double[ nd ];
+			final double[] q = new double[ nd ];
+			for ( int iter = 0; iter < 50; iter++ )
+			{
+				final int k = rand.nextInt( src[ 0 ].length );
+				final boolean moveSource = rand.nextBoolean();
+				for ( int d = 0; d < nd; d++ )
+				{
+					if ( moveSource )
+						src[ d ][ k ] += 2 * rand.nextDouble() - 1;
+
+					tgt[ d ][ k ] += 2 * rand.nextDouble() - 1;
+					p[ d ] = src[ d ][ k ];
+					q[ d ] = tgt[ d ][ k ];
+				}
+				assertTrue( "update", system.update( k, p, q ) );
+			}
+
+			compare( new ThinPlateR2LogRSplineKernelTransform( nd, src, tgt ), system.getTransform(), nd );
+		}
+	}
+
+	@Test
+	public void testRelease()
+	{
+		final int nd = 2;
+		final double[][] src = randomPoints( nd, 30, 8 );
+		final double[][] tgt = perturb( src, 9 );
+
+		final TpsKernelSystem system = new TpsKernelSystem( nd );
+		system.factor( src, tgt );
+		system.release();
+		assertFalse( "released", system.isFactored() );
+		assertFalse( "update after release", system.update( 0, new double[ nd ], new double[ nd ] ) );
+
+		assertTrue( "factor after release", system.factor( src, tgt ) );
+		compare( new ThinPlateR2LogRSplineKernelTransform( nd, src, tgt ), system.getTransform(), nd );
+	}
+
+	private static void compare( final ThinPlateR2LogRSplineKernelTransform expected, final ThinPlateR2LogRSplineKernelTransform actual, final int nd )
+	{
+		final double[][] pts = randomPoints( nd, 20, 7 );
+		final double[] x = new double[ nd ];
+		final double[] ye = new double[ nd ];
+		final double[] ya = new double[ nd ];
+		for ( int i = 0; i < pts[ 0 ].length; i++ )
+		{
+			for ( int d = 0; d < nd; d++ )
+				x[ d ] = pts[ d ][ i ];
+
+			expected.apply( x, ye );
+			actual.apply( x, ya );
+			assertArrayEquals( ye, ya, EPS );
+		}
+	}
+
+	private static double[][] randomPoints( final int nd, final int N, final long seed )
+	{
+		final Random rand = new Random( seed );
+		final double[][] pts = new double[ nd ][ N ];
+		for ( int d = 0; d < nd; d++ )
+			for ( int i = 0; i < N; i++ )
+				pts[ d ][ i ] = 100 * rand.nextDouble();
+
+		return pts;
+	}
+
+	private static double[][] perturb( final double[][] pts, final long seed )
+	{
+		final Random rand = new Random( seed );
+		final double[][] out = new double[ pts.length ][ pts[ 0 ].length ];
+		for ( int d = 0; d < pts.length; d++ )
+			for ( int i = 0; i < pts[ 0 ].length; i++ )
+				out[ d ][ i ] = pts[ d ][ i ] + 5 * rand.nextDouble();
+
+		return out;
+	}
+}
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package bigwarp.transforms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.InvertibleCoordinateTransform;
+import mpicbg.models.Model;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.SimilarityModel2D;
+import mpicbg.models.SimilarityModel3D;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.InvertibleRealTransform;
+
+public class WrappedCoordinateTransformTest
+{
+	private static final double EPS = 1e-9;
+
+	@Test
+	public void testTranslation() throws Exception
+	{
+		compare( new TranslationModel2D(), 2 );
+		compare( new TranslationModel3D(), 3 );
+	}
+
+	@Test
+	public void testRigid() throws Exception
+	{
+		compare( new RigidModel2D(), 2 );
+		compare( new RigidModel3D(), 3 );
+	}
+
+	@Test
+	public void testSimilarity() throws Exception
+	{
+		compare( new SimilarityModel2D(), 2 );
+		compare( new SimilarityModel3D(), 3 );
+	}
+
+	@Test
+	public void testAffine() throws Exception
+	{
+		compare( new AffineModel2D(), 2 );
+		compare( new AffineModel3D(), 3 );
+	}
+
+	/*
+	 * Fits the model to random points and checks that the wrapped transform,
+	 * its copy and its inverse agree with the model.
+	 */
+	private static void compare( final Model< ? > model, final int nd ) throws Exception
+	{
+		final double[][] p = randomPoints( nd, 20, 1 );
+		final double[][] q = randomPoints( nd, 20, 2 );
+		for ( int d = 0; d < nd; d++ )
+			for ( int i = 0; i < p[ 0 ].length; i++ )
+				q[ d ][ i ] = 1.2 * p[ d ][ i ] + 0.1 * p[ ( d + 1 ) % nd ][ i ] + q[ d ][ i ] / 20 + 5 * d;
+
+		final double[] w = new double[ p[ 0 ].length ];
+		Arrays.fill( w, 1 );
+		model.fit( p, q, w );
+
+		final InvertibleCoordinateTransform ct = ( InvertibleCoordinateTransform ) model;
+		final WrappedCoordinateTransform xfm = new WrappedCoordinateTransform( ct, nd );
+		assertNotNull( model.getClass().getSimpleName() + " affine", xfm.getAffine() );
+
+		final String name = model.getClass().getSimpleName();
+		final double[][] pts = randomPoints( nd, 50, 3 );
+		final double[] x = new double[ nd ];
+		for ( int i = 0; i < pts[ 0 ].length; i++ )
+		{
+			for ( int d = 0; d < nd; d++ )
+				x[ d ] = pts[ d ][ i ];
+
+			final double[] fwd = ct.apply( x );
+			final double[] inv = ct.applyInverse( x );
+
+			check( name + " apply", fwd, xfm, x, false );
+			check( name + " applyInverse", inv, xfm, x, true );
+			check( name + " copy apply", fwd, xfm.copy(), x, false );
+			check( name + " copy applyInverse", inv, xfm.copy(), x, true );
+			check( name + " inverse apply", inv, xfm.inverse(), x, false );
+			check( name + " inverse applyInverse", fwd, xfm.inverse(), x, true );
+		}
+	}
+
+	private static void check( final String msg, final double[] expected, final InvertibleRealTransform xfm, final double[] x, final boolean inverse )
+	{
+		final int nd = x.length;
+		final double[] y = new double[ nd ];
+		final RealPoint src = new RealPoint( x );
+		final RealPoint tgt = new RealPoint( nd );
+		if ( inverse )
+		{
+			xfm.applyInverse( y, x );
+			xfm.applyInverse( tgt, src );
+		}
+		else
+		{
+			xfm.apply( x, y );
+			xfm.apply( src, tgt );
+		}
+		assertArrayEquals( msg, expected, y, EPS );
+
+		tgt.localize( y );
+		assertArrayEquals( msg + " (RealPoint)", expected, y, EPS );
+	}
+
+	private static double[][] randomPoints( final int nd, final int N, final long seed )
+	{
+		final Random rand = new Random( seed );
+		final double[][] pts = new double[ nd ][ N ];
+		for ( int d = 0; d < nd; d++ )
+			for ( int i = 0; i < N; i++ )
+				pts[ d ][ i ] = 100 * rand.nextDouble();
+
+		return pts;
+	}
+}
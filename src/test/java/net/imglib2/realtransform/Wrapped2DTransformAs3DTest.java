@@ -0,0 +1,208 @@
+/*-
+ * #%L
+ * BigWarp plugin for Fiji.
+ * %%
+ * Copyright (C) 2015 - 2021 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.realtransform;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import bigwarp.transforms.ModelTransformSolver;
+import bigwarp.transforms.TpsTransformSolver;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.Model;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.SimilarityModel2D;
+import mpicbg.models.TranslationModel2D;
+import net.imglib2.RealPoint;
+
+public class Wrapped2DTransformAs3DTest
+{
+	private static final double EPS = 1e-9;
+
+	private static final int NUM_THREADS = 8;
+
+	@Test
+	public void testThinPlateSpline() throws Exception
+	{
+		final double[][] mvg = randomPoints( 20, 1 );
+		final double[][] tgt = perturb( mvg, 2 );
+		final InvertibleRealTransform tps = new TpsTransformSolver().solve( mvg, tgt );
+
+		compareForward( tps );
+		compareThreaded( tps );
+	}
+
+	@Test
+	public void testAffineModels() throws Exception
+	{
+		final double[][] mvg = randomPoints( 10, 3 );
+		final double[][] tgt = perturb( mvg, 4 );
+		final Model< ? >[] models = new Model< ? >[] {
+				new TranslationModel2D(), new RigidModel2D(), new SimilarityModel2D(), new AffineModel2D() };
+
+		for ( final Model< ? > model : models )
+		{
+			final InvertibleRealTransform xfm = new ModelTransformSolver( model ).solve( mvg, tgt );
+			compareForward( xfm );
+			compareInverse( xfm );
+			compareThreaded( xfm );
+		}
+
+		final AffineTransform2D affine = new AffineTransform2D();
+		affine.set( 1.1, 0.2, 3, -0.1, 0.9, -4 );
+		compareForward( affine );
+		compareInverse( affine );
+		compareThreaded( affine );
+	}
+
+	private static void compareForward( final InvertibleRealTransform xfm )
+	{
+		final Wrapped2DTransformAs3D wrapped = new Wrapped2DTransformAs3D( xfm );
+		final double[][] pts = randomPoints( 50, 5 );
+		final double[] p = new double[ 2 ];
+		final double[] expected = new double[ 2 ];
+		final double[] p3 = new double[ 3 ];
+		final double[] q3 = new double[ 3 ];
+		final RealPoint src = new RealPoint( 3 );
+		final RealPoint tgt = new RealPoint( 3 );
+		for ( int i = 0; i < pts[ 0 ].length; i++ )
+		{
+			p[ 0 ] = pts[ 0 ][ i ];
+			p[ 1 ] = pts[ 1 ][ i ];
+			xfm.apply( p, expected );
+
+			p3[ 0 ] = p[ 0 ];
+			p3[ 1 ] = p[ 1 ];
+			p3[ 2 ] = i;
+			wrapped.apply( p3, q3 );
+			assertArrayEquals( new double[] { expected[ 0 ], expected[ 1 ], i }, q3, EPS );
+
+			src.setPosition( p3 );
+			wrapped.apply( src, tgt );
+			tgt.localize( q3 );
+			assertArrayEquals( new double[] { expected[ 0 ], expected[ 1 ], i }, q3, EPS );
+		}
+	}
+
+	private static void compareInverse( final InvertibleRealTransform xfm )
+	{
+		final Wrapped2DTransformAs3D wrapped = new Wrapped2DTransformAs3D( xfm );
+		final double[][] pts = randomPoints( 50, 6 );
+		final double[] q = new double[ 2 ];
+		final double[] expected = new double[ 2 ];
+		final double[] p3 = new double[ 3 ];
+		final double[] q3 = new double[ 3 ];
+		for ( int i = 0; i < pts[ 0 ].length; i++ )
+		{
+			q[ 0 ] = pts[ 0 ][ i ];
+			q[ 1 ] = pts[ 1 ][ i ];
+			xfm.applyInverse( expected, q );
+
+			q3[ 0 ] = q[ 0 ];
+			q3[ 1 ] = q[ 1 ];
+			q3[ 2 ] = i;
+			wrapped.applyInverse( p3, q3 );
+			assertArrayEquals( new double[] { expected[ 0 ], expected[ 1 ], i }, p3, EPS );
+		}
+	}
+
+	/*
+	 * Evaluates one wrapper from several threads at once and compares to the
+	 * generic transform evaluated serially.
+	 */
+	private static void compareThreaded( final InvertibleRealTransform xfm ) throws Exception
+	{
+		final Wrapped2DTransformAs3D wrapped = new Wrapped2DTransformAs3D( xfm );
+		final double[][] pts = randomPoints( 2000, 7 );
+		final int N = pts[ 0 ].length;
+		final double[][] expected = new double[ N ][ 2 ];
+		for ( int i = 0; i < N; i++ )
+			xfm.apply( new double[] { pts[ 0 ][ i ], pts[ 1 ][ i ] }, expected[ i ] );
+
+		final ExecutorService exec = Executors.newFixedThreadPool( NUM_THREADS );
+		try
+		{
+			final List< Future< Integer > > futures = new ArrayList<>();
+			for ( int t = 0; t < NUM_THREADS; t++ )
+			{
+				futures.add( exec.submit( () -> {
+					int numWrong = 0;
+					final double[] p = new double[ 3 ];
+					final double[] q = new double[ 3 ];
+					final RealPoint src = new RealPoint( 3 );
+					final RealPoint tgt = new RealPoint( 3 );
+					for ( int i = 0; i < N; i++ )
+					{
+						p[ 0 ] = pts[ 0 ][ i ];
+						p[ 1 ] = pts[ 1 ][ i ];
+						wrapped.apply( p, q );
+						if ( Math.abs( q[ 0 ] - expected[ i ][ 0 ] ) > EPS || Math.abs( q[ 1 ] - expected[ i ][ 1 ] ) > EPS )
+							numWrong++;
+
+						src.setPosition( p );
+						wrapped.apply( src, tgt );
+						if ( Math.abs( tgt.getDoublePosition( 0 ) - expected[ i ][ 0 ] ) > EPS
+								|| Math.abs( tgt.getDoublePosition( 1 ) - expected[ i ][ 1 ] ) > EPS )
+							numWrong++;
+					}
+					return numWrong;
+				} ) );
+			}
+			for ( final Future< Integer > f : futures )
+				assertEquals( "wrong results", 0, f.get().intValue() );
+		}
+		finally
+		{
+			exec.shutdown();
+		}
+	}
+
+	private static double[][] randomPoints( final int N, final long seed )
+	{
+		final Random rand = new Random( seed );
+		final double[][] pts = new double[ 2 ][ N ];
+		for ( int d = 0; d < 2; d++ )
+			for ( int i = 0; i < N; i++ )
+				pts[ d ][ i ] = 100 * rand.nextDouble();
+
+		return pts;
+	}
+
+	private static double[][] perturb( final double[][] pts, final long seed )
+	{
+		final Random rand = new Random( seed );
+		final double[][] out = new double[ 2 ][ pts[ 0 ].length ];
+		for ( int d = 0; d < 2; d++ )
+			for ( int i = 0; i < pts[ 0 ].length; i++ )
+				out[ d ][ i ] = pts[ d ][ i ] + 5 * rand.nextDouble();
+
+		return out;
+	}
+}